@@ -0,0 +1,40 @@
+package com.mattikariluoma.cameratest.bench;
+
+/// One measured operation, run repeatedly by BenchmarkRunner.
+///
+/// run(ops) must perform the operation ops times and return something
+/// derived from the work so the JIT cannot discard it. Setup and teardown
+/// are excluded from the timings.
+public abstract class Benchmark
+{
+  /// Stable identifier, used as the key when comparing result files
+  public abstract String getName();
+
+  /// Parameters distinguishing variants of the same benchmark, e.g. "640x480"
+  public String getParams()
+  {
+    return "";
+  }
+
+  /// Bytes processed per operation, for throughput; 0 if not meaningful
+  public long getBytesPerOp()
+  {
+    return 0;
+  }
+
+  public void setUp() throws Exception
+  {
+  }
+
+  public abstract long run(int ops) throws Exception;
+
+  public void tearDown() throws Exception
+  {
+  }
+
+  public String getKey()
+  {
+    final String params = getParams();
+    return params.length() == 0 ? getName() : getName() + "/" + params;
+  }
+}
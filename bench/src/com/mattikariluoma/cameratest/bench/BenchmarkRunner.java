@@ -0,0 +1,306 @@
+package com.mattikariluoma.cameratest.bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/// Runs the frame and capture hot-path benchmarks on a plain JVM.
+///
+/// Each benchmark is calibrated so one iteration lasts about
+/// -iteration-ms, warmed up for -warmup iterations, then timed over
+/// -iterations iterations. Results are written as CSV, one row per
+/// benchmark, to -out; given -baseline, an earlier result file, the run
+/// also reports the change in mean time per operation and exits non-zero
+/// if anything slowed down by more than -threshold percent.
+///
+///   java BenchmarkRunner [-out results.csv] [-baseline old.csv]
+///     [-threshold 10] [-warmup 5] [-iterations 10] [-iteration-ms 200]
+///     [-filter substring]
+public class BenchmarkRunner
+{
+  static final String HEADER = "benchmark,params,iterations,ops_per_iteration,"
+    + "ns_per_op_mean,ns_per_op_stdev,ns_per_op_min,ops_per_sec,mb_per_sec,checksum";
+
+  private int mWarmup = 5;
+  private int mIterations = 10;
+  private long mIterationNanos = 200L * 1000000L;
+  private String mFilter = null;
+
+  public static List<Benchmark> allBenchmarks()
+  {
+    final List<Benchmark> all = new ArrayList<Benchmark>();
+    all.add(new PreviewSizeBenchmark(false));
+    all.add(new PreviewSizeBenchmark(true));
+    for (int[] size : FrameSizes.COMMON)
+    {
+      all.add(new FrameCopyBenchmark(size[0], size[1]));
+      all.add(new Nv21ConvertBenchmark(size[0], size[1], 1));
+      all.add(new Nv21ConvertBenchmark(size[0], size[1], Runtime.getRuntime().availableProcessors()));
+      for (int factor = 2; factor <= 8; factor *= 2)
+        all.add(new LumaDecimateBenchmark(size[0], size[1], factor));
+    }
+    all.add(new MotionDetectBenchmark(640, 480, 4));
+    all.add(new MotionDetectBenchmark(1280, 720, 4));
+    all.add(new SharpnessBenchmark(640, 480, 1));
+    if (Runtime.getRuntime().availableProcessors() > 1)
+      all.add(new SharpnessBenchmark(640, 480, Runtime.getRuntime().availableProcessors()));
+    all.add(new JpegEncodeBenchmark(640, 480, 1, 85));
+    if (Runtime.getRuntime().availableProcessors() > 1)
+      all.add(new JpegEncodeBenchmark(640, 480, Runtime.getRuntime().availableProcessors(), 85));
+    all.add(new FrameBufferPoolBenchmark());
+    all.add(new LruCacheBenchmark(1024));
+    all.add(new CaptureIndexBenchmark(10000));
+    all.add(new FrameDispatchBenchmark(640, 480));
+    all.add(new FrameRecordBenchmark(640, 480));
+    all.add(new PreRollNearestBenchmark(640, 480));
+    all.add(new SyntheticPreviewBenchmark(640, 480));
+    all.add(new SyntheticCaptureBenchmark(640, 480));
+    all.add(new CaptureWriterBenchmark(com.mattikariluoma.cameratest.CaptureWriter.SyncPolicy.PER_FILE));
+    all.add(new CaptureWriterBenchmark(com.mattikariluoma.cameratest.CaptureWriter.SyncPolicy.BATCHED));
+    return all;
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    final BenchmarkRunner runner = new BenchmarkRunner();
+    File out = new File("bench-results.csv");
+    File baseline = null;
+    double threshold = 10;
+
+    for (int i = 0; i < args.length; i++)
+    {
+      final String a = args[i];
+      if (i + 1 >= args.length)
+        usage("missing value for " + a);
+      final String v = args[++i];
+      if (a.equals("-out"))
+        out = new File(v);
+      else if (a.equals("-baseline"))
+        baseline = new File(v);
+      else if (a.equals("-threshold"))
+        threshold = Double.parseDouble(v);
+      else if (a.equals("-warmup"))
+        runner.mWarmup = Integer.parseInt(v);
+      else if (a.equals("-iterations"))
+        runner.mIterations = Integer.parseInt(v);
+      else if (a.equals("-iteration-ms"))
+        runner.mIterationNanos = Long.parseLong(v) * 1000000L;
+      else if (a.equals("-filter"))
+        runner.mFilter = v;
+      else
+        usage("unknown option " + a);
+    }
+
+    final List<Result> results = new ArrayList<Result>();
+    for (Benchmark b : allBenchmarks())
+    {
+      if (runner.mFilter != null && b.getKey().indexOf(runner.mFilter) < 0)
+        continue;
+      final Result r = runner.measure(b);
+      System.out.println(r.summary());
+      results.add(r);
+    }
+
+    write(out, results);
+    System.out.println("wrote " + out);
+
+    if (baseline != null && compare(read(baseline), results, threshold) > 0)
+      System.exit(1);
+  }
+
+  private static void usage(String message)
+  {
+    System.err.println(message);
+    System.err.println("usage: BenchmarkRunner [-out file] [-baseline file] [-threshold pct]"
+      + " [-warmup n] [-iterations n] [-iteration-ms ms] [-filter text]");
+    System.exit(2);
+  }
+
+  Result measure(Benchmark b) throws Exception
+  {
+    b.setUp();
+    try {
+      long checksum = 0;
+
+      // grow the batch until one iteration takes long enough to time
+      int ops = 1;
+      while (true)
+      {
+        final long start = System.nanoTime();
+        checksum += b.run(ops);
+        final long elapsed = System.nanoTime() - start;
+        if (elapsed >= mIterationNanos / 4 || ops >= (1 << 28))
+        {
+          ops = (int) Math.max(1, Math.min(1 << 28, ops * (double) mIterationNanos / Math.max(1, elapsed)));
+          break;
+        }
+        ops *= 4;
+      }
+
+      for (int i = 0; i < mWarmup; i++)
+        checksum += b.run(ops);
+
+      final double[] nsPerOp = new double[mIterations];
+      for (int i = 0; i < mIterations; i++)
+      {
+        final long start = System.nanoTime();
+        checksum += b.run(ops);
+        nsPerOp[i] = (System.nanoTime() - start) / (double) ops;
+      }
+
+      return new Result(b.getName(), b.getParams(), ops, nsPerOp, b.getBytesPerOp(), checksum);
+    } finally {
+      b.tearDown();
+    }
+  }
+
+  static class Result
+  {
+    final String mName;
+    final String mParams;
+    final int mOps;
+    final int mIterations;
+    final double mMean;
+    final double mStdev;
+    final double mMin;
+    final long mBytesPerOp;
+    final long mChecksum;
+
+    Result(String name, String params, int ops, double[] nsPerOp, long bytesPerOp, long checksum)
+    {
+      mName = name;
+      mParams = params;
+      mOps = ops;
+      mIterations = nsPerOp.length;
+      mBytesPerOp = bytesPerOp;
+      mChecksum = checksum;
+
+      double sum = 0;
+      double min = Double.MAX_VALUE;
+      for (double v : nsPerOp)
+      {
+        sum += v;
+        min = Math.min(min, v);
+      }
+      mMean = sum / nsPerOp.length;
+      double sq = 0;
+      for (double v : nsPerOp)
+        sq += (v - mMean) * (v - mMean);
+      mStdev = nsPerOp.length > 1 ? Math.sqrt(sq / (nsPerOp.length - 1)) : 0;
+      mMin = min;
+    }
+
+    Result(String[] csv)
+    {
+      mName = csv[0];
+      mParams = csv[1];
+      mIterations = Integer.parseInt(csv[2]);
+      mOps = Integer.parseInt(csv[3]);
+      mMean = Double.parseDouble(csv[4]);
+      mStdev = Double.parseDouble(csv[5]);
+      mMin = Double.parseDouble(csv[6]);
+      mBytesPerOp = 0;
+      mChecksum = Long.parseLong(csv[9]);
+    }
+
+    String key()
+    {
+      return mParams.length() == 0 ? mName : mName + "/" + mParams;
+    }
+
+    double opsPerSecond()
+    {
+      return 1e9 / mMean;
+    }
+
+    double mbPerSecond()
+    {
+      return mBytesPerOp * opsPerSecond() / (1024.0 * 1024.0);
+    }
+
+    String csv()
+    {
+      return mName + "," + mParams + "," + mIterations + "," + mOps + ","
+        + String.format("%.1f,%.1f,%.1f,%.1f,%.2f", mMean, mStdev, mMin, opsPerSecond(), mbPerSecond())
+        + "," + mChecksum;
+    }
+
+    String summary()
+    {
+      String s = String.format("%-40s %14.1f ns/op  +- %5.1f%%  %12.1f ops/s",
+        key(), mMean, mMean == 0 ? 0 : 100 * mStdev / mMean, opsPerSecond());
+      if (mBytesPerOp > 0)
+        s += String.format("  %8.1f MB/s", mbPerSecond());
+      return s;
+    }
+  }
+
+  static void write(File file, List<Result> results) throws IOException
+  {
+    final File dir = file.getAbsoluteFile().getParentFile();
+    if (dir != null)
+      dir.mkdirs();
+
+    final PrintWriter out = new PrintWriter(new FileWriter(file));
+    try {
+      out.println("# " + System.currentTimeMillis()
+        + " java=" + System.getProperty("java.version")
+        + " os=" + System.getProperty("os.name") + "/" + System.getProperty("os.arch")
+        + " cores=" + Runtime.getRuntime().availableProcessors());
+      out.println(HEADER);
+      for (Result r : results)
+        out.println(r.csv());
+    } finally {
+      out.close();
+    }
+  }
+
+  static Map<String, Result> read(File file) throws IOException
+  {
+    final Map<String, Result> results = new HashMap<String, Result>();
+    final BufferedReader in = new BufferedReader(new FileReader(file));
+    try {
+      String line;
+      while ((line = in.readLine()) != null)
+      {
+        if (line.startsWith("#") || line.equals(HEADER) || line.trim().length() == 0)
+          continue;
+        final Result r = new Result(line.split(",", -1));
+        results.put(r.key(), r);
+      }
+    } finally {
+      in.close();
+    }
+    return results;
+  }
+
+  /// Prints the change against baseline; returns the number of regressions
+  static int compare(Map<String, Result> baseline, List<Result> current, double thresholdPercent)
+  {
+    int regressions = 0;
+    System.out.println("change against baseline (positive is slower):");
+    for (Result r : current)
+    {
+      final Result old = baseline.get(r.key());
+      if (old == null)
+      {
+        System.out.println(String.format("  %-40s new", r.key()));
+        continue;
+      }
+      final double change = 100 * (r.mMean - old.mMean) / old.mMean;
+      final boolean regressed = change > thresholdPercent;
+      if (regressed)
+        regressions++;
+      System.out.println(String.format("  %-40s %+7.1f%%%s", r.key(), change,
+        regressed ? "  REGRESSION" : ""));
+    }
+    return regressions;
+  }
+}
@@ -0,0 +1,76 @@
+package com.mattikariluoma.cameratest.bench;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.mattikariluoma.cameratest.CaptureIndex;
+
+/// Opening a capture index of many entries, as at every launch, followed
+/// by the latest-N and time-range queries the review strip makes
+public class CaptureIndexBenchmark extends Benchmark
+{
+  private static final int LATEST = 32;
+
+  private final int mEntries;
+  private File mDir;
+  private File mFile;
+
+  public CaptureIndexBenchmark(int entries)
+  {
+    mEntries = entries;
+  }
+
+  @Override
+  public String getName()
+  {
+    return "captureIndex.openQuery";
+  }
+
+  @Override
+  public String getParams()
+  {
+    return Integer.toString(mEntries);
+  }
+
+  @Override
+  public void setUp() throws IOException
+  {
+    mDir = File.createTempFile("capture-index-bench", "");
+    if (!mDir.delete() || !mDir.mkdir())
+      throw new IOException("cannot create " + mDir);
+    mFile = new File(mDir, "captures.idx");
+
+    // an empty directory rebuilds to an empty index to append to
+    final CaptureIndex index = CaptureIndex.open(mFile, mDir);
+    final long start = 1300000000000L;
+    for (int i = 0; i < mEntries; i++)
+      index.append(new CaptureIndex.Entry(start + i * 1000L,
+        "/sdcard/" + (start + i * 1000L) + ".jpg", 1200000, i & 1, 2048, 1536));
+    index.close();
+  }
+
+  @Override
+  public long run(int ops) throws IOException
+  {
+    long sum = 0;
+    for (int i = 0; i < ops; i++)
+    {
+      final CaptureIndex index = CaptureIndex.open(mFile, mDir);
+      sum += index.latest(LATEST).size();
+      final long mid = index.latest(1).get(0).timestamp - mEntries * 500L;
+      sum += index.range(mid, mid + 60000).size();
+      index.close();
+    }
+    return sum;
+  }
+
+  @Override
+  public void tearDown()
+  {
+    final File[] files = mDir.listFiles();
+    if (files != null)
+      for (File f : files)
+        f.delete();
+    mDir.delete();
+  }
+}
@@ -0,0 +1,86 @@
+package com.mattikariluoma.cameratest.bench;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.mattikariluoma.cameratest.CaptureWriter;
+
+/// JPEG-sized writes through CaptureWriter into a temporary directory,
+/// timed until every file is durable
+public class CaptureWriterBenchmark extends Benchmark
+{
+  private static final int CAPTURE_SIZE = 1024 * 1024;
+  private static final int FILES_PER_OP = 4;
+
+  private final CaptureWriter.SyncPolicy mPolicy;
+  private File mDir;
+  private CaptureWriter mWriter;
+  private byte[] mData;
+  private long mFileCount;
+
+  public CaptureWriterBenchmark(CaptureWriter.SyncPolicy policy)
+  {
+    mPolicy = policy;
+  }
+
+  @Override
+  public String getName()
+  {
+    return "captureWriter.write";
+  }
+
+  @Override
+  public String getParams()
+  {
+    return mPolicy.name().toLowerCase() + "-" + FILES_PER_OP + "x" + (CAPTURE_SIZE / 1024) + "k";
+  }
+
+  @Override
+  public long getBytesPerOp()
+  {
+    return (long) CAPTURE_SIZE * FILES_PER_OP;
+  }
+
+  @Override
+  public void setUp() throws IOException
+  {
+    mDir = File.createTempFile("capture-bench", "");
+    if (!mDir.delete() || !mDir.mkdir())
+      throw new IOException("cannot create " + mDir);
+
+    // incompressible, like a real jpeg
+    mData = new byte[CAPTURE_SIZE];
+    long state = 42;
+    for (int i = 0; i < mData.length; i++)
+    {
+      state = state * 6364136223846793005L + 1442695040888963407L;
+      mData[i] = (byte) (state >>> 56);
+    }
+
+    mWriter = new CaptureWriter(FILES_PER_OP, 64 * 1024, mPolicy, FILES_PER_OP);
+    mWriter.start();
+  }
+
+  @Override
+  public long run(int ops) throws InterruptedException
+  {
+    final long target = mWriter.getWrittenCount() + (long) ops * FILES_PER_OP;
+    for (int i = 0; i < ops * FILES_PER_OP; i++)
+      mWriter.submit(mData, new File(mDir, (mFileCount++ % 64) + ".jpg"), null);
+
+    while (mWriter.getWrittenCount() + mWriter.getFailedCount() < target)
+      Thread.sleep(1);
+    return mWriter.getBytesWritten();
+  }
+
+  @Override
+  public void tearDown()
+  {
+    mWriter.stop();
+    final File[] files = mDir.listFiles();
+    if (files != null)
+      for (File f : files)
+        f.delete();
+    mDir.delete();
+  }
+}
@@ -0,0 +1,34 @@
+package com.mattikariluoma.cameratest.bench;
+
+import com.mattikariluoma.cameratest.FrameBufferPool;
+
+/// One acquire/release round trip through the preview buffer pool
+public class FrameBufferPoolBenchmark extends Benchmark
+{
+  private FrameBufferPool mPool;
+
+  @Override
+  public String getName()
+  {
+    return "bufferPool.cycle";
+  }
+
+  @Override
+  public void setUp()
+  {
+    mPool = new FrameBufferPool(5, FrameBufferPool.nv21Size(640, 480));
+  }
+
+  @Override
+  public long run(int ops)
+  {
+    long sum = 0;
+    for (int i = 0; i < ops; i++)
+    {
+      final byte[] b = mPool.acquire();
+      sum += b.length;
+      mPool.release(b);
+    }
+    return sum;
+  }
+}
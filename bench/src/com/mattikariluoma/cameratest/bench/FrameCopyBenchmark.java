@@ -0,0 +1,56 @@
+package com.mattikariluoma.cameratest.bench;
+
+import com.mattikariluoma.cameratest.FrameBufferPool;
+import com.mattikariluoma.cameratest.SyntheticFrames;
+
+/// Copying a whole NV21 frame, the floor for any per-frame handling
+public class FrameCopyBenchmark extends Benchmark
+{
+  private final int mWidth;
+  private final int mHeight;
+  private byte[] mFrame;
+  private byte[] mCopy;
+
+  public FrameCopyBenchmark(int width, int height)
+  {
+    mWidth = width;
+    mHeight = height;
+  }
+
+  @Override
+  public String getName()
+  {
+    return "nv21.copy";
+  }
+
+  @Override
+  public String getParams()
+  {
+    return mWidth + "x" + mHeight;
+  }
+
+  @Override
+  public long getBytesPerOp()
+  {
+    return FrameBufferPool.nv21Size(mWidth, mHeight);
+  }
+
+  @Override
+  public void setUp()
+  {
+    mFrame = new SyntheticFrames(mWidth, mHeight, 1).frame(0);
+    mCopy = new byte[mFrame.length];
+  }
+
+  @Override
+  public long run(int ops)
+  {
+    long sum = 0;
+    for (int i = 0; i < ops; i++)
+    {
+      System.arraycopy(mFrame, 0, mCopy, 0, mFrame.length);
+      sum += mCopy[i % mCopy.length];
+    }
+    return sum;
+  }
+}
@@ -0,0 +1,91 @@
+package com.mattikariluoma.cameratest.bench;
+
+import java.util.concurrent.Semaphore;
+
+import com.mattikariluoma.cameratest.FrameBufferPool;
+import com.mattikariluoma.cameratest.FrameDispatcher;
+import com.mattikariluoma.cameratest.SyntheticFrames;
+
+/// A pooled frame handed through the dispatcher to a worker and back, as
+/// a camera delivering into the pool would, waiting for a free buffer
+public class FrameDispatchBenchmark extends Benchmark
+{
+  private final int mWidth;
+  private final int mHeight;
+  private FrameBufferPool mPool;
+  private FrameDispatcher mDispatcher;
+  private final Semaphore mFree = new Semaphore(0);
+  private volatile long mSum;
+
+  public FrameDispatchBenchmark(int width, int height)
+  {
+    mWidth = width;
+    mHeight = height;
+  }
+
+  @Override
+  public String getName()
+  {
+    return "dispatch.roundTrip";
+  }
+
+  @Override
+  public String getParams()
+  {
+    return mWidth + "x" + mHeight;
+  }
+
+  @Override
+  public void setUp()
+  {
+    final SyntheticFrames frames = new SyntheticFrames(mWidth, mHeight, 3);
+    mPool = new FrameBufferPool(5, frames.getFrameSize());
+    for (int i = 0; i < mPool.getCapacity(); i++)
+    {
+      final byte[] b = mPool.acquire();
+      frames.fill(b, i);
+      mPool.release(b);
+    }
+    mFree.release(mPool.getCapacity());
+
+    mDispatcher = new FrameDispatcher("bench", 2, 1, FrameDispatcher.DropPolicy.BLOCK);
+    mDispatcher.addConsumer(new FrameDispatcher.FrameConsumer()
+    {
+      @Override
+      public void onFrame(FrameDispatcher.Frame frame)
+      {
+        mSum += frame.getData()[(int) (frame.getSequence() % frame.getData().length)];
+      }
+    });
+    mDispatcher.setReleaser(new FrameDispatcher.FrameReleaser()
+    {
+      @Override
+      public void onFrameReleased(byte[] data)
+      {
+        mPool.release(data);
+        mFree.release();
+      }
+    });
+    mDispatcher.start();
+  }
+
+  @Override
+  public long run(int ops) throws InterruptedException
+  {
+    for (int i = 0; i < ops; i++)
+    {
+      mFree.acquire();
+      mDispatcher.dispatch(mPool.acquire(), mWidth, mHeight, System.nanoTime());
+    }
+    // wait for the workers to hand every buffer back
+    mFree.acquire(mPool.getCapacity());
+    mFree.release(mPool.getCapacity());
+    return mSum;
+  }
+
+  @Override
+  public void tearDown()
+  {
+    mDispatcher.stop();
+  }
+}
@@ -0,0 +1,91 @@
+package com.mattikariluoma.cameratest.bench;
+
+import java.io.File;
+
+import com.mattikariluoma.cameratest.FrameBufferPool;
+import com.mattikariluoma.cameratest.FrameRecorder;
+import com.mattikariluoma.cameratest.SyntheticFrames;
+
+/// Appending preview frames to a memory-mapped frame log, including
+/// segment rollover. The log is started over every few segments to bound
+/// disk use, and that cost is included.
+public class FrameRecordBenchmark extends Benchmark
+{
+  private static final int SEGMENT_SIZE = 32 * 1024 * 1024;
+  private static final int MAX_SEGMENTS = 4;
+
+  private final int mWidth;
+  private final int mHeight;
+  private byte[] mFrame;
+  private File mDirectory;
+  private FrameRecorder mRecorder;
+  private long mTimestamp;
+
+  public FrameRecordBenchmark(int width, int height)
+  {
+    mWidth = width;
+    mHeight = height;
+  }
+
+  @Override
+  public String getName()
+  {
+    return "framelog.append";
+  }
+
+  @Override
+  public String getParams()
+  {
+    return mWidth + "x" + mHeight;
+  }
+
+  @Override
+  public long getBytesPerOp()
+  {
+    return FrameBufferPool.nv21Size(mWidth, mHeight);
+  }
+
+  @Override
+  public void setUp() throws Exception
+  {
+    mFrame = new SyntheticFrames(mWidth, mHeight, 1).frame(0);
+    restart();
+  }
+
+  private void restart() throws Exception
+  {
+    if (mRecorder != null)
+      tearDown();
+    mDirectory = File.createTempFile("framelog", "");
+    mDirectory.delete();
+    mRecorder = new FrameRecorder(mDirectory, SEGMENT_SIZE);
+  }
+
+  @Override
+  public long run(int ops) throws Exception
+  {
+    long frames = 0;
+    for (int i = 0; i < ops; i++)
+    {
+      mRecorder.append(mFrame, mWidth, mHeight, mTimestamp += 33333333);
+      if (mRecorder.getSegmentCount() > MAX_SEGMENTS)
+      {
+        frames += mRecorder.getFrameCount();
+        restart();
+      }
+    }
+    return frames + mRecorder.getFrameCount();
+  }
+
+  @Override
+  public void tearDown() throws Exception
+  {
+    mRecorder.close();
+    mRecorder = null;
+    final File[] files = mDirectory.listFiles();
+    if (files != null)
+      for (File f : files)
+        f.delete();
+    mDirectory.delete();
+  }
+}
@@ -0,0 +1,24 @@
+package com.mattikariluoma.cameratest.bench;
+
+/// Preview sizes the benchmarks are run at
+final class FrameSizes
+{
+  static final int[][] COMMON = {
+    { 320, 240 },
+    { 640, 480 },
+    { 1280, 720 },
+    { 1920, 1080 },
+  };
+
+  /// A typical camera's supported preview sizes, as reported by
+  /// getSupportedPreviewSizes()
+  static final int[][] SUPPORTED = {
+    { 1920, 1080 }, { 1280, 960 }, { 1280, 720 }, { 1024, 768 }, { 960, 720 },
+    { 800, 600 }, { 800, 480 }, { 720, 480 }, { 640, 480 }, { 640, 360 },
+    { 480, 320 }, { 352, 288 }, { 320, 240 }, { 176, 144 },
+  };
+
+  private FrameSizes()
+  {
+  }
+}
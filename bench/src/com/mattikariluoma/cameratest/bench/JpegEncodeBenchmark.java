@@ -0,0 +1,65 @@
+package com.mattikariluoma.cameratest.bench;
+
+import com.mattikariluoma.cameratest.JpegEncoder;
+import com.mattikariluoma.cameratest.SyntheticFrames;
+
+/// Encoding a preview frame to JPEG with the pure Java encoder. YuvImage
+/// needs a device; compare against the preview.jpeg timings there.
+public class JpegEncodeBenchmark extends Benchmark
+{
+  private final int mWidth;
+  private final int mHeight;
+  private final int mThreads;
+  private final int mQuality;
+  private byte[] mFrame;
+  private JpegEncoder mEncoder;
+
+  public JpegEncodeBenchmark(int width, int height, int threads, int quality)
+  {
+    mWidth = width;
+    mHeight = height;
+    mThreads = threads;
+    mQuality = quality;
+  }
+
+  @Override
+  public String getName()
+  {
+    return "jpeg.encode";
+  }
+
+  @Override
+  public String getParams()
+  {
+    return mWidth + "x" + mHeight + "/q" + mQuality + "/t" + mThreads;
+  }
+
+  @Override
+  public long getBytesPerOp()
+  {
+    return mWidth * mHeight * 3L / 2;
+  }
+
+  @Override
+  public void setUp()
+  {
+    mFrame = new SyntheticFrames(mWidth, mHeight, 1).frame(0);
+    mEncoder = new JpegEncoder(mThreads);
+  }
+
+  @Override
+  public long run(int ops)
+  {
+    long sum = 0;
+    for (int i = 0; i < ops; i++)
+      sum += mEncoder.encode(mFrame, mWidth, mHeight, mQuality);
+    return sum;
+  }
+
+  @Override
+  public void tearDown()
+  {
+    mEncoder.shutdown();
+    mEncoder = null;
+  }
+}
@@ -0,0 +1,78 @@
+package com.mattikariluoma.cameratest.bench;
+
+import com.mattikariluoma.cameratest.SizedLruCache;
+
+/// Lookups in a thumbnail-sized LRU, inserting on a miss, over a skewed
+/// working set a few times larger than the cache, as a review strip
+/// scrolling through captures would
+public class LruCacheBenchmark extends Benchmark
+{
+  private static final int VALUE_SIZE = 96 * 96 * 2;
+  private static final int CACHED = 256;
+
+  private final int mWorkingSet;
+  private Integer[] mKeys;
+  private byte[][] mValues;
+  private SizedLruCache<Integer, byte[]> mCache;
+  private long mState = 1;
+
+  public LruCacheBenchmark(int workingSet)
+  {
+    mWorkingSet = workingSet;
+  }
+
+  @Override
+  public String getName()
+  {
+    return "lru.getPut";
+  }
+
+  @Override
+  public String getParams()
+  {
+    return CACHED + "/" + mWorkingSet;
+  }
+
+  @Override
+  public void setUp()
+  {
+    mKeys = new Integer[mWorkingSet];
+    mValues = new byte[mWorkingSet][];
+    for (int i = 0; i < mWorkingSet; i++)
+    {
+      mKeys[i] = Integer.valueOf(i);
+      mValues[i] = new byte[VALUE_SIZE];
+    }
+    mCache = new SizedLruCache<Integer, byte[]>((long) CACHED * VALUE_SIZE)
+    {
+      @Override
+      protected long sizeOf(Integer key, byte[] value)
+      {
+        return value.length;
+      }
+    };
+  }
+
+  @Override
+  public long run(int ops)
+  {
+    long sum = 0;
+    for (int i = 0; i < ops; i++)
+    {
+      // the product of two uniform draws favours recent (low) keys
+      mState = mState * 6364136223846793005L + 1442695040888963407L;
+      final long a = (mState >>> 33) % mWorkingSet;
+      final long b = (mState >>> 13) % mWorkingSet;
+      final int k = (int) (a * b / mWorkingSet);
+
+      byte[] v = mCache.get(mKeys[k]);
+      if (v == null)
+      {
+        v = mValues[k];
+        mCache.put(mKeys[k], v);
+      }
+      sum += v.length;
+    }
+    return sum + mCache.getHitCount();
+  }
+}
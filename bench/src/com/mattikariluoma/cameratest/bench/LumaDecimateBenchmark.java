@@ -0,0 +1,58 @@
+package com.mattikariluoma.cameratest.bench;
+
+import com.mattikariluoma.cameratest.LumaDecimator;
+import com.mattikariluoma.cameratest.SyntheticFrames;
+
+/// Decimating the luma plane of one NV21 frame by a fixed factor
+public class LumaDecimateBenchmark extends Benchmark
+{
+  private final int mWidth;
+  private final int mHeight;
+  private final int mFactor;
+  private byte[] mFrame;
+  private LumaDecimator mDecimator;
+
+  public LumaDecimateBenchmark(int width, int height, int factor)
+  {
+    mWidth = width;
+    mHeight = height;
+    mFactor = factor;
+  }
+
+  @Override
+  public String getName()
+  {
+    return "luma.decimate";
+  }
+
+  @Override
+  public String getParams()
+  {
+    return mWidth + "x" + mHeight + "/" + mFactor;
+  }
+
+  @Override
+  public long getBytesPerOp()
+  {
+    return (long) mWidth * mHeight;
+  }
+
+  @Override
+  public void setUp()
+  {
+    mFrame = new SyntheticFrames(mWidth, mHeight, 1).frame(0);
+    mDecimator = new LumaDecimator(mFactor);
+  }
+
+  @Override
+  public long run(int ops)
+  {
+    long sum = 0;
+    for (int i = 0; i < ops; i++)
+    {
+      final byte[] luma = mDecimator.decimate(mFrame, mWidth, mHeight);
+      sum += luma[i % luma.length];
+    }
+    return sum;
+  }
+}
@@ -0,0 +1,67 @@
+package com.mattikariluoma.cameratest.bench;
+
+import com.mattikariluoma.cameratest.LumaDecimator;
+import com.mattikariluoma.cameratest.MotionDetector;
+import com.mattikariluoma.cameratest.SyntheticFrames;
+
+/// Decimating a preview frame and running motion detection on it, over a
+/// sequence where the scene changes only some of the time
+public class MotionDetectBenchmark extends Benchmark
+{
+  private static final int FRAMES = 16;
+
+  private final int mWidth;
+  private final int mHeight;
+  private final int mFactor;
+  private byte[][] mFrames;
+  private LumaDecimator mDecimator;
+  private MotionDetector mDetector;
+
+  public MotionDetectBenchmark(int width, int height, int factor)
+  {
+    mWidth = width;
+    mHeight = height;
+    mFactor = factor;
+  }
+
+  @Override
+  public String getName()
+  {
+    return "motion.detect";
+  }
+
+  @Override
+  public String getParams()
+  {
+    return mWidth + "x" + mHeight + "/" + mFactor;
+  }
+
+  @Override
+  public long getBytesPerOp()
+  {
+    return (long) mWidth * mHeight;
+  }
+
+  @Override
+  public void setUp()
+  {
+    final SyntheticFrames source = new SyntheticFrames(mWidth, mHeight, 5);
+    mFrames = new byte[FRAMES][];
+    // a still scene with a burst of movement in the middle
+    for (int i = 0; i < FRAMES; i++)
+      mFrames[i] = source.frame(i >= FRAMES / 2 && i < FRAMES * 3 / 4 ? i : 0);
+    mDecimator = new LumaDecimator(mFactor);
+    mDetector = new MotionDetector(8);
+  }
+
+  @Override
+  public long run(int ops)
+  {
+    for (int i = 0; i < ops; i++)
+    {
+      final byte[] luma = mDecimator.decimate(mFrames[i % FRAMES], mWidth, mHeight);
+      mDetector.onLuma(luma, mDecimator.getOutputWidth(), mDecimator.getOutputHeight(), i, i);
+    }
+    return mDetector.getTriggerCount() + mDetector.getChangedTileCount();
+  }
+}
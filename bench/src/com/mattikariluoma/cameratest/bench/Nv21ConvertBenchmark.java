@@ -0,0 +1,76 @@
+package com.mattikariluoma.cameratest.bench;
+
+import com.mattikariluoma.cameratest.Nv21Converter;
+import com.mattikariluoma.cameratest.SyntheticFrames;
+
+/// NV21 to ARGB_8888 conversion; setUp() fails if the fixed-point path
+/// drifts from the float reference
+public class Nv21ConvertBenchmark extends Benchmark
+{
+  private static final int MAX_ERROR = 2;
+
+  private final int mWidth;
+  private final int mHeight;
+  private final int mThreads;
+  private Nv21Converter mConverter;
+  private byte[] mFrame;
+  private int[] mOut;
+
+  public Nv21ConvertBenchmark(int width, int height, int threads)
+  {
+    mWidth = width;
+    mHeight = height;
+    mThreads = threads;
+  }
+
+  @Override
+  public String getName()
+  {
+    return "nv21.toArgb";
+  }
+
+  @Override
+  public String getParams()
+  {
+    return mWidth + "x" + mHeight + "-t" + mThreads;
+  }
+
+  @Override
+  public long getBytesPerOp()
+  {
+    return mWidth * mHeight * 4L;
+  }
+
+  @Override
+  public void setUp()
+  {
+    mConverter = new Nv21Converter(mThreads);
+    mFrame = new SyntheticFrames(mWidth, mHeight, 2).frame(0);
+    mOut = new int[mWidth * mHeight];
+
+    final int[] reference = new int[mWidth * mHeight];
+    mConverter.toArgb8888(mFrame, mWidth, mHeight, mOut);
+    Nv21Converter.toArgb8888Reference(mFrame, mWidth, mHeight, reference);
+    final int error = Nv21Converter.maxChannelError(mOut, reference, mOut.length);
+    if (error > MAX_ERROR)
+      throw new IllegalStateException("conversion differs from reference by " + error);
+  }
+
+  @Override
+  public long run(int ops)
+  {
+    long sum = 0;
+    for (int i = 0; i < ops; i++)
+    {
+      mConverter.toArgb8888(mFrame, mWidth, mHeight, mOut);
+      sum += mOut[i % mOut.length];
+    }
+    return sum;
+  }
+
+  @Override
+  public void tearDown()
+  {
+    mConverter.shutdown();
+  }
+}
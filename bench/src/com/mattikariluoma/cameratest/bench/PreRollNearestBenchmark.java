@@ -0,0 +1,67 @@
+package com.mattikariluoma.cameratest.bench;
+
+import com.mattikariluoma.cameratest.FrameBufferPool;
+import com.mattikariluoma.cameratest.PreRollBuffer;
+import com.mattikariluoma.cameratest.SyntheticFrames;
+
+/// Picking the pre-roll frame nearest a shutter press and copying it out,
+/// the first step of a zero shutter lag capture
+public class PreRollNearestBenchmark extends Benchmark
+{
+  private static final int BUDGET_BYTES = 16 * 1024 * 1024;
+  private static final long FRAME_NANOS = 33333333;
+
+  private final int mWidth;
+  private final int mHeight;
+  private PreRollBuffer mPreRoll;
+  private PreRollBuffer.Snapshot mSnapshot;
+  private long mNewest;
+
+  public PreRollNearestBenchmark(int width, int height)
+  {
+    mWidth = width;
+    mHeight = height;
+  }
+
+  @Override
+  public String getName()
+  {
+    return "preroll.copyNearest";
+  }
+
+  @Override
+  public String getParams()
+  {
+    return mWidth + "x" + mHeight;
+  }
+
+  @Override
+  public long getBytesPerOp()
+  {
+    return FrameBufferPool.nv21Size(mWidth, mHeight);
+  }
+
+  @Override
+  public void setUp()
+  {
+    final byte[] frame = new SyntheticFrames(mWidth, mHeight, 1).frame(0);
+    mPreRoll = new PreRollBuffer(BUDGET_BYTES);
+    mSnapshot = new PreRollBuffer.Snapshot();
+    for (int i = 0; i < mPreRoll.getCapacityBytes() / frame.length + 1; i++)
+      mPreRoll.write(frame, mWidth, mHeight, mNewest += FRAME_NANOS);
+  }
+
+  @Override
+  public long run(int ops)
+  {
+    long sum = 0;
+    for (int i = 0; i < ops; i++)
+    {
+      // presses spread over the ring, between frames
+      final long press = mNewest - (i % mPreRoll.getSlotCount()) * FRAME_NANOS - FRAME_NANOS / 3;
+      if (mPreRoll.copyNearest(press, mSnapshot))
+        sum += mSnapshot.getTimestampNanos();
+    }
+    return sum;
+  }
+}
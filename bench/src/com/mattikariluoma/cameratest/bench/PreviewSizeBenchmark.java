@@ -0,0 +1,59 @@
+package com.mattikariluoma.cameratest.bench;
+
+import com.mattikariluoma.cameratest.PreviewSizeNegotiator;
+
+/// Preview-size negotiation, as run from VersionedPreview.onMeasure: a
+/// full scored search, or a memoized lookup of an earlier result
+public class PreviewSizeBenchmark extends Benchmark
+{
+  // landscape view sizes of common screens, with and without decorations
+  private static final int[][] VIEWS = {
+    { 800, 480 }, { 854, 480 }, { 960, 540 }, { 1280, 720 }, { 1280, 670 },
+    { 1920, 1080 }, { 1024, 600 }, { 480, 320 },
+  };
+
+  private static final int[][] FPS_RANGES = {
+    { 15000, 15000 }, { 15000, 30000 }, { 30000, 30000 },
+  };
+
+  private final boolean mMemoized;
+  private PreviewSizeNegotiator mNegotiator;
+
+  public PreviewSizeBenchmark(boolean memoized)
+  {
+    mMemoized = memoized;
+  }
+
+  @Override
+  public String getName()
+  {
+    return "previewSize.negotiate";
+  }
+
+  @Override
+  public String getParams()
+  {
+    return mMemoized ? "memoized" : "search";
+  }
+
+  @Override
+  public void setUp()
+  {
+    mNegotiator = new PreviewSizeNegotiator("bench");
+    mNegotiator.setCapabilities(0, FrameSizes.SUPPORTED, FPS_RANGES);
+  }
+
+  @Override
+  public long run(int ops)
+  {
+    long sum = 0;
+    for (int i = 0; i < ops; i++)
+    {
+      if (!mMemoized)
+        mNegotiator.forget(0);
+      final int[] view = VIEWS[i % VIEWS.length];
+      sum += mNegotiator.negotiate(0, view[0], view[1]).width;
+    }
+    return sum;
+  }
+}
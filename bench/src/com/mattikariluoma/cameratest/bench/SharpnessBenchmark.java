@@ -0,0 +1,62 @@
+package com.mattikariluoma.cameratest.bench;
+
+import com.mattikariluoma.cameratest.SharpnessScorer;
+import com.mattikariluoma.cameratest.SyntheticFrames;
+
+/// Scoring the sharpness of a full resolution luma plane
+public class SharpnessBenchmark extends Benchmark
+{
+  private final int mWidth;
+  private final int mHeight;
+  private final int mThreads;
+  private byte[] mFrame;
+  private SharpnessScorer mScorer;
+
+  public SharpnessBenchmark(int width, int height, int threads)
+  {
+    mWidth = width;
+    mHeight = height;
+    mThreads = threads;
+  }
+
+  @Override
+  public String getName()
+  {
+    return "sharpness.score";
+  }
+
+  @Override
+  public String getParams()
+  {
+    return mWidth + "x" + mHeight + "/t" + mThreads;
+  }
+
+  @Override
+  public long getBytesPerOp()
+  {
+    return (long) mWidth * mHeight;
+  }
+
+  @Override
+  public void setUp()
+  {
+    mFrame = new SyntheticFrames(mWidth, mHeight, 1).frame(0);
+    mScorer = new SharpnessScorer(mThreads, 1);
+  }
+
+  @Override
+  public long run(int ops)
+  {
+    double sum = 0;
+    for (int i = 0; i < ops; i++)
+      sum += mScorer.score(mFrame, mWidth, mHeight);
+    return (long) sum;
+  }
+
+  @Override
+  public void tearDown()
+  {
+    mScorer.shutdown();
+    mScorer = null;
+  }
+}
@@ -0,0 +1,102 @@
+package com.mattikariluoma.cameratest.bench;
+
+import java.util.concurrent.CountDownLatch;
+
+import com.mattikariluoma.cameratest.CaptureStateMachine;
+import com.mattikariluoma.cameratest.SyntheticCamera;
+
+/// A burst through CaptureStateMachine on a stand-in camera with no
+/// shutter or jpeg latency, so only the sequencing and callback handoffs
+/// between threads are measured
+public class SyntheticCaptureBenchmark extends Benchmark
+{
+  private final int mWidth;
+  private final int mHeight;
+  private SyntheticCamera mCamera;
+  private CaptureStateMachine mMachine;
+  private volatile CountDownLatch mDone;
+  private volatile long mBytes;
+
+  public SyntheticCaptureBenchmark(int width, int height)
+  {
+    mWidth = width;
+    mHeight = height;
+  }
+
+  @Override
+  public String getName()
+  {
+    return "synthcam.capture";
+  }
+
+  @Override
+  public String getParams()
+  {
+    return mWidth + "x" + mHeight;
+  }
+
+  @Override
+  public void setUp()
+  {
+    mCamera = SyntheticCamera.generated(mWidth, mHeight, 0);
+    final SyntheticCamera.PictureListener picture = new SyntheticCamera.PictureListener()
+    {
+      @Override
+      public void onShutter()
+      {
+      }
+
+      @Override
+      public void onPictureTaken(byte[] data)
+      {
+        mBytes += data.length;
+        mMachine.onPictureTaken();
+      }
+    };
+
+    mMachine = new CaptureStateMachine(new CaptureStateMachine.Actions()
+    {
+      @Override
+      public void autoFocus()
+      {
+        mMachine.onFocusComplete(true);
+      }
+
+      @Override
+      public void capture()
+      {
+        mCamera.takePicture(picture);
+      }
+
+      @Override
+      public void restartPreview()
+      {
+        mCamera.startPreview();
+      }
+    });
+    mMachine.setListener(new CaptureStateMachine.Listener()
+    {
+      @Override
+      public void onShotsComplete(int shots, double shotsPerSecond, Object tag)
+      {
+        mDone.countDown();
+      }
+    });
+    mCamera.startPreview();
+  }
+
+  @Override
+  public long run(int ops) throws InterruptedException
+  {
+    mDone = new CountDownLatch(1);
+    mMachine.requestShots(ops, false);
+    mDone.await();
+    return mBytes;
+  }
+
+  @Override
+  public void tearDown()
+  {
+    mCamera.release();
+  }
+}
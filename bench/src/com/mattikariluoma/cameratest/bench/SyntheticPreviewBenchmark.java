@@ -0,0 +1,106 @@
+package com.mattikariluoma.cameratest.bench;
+
+import com.mattikariluoma.cameratest.FrameBufferPool;
+import com.mattikariluoma.cameratest.FrameDispatcher;
+import com.mattikariluoma.cameratest.SyntheticCamera;
+
+/// Frames stepped out of a stand-in camera into pooled callback buffers
+/// and through the dispatcher, as VersionedPreview wires the hardware;
+/// includes generating each frame
+public class SyntheticPreviewBenchmark extends Benchmark
+{
+  private static final int BUFFERS = 5;
+
+  private final int mWidth;
+  private final int mHeight;
+  private SyntheticCamera mCamera;
+  private FrameBufferPool mPool;
+  private FrameDispatcher mDispatcher;
+  private volatile long mSum;
+
+  public SyntheticPreviewBenchmark(int width, int height)
+  {
+    mWidth = width;
+    mHeight = height;
+  }
+
+  @Override
+  public String getName()
+  {
+    return "synthcam.preview";
+  }
+
+  @Override
+  public String getParams()
+  {
+    return mWidth + "x" + mHeight;
+  }
+
+  @Override
+  public long getBytesPerOp()
+  {
+    return FrameBufferPool.nv21Size(mWidth, mHeight);
+  }
+
+  @Override
+  public void setUp()
+  {
+    mCamera = SyntheticCamera.generated(mWidth, mHeight, 0);
+    mPool = new FrameBufferPool(BUFFERS, FrameBufferPool.nv21Size(mWidth, mHeight));
+
+    mDispatcher = new FrameDispatcher("bench", 2, 1, FrameDispatcher.DropPolicy.BLOCK);
+    mDispatcher.addConsumer(new FrameDispatcher.FrameConsumer()
+    {
+      @Override
+      public void onFrame(FrameDispatcher.Frame frame)
+      {
+        mSum += frame.getData()[(int) (frame.getSequence() % frame.getData().length)];
+      }
+    });
+    mDispatcher.setReleaser(new FrameDispatcher.FrameReleaser()
+    {
+      @Override
+      public void onFrameReleased(byte[] data)
+      {
+        // what VersionedCamera.recycleFrameBuffer() does
+        if (mPool.release(data))
+          mCamera.addCallbackBuffer(mPool.acquire());
+      }
+    });
+    mDispatcher.start();
+
+    mCamera.setPreviewListener(new SyntheticCamera.PreviewListener()
+    {
+      @Override
+      public void onPreviewFrame(byte[] data, long timestampNanos)
+      {
+        mDispatcher.dispatch(data, mWidth, mHeight, timestampNanos);
+      }
+    }, true);
+    byte[] b;
+    while ((b = mPool.acquire()) != null)
+      mCamera.addCallbackBuffer(b);
+    mCamera.startPreview();
+  }
+
+  @Override
+  public long run(int ops)
+  {
+    for (int i = 0; i < ops; )
+    {
+      // no free buffer means the workers are behind; the camera would drop
+      if (mCamera.step())
+        i++;
+      else
+        Thread.yield();
+    }
+    return mSum;
+  }
+
+  @Override
+  public void tearDown()
+  {
+    mCamera.release();
+    mDispatcher.stop();
+  }
+}
@@ -0,0 +1,120 @@
+package com.mattikariluoma.cameratest.test;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import com.mattikariluoma.cameratest.CameraSettings;
+
+public class CameraSettingsTest extends UnitTest
+{
+  private static final String FLATTENED = "preview-size=640x480;"
+    + "preview-size-values=1280x720,640x480,bogus,320x240;"
+    + "preview-frame-rate=30;preview-frame-rate-values=15,24,30;"
+    + "preview-fps-range=15000,30000;preview-fps-range-values=(15000,15000),(15000,30000);"
+    + "picture-size=2048x1536;focus-mode=auto;focus-mode-values=auto,infinity,macro;"
+    + "jpeg-quality=85;zoom=oops";
+
+  private CameraSettings mSettings;
+
+  @Override
+  public void setUp()
+  {
+    mSettings = new CameraSettings(FLATTENED);
+  }
+
+  private static String pairs(int[][] pairs)
+  {
+    final StringBuilder s = new StringBuilder();
+    for (int[] pair : pairs)
+      s.append(Arrays.toString(pair));
+    return s.toString();
+  }
+
+  public void testTypedGettersParseTheFlattenedValues()
+  {
+    assertEquals("preview size", "[640, 480]", Arrays.toString(mSettings.getPreviewSize()));
+    assertEquals("bad pairs skipped", "[1280, 720][640, 480][320, 240]",
+      pairs(mSettings.getSupportedPreviewSizes()));
+    assertEquals("frame rate", 30, mSettings.getPreviewFrameRate());
+    assertEquals("frame rates", "[15, 24, 30]",
+      Arrays.toString(mSettings.getSupportedPreviewFrameRates()));
+    assertEquals("fps range", "[15000, 30000]", Arrays.toString(mSettings.getPreviewFpsRange()));
+    assertEquals("fps ranges", "[15000, 15000][15000, 30000]",
+      pairs(mSettings.getSupportedPreviewFpsRanges()));
+    assertEquals("picture size", "[2048, 1536]", Arrays.toString(mSettings.getPictureSize()));
+    assertEquals("focus mode", "auto", mSettings.getFocusMode());
+    assertEquals("focus modes", "[auto, infinity, macro]",
+      Arrays.toString(mSettings.getSupportedFocusModes()));
+    assertEquals("jpeg quality", 85, mSettings.getJpegQuality());
+
+    assertEquals("unparsable int", -1, mSettings.getInt("zoom", -1));
+    assertEquals("missing int", -1, mSettings.getInt("zoom-max", -1));
+    assertNull("missing pair", new CameraSettings("").getPictureSize());
+    assertEquals("no picture sizes", 0, mSettings.getSupportedPictureSizes().length);
+    assertEquals("empty snapshot", 0, new CameraSettings(null).getSupportedFocusModes().length);
+  }
+
+  public void testUnchangedValuesAreNoChange()
+  {
+    mSettings.setPreviewSize(640, 480);
+    mSettings.setJpegQuality(85);
+    mSettings.setFocusMode("auto");
+    assertTrue("no changes", !mSettings.hasChanges());
+    assertEquals("no diff", 0, mSettings.takeChanges().size());
+    assertEquals("values kept", 85, mSettings.getJpegQuality());
+  }
+
+  public void testSetThenRevertIsNoChange()
+  {
+    mSettings.setPreviewFrameRate(15);
+    assertTrue("changed", mSettings.hasChanges());
+    assertEquals("pending value read back", 15, mSettings.getPreviewFrameRate());
+    mSettings.setPreviewFrameRate(30);
+    assertTrue("reverted", !mSettings.hasChanges());
+    assertEquals("no diff", 0, mSettings.takeChanges().size());
+  }
+
+  public void testTakeChangesHandsOverOnlyTheDiffOnce()
+  {
+    mSettings.setPreviewSize(1280, 720);
+    mSettings.setJpegQuality(85);
+    mSettings.setFocusMode("macro");
+    mSettings.set("zoom", 2);
+
+    final Map<String, String> changes = mSettings.takeChanges();
+    assertEquals("in the order set", "{preview-size=1280x720, focus-mode=macro, zoom=2}",
+      changes.toString());
+    assertEquals("folded into the snapshot", "[1280, 720]",
+      Arrays.toString(mSettings.getPreviewSize()));
+    assertTrue("nothing left", !mSettings.hasChanges());
+    assertEquals("taken once", 0, mSettings.takeChanges().size());
+
+    // setting what was just applied is no change either
+    mSettings.setFocusMode("macro");
+    assertEquals("applied value", 0, mSettings.takeChanges().size());
+  }
+
+  public void testDiscardAndFlatten()
+  {
+    mSettings.setJpegQuality(50);
+    mSettings.discardChanges();
+    assertEquals("discarded", 85, mSettings.getJpegQuality());
+    assertTrue("nothing pending", !mSettings.hasChanges());
+
+    mSettings.setJpegQuality(50);
+    final CameraSettings copy = new CameraSettings(mSettings.flatten());
+    assertEquals("pending value flattened", 50, copy.getJpegQuality());
+    assertEquals("snapshot flattened", "[640, 480]", Arrays.toString(copy.getPreviewSize()));
+    assertEquals("ranges survive", 2, copy.getSupportedPreviewFpsRanges().length);
+  }
+
+  public void testRejectsSeparators()
+  {
+    try {
+      mSettings.set("jpeg-quality", "85;zoom=3");
+      fail("';' accepted");
+    } catch (IllegalArgumentException expected) {
+    }
+    assertTrue("nothing recorded", !mSettings.hasChanges());
+  }
+}
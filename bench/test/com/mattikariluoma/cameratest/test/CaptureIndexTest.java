@@ -0,0 +1,272 @@
+package com.mattikariluoma.cameratest.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import com.mattikariluoma.cameratest.CaptureIndex;
+
+public class CaptureIndexTest extends UnitTest
+{
+  private File mDirectory;
+  private File mFile;
+
+  @Override
+  public void setUp() throws IOException
+  {
+    mDirectory = File.createTempFile("captureindex", "");
+    if (!mDirectory.delete() || !mDirectory.mkdir())
+      throw new IOException("cannot create " + mDirectory);
+    mFile = new File(mDirectory, "index");
+  }
+
+  @Override
+  public void tearDown()
+  {
+    final File[] files = mDirectory.listFiles();
+    if (files != null)
+      for (File f : files)
+        f.delete();
+    mDirectory.delete();
+  }
+
+  private static CaptureIndex.Entry entry(long timestamp)
+  {
+    return new CaptureIndex.Entry(timestamp, "/sdcard/" + timestamp + "-0.jpg",
+      1000 + timestamp, 1, 640, 480);
+  }
+
+  /// Writes an index of count captures, closed; returns its length
+  private long writeIndex(int count) throws IOException
+  {
+    final CaptureIndex index = CaptureIndex.open(mFile, mDirectory);
+    for (int i = 0; i < count; i++)
+      index.append(entry(100 + i));
+    index.close();
+    return mFile.length();
+  }
+
+  private void truncate(long length) throws IOException
+  {
+    final RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+    try {
+      raf.setLength(length);
+    } finally {
+      raf.close();
+    }
+  }
+
+  /// Just enough of a jpeg for its size to be read
+  private void writeJpeg(String name, int width, int height) throws IOException
+  {
+    final FileOutputStream out = new FileOutputStream(new File(mDirectory, name));
+    try {
+      out.write(new byte[] {
+        (byte) 0xff, (byte) 0xd8,
+        (byte) 0xff, (byte) 0xe0, 0, 4, 0, 0,
+        (byte) 0xff, (byte) 0xc0, 0, 11, 8,
+        (byte) (height >> 8), (byte) height, (byte) (width >> 8), (byte) width,
+        1, 1, 0x11, 0,
+        (byte) 0xff, (byte) 0xd9 });
+    } finally {
+      out.close();
+    }
+  }
+
+  private static void assertEntry(String message, CaptureIndex.Entry expected, CaptureIndex.Entry actual)
+  {
+    assertEquals(message + " timestamp", expected.timestamp, actual.timestamp);
+    assertEquals(message + " path", expected.path, actual.path);
+    assertEquals(message + " size", expected.size, actual.size);
+    assertEquals(message + " camera", expected.cameraId, actual.cameraId);
+    assertEquals(message + " width", expected.width, actual.width);
+    assertEquals(message + " height", expected.height, actual.height);
+  }
+
+  public void testRoundTrip() throws IOException
+  {
+    final CaptureIndex created = CaptureIndex.open(mFile, mDirectory);
+    assertTrue("a missing index is rebuilt", created.wasRebuilt());
+    assertEquals("empty directory", 0, created.size());
+    for (int i = 0; i < 5; i++)
+      created.append(entry(100 + i));
+    created.close();
+
+    final CaptureIndex index = CaptureIndex.open(mFile, mDirectory);
+    try {
+      assertTrue("loaded, not rebuilt", !index.wasRebuilt());
+      assertEquals("discarded", 0, index.getDiscardedBytes());
+      assertEquals("size", 5, index.size());
+      final List<CaptureIndex.Entry> latest = index.latest(10);
+      for (int i = 0; i < 5; i++)
+        assertEntry("entry " + i, entry(104 - i), latest.get(i));
+    } finally {
+      index.close();
+    }
+  }
+
+  public void testTornTailIsCutAtEveryLength() throws IOException
+  {
+    final long twoRecords = writeIndex(2);
+    final long full = writeIndex(1);
+    final int record = (int) (full - twoRecords);
+    assertTrue("third record appended", record > 0);
+
+    for (int torn = 1; torn < record; torn++)
+    {
+      truncate(full - torn);
+      final CaptureIndex index = CaptureIndex.open(mFile, mDirectory);
+      try {
+        assertTrue("cut " + torn + ": not rebuilt", !index.wasRebuilt());
+        assertEquals("cut " + torn + ": entries", 2, index.size());
+        assertEquals("cut " + torn + ": discarded", record - torn, index.getDiscardedBytes());
+        assertEquals("cut " + torn + ": file truncated", twoRecords, mFile.length());
+
+        // appends continue from the last good record
+        index.append(entry(102));
+      } finally {
+        index.close();
+      }
+      assertEquals("cut " + torn + ": length after append", full, mFile.length());
+    }
+
+    final CaptureIndex index = CaptureIndex.open(mFile, mDirectory);
+    try {
+      assertEquals("recovered", 3, index.size());
+      assertEquals("discarded", 0, index.getDiscardedBytes());
+    } finally {
+      index.close();
+    }
+  }
+
+  public void testCorruptRecordEndsTheIndex() throws IOException
+  {
+    final long oneRecord = writeIndex(1);
+    writeIndex(2);
+
+    // a flipped byte in the second record's body fails its checksum
+    final RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+    try {
+      raf.seek(oneRecord + 4 + 8);
+      final int b = raf.read();
+      raf.seek(oneRecord + 4 + 8);
+      raf.write(b ^ 0x40);
+    } finally {
+      raf.close();
+    }
+
+    final CaptureIndex index = CaptureIndex.open(mFile, mDirectory);
+    try {
+      assertEquals("entries before the corrupt one", 1, index.size());
+      assertEquals("file truncated", oneRecord, mFile.length());
+      assertEntry("survivor", entry(100), index.latest(1).get(0));
+    } finally {
+      index.close();
+    }
+  }
+
+  public void testTrailingGarbageIsCut() throws IOException
+  {
+    final long length = writeIndex(2);
+    final RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+    try {
+      raf.seek(length);
+      // a plausible length followed by too few bytes, then noise
+      raf.writeInt(40);
+      raf.write(new byte[] { 1, 2, 3, 4, 5, 6, 7 });
+    } finally {
+      raf.close();
+    }
+
+    final CaptureIndex index = CaptureIndex.open(mFile, mDirectory);
+    try {
+      assertEquals("entries", 2, index.size());
+      assertEquals("discarded", 11, index.getDiscardedBytes());
+      assertEquals("file truncated", length, mFile.length());
+    } finally {
+      index.close();
+    }
+  }
+
+  public void testUnreadableIndexIsRebuiltFromJpegs() throws IOException
+  {
+    writeJpeg("1700000000000-0.jpg", 640, 480);
+    writeJpeg("1700000000000-1.jpg", 320, 240);
+    writeJpeg("1600000000000.jpg", 1280, 720);
+    writeJpeg("broken.jpg", 0, 0);
+    final FileOutputStream notJpeg = new FileOutputStream(new File(mDirectory, "notes.txt"));
+    notJpeg.write(1);
+    notJpeg.close();
+    // a bad header
+    final FileOutputStream garbage = new FileOutputStream(mFile);
+    garbage.write(new byte[32]);
+    garbage.close();
+
+    final CaptureIndex index = CaptureIndex.open(mFile, mDirectory);
+    try {
+      assertTrue("rebuilt", index.wasRebuilt());
+      assertEquals("jpegs found", 4, index.size());
+
+      final List<CaptureIndex.Entry> named = index.range(1600000000000L, 1700000000001L);
+      assertEquals("named after their timestamps", 3, named.size());
+      assertEquals("oldest first", 1600000000000L, named.get(0).timestamp);
+      assertEquals("width", 1280, named.get(0).width);
+      assertEquals("height", 720, named.get(0).height);
+      assertEquals("sequence suffix", 1700000000000L, named.get(2).timestamp);
+      assertEquals("unknown camera", CaptureIndex.UNKNOWN_CAMERA, named.get(2).cameraId);
+    } finally {
+      index.close();
+    }
+
+    final CaptureIndex reopened = CaptureIndex.open(mFile, mDirectory);
+    try {
+      assertTrue("loaded after the rebuild", !reopened.wasRebuilt());
+      assertEquals("size", 4, reopened.size());
+    } finally {
+      reopened.close();
+    }
+  }
+
+  public void testRangeAndLatestOrder() throws IOException
+  {
+    final CaptureIndex index = CaptureIndex.open(mFile, mDirectory);
+    try {
+      // appended out of order, as after the clock was set back
+      final long[] times = { 50, 10, 40, 20, 30 };
+      for (long t : times)
+        index.append(entry(t));
+
+      final List<CaptureIndex.Entry> range = index.range(20, 50);
+      assertEquals("range size", 3, range.size());
+      assertEquals("range start", 20, range.get(0).timestamp);
+      assertEquals("range end is exclusive", 40, range.get(2).timestamp);
+      assertEquals("empty range", 0, index.range(41, 45).size());
+      assertEquals("inverted range", 0, index.range(50, 10).size());
+
+      final List<CaptureIndex.Entry> latest = index.latest(2);
+      assertEquals("newest", 50, latest.get(0).timestamp);
+      assertEquals("next newest", 40, latest.get(1).timestamp);
+    } finally {
+      index.close();
+    }
+  }
+
+  public void testReadJpegSize()
+  {
+    final byte[] jpeg = {
+      (byte) 0xff, (byte) 0xd8,
+      (byte) 0xff, (byte) 0xff, (byte) 0xc2, 0, 11, 8, 0x01, (byte) 0xe0, 0x02, (byte) 0x80 };
+    final int[] size = CaptureIndex.readJpegSize(jpeg);
+    assertNotNull("progressive frame header after a fill byte", size);
+    assertEquals("width", 640, size[0]);
+    assertEquals("height", 480, size[1]);
+
+    assertNull("not a jpeg", CaptureIndex.readJpegSize(new byte[] { 1, 2, 3 }));
+    assertNull("no frame header", CaptureIndex.readJpegSize(new byte[] {
+      (byte) 0xff, (byte) 0xd8, (byte) 0xff, (byte) 0xd9 }));
+    assertNull("truncated", CaptureIndex.readJpegSize(new byte[] {
+      (byte) 0xff, (byte) 0xd8, (byte) 0xff, (byte) 0xc0, 0 }));
+  }
+}
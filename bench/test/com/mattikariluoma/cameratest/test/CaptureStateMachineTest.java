@@ -0,0 +1,187 @@
+package com.mattikariluoma.cameratest.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.mattikariluoma.cameratest.CaptureStateMachine;
+import com.mattikariluoma.cameratest.CaptureStateMachine.State;
+
+public class CaptureStateMachineTest extends UnitTest
+{
+  /// Records the actions and completions in order
+  private static class Recorder implements CaptureStateMachine.Actions, CaptureStateMachine.Listener
+  {
+    final StringBuilder actions = new StringBuilder();
+    final List<String> completed = new ArrayList<String>();
+
+    @Override
+    public void autoFocus()
+    {
+      actions.append("focus ");
+    }
+
+    @Override
+    public void capture()
+    {
+      actions.append("capture ");
+    }
+
+    @Override
+    public void restartPreview()
+    {
+      actions.append("restart ");
+    }
+
+    @Override
+    public void onShotsComplete(int shots, double shotsPerSecond, Object tag)
+    {
+      completed.add(shots + (tag == null ? "" : " " + tag));
+      actions.append("| ");
+    }
+
+    String take()
+    {
+      final String s = actions.toString().trim();
+      actions.setLength(0);
+      return s;
+    }
+  }
+
+  private Recorder mRecorder;
+  private CaptureStateMachine mMachine;
+
+  @Override
+  public void setUp()
+  {
+    mRecorder = new Recorder();
+    mMachine = new CaptureStateMachine(mRecorder);
+    mMachine.setListener(mRecorder);
+  }
+
+  public void testFocusesThenCaptures()
+  {
+    assertTrue("accepted", mMachine.requestShots(1, true));
+    assertEquals("actions", "focus", mRecorder.take());
+    assertEquals("state", State.FOCUSING, mMachine.getState());
+    assertNull("no picture while focusing", mMachine.onPictureTaken());
+    assertEquals("nothing fired", "", mRecorder.take());
+
+    // a failed focus still captures
+    mMachine.onFocusComplete(false);
+    assertEquals("actions", "capture", mRecorder.take());
+    assertEquals("state", State.CAPTURING, mMachine.getState());
+    mMachine.onFocusComplete(true);
+    assertEquals("late focus ignored", "", mRecorder.take());
+
+    mMachine.onPictureTaken();
+    assertEquals("actions", "restart |", mRecorder.take());
+    assertEquals("state", State.IDLE, mMachine.getState());
+    assertEquals("completed", "[1]", mRecorder.completed.toString());
+  }
+
+  public void testShotsRestartThePreviewBetween()
+  {
+    mMachine.requestShots(3, false);
+    assertEquals("actions", "capture", mRecorder.take());
+    mMachine.onPictureTaken();
+    mMachine.onPictureTaken();
+    assertEquals("next shot fired after each restart", "restart capture restart capture",
+      mRecorder.take());
+    assertEquals("state", State.CAPTURING, mMachine.getState());
+    mMachine.onPictureTaken();
+    assertEquals("actions", "restart |", mRecorder.take());
+    assertEquals("completed", "[3]", mRecorder.completed.toString());
+    assertEquals("total", 3, mMachine.getTotalShots());
+  }
+
+  public void testPressesWhileBusyCoalesceIntoOneFollowUp()
+  {
+    mMachine.requestShots(1, false);
+    assertTrue("busy", !mMachine.requestShots(1, false));
+    assertTrue("busy", !mMachine.requestShots(2, true));
+    assertTrue("busy", !mMachine.requestShots(1, false));
+    assertEquals("coalesced", 3, mMachine.getCoalescedCount());
+    mRecorder.take();
+
+    // the follow-up takes the most shots asked for, and focuses if any did
+    mMachine.onPictureTaken();
+    assertEquals("follow-up begins at once", "restart | focus", mRecorder.take());
+    mMachine.onFocusComplete(true);
+    mMachine.onPictureTaken();
+    mMachine.onPictureTaken();
+    assertEquals("actions", "capture restart capture restart |", mRecorder.take());
+    assertEquals("completed", "[1, 2]", mRecorder.completed.toString());
+    assertEquals("state", State.IDLE, mMachine.getState());
+  }
+
+  public void testTaggedRequestsAreRefusedWhileBusy()
+  {
+    final String tag = "best-of";
+    assertTrue("accepted", mMachine.requestShots(2, false, tag));
+    assertTrue("refused", !mMachine.requestShots(1, false, "other"));
+    assertEquals("refused", 1, mMachine.getRefusedCount());
+    assertEquals("not coalesced", 0, mMachine.getCoalescedCount());
+
+    // an untagged press still coalesces, into an untagged follow-up
+    assertTrue("coalesced", !mMachine.requestShots(1, false));
+    assertSame("first shot's tag", tag, mMachine.onPictureTaken());
+    assertSame("second shot's tag", tag, mMachine.onPictureTaken());
+    assertNull("follow-up is untagged", mMachine.onPictureTaken());
+    assertEquals("completed", "[2 best-of, 1]", mRecorder.completed.toString());
+  }
+
+  public void testAbortDropsTheFollowUp()
+  {
+    mMachine.requestShots(2, true, "tag");
+    mMachine.requestShots(3, false);
+    mMachine.abort();
+    assertEquals("state", State.IDLE, mMachine.getState());
+    assertEquals("aborted", 1, mMachine.getAbortedCount());
+    mRecorder.take();
+
+    assertNull("late picture ignored", mMachine.onPictureTaken());
+    mMachine.onFocusComplete(true);
+    assertEquals("nothing fired", "", mRecorder.take());
+    assertEquals("nothing completed", 0, mRecorder.completed.size());
+
+    // the next request starts afresh, without the dropped follow-up
+    assertTrue("accepted", mMachine.requestShots(1, false));
+    assertNull("untagged", mMachine.onPictureTaken());
+    assertEquals("actions", "capture restart |", mRecorder.take());
+    assertEquals("completed", "[1]", mRecorder.completed.toString());
+    mMachine.abort();
+    assertEquals("aborting while idle is not counted", 1, mMachine.getAbortedCount());
+  }
+
+  public void testShutterTimeIsPerRequest() throws InterruptedException
+  {
+    final long before = System.nanoTime();
+    mMachine.requestShots(1, false);
+    final long first = mMachine.getShutterNanos();
+    assertTrue("pressed now", first >= before && first <= System.nanoTime());
+
+    Thread.sleep(2);
+    final long secondBefore = System.nanoTime();
+    mMachine.requestShots(1, false);
+    final long secondAfter = System.nanoTime();
+    assertEquals("a coalesced press keeps the time of the capture in flight",
+      first, mMachine.getShutterNanos());
+    Thread.sleep(2);
+    mMachine.requestShots(1, false);
+
+    // the follow-up is timed from the first press merged into it
+    mMachine.onPictureTaken();
+    final long followUp = mMachine.getShutterNanos();
+    assertTrue("follow-up pressed at " + (followUp - first) + "ns",
+      followUp >= secondBefore && followUp <= secondAfter);
+  }
+
+  public void testRejectsNoShots()
+  {
+    try {
+      mMachine.requestShots(0, false);
+      fail("0 shots accepted");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+}
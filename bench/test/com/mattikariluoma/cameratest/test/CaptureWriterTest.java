@@ -0,0 +1,217 @@
+package com.mattikariluoma.cameratest.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import com.mattikariluoma.cameratest.CaptureWriter;
+
+public class CaptureWriterTest extends UnitTest
+{
+  private File mDirectory;
+
+  @Override
+  public void setUp() throws IOException
+  {
+    mDirectory = File.createTempFile("capturewriter", "");
+    if (!mDirectory.delete() || !mDirectory.mkdir())
+      throw new IOException("cannot create " + mDirectory);
+  }
+
+  @Override
+  public void tearDown()
+  {
+    final File[] files = mDirectory.listFiles();
+    if (files != null)
+      for (File f : files)
+        f.delete();
+    mDirectory.delete();
+  }
+
+  private File file(int n)
+  {
+    return new File(mDirectory, n + ".jpg");
+  }
+
+  /// Records what was written and, for each, which files were on disk by
+  /// then; holds the writer in the first onWritten() until let go
+  private class Recorder implements CaptureWriter.Listener
+  {
+    final Semaphore entered = new Semaphore(0);
+    final CountDownLatch gate = new CountDownLatch(1);
+    final Map<CaptureWriter.Job, Boolean> written =
+      Collections.synchronizedMap(new IdentityHashMap<CaptureWriter.Job, Boolean>());
+    final List<String> onDisk = Collections.synchronizedList(new ArrayList<String>());
+    volatile int failed;
+
+    @Override
+    public void onWritten(CaptureWriter.Job job)
+    {
+      assertTrue("written twice: " + job.getFile(), written.put(job, Boolean.TRUE) == null);
+      final int n = (Integer) job.getTag();
+      final StringBuilder files = new StringBuilder();
+      for (int i = n; file(i).exists(); i++)
+        files.append(i == n ? "" : ",").append(i);
+      onDisk.add(files.toString());
+
+      entered.release();
+      try {
+        gate.await();
+      } catch (InterruptedException e) {
+        throw new AssertionError("writer interrupted");
+      }
+    }
+
+    @Override
+    public void onWriteFailed(CaptureWriter.Job job, IOException e)
+    {
+      failed++;
+    }
+  }
+
+  /// Holds the writer in job 0, queues jobs 1..count-1 behind it, lets
+  /// it go and stops
+  private Recorder writeBehindFirst(CaptureWriter writer, int count) throws InterruptedException
+  {
+    final Recorder recorder = new Recorder();
+    writer.setListener(recorder);
+    writer.start();
+    assertNotNull("job 0", writer.submit(new byte[] { 0 }, file(0), 0));
+    assertTrue("writer busy", recorder.entered.tryAcquire(5, TimeUnit.SECONDS));
+    for (int i = 1; i < count; i++)
+      assertNotNull("job " + i, writer.submit(new byte[] { (byte) i }, file(i), i));
+    recorder.gate.countDown();
+    writer.stop();
+    return recorder;
+  }
+
+  public void testPerFileSyncsEachFileBeforeTheNext() throws InterruptedException
+  {
+    final CaptureWriter writer = new CaptureWriter(8, 4, CaptureWriter.SyncPolicy.PER_FILE, 4);
+    final Recorder recorder = writeBehindFirst(writer, 7);
+
+    // each file is reported before the next one is opened
+    assertEquals("files on disk as each was reported",
+      "[0, 1, 2, 3, 4, 5, 6]", recorder.onDisk.toString());
+    assertEquals("written", 7, writer.getWrittenCount());
+    assertEquals("bytes", 7, writer.getBytesWritten());
+  }
+
+  public void testBatchedSyncsGroupsOfBatchSize() throws InterruptedException
+  {
+    final CaptureWriter writer = new CaptureWriter(8, 4, CaptureWriter.SyncPolicy.BATCHED, 4);
+    final Recorder recorder = writeBehindFirst(writer, 7);
+
+    // 0 alone, as the queue ran dry; then 1-4 as a batch, then 5-6 once
+    // the queue ran dry again
+    assertEquals("files on disk as each was reported",
+      "[0, 1,2,3,4, 2,3,4, 3,4, 4, 5,6, 6]", recorder.onDisk.toString());
+    assertEquals("written", 7, writer.getWrittenCount());
+    assertEquals("failed", 0, recorder.failed);
+  }
+
+  public void testFullQueueStallsSubmit() throws Exception
+  {
+    final CaptureWriter writer = new CaptureWriter(2, 4, CaptureWriter.SyncPolicy.PER_FILE, 1);
+    final Recorder recorder = new Recorder();
+    writer.setListener(recorder);
+    writer.start();
+
+    writer.submit(new byte[1], file(0), 0);
+    assertTrue("writer busy", recorder.entered.tryAcquire(5, TimeUnit.SECONDS));
+    writer.submit(new byte[1], file(1), 1);
+    writer.submit(new byte[1], file(2), 2);
+    assertEquals("no stall while there is room", 0, writer.getStallCount());
+
+    final Thread blocked = new Thread()
+    {
+      @Override
+      public void run()
+      {
+        try {
+          writer.submit(new byte[1], file(3), 3);
+        } catch (InterruptedException e) {
+          throw new AssertionError("submit interrupted");
+        }
+      }
+    };
+    blocked.start();
+    final long deadline = System.currentTimeMillis() + 5000;
+    while (writer.getStallCount() < 1 && System.currentTimeMillis() < deadline)
+      Thread.sleep(1);
+    assertEquals("submit stalled", 1, writer.getStallCount());
+    assertTrue("submit waits for room", blocked.isAlive());
+
+    assertNull("trySubmit times out", writer.trySubmit(new byte[1], file(4), 4, 10));
+    assertEquals("stalls", 2, writer.getStallCount());
+
+    recorder.gate.countDown();
+    blocked.join(5000);
+    writer.stop();
+    assertEquals("written", 4, writer.getWrittenCount());
+    assertTrue("refused job not written", !file(4).exists());
+  }
+
+  public void testSubmitRacingStopIsWrittenOrRefused() throws Exception
+  {
+    for (int round = 0; round < 50; round++)
+    {
+      final CaptureWriter writer = new CaptureWriter(2, 4, CaptureWriter.SyncPolicy.BATCHED, 3);
+      final Recorder recorder = new Recorder();
+      recorder.gate.countDown();
+      writer.setListener(recorder);
+      writer.start();
+
+      final int base = round * 10000;
+      final List<CaptureWriter.Job> accepted =
+        Collections.synchronizedList(new ArrayList<CaptureWriter.Job>());
+      final Thread[] submitters = new Thread[3];
+      for (int t = 0; t < submitters.length; t++)
+      {
+        final int first = base + t * 1000;
+        submitters[t] = new Thread()
+        {
+          @Override
+          public void run()
+          {
+            try {
+              for (int i = first; ; i++)
+              {
+                final CaptureWriter.Job job = writer.submit(new byte[] { 1, 2 }, file(i), i);
+                if (job == null)
+                  return;
+                accepted.add(job);
+              }
+            } catch (InterruptedException e) {
+              throw new AssertionError("submit interrupted");
+            }
+          }
+        };
+        submitters[t].start();
+      }
+      Thread.sleep(round % 3);
+      writer.stop();
+      for (Thread t : submitters)
+      {
+        t.join(5000);
+        assertTrue("round " + round + ": submitter not refused", !t.isAlive());
+      }
+
+      assertEquals("round " + round + ": failed", 0, recorder.failed);
+      assertEquals("round " + round + ": written", accepted.size(), writer.getWrittenCount());
+      for (CaptureWriter.Job job : accepted)
+        assertTrue("round " + round + ": accepted but lost: " + job.getFile(),
+          recorder.written.containsKey(job) && job.getFile().length() == 2);
+      assertEquals("round " + round + ": queued", 0, writer.getQueuedCount());
+      tearDown();
+      setUp();
+    }
+  }
+}
@@ -0,0 +1,141 @@
+package com.mattikariluoma.cameratest.test;
+
+import java.util.IdentityHashMap;
+
+import com.mattikariluoma.cameratest.FrameBufferPool;
+
+public class FrameBufferPoolTest extends UnitTest
+{
+  public void testNv21Size()
+  {
+    assertEquals("640x480", 460800, FrameBufferPool.nv21Size(640, 480));
+    assertEquals("2x2", 6, FrameBufferPool.nv21Size(2, 2));
+  }
+
+  public void testAcquiresDistinctBuffersUntilEmpty()
+  {
+    final FrameBufferPool pool = new FrameBufferPool(3, 16);
+    final IdentityHashMap<byte[], Boolean> seen = new IdentityHashMap<byte[], Boolean>();
+    for (int i = 0; i < 3; i++)
+    {
+      final byte[] b = pool.acquire();
+      assertNotNull("buffer " + i, b);
+      assertEquals("size", 16, b.length);
+      assertTrue("buffer " + i + " handed out twice", seen.put(b, Boolean.TRUE) == null);
+    }
+
+    assertNull("acquire from an empty pool", pool.acquire());
+    assertEquals("misses", 1, pool.getMissCount());
+    assertEquals("free", 0, pool.getFreeCount());
+    assertEquals("outstanding", 3, pool.getOutstandingCount());
+  }
+
+  public void testReleasedBufferIsReused()
+  {
+    final FrameBufferPool pool = new FrameBufferPool(2, 8);
+    final byte[] a = pool.acquire();
+    final byte[] b = pool.acquire();
+    assertTrue("release", pool.release(a));
+    assertSame("the only free buffer", a, pool.acquire());
+    assertTrue("release", pool.release(b));
+    assertEquals("acquired", 3, pool.getAcquireCount());
+    assertEquals("released", 2, pool.getReleaseCount());
+  }
+
+  public void testForeignAndDoubleReleasesAreIgnored()
+  {
+    final FrameBufferPool pool = new FrameBufferPool(2, 8);
+    final byte[] a = pool.acquire();
+
+    assertTrue("foreign release", !pool.release(new byte[8]));
+    assertTrue("null release", !pool.release(null));
+    assertTrue("release", pool.release(a));
+    assertTrue("double release", !pool.release(a));
+
+    assertEquals("foreign", 3, pool.getForeignReleaseCount());
+    assertEquals("free", 2, pool.getFreeCount());
+  }
+
+  public void testOwnsOnlyItsBuffers()
+  {
+    final FrameBufferPool pool = new FrameBufferPool(1, 8);
+    final byte[] a = pool.acquire();
+    assertTrue("outstanding buffer", pool.owns(a));
+    pool.release(a);
+    assertTrue("free buffer", pool.owns(a));
+    assertTrue("equal-sized stranger", !pool.owns(new byte[8]));
+    assertTrue("null", !pool.owns(null));
+  }
+
+  public void testReclaimAllFreesOutstandingBuffers()
+  {
+    final FrameBufferPool pool = new FrameBufferPool(4, 8);
+    final byte[] a = pool.acquire();
+    pool.acquire();
+    pool.acquire();
+    pool.release(a);
+
+    assertEquals("reclaimed", 2, pool.reclaimAll());
+    assertEquals("free", 4, pool.getFreeCount());
+    for (int i = 0; i < 4; i++)
+      assertNotNull("buffer " + i + " after reclaim", pool.acquire());
+    assertEquals("reclaimed from a full pool", 4, pool.reclaimAll());
+    assertEquals("reclaimed from an empty pool", 0, pool.reclaimAll());
+  }
+
+  public void testConcurrentAcquireAndRelease() throws Exception
+  {
+    final FrameBufferPool pool = new FrameBufferPool(4, 8);
+    final Thread[] threads = new Thread[4];
+    final Throwable[] failure = new Throwable[1];
+    for (int t = 0; t < threads.length; t++)
+    {
+      threads[t] = new Thread()
+      {
+        @Override
+        public void run()
+        {
+          try {
+            for (int i = 0; i < 20000; i++)
+            {
+              final byte[] b = pool.acquire();
+              if (b != null && !pool.release(b))
+                throw new AssertionError("release of an acquired buffer refused");
+            }
+          } catch (Throwable e) {
+            synchronized (failure)
+            {
+              failure[0] = e;
+            }
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread t : threads)
+      t.join();
+
+    synchronized (failure)
+    {
+      if (failure[0] != null)
+        fail(failure[0].toString());
+    }
+    assertEquals("free", 4, pool.getFreeCount());
+    assertEquals("acquired == released", pool.getAcquireCount(), pool.getReleaseCount());
+    assertEquals("foreign", 0, pool.getForeignReleaseCount());
+  }
+
+  public void testRejectsEmptyPools()
+  {
+    try {
+      new FrameBufferPool(0, 8);
+      fail("no buffers accepted");
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      new FrameBufferPool(1, 0);
+      fail("empty buffers accepted");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+}
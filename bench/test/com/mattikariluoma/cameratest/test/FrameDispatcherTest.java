@@ -0,0 +1,266 @@
+package com.mattikariluoma.cameratest.test;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import com.mattikariluoma.cameratest.FrameDispatcher;
+
+public class FrameDispatcherTest extends UnitTest
+{
+  /// Counts releases per buffer
+  private static class Releaser implements FrameDispatcher.FrameReleaser
+  {
+    private final Map<byte[], Integer> mReleases = new IdentityHashMap<byte[], Integer>();
+
+    @Override
+    public synchronized void onFrameReleased(byte[] data)
+    {
+      final Integer n = mReleases.get(data);
+      mReleases.put(data, n == null ? 1 : n + 1);
+    }
+
+    synchronized int releases(byte[] data)
+    {
+      final Integer n = mReleases.get(data);
+      return n == null ? 0 : n;
+    }
+
+    synchronized int size()
+    {
+      return mReleases.size();
+    }
+  }
+
+  /// Holds the worker in its first frame until let go
+  private static class GatedConsumer implements FrameDispatcher.FrameConsumer
+  {
+    final Semaphore entered = new Semaphore(0);
+    final CountDownLatch gate = new CountDownLatch(1);
+    final List<Byte> seen = new ArrayList<Byte>();
+
+    @Override
+    public void onFrame(FrameDispatcher.Frame frame)
+    {
+      synchronized (seen)
+      {
+        seen.add(frame.getData()[0]);
+      }
+      entered.release();
+      try {
+        gate.await();
+      } catch (InterruptedException e) {
+        throw new AssertionError("consumer interrupted");
+      }
+    }
+  }
+
+  private static byte[] buffer(int id)
+  {
+    return new byte[] { (byte) id };
+  }
+
+  private static void awaitProcessed(FrameDispatcher d, long count) throws InterruptedException
+  {
+    final long deadline = System.currentTimeMillis() + 5000;
+    while (d.getProcessedCount() < count)
+    {
+      if (System.currentTimeMillis() > deadline)
+        fail("processed " + d.getProcessedCount() + " of " + count + ": " + d);
+      Thread.sleep(1);
+    }
+  }
+
+  private static void assertReleasedOnce(Releaser releaser, List<byte[]> buffers)
+  {
+    for (int i = 0; i < buffers.size(); i++)
+      assertEquals("releases of buffer " + i, 1, releaser.releases(buffers.get(i)));
+    assertEquals("buffers released", buffers.size(), releaser.size());
+  }
+
+  public void testEveryPolicyReleasesEachBufferOnce() throws InterruptedException
+  {
+    for (FrameDispatcher.DropPolicy policy : FrameDispatcher.DropPolicy.values())
+    {
+      final FrameDispatcher d = new FrameDispatcher("test", 2, 2, policy);
+      final Releaser releaser = new Releaser();
+      d.setReleaser(releaser);
+      d.addConsumer(new FrameDispatcher.FrameConsumer()
+      {
+        @Override
+        public void onFrame(FrameDispatcher.Frame frame)
+        {
+          // slower than dispatch, so the queue fills
+          if (frame.getSequence() % 4 == 0)
+            try {
+              Thread.sleep(1);
+            } catch (InterruptedException e) {
+              throw new AssertionError("consumer interrupted");
+            }
+        }
+      });
+      d.start();
+
+      final List<byte[]> buffers = new ArrayList<byte[]>();
+      int refused = 0;
+      for (int i = 0; i < 500; i++)
+      {
+        final byte[] b = new byte[1];
+        buffers.add(b);
+        if (!d.dispatch(b, 1, 1, i))
+          refused++;
+      }
+      d.stop();
+
+      final String what = policy.toString();
+      assertReleasedOnce(releaser, buffers);
+      assertEquals(what + ": queued after stop", 0, d.getQueuedCount());
+      assertEquals(what + ": enqueued = processed + dropped after enqueue", d.getEnqueuedCount(),
+        d.getProcessedCount() + d.getDroppedCount() - refused);
+      assertEquals(what + ": enqueued + refused", buffers.size(), d.getEnqueuedCount() + refused);
+      // under BLOCK only stop() gives frames up
+      if (policy == FrameDispatcher.DropPolicy.BLOCK)
+        assertEquals(what + ": refused", 0, refused);
+      else
+        assertTrue(what + ": queue never filled", d.getDroppedCount() > 0);
+    }
+  }
+
+  public void testDropOldestKeepsTheNewestFrames() throws InterruptedException
+  {
+    final FrameDispatcher d = new FrameDispatcher("test", 2, 1, FrameDispatcher.DropPolicy.DROP_OLDEST);
+    final GatedConsumer consumer = new GatedConsumer();
+    d.addConsumer(consumer);
+    d.start();
+
+    assertTrue("dispatch 0", d.dispatch(buffer(0), 1, 1, 0));
+    assertTrue("worker busy", consumer.entered.tryAcquire(5, TimeUnit.SECONDS));
+    for (int i = 1; i <= 4; i++)
+      assertTrue("dispatch " + i + " is queued", d.dispatch(buffer(i), 1, 1, i));
+    consumer.gate.countDown();
+    awaitProcessed(d, 3);
+    d.stop();
+
+    assertEquals("processed", "[0, 3, 4]", consumer.seen.toString());
+    assertEquals("dropped", 2, d.getDroppedCount());
+  }
+
+  public void testDropNewestKeepsTheQueuedFrames() throws InterruptedException
+  {
+    final FrameDispatcher d = new FrameDispatcher("test", 2, 1, FrameDispatcher.DropPolicy.DROP_NEWEST);
+    final GatedConsumer consumer = new GatedConsumer();
+    d.addConsumer(consumer);
+    d.start();
+
+    assertTrue("dispatch 0", d.dispatch(buffer(0), 1, 1, 0));
+    assertTrue("worker busy", consumer.entered.tryAcquire(5, TimeUnit.SECONDS));
+    assertTrue("dispatch 1", d.dispatch(buffer(1), 1, 1, 1));
+    assertTrue("dispatch 2", d.dispatch(buffer(2), 1, 1, 2));
+    assertTrue("dispatch 3 is refused", !d.dispatch(buffer(3), 1, 1, 3));
+    consumer.gate.countDown();
+    awaitProcessed(d, 3);
+    d.stop();
+
+    assertEquals("processed", "[0, 1, 2]", consumer.seen.toString());
+    assertEquals("dropped", 1, d.getDroppedCount());
+  }
+
+  public void testStopWaitsForTheFrameInFlightWithoutInterrupting() throws InterruptedException
+  {
+    final FrameDispatcher d = new FrameDispatcher("test", 2, 1, FrameDispatcher.DropPolicy.BLOCK);
+    final Releaser releaser = new Releaser();
+    d.setReleaser(releaser);
+    final GatedConsumer consumer = new GatedConsumer();
+    d.addConsumer(consumer);
+    d.start();
+
+    final byte[] inFlight = buffer(0);
+    final byte[] queued = buffer(1);
+    d.dispatch(inFlight, 1, 1, 0);
+    assertTrue("worker busy", consumer.entered.tryAcquire(5, TimeUnit.SECONDS));
+    d.dispatch(queued, 1, 1, 1);
+
+    final Thread stopper = new Thread()
+    {
+      @Override
+      public void run()
+      {
+        d.stop();
+      }
+    };
+    stopper.start();
+    // stop() gives up the queued frame, then waits on the busy worker
+    final long deadline = System.currentTimeMillis() + 5000;
+    while (releaser.releases(queued) == 0 && System.currentTimeMillis() < deadline)
+      Thread.sleep(1);
+    assertEquals("queued frame released by stop", 1, releaser.releases(queued));
+    assertEquals("frame in flight still held", 0, releaser.releases(inFlight));
+    assertTrue("stop waits for the worker", stopper.isAlive());
+
+    // an interrupt would kill the worker and strand the frame in flight
+    consumer.gate.countDown();
+    stopper.join(5000);
+    assertTrue("stopped", !stopper.isAlive());
+    assertEquals("frame in flight released", 1, releaser.releases(inFlight));
+    assertEquals("processed", 1, d.getProcessedCount());
+    assertEquals("errors", 0, d.getErrorCount());
+  }
+
+  public void testStopRacingDispatchStrandsNothing() throws InterruptedException
+  {
+    final FrameDispatcher d = new FrameDispatcher("test", 2, 1, FrameDispatcher.DropPolicy.DROP_OLDEST);
+    final Releaser releaser = new Releaser();
+    d.setReleaser(releaser);
+    d.addConsumer(new FrameDispatcher.FrameConsumer()
+    {
+      @Override
+      public void onFrame(FrameDispatcher.Frame frame)
+      {
+      }
+    });
+
+    // the camera thread keeps dispatching while the UI thread stops and
+    // restarts the dispatcher
+    final List<byte[]> buffers = new ArrayList<byte[]>();
+    final boolean[] done = new boolean[1];
+    final Thread camera = new Thread()
+    {
+      @Override
+      public void run()
+      {
+        for (int i = 0; ; i++)
+        {
+          synchronized (done)
+          {
+            if (done[0])
+              return;
+          }
+          final byte[] b = new byte[1];
+          buffers.add(b);
+          d.dispatch(b, 1, 1, i);
+        }
+      }
+    };
+    camera.start();
+    for (int round = 0; round < 500; round++)
+    {
+      d.start();
+      Thread.yield();
+      d.stop();
+      assertEquals("round " + round + ": frames left queued after stop", 0, d.getQueuedCount());
+    }
+    synchronized (done)
+    {
+      done[0] = true;
+    }
+    camera.join();
+
+    assertReleasedOnce(releaser, buffers);
+    assertEquals("enqueued = processed + dropped after enqueue", d.getEnqueuedCount(),
+      d.getProcessedCount() + d.getDroppedCount() - (buffers.size() - d.getEnqueuedCount()));
+  }
+}
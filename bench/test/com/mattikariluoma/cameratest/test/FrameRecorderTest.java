@@ -0,0 +1,112 @@
+package com.mattikariluoma.cameratest.test;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.mattikariluoma.cameratest.FrameBufferPool;
+import com.mattikariluoma.cameratest.FrameLogReader;
+import com.mattikariluoma.cameratest.FrameRecorder;
+
+public class FrameRecorderTest extends UnitTest
+{
+  private static final int WIDTH = 4;
+  private static final int HEIGHT = 2;
+  private static final int FRAME_SIZE = FrameBufferPool.nv21Size(WIDTH, HEIGHT);
+
+  private File mDirectory;
+
+  @Override
+  public void setUp() throws IOException
+  {
+    mDirectory = File.createTempFile("framelog", "");
+    if (!mDirectory.delete())
+      throw new IOException("cannot replace " + mDirectory);
+  }
+
+  @Override
+  public void tearDown()
+  {
+    Thread.interrupted();
+    final File[] files = mDirectory.listFiles();
+    if (files != null)
+      for (File f : files)
+        f.delete();
+    mDirectory.delete();
+  }
+
+  private static byte[] frame(int n)
+  {
+    final byte[] nv21 = new byte[FRAME_SIZE];
+    nv21[0] = (byte) n;
+    return nv21;
+  }
+
+  public void testRoundTripThroughTheReader() throws IOException
+  {
+    final FrameRecorder recorder = new FrameRecorder(mDirectory, FRAME_SIZE * 50);
+    for (int i = 0; i < 130; i++)
+      recorder.append(frame(i), WIDTH, HEIGHT, 1000 + i);
+    recorder.close();
+    assertEquals("segments", 3, recorder.getSegmentCount());
+    assertNull("failure", recorder.getFailure());
+
+    final FrameLogReader reader = new FrameLogReader(mDirectory);
+    assertEquals("frames", 130, reader.getFrameCount());
+    final byte[] out = new byte[FRAME_SIZE];
+    for (int i = 0; i < 130; i += 43)
+    {
+      reader.read(i, out);
+      assertEquals("frame " + i, (byte) i, out[0]);
+      assertEquals("timestamp " + i, 1000 + i, reader.getTimestampNanos(i));
+    }
+  }
+
+  public void testInterruptDoesNotLoseTheIndex() throws IOException
+  {
+    final FrameRecorder recorder = new FrameRecorder(mDirectory, FRAME_SIZE * 200);
+    recorder.append(frame(0), WIDTH, HEIGHT, 0);
+
+    // more than one index batch while the recording thread is interrupted,
+    // as when a dispatcher worker was interrupted to stop it
+    Thread.currentThread().interrupt();
+    for (int i = 1; i < 150; i++)
+      recorder.append(frame(i), WIDTH, HEIGHT, i);
+    assertTrue("still interrupted", Thread.interrupted());
+    recorder.close();
+
+    assertNull("failure", recorder.getFailure());
+    assertEquals("frames", 150, new FrameLogReader(mDirectory).getFrameCount());
+  }
+
+  public void testFailureEndsTheRecordingAndIsReported() throws IOException
+  {
+    final FrameRecorder recorder = new FrameRecorder(mDirectory, FRAME_SIZE * 10);
+    for (int i = 0; i < 10; i++)
+      recorder.append(frame(i), WIDTH, HEIGHT, i);
+
+    // mapping the next segment fails on an interrupted thread
+    Thread.currentThread().interrupt();
+    try {
+      recorder.append(frame(10), WIDTH, HEIGHT, 10);
+      fail("append to an unmappable segment succeeded");
+    } catch (IOException expected) {
+    }
+    Thread.interrupted();
+    assertNotNull("failure", recorder.getFailure());
+
+    try {
+      recorder.append(frame(11), WIDTH, HEIGHT, 11);
+      fail("append after a failure succeeded");
+    } catch (IOException expected) {
+    }
+    assertEquals("dropped", 0, recorder.getDroppedCount());
+
+    try {
+      recorder.close();
+      fail("close hid the failure");
+    } catch (IOException expected) {
+    }
+    assertEquals("frames before the failure are kept", 10,
+      new FrameLogReader(mDirectory).getFrameCount());
+  }
+}
@@ -0,0 +1,250 @@
+package com.mattikariluoma.cameratest.test;
+
+import java.awt.image.Raster;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import com.mattikariluoma.cameratest.FrameBufferPool;
+import com.mattikariluoma.cameratest.JpegEncoder;
+
+public class JpegEncoderTest extends UnitTest
+{
+  private static final int[][] SIZES = {
+    { 2, 2 }, { 16, 16 }, { 18, 30 }, { 176, 144 }, { 640, 480 }, { 1280, 720 },
+  };
+  private static final int[] THREADS = { 1, 3, 8 };
+  private static final int[] QUALITIES = { 10, 75, 100 };
+  /// Lowest acceptable PSNR in dB of luma and of chroma at each quality
+  private static final double[][] MIN_PSNR = { { 28, 30 }, { 38, 42 }, { 45, 50 } };
+
+  /// Smooth gradients and ripples with a little noise, like a photo
+  private static byte[] frame(int width, int height, long seed)
+  {
+    final Random random = new Random(seed);
+    final byte[] nv21 = new byte[FrameBufferPool.nv21Size(width, height)];
+    for (int y = 0; y < height; y++)
+      for (int x = 0; x < width; x++)
+        nv21[y * width + x] = (byte) clamp(128 + 90 * Math.sin(x / 13.0) * Math.cos(y / 7.0)
+          + 20.0 * x / width + random.nextInt(7) - 3);
+    final int frameSize = width * height;
+    for (int y = 0; y < height / 2; y++)
+      for (int x = 0; x < width / 2; x++)
+      {
+        final int i = frameSize + y * width + 2 * x;
+        nv21[i] = (byte) clamp(128 + 60 * Math.sin(y / 9.0));
+        nv21[i + 1] = (byte) clamp(128 + 60 * Math.cos(x / 11.0));
+      }
+    return nv21;
+  }
+
+  private static int clamp(double v)
+  {
+    return (int) Math.max(0, Math.min(255, Math.round(v)));
+  }
+
+  /// The decoded Y, Cb, Cr planes, without colour conversion
+  private static Raster decode(byte[] jpeg, int length) throws IOException
+  {
+    final Iterator<ImageReader> readers = ImageIO.getImageReadersByFormatName("jpeg");
+    assertTrue("no jpeg reader", readers.hasNext());
+    final ImageReader reader = readers.next();
+    final ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(jpeg, 0, length));
+    try {
+      reader.setInput(in);
+      return reader.readRaster(0, null);
+    } finally {
+      reader.dispose();
+      in.close();
+    }
+  }
+
+  private static double psnr(double squaredError, int samples)
+  {
+    return squaredError == 0 ? Double.POSITIVE_INFINITY
+      : 10 * Math.log10(255.0 * 255.0 * samples / squaredError);
+  }
+
+  private static double lumaPsnr(Raster r, byte[] nv21, int width, int height)
+  {
+    double se = 0;
+    for (int y = 0; y < height; y++)
+      for (int x = 0; x < width; x++)
+      {
+        final double d = r.getSample(x, y, 0) - (nv21[y * width + x] & 0xff);
+        se += d * d;
+      }
+    return psnr(se, width * height);
+  }
+
+  /// Decoded chroma is upsampled; it is averaged back over each 2x2 block
+  private static double chromaPsnr(Raster r, byte[] nv21, int width, int height)
+  {
+    final int frameSize = width * height;
+    double se = 0;
+    for (int y = 0; y < height / 2; y++)
+      for (int x = 0; x < width / 2; x++)
+      {
+        final int i = frameSize + y * width + 2 * x;
+        for (int band = 1; band <= 2; band++)
+        {
+          final double decoded = (r.getSample(2 * x, 2 * y, band) + r.getSample(2 * x + 1, 2 * y, band)
+            + r.getSample(2 * x, 2 * y + 1, band) + r.getSample(2 * x + 1, 2 * y + 1, band)) / 4.0;
+          // NV21 interleaves V before U
+          final double d = decoded - (nv21[band == 1 ? i + 1 : i] & 0xff);
+          se += d * d;
+        }
+      }
+    return psnr(se, width * height / 2);
+  }
+
+  public void testDecodesCloseToTheSource() throws IOException
+  {
+    for (int threads : THREADS)
+    {
+      final JpegEncoder encoder = new JpegEncoder(threads);
+      try {
+        for (int[] size : SIZES)
+        {
+          final int w = size[0];
+          final int h = size[1];
+          final byte[] nv21 = frame(w, h, w + h);
+          for (int q = 0; q < QUALITIES.length; q++)
+          {
+            final String what = w + "x" + h + " q" + QUALITIES[q] + " on " + threads + " threads";
+            final int length = encoder.encode(nv21, w, h, QUALITIES[q]);
+            final Raster r = decode(encoder.getOutput(), length);
+            assertEquals(what + " width", w, r.getWidth());
+            assertEquals(what + " height", h, r.getHeight());
+            assertEquals(what + " components", 3, r.getNumBands());
+
+            final double luma = lumaPsnr(r, nv21, w, h);
+            assertTrue(what + ": luma PSNR " + luma, luma >= MIN_PSNR[q][0]);
+            final double chroma = chromaPsnr(r, nv21, w, h);
+            assertTrue(what + ": chroma PSNR " + chroma, chroma >= MIN_PSNR[q][1]);
+          }
+        }
+      } finally {
+        encoder.shutdown();
+      }
+    }
+  }
+
+  public void testStripesDoNotChangeTheOutput()
+  {
+    final int w = 640;
+    final int h = 480;
+    final byte[] nv21 = frame(w, h, 3);
+    final JpegEncoder single = new JpegEncoder(1);
+    final byte[] expected = Arrays.copyOf(single.getOutput(), single.encode(nv21, w, h, 85));
+    single.shutdown();
+
+    // every MCU row restarts the coding, so stripes only decide who codes it
+    for (int threads = 2; threads <= 8; threads++)
+    {
+      final JpegEncoder encoder = new JpegEncoder(threads);
+      try {
+        for (int pass = 0; pass < 2; pass++)
+        {
+          final int length = encoder.encode(nv21, w, h, 85);
+          assertTrue(threads + " threads, pass " + pass + " differs from one thread",
+            Arrays.equals(expected, Arrays.copyOf(encoder.getOutput(), length)));
+        }
+      } finally {
+        encoder.shutdown();
+      }
+    }
+  }
+
+  public void testStreamGetsTheSameBytes() throws IOException
+  {
+    final JpegEncoder encoder = new JpegEncoder(2);
+    try {
+      final byte[] nv21 = frame(176, 144, 5);
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+      encoder.encode(nv21, 176, 144, 75, out);
+      final int length = encoder.encode(nv21, 176, 144, 75);
+      assertTrue("streamed bytes differ",
+        Arrays.equals(Arrays.copyOf(encoder.getOutput(), length), out.toByteArray()));
+
+      final byte[] jpeg = out.toByteArray();
+      assertEquals("SOI", 0xffd8, ((jpeg[0] & 0xff) << 8) | (jpeg[1] & 0xff));
+      assertEquals("EOI", 0xffd9, ((jpeg[jpeg.length - 2] & 0xff) << 8) | (jpeg[jpeg.length - 1] & 0xff));
+    } finally {
+      encoder.shutdown();
+    }
+  }
+
+  public void testHigherQualityIsLarger()
+  {
+    final JpegEncoder encoder = new JpegEncoder(1);
+    try {
+      final byte[] nv21 = frame(640, 480, 9);
+      int previous = 0;
+      for (int quality : new int[] { 1, 10, 50, 75, 90, 100 })
+      {
+        final int length = encoder.encode(nv21, 640, 480, quality);
+        assertTrue("q" + quality + " is " + length + " bytes, not more than " + previous,
+          length > previous);
+        previous = length;
+      }
+    } finally {
+      encoder.shutdown();
+    }
+  }
+
+  public void testRejectsBadArguments()
+  {
+    final JpegEncoder encoder = new JpegEncoder(1);
+    try {
+      final byte[] nv21 = new byte[FrameBufferPool.nv21Size(16, 16)];
+      final int[][] bad = {
+        { 0, 16, 75 }, { 16, 0, 75 }, { 16, 16, 0 }, { 16, 16, 101 }, { 32, 32, 75 },
+      };
+      for (int[] b : bad)
+        try {
+          encoder.encode(nv21, b[0], b[1], b[2]);
+          fail(b[0] + "x" + b[1] + " q" + b[2] + " accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+    } finally {
+      encoder.shutdown();
+    }
+  }
+
+  public void testEncodeAfterShutdownFailsInsteadOfHanging() throws InterruptedException
+  {
+    final JpegEncoder encoder = new JpegEncoder(3);
+    final byte[] nv21 = frame(176, 144, 7);
+    encoder.encode(nv21, 176, 144, 75);
+    encoder.shutdown();
+    encoder.shutdown();
+
+    final Throwable[] thrown = new Throwable[1];
+    final Thread caller = new Thread()
+    {
+      @Override
+      public void run()
+      {
+        try {
+          encoder.encode(nv21, 176, 144, 75);
+        } catch (Throwable t) {
+          thrown[0] = t;
+        }
+      }
+    };
+    caller.setDaemon(true);
+    caller.start();
+    caller.join(5000);
+    assertTrue("encode() after shutdown() hangs", !caller.isAlive());
+    assertTrue("encode() after shutdown() threw " + thrown[0],
+      thrown[0] instanceof IllegalStateException);
+  }
+}
@@ -0,0 +1,183 @@
+package com.mattikariluoma.cameratest.test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import com.mattikariluoma.cameratest.Nv21Converter;
+
+public class Nv21ConverterTest extends UnitTest
+{
+  // fixed point against floating point, after rounding both
+  private static final int MAX_ERROR = 2;
+  private static final int[][] SIZES = { { 2, 2 }, { 6, 4 }, { 4, 14 }, { 176, 144 }, { 640, 480 } };
+  private static final int[] THREADS = { 1, 3, 8 };
+
+  private static byte[] randomFrame(int width, int height, long seed)
+  {
+    final byte[] nv21 = new byte[width * height * 3 / 2];
+    new Random(seed).nextBytes(nv21);
+    return nv21;
+  }
+
+  /// A frame of one colour
+  private static byte[] flatFrame(int width, int height, int y, int u, int v)
+  {
+    final int frameSize = width * height;
+    final byte[] nv21 = new byte[frameSize * 3 / 2];
+    for (int i = 0; i < frameSize; i++)
+      nv21[i] = (byte) y;
+    for (int i = frameSize; i < nv21.length; i += 2)
+    {
+      nv21[i] = (byte) v;
+      nv21[i + 1] = (byte) u;
+    }
+    return nv21;
+  }
+
+  private static short toRgb565(int argb)
+  {
+    return (short) ((((argb >> 16) & 0xff) >> 3) << 11
+      | (((argb >> 8) & 0xff) >> 2) << 5
+      | ((argb & 0xff) >> 3));
+  }
+
+  public void testArgbMatchesReference()
+  {
+    for (int threads : THREADS)
+    {
+      final Nv21Converter converter = new Nv21Converter(threads);
+      try {
+        for (int[] size : SIZES)
+        {
+          final int w = size[0];
+          final int h = size[1];
+          final byte[] nv21 = randomFrame(w, h, w * 31 + h);
+          final int[] out = new int[w * h];
+          final int[] reference = new int[w * h];
+          converter.toArgb8888(nv21, w, h, out);
+          Nv21Converter.toArgb8888Reference(nv21, w, h, reference);
+
+          final int error = Nv21Converter.maxChannelError(out, reference, w * h);
+          assertTrue(w + "x" + h + " on " + threads + " threads is off by " + error,
+            error <= MAX_ERROR);
+          for (int i = 0; i < out.length; i++)
+            assertEquals("alpha of pixel " + i, 0xff, out[i] >>> 24);
+        }
+      } finally {
+        converter.shutdown();
+      }
+    }
+  }
+
+  public void testRgb565IsTruncatedArgb()
+  {
+    for (int threads : THREADS)
+    {
+      final Nv21Converter converter = new Nv21Converter(threads);
+      try {
+        for (int[] size : SIZES)
+        {
+          final int w = size[0];
+          final int h = size[1];
+          final byte[] nv21 = randomFrame(w, h, w * 17 + h);
+          final int[] argb = new int[w * h];
+          final short[] rgb565 = new short[w * h];
+          converter.toArgb8888(nv21, w, h, argb);
+          converter.toRgb565(nv21, w, h, rgb565);
+
+          for (int i = 0; i < argb.length; i++)
+            if (rgb565[i] != toRgb565(argb[i]))
+              fail(w + "x" + h + " on " + threads + " threads, pixel " + i + ": "
+                + Integer.toHexString(rgb565[i] & 0xffff) + " for "
+                + Integer.toHexString(argb[i]));
+        }
+      } finally {
+        converter.shutdown();
+      }
+    }
+  }
+
+  public void testStripesMatchSingleThread()
+  {
+    final int w = 640;
+    final int h = 480;
+    final byte[] nv21 = randomFrame(w, h, 7);
+    final Nv21Converter single = new Nv21Converter(1);
+    final int[] expected = new int[w * h];
+    single.toArgb8888(nv21, w, h, expected);
+    single.shutdown();
+
+    for (int threads = 2; threads <= 8; threads++)
+    {
+      final Nv21Converter converter = new Nv21Converter(threads);
+      final int[] out = new int[w * h];
+      // the second frame reuses the stripes of the first
+      for (int pass = 0; pass < 2; pass++)
+      {
+        converter.toArgb8888(nv21, w, h, out);
+        assertEquals(threads + " threads, pass " + pass, 0,
+          Nv21Converter.maxChannelError(out, expected, w * h));
+      }
+      converter.shutdown();
+    }
+  }
+
+  public void testKnownColours()
+  {
+    final Nv21Converter converter = new Nv21Converter(2);
+    try {
+      final int[] out = new int[4 * 4];
+      final short[] rgb565 = new short[4 * 4];
+
+      // video range black and white, and saturated primaries
+      final int[][] cases = {
+        { 16, 128, 128, 0xff000000 },
+        { 235, 128, 128, 0xffffffff },
+        { 82, 90, 240, 0xffff0000 },
+        { 41, 240, 110, 0xff0000ff },
+      };
+      for (int[] c : cases)
+      {
+        final byte[] nv21 = flatFrame(4, 4, c[0], c[1], c[2]);
+        converter.toArgb8888(nv21, 4, 4, out);
+        converter.toRgb565(nv21, 4, 4, rgb565);
+        final int[] expected = new int[out.length];
+        Arrays.fill(expected, c[3]);
+        final int error = Nv21Converter.maxChannelError(out, expected, out.length);
+        assertTrue("yuv " + c[0] + "," + c[1] + "," + c[2] + " gave "
+          + Integer.toHexString(out[0]), error <= MAX_ERROR);
+        for (int i = 0; i < rgb565.length; i++)
+          assertEquals("rgb565 of yuv " + c[0] + "," + c[1] + "," + c[2],
+            toRgb565(out[i]), rgb565[i]);
+      }
+    } finally {
+      converter.shutdown();
+    }
+  }
+
+  public void testRejectsBadFrames()
+  {
+    final Nv21Converter converter = new Nv21Converter(1);
+    try {
+      final int[][] bad = { { 3, 2 }, { 2, 3 }, { 0, 2 }, { -2, 2 } };
+      for (int[] size : bad)
+        try {
+          converter.toArgb8888(new byte[64], size[0], size[1], new int[64]);
+          fail(size[0] + "x" + size[1] + " accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+      try {
+        converter.toArgb8888(new byte[5], 2, 2, new int[4]);
+        fail("short frame accepted");
+      } catch (IllegalArgumentException expected) {
+      }
+      try {
+        converter.toRgb565(new byte[6], 2, 2, new short[3]);
+        fail("short output accepted");
+      } catch (IllegalArgumentException expected) {
+      }
+    } finally {
+      converter.shutdown();
+    }
+  }
+}
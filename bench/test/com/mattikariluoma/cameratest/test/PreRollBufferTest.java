@@ -0,0 +1,201 @@
+package com.mattikariluoma.cameratest.test;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import com.mattikariluoma.cameratest.FrameBufferPool;
+import com.mattikariluoma.cameratest.PreRollBuffer;
+
+public class PreRollBufferTest extends UnitTest
+{
+  private static final int WIDTH = 4;
+  private static final int HEIGHT = 2;
+  private static final int FRAME_SIZE = FrameBufferPool.nv21Size(WIDTH, HEIGHT);
+
+  private File mFile;
+
+  @Override
+  public void setUp() throws IOException
+  {
+    mFile = File.createTempFile("preroll", ".nv21");
+  }
+
+  @Override
+  public void tearDown()
+  {
+    mFile.delete();
+  }
+
+  /// A frame filled with n, as a torn copy would show
+  private static byte[] frame(int width, int height, long n)
+  {
+    final byte[] nv21 = new byte[FrameBufferPool.nv21Size(width, height)];
+    Arrays.fill(nv21, (byte) n);
+    return nv21;
+  }
+
+  private static void writeFrames(PreRollBuffer preRoll, int from, int to)
+  {
+    for (int n = from; n < to; n++)
+      preRoll.write(frame(WIDTH, HEIGHT, n), WIDTH, HEIGHT, n * 100L);
+  }
+
+  public void testSlotsFollowTheWindowWithinTheBudget()
+  {
+    // 1s at 10fps, and one slot for the writer
+    final PreRollBuffer window = new PreRollBuffer(1000, 10, 1 << 20);
+    writeFrames(window, 0, 1);
+    assertEquals("slots", 11, window.getSlotCount());
+    assertEquals("window", 1000, window.getWindowMillis());
+
+    // a partial frame interval still needs its frame
+    final PreRollBuffer rounded = new PreRollBuffer(1050, 10, 1 << 20);
+    writeFrames(rounded, 0, 1);
+    assertEquals("rounded up", 12, rounded.getSlotCount());
+
+    final PreRollBuffer budget = new PreRollBuffer(1000, 10, FRAME_SIZE * 5 + FRAME_SIZE - 1);
+    writeFrames(budget, 0, 1);
+    assertEquals("slots within the budget", 5, budget.getSlotCount());
+    assertEquals("window within the budget", 400, budget.getWindowMillis());
+    assertEquals("capacity is the budget", FRAME_SIZE * 6 - 1, budget.getCapacityBytes());
+
+    final PreRollBuffer unlimited = new PreRollBuffer(FRAME_SIZE * 7);
+    writeFrames(unlimited, 0, 1);
+    assertEquals("budget only", 7, unlimited.getSlotCount());
+    assertEquals("no window", 0, unlimited.getWindowMillis());
+  }
+
+  public void testFrameLargerThanTheBudgetIsDropped()
+  {
+    final PreRollBuffer preRoll = new PreRollBuffer(FRAME_SIZE - 1);
+    writeFrames(preRoll, 0, 3);
+    assertEquals("slots", 0, preRoll.getSlotCount());
+    assertEquals("dropped", 3, preRoll.getDroppedCount());
+    assertEquals("newest", -1, preRoll.getNewestTimestampNanos());
+    assertTrue("nothing to copy", !preRoll.copyNearest(0, new PreRollBuffer.Snapshot()));
+  }
+
+  public void testCopyNearestPicksTheNearestTimestamp()
+  {
+    final PreRollBuffer preRoll = new PreRollBuffer(FRAME_SIZE * 5);
+    final PreRollBuffer.Snapshot snapshot = new PreRollBuffer.Snapshot();
+    assertTrue("empty", !preRoll.copyNearest(0, snapshot));
+
+    // frames 3..7 are in the ring, and 3 is the slot the writer fills next
+    writeFrames(preRoll, 0, 8);
+    assertEquals("frames", 5, preRoll.getFrameCount());
+    assertEquals("newest", 700, preRoll.getNewestTimestampNanos());
+
+    final long[][] cases = {
+      { 560, 600 }, { 540, 500 }, { 10000, 700 }, { 0, 400 }, { 410, 400 },
+    };
+    for (long[] c : cases)
+    {
+      assertTrue("copy near " + c[0], preRoll.copyNearest(c[0], snapshot));
+      assertEquals("nearest " + c[0], c[1], snapshot.getTimestampNanos());
+      assertEquals("data of " + c[1], (byte) (c[1] / 100), snapshot.getData()[FRAME_SIZE - 1]);
+      assertEquals("width", WIDTH, snapshot.getWidth());
+      assertEquals("height", HEIGHT, snapshot.getHeight());
+      assertEquals("length", FRAME_SIZE, snapshot.getLength());
+    }
+  }
+
+  public void testSaveWritesHeaderedFrames() throws IOException
+  {
+    final PreRollBuffer preRoll = new PreRollBuffer(FRAME_SIZE * 5);
+    writeFrames(preRoll, 0, 8);
+
+    // 4..7; 3 is skipped as the writer could be filling it
+    assertEquals("saved", 4, preRoll.save(mFile, Long.MAX_VALUE));
+    assertEquals("file size", 4 * (PreRollBuffer.HEADER_SIZE + FRAME_SIZE), mFile.length());
+    final DataInputStream in = new DataInputStream(new FileInputStream(mFile));
+    try {
+      for (int n = 4; n < 8; n++)
+      {
+        assertEquals("width " + n, WIDTH, in.readInt());
+        assertEquals("height " + n, HEIGHT, in.readInt());
+        assertEquals("timestamp " + n, n * 100L, in.readLong());
+        assertEquals("length " + n, FRAME_SIZE, in.readInt());
+        assertEquals("reserved " + n, 0, in.readInt());
+        final byte[] data = new byte[FRAME_SIZE];
+        in.readFully(data);
+        assertTrue("data " + n, Arrays.equals(frame(WIDTH, HEIGHT, n), data));
+      }
+      try {
+        in.readByte();
+        fail("trailing bytes");
+      } catch (EOFException expected) {
+      }
+    } finally {
+      in.close();
+    }
+
+    assertEquals("no older than 200ns before the newest", 3, preRoll.save(mFile, 200));
+    assertEquals("file size", 3 * (PreRollBuffer.HEADER_SIZE + FRAME_SIZE), mFile.length());
+  }
+
+  public void testResizeRetiresTheOldLayout() throws IOException
+  {
+    final PreRollBuffer preRoll = new PreRollBuffer(1000, 10, FRAME_SIZE * 8);
+    writeFrames(preRoll, 0, 4);
+    assertEquals("frames", 4, preRoll.getFrameCount());
+
+    // twice the frame size: half the slots, and only frames of the new size
+    preRoll.write(frame(4, 4, 9), 4, 4, 900);
+    assertEquals("slots", 4, preRoll.getSlotCount());
+    assertEquals("frames", 1, preRoll.getFrameCount());
+    final PreRollBuffer.Snapshot snapshot = new PreRollBuffer.Snapshot();
+    assertTrue("copy", preRoll.copyNearest(0, snapshot));
+    assertEquals("nearest of the new size", 900, snapshot.getTimestampNanos());
+    assertEquals("width", 4, snapshot.getWidth());
+    assertEquals("length", FrameBufferPool.nv21Size(4, 4), snapshot.getLength());
+    assertEquals("saved", 1, preRoll.save(mFile, Long.MAX_VALUE));
+
+    preRoll.clear();
+    assertEquals("cleared", 0, preRoll.getFrameCount());
+    assertTrue("nothing after clear", !preRoll.copyNearest(0, snapshot));
+  }
+
+  public void testReadersRacingTheWriterNeverSeeTornFrames() throws Exception
+  {
+    final PreRollBuffer preRoll = new PreRollBuffer(FRAME_SIZE * 4);
+    final int frames = 200000;
+    final Thread writer = new Thread()
+    {
+      @Override
+      public void run()
+      {
+        // the ring is small, so readers are overtaken all the time; every
+        // 1000th frame changes size, retiring the layout
+        for (int n = 1; n <= frames; n++)
+        {
+          final int height = (n / 1000) % 2 == 0 ? HEIGHT : 2 * HEIGHT;
+          preRoll.write(frame(WIDTH, height, n), WIDTH, height, n);
+        }
+      }
+    };
+    writer.start();
+
+    final PreRollBuffer.Snapshot snapshot = new PreRollBuffer.Snapshot();
+    int copies = 0;
+    while (writer.isAlive())
+    {
+      if (!preRoll.copyNearest(preRoll.getNewestTimestampNanos(), snapshot))
+        continue;
+      copies++;
+      final long n = snapshot.getTimestampNanos();
+      final byte[] data = snapshot.getData();
+      for (int i = 0; i < snapshot.getLength(); i++)
+        if (data[i] != (byte) n)
+          fail("frame " + n + " torn at byte " + i + ": " + data[i]);
+      final int height = (n / 1000) % 2 == 0 ? HEIGHT : 2 * HEIGHT;
+      assertEquals("height of frame " + n, height, snapshot.getHeight());
+    }
+    writer.join();
+    assertTrue("no copies made", copies > 0);
+  }
+}
@@ -0,0 +1,166 @@
+package com.mattikariluoma.cameratest.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.mattikariluoma.cameratest.SizedLruCache;
+
+public class SizedLruCacheTest extends UnitTest
+{
+  /// Values are sized by length; removals are recorded in order
+  private static class Cache extends SizedLruCache<String, byte[]>
+  {
+    final List<String> removed = new ArrayList<String>();
+
+    Cache(long maxSize)
+    {
+      super(maxSize);
+    }
+
+    @Override
+    protected long sizeOf(String key, byte[] value)
+    {
+      return value.length;
+    }
+
+    @Override
+    protected void entryRemoved(String key, byte[] value)
+    {
+      synchronized (removed)
+      {
+        removed.add(key);
+      }
+    }
+  }
+
+  public void testEvictsLeastRecentlyUsedBySize()
+  {
+    final Cache cache = new Cache(10);
+    cache.put("a", new byte[4]);
+    cache.put("b", new byte[4]);
+    assertEquals("size", 8, cache.size());
+
+    // two small entries make room for one large one
+    cache.put("c", new byte[6]);
+    assertEquals("removed", "[a]", cache.removed.toString());
+    assertNull("a", cache.get("a"));
+    assertEquals("size", 10, cache.size());
+
+    cache.put("d", new byte[10]);
+    assertEquals("removed", "[a, b, c]", cache.removed.toString());
+    assertEquals("count", 1, cache.count());
+    assertEquals("evictions", 3, cache.getEvictionCount());
+  }
+
+  public void testGetRefreshesAnEntry()
+  {
+    final Cache cache = new Cache(3);
+    cache.put("a", new byte[1]);
+    cache.put("b", new byte[1]);
+    cache.put("c", new byte[1]);
+    assertNotNull("a", cache.get("a"));
+
+    cache.put("d", new byte[1]);
+    assertEquals("removed", "[b]", cache.removed.toString());
+    assertNotNull("a survives", cache.get("a"));
+    assertNull("b", cache.get("b"));
+  }
+
+  public void testReplacingAdjustsSize()
+  {
+    final Cache cache = new Cache(10);
+    final byte[] first = new byte[6];
+    cache.put("a", first);
+    assertSame("previous", first, cache.put("a", new byte[2]));
+    assertEquals("size", 2, cache.size());
+    assertEquals("count", 1, cache.count());
+    assertEquals("replaced values are reported", "[a]", cache.removed.toString());
+    assertEquals("a replacement is not an eviction", 0, cache.getEvictionCount());
+  }
+
+  public void testOversizedValueIsNotKept()
+  {
+    final Cache cache = new Cache(10);
+    cache.put("a", new byte[4]);
+    cache.put("big", new byte[11]);
+    assertNull("big", cache.get("big"));
+    assertNotNull("a is untouched", cache.get("a"));
+    assertEquals("size", 4, cache.size());
+
+    // replacing a cached value with an oversized one drops both
+    cache.put("a", new byte[11]);
+    assertNull("a", cache.get("a"));
+    assertEquals("size", 0, cache.size());
+  }
+
+  public void testRemoveTrimAndEvictAll()
+  {
+    final Cache cache = new Cache(10);
+    cache.put("a", new byte[3]);
+    cache.put("b", new byte[3]);
+    cache.put("c", new byte[3]);
+
+    assertNotNull("remove", cache.remove("b"));
+    assertNull("remove again", cache.remove("b"));
+    assertEquals("size", 6, cache.size());
+
+    cache.trimTo(3);
+    assertEquals("removed", "[b, a]", cache.removed.toString());
+    assertEquals("size", 3, cache.size());
+
+    cache.evictAll();
+    assertEquals("size", 0, cache.size());
+    assertEquals("count", 0, cache.count());
+    assertEquals("evictions", 2, cache.getEvictionCount());
+  }
+
+  public void testCountsHitsAndMisses()
+  {
+    final Cache cache = new Cache(10);
+    cache.put("a", new byte[1]);
+    cache.get("a");
+    cache.get("a");
+    cache.get("b");
+    assertEquals("hits", 2, cache.getHitCount());
+    assertEquals("misses", 1, cache.getMissCount());
+  }
+
+  public void testConcurrentUseStaysWithinBounds() throws Exception
+  {
+    final Cache cache = new Cache(64);
+    final Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++)
+    {
+      final int seed = t;
+      threads[t] = new Thread()
+      {
+        @Override
+        public void run()
+        {
+          for (int i = 0; i < 20000; i++)
+          {
+            final String key = Integer.toString((i * 7 + seed) % 50);
+            if (cache.get(key) == null)
+              cache.put(key, new byte[1 + (i + seed) % 8]);
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread t : threads)
+      t.join();
+
+    assertTrue("size " + cache.size() + " over the limit", cache.size() <= 64);
+    cache.evictAll();
+    assertEquals("size after evictAll", 0, cache.size());
+  }
+
+  public void testRejectsNonPositiveMaxSize()
+  {
+    try {
+      new Cache(0);
+      fail("max size 0 accepted");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+}
@@ -0,0 +1,100 @@
+package com.mattikariluoma.cameratest.test;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+
+/// Runs the unit tests of the plain Java classes on a plain JVM.
+///
+/// Prints one line per failure and a count at the end, and exits
+/// non-zero if anything failed.
+///
+///   java TestRunner [-filter substring]
+public class TestRunner
+{
+  public static List<UnitTest> allTests()
+  {
+    final List<UnitTest> all = new ArrayList<UnitTest>();
+    all.add(new CameraSettingsTest());
+    all.add(new CaptureIndexTest());
+    all.add(new CaptureStateMachineTest());
+    all.add(new CaptureWriterTest());
+    all.add(new FrameBufferPoolTest());
+    all.add(new FrameDispatcherTest());
+    all.add(new FrameRecorderTest());
+    all.add(new JpegEncoderTest());
+    all.add(new Nv21ConverterTest());
+    all.add(new PreRollBufferTest());
+    all.add(new SizedLruCacheTest());
+    all.add(new TimeLapseSchedulerTest());
+    return all;
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    String filter = null;
+    for (int i = 0; i < args.length; i++)
+    {
+      if (args[i].equals("-filter") && i + 1 < args.length)
+        filter = args[++i];
+      else
+        usage("unknown option " + args[i]);
+    }
+
+    int run = 0;
+    int failed = 0;
+    for (UnitTest prototype : allTests())
+    {
+      final Class<? extends UnitTest> type = prototype.getClass();
+      for (Method m : type.getMethods())
+      {
+        if (!m.getName().startsWith("test") || m.getParameterTypes().length != 0
+          || Modifier.isStatic(m.getModifiers()))
+          continue;
+        final String name = type.getSimpleName() + "." + m.getName();
+        if (filter != null && name.indexOf(filter) < 0)
+          continue;
+
+        run++;
+        final Throwable failure = run(type.getConstructor().newInstance(), m);
+        if (failure != null)
+        {
+          failed++;
+          System.out.println("FAIL " + name + ": " + failure);
+          failure.printStackTrace(System.out);
+        }
+      }
+    }
+
+    System.out.println(run + " tests, " + failed + " failed");
+    if (failed > 0 || run == 0)
+      System.exit(1);
+  }
+
+  private static void usage(String message)
+  {
+    System.err.println(message);
+    System.err.println("usage: TestRunner [-filter text]");
+    System.exit(2);
+  }
+
+  /// Runs one test; returns what it failed with, or null
+  private static Throwable run(UnitTest test, Method m)
+  {
+    try {
+      test.setUp();
+      try {
+        m.invoke(test);
+      } finally {
+        test.tearDown();
+      }
+      return null;
+    } catch (InvocationTargetException e) {
+      return e.getCause();
+    } catch (Throwable e) {
+      return e;
+    }
+  }
+}
@@ -0,0 +1,144 @@
+package com.mattikariluoma.cameratest.test;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.mattikariluoma.cameratest.TimeLapseScheduler;
+
+public class TimeLapseSchedulerTest extends UnitTest
+{
+  private static final long INTERVAL_MS = 40;
+
+  /// Completes shots after set latencies. A negative latency loses them,
+  /// and so do the first lostFull full shots. Records the kind of each shot
+  /// started, F or P.
+  private static class FakeTarget implements TimeLapseScheduler.Target
+  {
+    final ScheduledExecutorService camera = Executors.newSingleThreadScheduledExecutor();
+    final StringBuffer shots = new StringBuffer();
+    TimeLapseScheduler scheduler;
+    final long fullLatencyMs;
+    final long previewLatencyMs;
+    int lostFull;
+    volatile int previewsCompleted;
+
+    FakeTarget(long fullLatencyMs, long previewLatencyMs)
+    {
+      this.fullLatencyMs = fullLatencyMs;
+      this.previewLatencyMs = previewLatencyMs;
+    }
+
+    @Override
+    public boolean captureFull()
+    {
+      shots.append('F');
+      if (lostFull > 0)
+        lostFull--;
+      else
+        complete(true, fullLatencyMs);
+      return true;
+    }
+
+    @Override
+    public boolean capturePreview()
+    {
+      shots.append('P');
+      complete(false, previewLatencyMs);
+      return true;
+    }
+
+    private void complete(final boolean full, long latencyMs)
+    {
+      if (latencyMs < 0)
+        return;
+      camera.schedule(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          if (!full)
+            previewsCompleted++;
+          scheduler.onShotComplete(full);
+        }
+      }, latencyMs, TimeUnit.MILLISECONDS);
+    }
+
+    /// Runs the scheduler until count shots have started, and lets what
+    /// is in flight complete
+    void run(int count) throws InterruptedException
+    {
+      scheduler.start();
+      final long deadline = System.currentTimeMillis() + 10 * count * INTERVAL_MS;
+      while (shots.length() < count && System.currentTimeMillis() < deadline)
+        Thread.sleep(1);
+      scheduler.stop();
+      camera.shutdown();
+      camera.awaitTermination(5, TimeUnit.SECONDS);
+      assertTrue("only " + shots + " in time", shots.length() >= count);
+    }
+  }
+
+  private static FakeTarget target(long fullLatencyMs, long previewLatencyMs)
+  {
+    final FakeTarget target = new FakeTarget(fullLatencyMs, previewLatencyMs);
+    target.scheduler = new TimeLapseScheduler(target, INTERVAL_MS);
+    return target;
+  }
+
+  public void testFastFullShotsAreAllFull() throws InterruptedException
+  {
+    final FakeTarget target = target(5, 5);
+    target.run(4);
+    assertEquals("shots", "FFFF", target.shots.substring(0, 4));
+    assertEquals("timed out", 0, target.scheduler.getTimedOutCount());
+    assertTrue("full latency recorded", target.scheduler.fullLatency.getCount() >= 4);
+  }
+
+  public void testLostShotTimesOutAndFallsBackToPreview() throws InterruptedException
+  {
+    final FakeTarget target = target(-1, 5);
+    target.run(5);
+
+    // the lost full shot counts as too slow from then on
+    assertEquals("shots", "FPPPP", target.shots.substring(0, 5));
+    assertEquals("timed out", 1, target.scheduler.getTimedOutCount());
+    assertEquals("no full shot completed", 0, target.scheduler.fullLatency.getCount());
+    assertEquals("previews credited", target.previewsCompleted, target.scheduler.getPreviewShotCount());
+  }
+
+  public void testLateFullCompletionIsNotCreditedToAPreviewShot() throws InterruptedException
+  {
+    // the full shot completes mid-way through the preview shot after it
+    final FakeTarget target = target(INTERVAL_MS * 3 / 2, INTERVAL_MS * 3 / 4);
+    target.run(4);
+
+    assertEquals("shots", "FPPP", target.shots.substring(0, 4));
+    assertEquals("timed out", 1, target.scheduler.getTimedOutCount());
+    assertEquals("late full completion ignored", 0, target.scheduler.fullLatency.getCount());
+    assertEquals("previews credited", target.previewsCompleted, target.scheduler.getPreviewShotCount());
+    assertEquals("shots credited", target.previewsCompleted, target.scheduler.getShotCount());
+    assertTrue("preview latency is its own, not the full shot's",
+      target.scheduler.previewLatency.getMax() < INTERVAL_MS);
+  }
+
+  public void testFullShotIsProbedEveryReprobeShots() throws InterruptedException
+  {
+    final FakeTarget target = target(-1, 5);
+    target.run(21);
+
+    // REPROBE_SHOTS is 10; every probe is lost and times out in turn
+    assertEquals("shots", "FPPPPPPPPPFPPPPPPPPPF", target.shots.substring(0, 21));
+    assertTrue("timed out", target.scheduler.getTimedOutCount() >= 2);
+  }
+
+  public void testFastProbeReturnsToFullShots() throws InterruptedException
+  {
+    // full captures recover after the first is lost
+    final FakeTarget target = target(5, 5);
+    target.lostFull = 1;
+    target.run(13);
+
+    assertEquals("shots", "FPPPPPPPPPFFF", target.shots.substring(0, 13));
+  }
+}
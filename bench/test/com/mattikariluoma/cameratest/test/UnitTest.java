@@ -0,0 +1,58 @@
+package com.mattikariluoma.cameratest.test;
+
+/// A group of checks of one class, run by TestRunner.
+///
+/// Every public no-argument method whose name starts with "test" is a
+/// test. Each runs on a fresh instance, between setUp() and tearDown(),
+/// and fails by throwing; the assertions below throw AssertionError.
+public abstract class UnitTest
+{
+  public void setUp() throws Exception
+  {
+  }
+
+  public void tearDown() throws Exception
+  {
+  }
+
+  protected static void fail(String message)
+  {
+    throw new AssertionError(message);
+  }
+
+  protected static void assertTrue(String message, boolean condition)
+  {
+    if (!condition)
+      fail(message);
+  }
+
+  protected static void assertEquals(String message, long expected, long actual)
+  {
+    if (expected != actual)
+      fail(message + ": expected " + expected + " but was " + actual);
+  }
+
+  protected static void assertEquals(String message, Object expected, Object actual)
+  {
+    if (expected == null ? actual != null : !expected.equals(actual))
+      fail(message + ": expected " + expected + " but was " + actual);
+  }
+
+  protected static void assertSame(String message, Object expected, Object actual)
+  {
+    if (expected != actual)
+      fail(message + ": expected " + expected + " but was " + actual);
+  }
+
+  protected static void assertNull(String message, Object actual)
+  {
+    if (actual != null)
+      fail(message + ": expected null but was " + actual);
+  }
+
+  protected static void assertNotNull(String message, Object actual)
+  {
+    if (actual == null)
+      fail(message + ": was null");
+  }
+}
@@ -0,0 +1,62 @@
+package com.mattikariluoma.cameratest;
+
+/// Keeps the highest scoring of a fixed number of candidate shots.
+///
+/// Candidates are held by reference, so only the current best is kept
+/// alive; a caller offering reused buffers must copy them first.
+public class BestShotSelector
+{
+  private final int mCandidates;
+  private int mOffered;
+  private byte[] mBest;
+  private double mBestScore = Double.NEGATIVE_INFINITY;
+
+  public BestShotSelector(int candidates)
+  {
+    if (candidates <= 0)
+      throw new IllegalArgumentException("candidates must be positive: " + candidates);
+
+    mCandidates = candidates;
+  }
+
+  /// Considers one candidate; returns true once every candidate has been
+  /// offered and getBest() is final
+  public synchronized boolean offer(byte[] data, double score)
+  {
+    if (mOffered >= mCandidates)
+      throw new IllegalStateException("already have " + mCandidates + " candidates");
+
+    mOffered++;
+    if (mBest == null || score > mBestScore)
+    {
+      mBest = data;
+      mBestScore = score;
+    }
+    return mOffered == mCandidates;
+  }
+
+  public synchronized boolean isComplete()
+  {
+    return mOffered == mCandidates;
+  }
+
+  public synchronized byte[] getBest()
+  {
+    return mBest;
+  }
+
+  public synchronized double getBestScore()
+  {
+    return mBestScore;
+  }
+
+  public synchronized int getOfferedCount()
+  {
+    return mOffered;
+  }
+
+  public int getCandidateCount()
+  {
+    return mCandidates;
+  }
+}
@@ -0,0 +1,261 @@
+package com.mattikariluoma.cameratest;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/// A typed, cached snapshot of a camera's parameters.
+///
+/// Built once from the flattened "key=value;key=value" form the camera
+/// reports, so reads never go back to the camera. Setters only record the
+/// new value; takeChanges() hands over the keys whose value actually
+/// differs from the snapshot, so the owner can apply them all in a single
+/// setParameters call, or skip the call when nothing changed.
+public class CameraSettings
+{
+  public static final String PREVIEW_SIZE = "preview-size";
+  public static final String PREVIEW_SIZE_VALUES = "preview-size-values";
+  public static final String PREVIEW_FRAME_RATE = "preview-frame-rate";
+  public static final String PREVIEW_FRAME_RATE_VALUES = "preview-frame-rate-values";
+  public static final String PREVIEW_FPS_RANGE = "preview-fps-range";
+  public static final String PREVIEW_FPS_RANGE_VALUES = "preview-fps-range-values";
+  public static final String PICTURE_SIZE = "picture-size";
+  public static final String PICTURE_SIZE_VALUES = "picture-size-values";
+  public static final String FOCUS_MODE = "focus-mode";
+  public static final String FOCUS_MODE_VALUES = "focus-mode-values";
+  public static final String JPEG_QUALITY = "jpeg-quality";
+
+  private final Map<String, String> mValues = new HashMap<String, String>();
+  private final Map<String, String> mPending = new LinkedHashMap<String, String>();
+
+  public CameraSettings(String flattened)
+  {
+    if (flattened == null)
+      return;
+
+    for (String pair : flattened.split(";"))
+    {
+      final int eq = pair.indexOf('=');
+      if (eq > 0)
+        mValues.put(pair.substring(0, eq), pair.substring(eq + 1));
+    }
+  }
+
+  /// The value that will be in effect once pending changes are applied
+  public synchronized String get(String key)
+  {
+    final String pending = mPending.get(key);
+    return pending != null ? pending : mValues.get(key);
+  }
+
+  public synchronized int getInt(String key, int defaultValue)
+  {
+    final String v = get(key);
+    if (v == null)
+      return defaultValue;
+    try {
+      return Integer.parseInt(v.trim());
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+
+  public synchronized void set(String key, String value)
+  {
+    if (key.indexOf('=') >= 0 || key.indexOf(';') >= 0
+        || value.indexOf('=') >= 0 || value.indexOf(';') >= 0)
+      throw new IllegalArgumentException("'=' and ';' are not allowed: " + key + "=" + value);
+
+    mPending.put(key, value);
+  }
+
+  public void set(String key, int value)
+  {
+    set(key, Integer.toString(value));
+  }
+
+  /// True if applying now would change anything
+  public synchronized boolean hasChanges()
+  {
+    for (Map.Entry<String, String> e : mPending.entrySet())
+      if (!e.getValue().equals(mValues.get(e.getKey())))
+        return true;
+    return false;
+  }
+
+  /// The pending values that differ from the snapshot. They are folded
+  /// into the snapshot, which is assumed to match the camera once the
+  /// owner has applied them.
+  public synchronized Map<String, String> takeChanges()
+  {
+    final Map<String, String> changes = new LinkedHashMap<String, String>();
+    for (Map.Entry<String, String> e : mPending.entrySet())
+      if (!e.getValue().equals(mValues.get(e.getKey())))
+        changes.put(e.getKey(), e.getValue());
+
+    mValues.putAll(changes);
+    mPending.clear();
+    return changes;
+  }
+
+  /// Drops changes that have not been applied
+  public synchronized void discardChanges()
+  {
+    mPending.clear();
+  }
+
+  /// {width, height}, or null if unknown
+  public int[] getPreviewSize()
+  {
+    return parsePair(get(PREVIEW_SIZE), "x");
+  }
+
+  public void setPreviewSize(int width, int height)
+  {
+    set(PREVIEW_SIZE, width + "x" + height);
+  }
+
+  /// {width, height} pairs
+  public int[][] getSupportedPreviewSizes()
+  {
+    return parsePairs(get(PREVIEW_SIZE_VALUES), ",", "x");
+  }
+
+  public int[] getPictureSize()
+  {
+    return parsePair(get(PICTURE_SIZE), "x");
+  }
+
+  public void setPictureSize(int width, int height)
+  {
+    set(PICTURE_SIZE, width + "x" + height);
+  }
+
+  public int[][] getSupportedPictureSizes()
+  {
+    return parsePairs(get(PICTURE_SIZE_VALUES), ",", "x");
+  }
+
+  public int getPreviewFrameRate()
+  {
+    return getInt(PREVIEW_FRAME_RATE, 0);
+  }
+
+  public void setPreviewFrameRate(int fps)
+  {
+    set(PREVIEW_FRAME_RATE, fps);
+  }
+
+  public int[] getSupportedPreviewFrameRates()
+  {
+    final String v = get(PREVIEW_FRAME_RATE_VALUES);
+    if (v == null || v.length() == 0)
+      return new int[0];
+
+    final String[] items = v.split(",");
+    final int[] rates = new int[items.length];
+    for (int i = 0; i < items.length; i++)
+      rates[i] = Integer.parseInt(items[i].trim());
+    return rates;
+  }
+
+  /// {min, max} in fps * 1000, or null if unknown
+  public int[] getPreviewFpsRange()
+  {
+    return parsePair(get(PREVIEW_FPS_RANGE), ",");
+  }
+
+  public void setPreviewFpsRange(int min, int max)
+  {
+    set(PREVIEW_FPS_RANGE, min + "," + max);
+  }
+
+  /// {min, max} pairs in fps * 1000, reported as "(a,b),(c,d)"
+  public int[][] getSupportedPreviewFpsRanges()
+  {
+    final String v = get(PREVIEW_FPS_RANGE_VALUES);
+    if (v == null || v.length() < 2)
+      return new int[0][];
+
+    return parsePairs(v.substring(1, v.length() - 1), "\\),\\(", ",");
+  }
+
+  public String getFocusMode()
+  {
+    return get(FOCUS_MODE);
+  }
+
+  public void setFocusMode(String mode)
+  {
+    set(FOCUS_MODE, mode);
+  }
+
+  public String[] getSupportedFocusModes()
+  {
+    final String v = get(FOCUS_MODE_VALUES);
+    return v == null || v.length() == 0 ? new String[0] : v.split(",");
+  }
+
+  public int getJpegQuality()
+  {
+    return getInt(JPEG_QUALITY, 0);
+  }
+
+  public void setJpegQuality(int quality)
+  {
+    set(JPEG_QUALITY, quality);
+  }
+
+  /// The snapshot with pending changes applied, in flattened form
+  public synchronized String flatten()
+  {
+    final Map<String, String> all = new HashMap<String, String>(mValues);
+    all.putAll(mPending);
+
+    final StringBuilder out = new StringBuilder();
+    for (Map.Entry<String, String> e : all.entrySet())
+    {
+      if (out.length() > 0)
+        out.append(';');
+      out.append(e.getKey()).append('=').append(e.getValue());
+    }
+    return out.toString();
+  }
+
+  private static int[] parsePair(String value, String separator)
+  {
+    if (value == null)
+      return null;
+
+    final String[] parts = value.split(separator);
+    if (parts.length != 2)
+      return null;
+    try {
+      return new int[] { Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim()) };
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  private static int[][] parsePairs(String value, String itemSeparator, String pairSeparator)
+  {
+    if (value == null || value.length() == 0)
+      return new int[0][];
+
+    final String[] items = value.split(itemSeparator);
+    int count = 0;
+    final int[][] pairs = new int[items.length][];
+    for (String item : items)
+    {
+      final int[] pair = parsePair(item, pairSeparator);
+      if (pair != null)
+        pairs[count++] = pair;
+    }
+
+    if (count == pairs.length)
+      return pairs;
+    final int[][] trimmed = new int[count][];
+    System.arraycopy(pairs, 0, trimmed, 0, count);
+    return trimmed;
+  }
+}
@@ -1,13 +1,25 @@
 package com.mattikariluoma.cameratest;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import android.app.Activity;
+import android.app.AlarmManager;
 import android.app.AlertDialog;
+import android.app.PendingIntent;
 
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Process;
 import android.content.Intent;
 import android.util.Log;
 import android.content.Context;
@@ -29,53 +41,229 @@ public class CameraTestActivity extends Activity
 {
   private static final String TAG = "CameraTest";
   VersionedCamera mCamera;
+  Future<VersionedCamera> mCameraOpening;
   VersionedPreview mPreview;
+  CaptureWriter mCaptureWriter;
   Button mTakePicture;
+  Button mBurst;
+  Button mMotion;
+  Button mBestOf;
+  MotionDetector mMotionDetector;
+  FrameDispatcher.FrameConsumer mMotionConsumer;
+  OverlayRenderer mOverlay;
+  LumaHistogram mHistogram;
+  PreRollBuffer mPreRoll;
+  boolean mZeroShutterLag = false;
+  TimeLapseScheduler mTimeLapse;
+  FrameRecorder mRecorder;
+  ThumbnailStore mThumbnails;
+  volatile CaptureIndex mCaptureIndex;
+  /// Set by onDestroy; only touched on the UI thread
+  boolean mDestroyed;
+  volatile boolean mPreviewGrabArmed;
+  int mCameraId = VersionedCamera.DEFAULT_CAMERA;
+  String mStartupBenchmark;
+  boolean mKillOnDestroy = false;
+  Handler mHandler = new Handler();
+  
+  private static final int CAPTURE_QUEUE_SIZE = 4;
+  private static final int CAPTURE_BUFFER_SIZE = 64 * 1024;
+  private static final int CAPTURE_SYNC_BATCH = 4;
+  private static final int BURST_SHOTS = 5;
+  private static final int BEST_OF_SHOTS = 3;
+  private static final long METRICS_REFRESH_MS = 500;
+  private static final int OVERLAY_MAX_FPS = 10;
+  private static final long CAMERA_RELEASE_TIMEOUT_MS = 2000;
+  /// The pre-roll ring is sized for PREROLL_SECONDS at PREROLL_FPS, up to
+  /// the budget: the full window up to about 512x384, 2.4s at 640x480
+  private static final long PREROLL_SECONDS = 3;
+  private static final int PREROLL_FPS = 30;
+  private static final int PREROLL_BUDGET_BYTES = 32 * 1024 * 1024;
+  private static final long TIME_LAPSE_INTERVAL_MS = 10000;
+  private static final int FRAME_LOG_SEGMENT_SIZE = 32 * 1024 * 1024;
+  private static final String THUMBNAIL_DIRECTORY = "thumbnails";
+  private static final int THUMBNAIL_SIZE = 96;
+  private static final int THUMBNAIL_MEMORY_BYTES = 2 * 1024 * 1024;
+  private static final int THUMBNAIL_RECENT = 32;
+  private static final String CAPTURE_INDEX = ".captures.idx";
+  private static final int HISTOGRAM_STRIDE = 4;
+  private static final int MOTION_DECIMATION = 4;
+  private static final int MOTION_TILE_SIZE = 8;
+  private static final long MOTION_COOLDOWN_MS = 3000;
+  private static final String EXTRA_STAND_IN = "stand_in";
+  private static final int STAND_IN_WIDTH = 640;
+  private static final int STAND_IN_HEIGHT = 480;
+  private static final int STAND_IN_FPS = 30;
+  private static final String STARTUP_HISTORY = "startup.history";
+  private static final String EXTRA_STARTUP_BENCHMARK = "startup_bench";
+  private static final String EXTRA_STARTUP_RUNS = "startup_runs";
+  private static final String EXTRA_STARTUP_SINCE = "startup_since";
+  private static final String EXTRA_STARTUP_BUDGET = "startup_budget_ms";
+  private static final int STARTUP_RUNS = 20;
+  private static final long STARTUP_RELAUNCH_DELAY_MS = 1000;
 
   /// Called when the activity is first created
   @Override
   public void onCreate(Bundle savedInstanceState) 
   {
+    final StartupTracer tracer = StartupTracer.get();
+    tracer.start();
+    tracer.begin(StartupTracer.Phase.CREATE);
     super.onCreate(savedInstanceState);
+    FrameMetrics.get().markStart(System.nanoTime());
+    tracer.setHistoryFile(new File(getFilesDir(), STARTUP_HISTORY));
+    mStartupBenchmark = getIntent().getStringExtra(EXTRA_STARTUP_BENCHMARK);
+    tracer.setListener(startupTraced);
     requestWindowFeature(Window.FEATURE_NO_TITLE);
     getWindow().addFlags(WindowManager.LayoutParams.FLAG_FULLSCREEN);
     
+    tracer.begin(StartupTracer.Phase.INFLATE);
     setContentView(R.layout.main);
+    tracer.end(StartupTracer.Phase.INFLATE);
+    
+    useStandIn(getIntent().getStringExtra(EXTRA_STAND_IN));
 
+    tracer.begin(StartupTracer.Phase.PREVIEW_INSTANCE);
     mPreview = VersionedPreview.newInstance(this);
+    tracer.end(StartupTracer.Phase.PREVIEW_INSTANCE);
    
     ((FrameLayout) findViewById(R.id.mPreview)).addView(mPreview); 
 
     mTakePicture = (Button) findViewById(R.id.mTakePicture);
     mTakePicture.setOnClickListener(mTakePictureAction);
+    
+    mBurst = (Button) findViewById(R.id.mButton1);
+    mBurst.setOnClickListener(mBurstAction);
+    
+    mMotionDetector = new MotionDetector(MOTION_TILE_SIZE);
+    mMotionDetector.setCooldownMillis(MOTION_COOLDOWN_MS);
+    mMotionDetector.setListener(motionDetected);
+    mMotionConsumer = LumaDecimator.consumer(MOTION_DECIMATION, mMotionDetector);
+    mMotion = (Button) findViewById(R.id.mButton2);
+    mMotion.setOnClickListener(mMotionAction);
+    
+    mBestOf = (Button) findViewById(R.id.mButton3);
+    mBestOf.setOnClickListener(mBestOfAction);
+    
+    mOverlay = (OverlayRenderer) findViewById(R.id.overlay_renderer);
+    mOverlay.setMaxFps(OVERLAY_MAX_FPS);
+    mOverlay.addElement(new OverlayRenderer.Guides());
+    mOverlay.addElement(new OverlayRenderer.MotionMask(mMotionDetector));
+    mOverlay.addElement(new OverlayRenderer.Stats(METRICS_REFRESH_MS));
+    
+    mHistogram = new LumaHistogram(HISTOGRAM_STRIDE);
+    ((HistogramView) findViewById(R.id.histogram)).setHistogram(mHistogram);
+    VersionedPreview.getFrameDispatcher().addConsumer(mHistogram);
+    
+    mPreRoll = new PreRollBuffer(PREROLL_SECONDS * 1000, PREROLL_FPS, PREROLL_BUDGET_BYTES);
+    VersionedPreview.getFrameDispatcher().addConsumer(mPreRoll);
+    
+    mTimeLapse = new TimeLapseScheduler(timeLapseTarget, TIME_LAPSE_INTERVAL_MS);
+
+    mCaptureWriter = new CaptureWriter(CAPTURE_QUEUE_SIZE, CAPTURE_BUFFER_SIZE,
+      CaptureWriter.SyncPolicy.PER_FILE, CAPTURE_SYNC_BATCH);
+    mCaptureWriter.setListener(captureWritten);
+    mCaptureWriter.start();
+    
+    mThumbnails = new ThumbnailStore(new File(getCacheDir(), THUMBNAIL_DIRECTORY),
+      THUMBNAIL_SIZE, THUMBNAIL_MEMORY_BYTES);
+    ((ThumbnailStripView) findViewById(R.id.thumbnail_strip)).setStore(mThumbnails);
+    mThumbnails.start();
+    openCaptureIndex();
 
+    tracer.end(StartupTracer.Phase.CREATE);
     Log.d(TAG, "onCreate");
   }
   
+  /// Launched with -e stand_in <frame log directory>, or any other value
+  /// for generated frames, the app runs on a SyntheticCamera rather than
+  /// the camera hardware
+  private void useStandIn(String source)
+  {
+    if (source == null)
+    {
+      VersionedCamera.setStandIn(null);
+      return;
+    }
+    
+    SyntheticCamera camera = null;
+    if (new File(source, FrameRecorder.INDEX_NAME).exists())
+    {
+      try {
+        camera = SyntheticCamera.replay(new FrameLogReader(new File(source)), STAND_IN_FPS);
+      } catch (IOException e) {
+        Log.w(TAG, "could not replay " + source, e);
+      } catch (IllegalArgumentException e) {
+        Log.w(TAG, "could not replay " + source, e);
+      }
+    }
+    if (camera == null)
+      camera = SyntheticCamera.generated(STAND_IN_WIDTH, STAND_IN_HEIGHT, STAND_IN_FPS);
+    
+    VersionedCamera.setStandIn(camera);
+    Log.d(TAG, "running on a stand-in camera, " + camera.getWidth() + "x" + camera.getHeight());
+  }
+  
   @Override
   protected void onResume() 
   {
     super.onResume();
     
-    //Grabs default camera, i.e. first rear-facing
-    //mCamera = Camera.open();
-    mCamera = VersionedCamera.newInstance();
-    mPreview.setCamera(mCamera);
+    FrameMetrics.get().markStart(System.nanoTime());
+    
+    //Grabs default camera, i.e. first rear-facing, off the UI thread; the
+    //preview attaches in cameraOpened
+    mCameraOpening = VersionedCamera.openAsync(mCameraId, cameraOpened);
   }
 
   @Override
   protected void onPause() 
   {
     super.onPause();
+    
+    // left before the first frame; not a start worth keeping
+    StartupTracer.get().abandon();
+    
+    // the camera is about to go away
+    stopTimeLapse();
+    stopRecording();
 
+    // an open still in flight releases its camera itself
+    if (mCameraOpening != null)
+      mCameraOpening.cancel(false);
+    mCameraOpening = null;
+    
+    // released on the thread it was opened on, but before we return so
+    // the next activity to resume can open it
     if (mCamera != null)
-    {
-      mCamera.release();
-    }
+      VersionedCamera.releaseAndWait(mCamera, CAMERA_RELEASE_TIMEOUT_MS);
     mPreview.setCamera(null);
     mCamera = null;
   }
   
+  @Override
+  protected void onDestroy() 
+  {
+    super.onDestroy();
+    
+    // the dispatcher outlives the activity
+    VersionedPreview.getFrameDispatcher().removeConsumer(mHistogram);
+    VersionedPreview.getFrameDispatcher().removeConsumer(mMotionConsumer);
+    VersionedPreview.getFrameDispatcher().removeConsumer(mPreRoll);
+    
+    mDestroyed = true;
+    
+    // flushes any captures still queued
+    mCaptureWriter.stop();
+    mThumbnails.stop();
+    closeCaptureIndex();
+    StartupTracer.get().removeListener(startupTraced);
+    
+    // a cold start benchmark needs a new process for the next run
+    if (mKillOnDestroy)
+      Process.killProcess(Process.myPid());
+  }
+  
   @Override
   public boolean onCreateOptionsMenu(Menu menu)
   {
@@ -91,11 +279,54 @@ public class CameraTestActivity extends Activity
     {
       case R.id.switch_cam:
     
-        AlertDialog.Builder builder = new AlertDialog.Builder(this);
-        builder.setMessage(this.getString(R.string.switch_cam))
-          .setNeutralButton("Close", null);
-        AlertDialog alert = builder.create();
-        alert.show();
+        if (!switchCamera())
+        {
+          AlertDialog.Builder builder = new AlertDialog.Builder(this);
+          builder.setMessage(this.getString(R.string.single_camera))
+            .setNeutralButton("Close", null);
+          AlertDialog alert = builder.create();
+          alert.show();
+        }
+        return true;
+        
+      case R.id.time_lapse:
+      
+        if (mTimeLapse.isRunning())
+          stopTimeLapse();
+        else
+          startTimeLapse();
+        return true;
+        
+      case R.id.record_frames:
+      
+        if (mRecorder != null)
+          stopRecording();
+        else
+          startRecording();
+        return true;
+        
+      case R.id.zero_shutter_lag:
+      
+        mZeroShutterLag = !mZeroShutterLag;
+        item.setChecked(mZeroShutterLag);
+        return true;
+        
+      case R.id.java_jpeg:
+      
+        VersionedCamera.setJavaPreviewEncoder(!VersionedCamera.isJavaPreviewEncoder());
+        item.setChecked(VersionedCamera.isJavaPreviewEncoder());
+        Log.d(TAG, "preview frames encoded by "
+          + (VersionedCamera.isJavaPreviewEncoder() ? "JpegEncoder" : "YuvImage"));
+        return true;
+        
+      case R.id.save_preroll:
+      
+        savePreRoll();
+        return true;
+        
+      case R.id.dump_metrics:
+      
+        dumpMetrics();
         return true;
         
       case R.id.change_settings:
@@ -107,14 +338,512 @@ public class CameraTestActivity extends Activity
     }
   }
 
+  /// Attaches the camera once it has been opened on the camera thread
+  private VersionedCamera.OpenCallback cameraOpened = new VersionedCamera.OpenCallback()
+  {
+    @Override
+    public void onCameraOpened(VersionedCamera camera)
+    {
+      if (mCameraOpening == null)
+      {
+        // paused while opening
+        VersionedCamera.releaseAsync(camera);
+        return;
+      }
+      mCameraOpening = null;
+      
+      mCamera = camera;
+      mCameraId = camera.getCameraId();
+      mCamera.setCaptureWriter(mCaptureWriter);
+      mCamera.setCaptureIndex(mCaptureIndex);
+      mCamera.setThumbnailStore(mThumbnails);
+      mCamera.getCaptureState().setListener(shotsTaken);
+      mPreview.setCamera(mCamera);
+    }
+    
+    @Override
+    public void onCameraOpenFailed(RuntimeException e)
+    {
+      mCameraOpening = null;
+      Log.e(TAG, "could not open camera", e);
+    }
+  };
+  
+  /// Moves the preview to the next camera. The view, its surface and the
+  /// overlays stay up throughout; only the camera underneath is replaced.
+  /// Returns false if there is no other camera to switch to.
+  private boolean switchCamera()
+  {
+    if (mCamera == null || mCameraOpening != null)
+      return true;
+    final int count = mCamera.getNumberOfCameras();
+    if (count < 2)
+      return false;
+    
+    FrameMetrics.get().markSwitch(System.nanoTime());
+    final VersionedCamera previous = mCamera;
+    mCamera = null;
+    mPreview.detachCamera();
+    mCameraOpening = VersionedCamera.switchAsync(previous,
+      (previous.getCameraId() + 1) % count, cameraOpened);
+    Log.d(TAG, "switching from camera " + previous.getCameraId());
+    return true;
+  }
+  
+  private void startTimeLapse()
+  {
+    // an unattended session must not let the activity pause and release the camera
+    getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
+    VersionedPreview.getFrameDispatcher().addConsumer(previewGrab);
+    mTimeLapse.start();
+    Log.d(TAG, "time-lapse started");
+  }
+  
+  private void stopTimeLapse()
+  {
+    if (!mTimeLapse.isRunning())
+      return;
+    
+    mTimeLapse.stop();
+    VersionedPreview.getFrameDispatcher().removeConsumer(previewGrab);
+    getWindow().clearFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
+    Log.d(TAG, mTimeLapse.summary());
+  }
+  
+  /// Tags the capture requests of the time-lapse, so only their
+  /// completion is reported to it
+  private static final Object TIME_LAPSE_SHOT = new Object();
+  
+  /// Takes time-lapse shots with the camera that is already open
+  private TimeLapseScheduler.Target timeLapseTarget = new TimeLapseScheduler.Target()
+  {
+    /// Starts the capture on the UI thread, which owns mCamera, and waits
+    /// to learn whether it started; stopping the time-lapse interrupts
+    /// the wait
+    @Override
+    public boolean captureFull()
+    {
+      final FutureTask<Boolean> start = new FutureTask<Boolean>(new Callable<Boolean>()
+      {
+        @Override
+        public Boolean call()
+        {
+          final VersionedCamera camera = mCamera;
+          return camera != null && camera.takePicture(TIME_LAPSE_SHOT);
+        }
+      });
+      mHandler.post(start);
+      try {
+        return start.get();
+      } catch (InterruptedException e) {
+        start.cancel(false);
+        Thread.currentThread().interrupt();
+      } catch (ExecutionException e) {
+        Log.e(TAG, "time-lapse capture failed to start", e.getCause());
+      }
+      return false;
+    }
+    
+    @Override
+    public boolean capturePreview()
+    {
+      final VersionedCamera camera = mCamera;
+      if (camera == null)
+        return false;
+      
+      mPreviewGrabArmed = true;
+      return true;
+    }
+  };
+  
+  /// Saves the next preview frame once armed by the time-lapse. Only the
+  /// copy is made on the dispatcher worker, so the other consumers are not
+  /// held up by the encode and write.
+  private FrameDispatcher.FrameConsumer previewGrab = new FrameDispatcher.FrameConsumer()
+  {
+    @Override
+    public void onFrame(FrameDispatcher.Frame frame)
+    {
+      if (!mPreviewGrabArmed)
+        return;
+      mPreviewGrabArmed = false;
+      
+      final VersionedCamera camera = mCamera;
+      if (camera != null)
+        camera.savePreviewFrameAsync(frame.getData(), frame.getWidth(), frame.getHeight(),
+          previewGrabSaved);
+      else
+        mTimeLapse.onShotComplete(false);
+    }
+  };
+  
+  private Runnable previewGrabSaved = new Runnable()
+  {
+    @Override
+    public void run()
+    {
+      mTimeLapse.onShotComplete(false);
+    }
+  };
+  
+  /// Records raw preview frames to a new frame log on the card
+  private void startRecording()
+  {
+    final File directory = new File(String.format("/sdcard/framelog-%d", System.currentTimeMillis()));
+    try {
+      mRecorder = new FrameRecorder(directory, FRAME_LOG_SEGMENT_SIZE);
+    } catch (IOException e) {
+      Log.e(TAG, "cannot record to " + directory, e);
+      return;
+    }
+    VersionedPreview.getFrameDispatcher().addConsumer(mRecorder);
+    Log.d(TAG, "recording frames to " + directory);
+  }
+  
+  private void stopRecording()
+  {
+    final FrameRecorder recorder = mRecorder;
+    if (recorder == null)
+      return;
+    mRecorder = null;
+    
+    VersionedPreview.getFrameDispatcher().removeConsumer(recorder);
+    // closing syncs to the card, so keep it off the UI thread
+    new Thread("FrameRecorderClose")
+    {
+      @Override
+      public void run()
+      {
+        try {
+          recorder.close();
+          Log.d(TAG, "recorded " + recorder.getFrameCount() + " frames in "
+            + recorder.getSegmentCount() + " segments, " + recorder.getDroppedCount()
+            + " dropped; " + recorder.appendTime.summary());
+        } catch (IOException e) {
+          Log.e(TAG, "frame log " + recorder.getDirectory() + " is incomplete", e);
+        }
+      }
+    }.start();
+  }
+  
+  /// Writes the last few seconds of preview frames next to the captures,
+  /// off the UI thread and without stopping the preview
+  private void savePreRoll()
+  {
+    final PreRollBuffer preRoll = mPreRoll;
+    final File file = new File(String.format("/sdcard/preroll-%d.nv21", System.currentTimeMillis()));
+    new Thread("PreRollSaver")
+    {
+      @Override
+      public void run()
+      {
+        try {
+          final int frames = preRoll.save(file, PREROLL_SECONDS * 1000000000L);
+          Log.d(TAG, "wrote " + frames + " pre-roll frames to " + file
+            + ", window " + preRoll.getWindowMillis() + "ms");
+        } catch (IOException e) {
+          Log.e(TAG, "failed writing pre-roll", e);
+        }
+      }
+    }.start();
+  }
+  
+  /// Opens the index of past captures off the UI thread, rebuilding it if
+  /// need be, and fills the review strip from it
+  private void openCaptureIndex()
+  {
+    final File directory = VersionedCamera.CAPTURE_DIRECTORY;
+    new Thread("CaptureIndexOpen")
+    {
+      @Override
+      public void run()
+      {
+        final CaptureIndex index;
+        try {
+          index = CaptureIndex.open(new File(directory, CAPTURE_INDEX), directory);
+        } catch (IOException e) {
+          Log.e(TAG, "could not open the capture index", e);
+          return;
+        }
+        Log.d(TAG, "capture index has " + index.size() + " captures"
+          + (index.wasRebuilt() ? ", rebuilt" : "")
+          + (index.getDiscardedBytes() > 0 ? ", " + index.getDiscardedBytes() + " bytes discarded" : ""));
+        
+        final List<File> recent = new ArrayList<File>();
+        for (CaptureIndex.Entry e : index.latest(THUMBNAIL_RECENT))
+          recent.add(new File(e.path));
+        mThumbnails.addRecent(recent);
+        
+        mHandler.post(new Runnable()
+        {
+          @Override
+          public void run()
+          {
+            mCaptureIndex = index;
+            // opened too late; nothing will close it after onDestroy
+            if (mDestroyed)
+            {
+              closeCaptureIndex();
+              return;
+            }
+            if (mCamera != null)
+              mCamera.setCaptureIndex(index);
+          }
+        });
+      }
+    }.start();
+  }
+  
+  private void closeCaptureIndex()
+  {
+    final CaptureIndex index = mCaptureIndex;
+    mCaptureIndex = null;
+    if (index != null)
+      try {
+        index.close();
+      } catch (IOException e) {
+        Log.w(TAG, "could not close the capture index", e);
+      }
+  }
+  
+  /// Writes a metrics snapshot next to the captures
+  private void dumpMetrics()
+  {
+    final File file = new File(String.format("/sdcard/metrics-%d.txt", System.currentTimeMillis()));
+    try {
+      FrameMetrics.get().dump(file);
+      Log.d(TAG, "wrote metrics to " + file);
+    } catch (IOException e) {
+      Log.e(TAG, "failed writing metrics", e);
+    }
+  }
+
+  /// Logs each traced start, and drives the startup benchmark
+  private StartupTracer.Listener startupTraced = new StartupTracer.Listener()
+  {
+    @Override
+    public void onTraceFinished(StartupTracer.Trace trace)
+    {
+      Log.d(TAG, "startup " + (trace.cold ? "cold " : "warm ")
+        + (trace.getTotalNanos() / 1000000) + " ms: " + trace);
+      if (mStartupBenchmark == null)
+        return;
+      
+      final long since = trace.wallMillis;
+      mHandler.post(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          continueStartupBenchmark(since);
+        }
+      });
+    }
+  };
+  
+  /// Launched with -e startup_bench cold|warm [--ei startup_runs n]
+  /// [--ei startup_budget_ms ms], the app restarts itself n times, in a
+  /// new process for cold starts or the same one for warm starts, then
+  /// writes percentiles of those starts next to the captures
+  private void continueStartupBenchmark(long traceMillis)
+  {
+    final Intent intent = getIntent();
+    final boolean cold = "cold".equals(mStartupBenchmark);
+    final int runs = intent.getIntExtra(EXTRA_STARTUP_RUNS, STARTUP_RUNS);
+    long since = intent.getLongExtra(EXTRA_STARTUP_SINCE, 0);
+    if (since == 0)
+      since = traceMillis;
+    
+    if (runs > 1)
+    {
+      final Intent next = new Intent(intent);
+      next.putExtra(EXTRA_STARTUP_RUNS, runs - 1);
+      next.putExtra(EXTRA_STARTUP_SINCE, since);
+      if (cold)
+      {
+        final PendingIntent pending = PendingIntent.getActivity(this, 0, next,
+          PendingIntent.FLAG_CANCEL_CURRENT);
+        ((AlarmManager) getSystemService(Context.ALARM_SERVICE)).set(AlarmManager.RTC,
+          System.currentTimeMillis() + STARTUP_RELAUNCH_DELAY_MS, pending);
+        mKillOnDestroy = true;
+        finish();
+      }
+      else
+      {
+        finish();
+        startActivity(next);
+      }
+      return;
+    }
+    
+    final File history = new File(getFilesDir(), STARTUP_HISTORY);
+    final File file = new File(String.format("/sdcard/startup-%s-%d.txt", mStartupBenchmark,
+      System.currentTimeMillis()));
+    try {
+      final List<StartupTracer.Trace> traces = new ArrayList<StartupTracer.Trace>();
+      for (StartupTracer.Trace t : StartupTracer.loadHistory(history))
+        if (t.wallMillis >= since)
+          traces.add(t);
+      
+      final StringBuilder report = new StringBuilder(StartupTracer.report(traces, cold));
+      final int budget = intent.getIntExtra(EXTRA_STARTUP_BUDGET, 0);
+      if (budget > 0)
+      {
+        final long p90 = StartupTracer.totalPercentile(traces, cold, 90) / 1000000;
+        report.append(p90 <= budget ? "within" : "OVER").append(" budget: p90 ")
+          .append(p90).append(" ms, budget ").append(budget).append(" ms\n");
+        if (p90 > budget)
+          Log.w(TAG, "startup p90 " + p90 + " ms is over the " + budget + " ms budget");
+      }
+      Log.i(TAG, report.toString());
+      
+      final FileWriter out = new FileWriter(file);
+      try {
+        out.write(report.toString());
+      } finally {
+        out.close();
+      }
+      Log.d(TAG, "wrote startup report to " + file);
+    } catch (IOException e) {
+      Log.e(TAG, "failed writing startup report", e);
+    }
+  }
+  
+  /// Reports each capture once it has reached the card
+  private CaptureWriter.Listener captureWritten = new CaptureWriter.Listener()
+  {
+    @Override
+    public void onWritten(CaptureWriter.Job job)
+    {
+      FrameMetrics.get().onCaptureWritten(job.getLatencyNanos());
+      Log.d(TAG, "wrote " + job.getFile() + " (" + job.getSize() + " bytes) in "
+        + (job.getLatencyNanos() / 1000000) + " ms, queued "
+        + (job.getQueueNanos() / 1000000) + " ms");
+      mThumbnails.onCaptureWritten(job.getFile());
+      if (!(job.getTag() instanceof VersionedCamera.CaptureTag))
+        return;
+      final VersionedCamera.CaptureTag tag = (VersionedCamera.CaptureTag) job.getTag();
+      tag.onSaved();
+      
+      final CaptureIndex index = mCaptureIndex;
+      if (index != null)
+        try {
+          index.append(tag.entry);
+        } catch (IOException e) {
+          // the capture is still on disk; rebuilding the index would list it
+          Log.w(TAG, "could not index " + job.getFile(), e);
+        }
+    }
+    
+    @Override
+    public void onWriteFailed(CaptureWriter.Job job, IOException e)
+    {
+      Log.e(TAG, "failed writing " + job.getFile(), e);
+    }
+  };
+
+  /// Reports the sustained rate of each completed capture request
+  private CaptureStateMachine.Listener shotsTaken = new CaptureStateMachine.Listener()
+  {
+    @Override
+    public void onShotsComplete(int shots, double shotsPerSecond, Object tag)
+    {
+      Log.d(TAG, "took " + shots + " shots at " + String.format("%.2f", shotsPerSecond) + " shots/s");
+      if (tag == TIME_LAPSE_SHOT)
+        mTimeLapse.onShotComplete(true);
+    }
+  };
+
+  /// Takes a picture when motion starts; called on the analysis thread
+  private MotionDetector.Listener motionDetected = new MotionDetector.Listener()
+  {
+    @Override
+    public void onMotionStarted(final int changedTiles)
+    {
+      mHandler.post(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          Log.d(TAG, "motion in " + changedTiles + " tiles");
+          if (mCamera != null)
+            mCamera.takePicture();
+        }
+      });
+    }
+    
+    @Override
+    public void onMotionStopped()
+    {
+    }
+  };
+
+  /// Handles when mMotion is clicked, toggling motion-triggered capture
+  private OnClickListener mMotionAction = new OnClickListener() 
+  {
+    @Override
+    public void onClick(View v) 
+    { 
+      final FrameDispatcher dispatcher = VersionedPreview.getFrameDispatcher();
+      if (mMotion.isSelected())
+      {
+        dispatcher.removeConsumer(mMotionConsumer);
+        mMotion.setSelected(false);
+        mMotion.setText(R.string.motion_off);
+      }
+      else
+      {
+        mMotionDetector.reset();
+        dispatcher.addConsumer(mMotionConsumer);
+        mMotion.setSelected(true);
+        mMotion.setText(R.string.motion_on);
+      }
+      Log.d(TAG, "onClick motion");
+    }
+  };
+
+  /// Handles when mBestOf is clicked
+  private OnClickListener mBestOfAction = new OnClickListener() 
+  {
+    @Override
+    public void onClick(View v) 
+    { 
+      if (mCamera != null && !mCamera.takeBestOf(BEST_OF_SHOTS))
+        Log.d(TAG, "best of refused; a capture is in flight");
+      Log.d(TAG, "onClick best of");
+    }
+  };
+
+  /// Handles when mBurst is clicked
+  private OnClickListener mBurstAction = new OnClickListener() 
+  {
+    @Override
+    public void onClick(View v) 
+    { 
+      if (mCamera != null)
+        mCamera.takeBurst(BURST_SHOTS);
+      Log.d(TAG, "onClick burst");
+    }
+  };
+
+  /// Takes a picture, from the preview stream in zero shutter lag mode
+  private void shutter()
+  {
+    final VersionedCamera camera = mCamera;
+    if (camera == null)
+      return;
+    
+    if (!mZeroShutterLag || !camera.takeZeroLagPicture(mPreRoll))
+      camera.takePicture();
+  }
+  
   /// Handles when mTakePicture is clicked
   private OnClickListener mTakePictureAction = new OnClickListener() 
   {
     @Override
     public void onClick(View v) 
     { 
-      if (mCamera != null)
-        mCamera.takePicture();
+      shutter();
       Log.d(TAG, "onClick");
     }
   };
@@ -126,8 +855,7 @@ public class CameraTestActivity extends Activity
     {
       case KeyEvent.KEYCODE_CAMERA:
       
-        if (mCamera != null)
-          mCamera.takePicture();
+        shutter();
         return true;
         
       default:
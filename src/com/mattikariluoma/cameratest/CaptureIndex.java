@@ -0,0 +1,416 @@
+package com.mattikariluoma.cameratest;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/// An append-only index of the captures in a directory, so listing past
+/// shots never means scanning the directory.
+///
+/// The file is a 16 byte header (magic "CIDX", version, 0, 0) followed by
+/// one record per capture: int body length, the body (long timestamp ms,
+/// long size in bytes, int camera id, int width, int height, UTF-8 path
+/// as a short length and bytes), and an int CRC32 of the body. Records
+/// are only ever appended. Opening reads every record into memory; a torn
+/// or corrupt tail is cut off at the last good record, and an index that
+/// is missing or unreadable is rebuilt from the jpegs in the directory.
+public class CaptureIndex
+{
+  public static final int MAGIC = 0x43494458; // "CIDX"
+  public static final int VERSION = 1;
+  public static final int HEADER_SIZE = 16;
+  /// Camera id of captures found on disk rather than recorded
+  public static final int UNKNOWN_CAMERA = -1;
+  private static final int MAX_BODY = 4096;
+
+  /// One capture
+  public static class Entry
+  {
+    public final long timestamp;
+    public final String path;
+    public final long size;
+    public final int cameraId;
+    public final int width;
+    public final int height;
+
+    public Entry(long timestamp, String path, long size, int cameraId, int width, int height)
+    {
+      this.timestamp = timestamp;
+      this.path = path;
+      this.size = size;
+      this.cameraId = cameraId;
+      this.width = width;
+      this.height = height;
+    }
+
+    @Override
+    public String toString()
+    {
+      return timestamp + " " + path + " " + size + " bytes, " + width + "x" + height
+        + " camera " + cameraId;
+    }
+  }
+
+  private static final Comparator<Entry> BY_TIME = new Comparator<Entry>()
+  {
+    @Override
+    public int compare(Entry a, Entry b)
+    {
+      return a.timestamp < b.timestamp ? -1 : a.timestamp > b.timestamp ? 1 : 0;
+    }
+  };
+
+  private final File mFile;
+  private final FileChannel mChannel;
+  // sorted by timestamp
+  private final ArrayList<Entry> mEntries;
+  private final CRC32 mCrc = new CRC32();
+  private final boolean mRebuilt;
+  private long mDiscardedBytes;
+
+  private CaptureIndex(File file, FileChannel channel, ArrayList<Entry> entries, boolean rebuilt)
+  {
+    mFile = file;
+    mChannel = channel;
+    mEntries = entries;
+    mRebuilt = rebuilt;
+  }
+
+  /// Opens the index file of the captures in directory, rebuilding it
+  /// from the jpegs there if it is missing or unreadable
+  public static CaptureIndex open(File file, File directory) throws IOException
+  {
+    if (file.exists())
+    {
+      try {
+        return load(file);
+      } catch (IOException e) {
+        // falls through to a rebuild
+      }
+    }
+    return rebuild(file, directory);
+  }
+
+  private static CaptureIndex load(File file) throws IOException
+  {
+    final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    boolean done = false;
+    try {
+      final FileChannel channel = raf.getChannel();
+      final long length = channel.size();
+      final ByteBuffer all = ByteBuffer.allocate((int) length);
+      while (all.hasRemaining() && channel.read(all) >= 0)
+      {
+      }
+      all.flip();
+
+      if (all.remaining() < HEADER_SIZE || all.getInt() != MAGIC || all.getInt() != VERSION)
+        throw new IOException("not a capture index: " + file);
+      all.position(HEADER_SIZE);
+
+      final ArrayList<Entry> entries = new ArrayList<Entry>();
+      final CRC32 crc = new CRC32();
+      long good = HEADER_SIZE;
+      while (all.remaining() >= 4)
+      {
+        final int bodyLength = all.getInt();
+        if (bodyLength <= 0 || bodyLength > MAX_BODY || all.remaining() < bodyLength + 4)
+          break;
+        final int body = all.position();
+        crc.reset();
+        crc.update(all.array(), body, bodyLength);
+        all.position(body + bodyLength);
+        if (all.getInt() != (int) crc.getValue())
+          break;
+
+        all.position(body);
+        final Entry e = readEntry(all);
+        if (e == null)
+          break;
+        all.position(body + bodyLength + 4);
+        entries.add(e);
+        good = all.position();
+      }
+
+      final CaptureIndex index = new CaptureIndex(file, channel, sorted(entries), false);
+      index.mDiscardedBytes = length - good;
+      if (good < length)
+        channel.truncate(good);
+      channel.position(good);
+      done = true;
+      return index;
+    } finally {
+      if (!done)
+        raf.close();
+    }
+  }
+
+  private static Entry readEntry(ByteBuffer b)
+  {
+    final long timestamp = b.getLong();
+    final long size = b.getLong();
+    final int cameraId = b.getInt();
+    final int width = b.getInt();
+    final int height = b.getInt();
+    final int pathLength = b.getShort() & 0xffff;
+    if (pathLength > b.remaining())
+      return null;
+    final byte[] path = new byte[pathLength];
+    b.get(path);
+    try {
+      return new Entry(timestamp, new String(path, "UTF-8"), size, cameraId, width, height);
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static ArrayList<Entry> sorted(ArrayList<Entry> entries)
+  {
+    // appends are in time order unless the clock was set back
+    for (int i = 1; i < entries.size(); i++)
+      if (entries.get(i).timestamp < entries.get(i - 1).timestamp)
+      {
+        Collections.sort(entries, BY_TIME);
+        break;
+      }
+    return entries;
+  }
+
+  /// Writes a new index of the jpegs in directory over file. Captures are
+  /// named after their timestamps, optionally followed by "-" and a
+  /// sequence number; others are dated by modification time.
+  public static CaptureIndex rebuild(File file, File directory) throws IOException
+  {
+    final File[] files = directory.listFiles();
+    final ArrayList<Entry> entries = new ArrayList<Entry>();
+    if (files != null)
+      for (File f : files)
+      {
+        final String name = f.getName();
+        if (!f.isFile() || !name.toLowerCase().endsWith(".jpg"))
+          continue;
+
+        final int[] size = readJpegSize(f);
+        if (size == null)
+          continue;
+        final int dash = name.indexOf('-');
+        long timestamp;
+        try {
+          timestamp = Long.parseLong(name.substring(0, dash > 0 ? dash : name.length() - 4));
+        } catch (NumberFormatException e) {
+          timestamp = f.lastModified();
+        }
+        entries.add(new Entry(timestamp, f.getPath(), f.length(), UNKNOWN_CAMERA, size[0], size[1]));
+      }
+    Collections.sort(entries, BY_TIME);
+
+    // written aside and renamed, so a crash leaves the old index or the new
+    final File tmp = new File(file.getPath() + ".tmp");
+    final RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+    try {
+      out.setLength(0);
+      final CaptureIndex writer = new CaptureIndex(tmp, out.getChannel(), new ArrayList<Entry>(), true);
+      writer.writeHeader();
+      for (Entry e : entries)
+        writer.write(e);
+      out.getChannel().force(false);
+    } finally {
+      out.close();
+    }
+    if (!tmp.renameTo(file))
+      throw new IOException("cannot rename " + tmp + " to " + file);
+
+    final CaptureIndex loaded = load(file);
+    return new CaptureIndex(file, loaded.mChannel, loaded.mEntries, true);
+  }
+
+  private void writeHeader() throws IOException
+  {
+    final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    header.putInt(MAGIC).putInt(VERSION).putInt(0).putInt(0).flip();
+    while (header.hasRemaining())
+      mChannel.write(header);
+  }
+
+  private void write(Entry e) throws IOException
+  {
+    final byte[] path = e.path.getBytes("UTF-8");
+    final int bodyLength = 8 + 8 + 4 + 4 + 4 + 2 + path.length;
+    if (bodyLength > MAX_BODY)
+      throw new IOException("path too long: " + e.path);
+
+    final ByteBuffer record = ByteBuffer.allocate(4 + bodyLength + 4);
+    record.putInt(bodyLength).putLong(e.timestamp).putLong(e.size)
+      .putInt(e.cameraId).putInt(e.width).putInt(e.height)
+      .putShort((short) path.length).put(path);
+    mCrc.reset();
+    mCrc.update(record.array(), 4, bodyLength);
+    record.putInt((int) mCrc.getValue()).flip();
+    while (record.hasRemaining())
+      mChannel.write(record);
+  }
+
+  /// Records a capture that is on disk. Not synced; an append lost in a
+  /// crash is recovered by the next rebuild.
+  public synchronized void append(Entry e) throws IOException
+  {
+    write(e);
+
+    // keep the list sorted; appends are almost always the newest
+    int i = mEntries.size();
+    while (i > 0 && mEntries.get(i - 1).timestamp > e.timestamp)
+      i--;
+    mEntries.add(i, e);
+  }
+
+  public synchronized int size()
+  {
+    return mEntries.size();
+  }
+
+  /// The newest n captures, newest first
+  public synchronized List<Entry> latest(int n)
+  {
+    final int count = Math.min(n, mEntries.size());
+    final List<Entry> out = new ArrayList<Entry>(count);
+    for (int i = mEntries.size() - 1; out.size() < count; i--)
+      out.add(mEntries.get(i));
+    return out;
+  }
+
+  /// Captures taken from fromMillis up to but not including toMillis,
+  /// oldest first
+  public synchronized List<Entry> range(long fromMillis, long toMillis)
+  {
+    final int from = lowerBound(fromMillis);
+    final int to = lowerBound(toMillis);
+    return new ArrayList<Entry>(mEntries.subList(from, Math.max(from, to)));
+  }
+
+  /// Index of the first entry at or after timestamp
+  private int lowerBound(long timestamp)
+  {
+    int low = 0;
+    int high = mEntries.size();
+    while (low < high)
+    {
+      final int mid = (low + high) >>> 1;
+      if (mEntries.get(mid).timestamp < timestamp)
+        low = mid + 1;
+      else
+        high = mid;
+    }
+    return low;
+  }
+
+  /// True if this index was rebuilt from disk when it was opened
+  public boolean wasRebuilt()
+  {
+    return mRebuilt;
+  }
+
+  /// Bytes of torn or corrupt records cut off when the index was opened
+  public long getDiscardedBytes()
+  {
+    return mDiscardedBytes;
+  }
+
+  public File getFile()
+  {
+    return mFile;
+  }
+
+  public synchronized void close() throws IOException
+  {
+    mChannel.close();
+  }
+
+  /// {width, height} from the frame header of a jpeg, or null if there is
+  /// none; reads only up to the frame header
+  public static int[] readJpegSize(byte[] jpeg)
+  {
+    try {
+      return readJpegSize(new ByteArrayInputStream(jpeg));
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  public static int[] readJpegSize(File jpeg)
+  {
+    try {
+      final InputStream in = new BufferedInputStream(new FileInputStream(jpeg), 4096);
+      try {
+        return readJpegSize(in);
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  private static int[] readJpegSize(InputStream stream) throws IOException
+  {
+    final DataInputStream in = new DataInputStream(stream);
+    try {
+      if (in.readUnsignedShort() != 0xffd8)
+        return null;
+      while (true)
+      {
+        int marker = in.readUnsignedByte();
+        if (marker != 0xff)
+          return null;
+        // any number of fill bytes may precede a marker
+        while ((marker = in.readUnsignedByte()) == 0xff)
+        {
+        }
+        if (marker == 0xd9 || marker == 0xda)
+          return null;
+
+        final int length = in.readUnsignedShort();
+        if (length < 2)
+          return null;
+        // SOF0..SOF15, except DHT, JPG and DAC which share the range
+        if (marker >= 0xc0 && marker <= 0xcf && marker != 0xc4 && marker != 0xc8 && marker != 0xcc)
+        {
+          in.readUnsignedByte(); // precision
+          final int height = in.readUnsignedShort();
+          final int width = in.readUnsignedShort();
+          return new int[] { width, height };
+        }
+        skipFully(in, length - 2);
+      }
+    } catch (EOFException e) {
+      return null;
+    }
+  }
+
+  private static void skipFully(InputStream in, long n) throws IOException
+  {
+    while (n > 0)
+    {
+      final long skipped = in.skip(n);
+      if (skipped > 0)
+        n -= skipped;
+      else if (in.read() < 0)
+        throw new EOFException();
+      else
+        n--;
+    }
+  }
+}
@@ -0,0 +1,227 @@
+package com.mattikariluoma.cameratest;
+
+/// Sequences still captures so only one is ever in flight.
+///
+/// A request for one or more shots moves the machine from IDLE through
+/// FOCUSING (optional, once per request), then CAPTURING and
+/// RESTARTING_PREVIEW for every shot, and back to IDLE after the last one.
+/// The next shot of a burst is fired as soon as the preview is running
+/// again, so persisting a shot overlaps with taking the next. Shutter
+/// requests that arrive while busy are coalesced into a single follow-up
+/// request instead of being queued or lost; the follow-up keeps the time
+/// of the first press merged into it. A request may carry a tag, handed
+/// back with each of its shots; tagged requests own their shots, so they
+/// are refused while busy rather than coalesced.
+public class CaptureStateMachine
+{
+  public enum State { IDLE, FOCUSING, CAPTURING, RESTARTING_PREVIEW }
+
+  /// The camera operations the machine drives; called with the machine
+  /// locked, and expected to return without waiting for the hardware
+  public interface Actions
+  {
+    void autoFocus();
+    void capture();
+    void restartPreview();
+  }
+
+  public interface Listener
+  {
+    /// Called once the last shot of a request has been taken, with the
+    /// request's tag
+    void onShotsComplete(int shots, double shotsPerSecond, Object tag);
+  }
+
+  private final Actions mActions;
+  private Listener mListener;
+  private State mState = State.IDLE;
+
+  private int mRemaining;
+  private int mTaken;
+  private Object mTag;
+  private long mShutterNanos;
+  private long mStartNanos;
+  private int mPendingShots;
+  private boolean mPendingFocus;
+  private long mPendingShutterNanos;
+
+  private long mTotalShots;
+  private long mCoalesced;
+  private long mRefused;
+  private long mAborted;
+  private double mLastShotsPerSecond;
+
+  public CaptureStateMachine(Actions actions)
+  {
+    mActions = actions;
+  }
+
+  public synchronized void setListener(Listener l)
+  {
+    mListener = l;
+  }
+
+  public synchronized State getState()
+  {
+    return mState;
+  }
+
+  /// Takes shots back to back, focusing once first if focus is set.
+  /// Returns false if a capture was already running, in which case the
+  /// request is merged into the single pending follow-up request.
+  public synchronized boolean requestShots(int shots, boolean focus)
+  {
+    return requestShots(shots, focus, null);
+  }
+
+  /// requestShots() for a request whose shots are handed back with tag.
+  /// A non-null tag is refused, and false returned, unless IDLE.
+  public synchronized boolean requestShots(int shots, boolean focus, Object tag)
+  {
+    if (shots <= 0)
+      throw new IllegalArgumentException("shots must be positive: " + shots);
+
+    final long now = System.nanoTime();
+    if (mState != State.IDLE)
+    {
+      if (tag != null)
+      {
+        mRefused++;
+        return false;
+      }
+      mCoalesced++;
+      if (mPendingShots == 0)
+        mPendingShutterNanos = now;
+      mPendingShots = Math.max(mPendingShots, shots);
+      mPendingFocus |= focus;
+      return false;
+    }
+
+    begin(shots, focus, tag, now);
+    return true;
+  }
+
+  public synchronized void onFocusComplete(boolean success)
+  {
+    if (mState != State.FOCUSING)
+      return;
+
+    // a failed focus still yields a picture; better than none
+    mState = State.CAPTURING;
+    mActions.capture();
+  }
+
+  /// System.nanoTime() of the press that made the current request, for
+  /// shutter-to-saved latency. Read it before onPictureTaken(), which may
+  /// start the follow-up request.
+  public synchronized long getShutterNanos()
+  {
+    return mShutterNanos;
+  }
+
+  /// The camera has delivered the image of the current shot. Returns the
+  /// tag of the request it belongs to, or null if untagged or unexpected.
+  public synchronized Object onPictureTaken()
+  {
+    if (mState != State.CAPTURING)
+      return null;
+
+    final Object tag = mTag;
+    mState = State.RESTARTING_PREVIEW;
+    mActions.restartPreview();
+
+    mTaken++;
+    mTotalShots++;
+    if (--mRemaining > 0)
+    {
+      mState = State.CAPTURING;
+      mActions.capture();
+      return tag;
+    }
+
+    finish();
+    return tag;
+  }
+
+  /// Gives up on the current request, e.g. after a camera error or release
+  public synchronized void abort()
+  {
+    if (mState != State.IDLE)
+      mAborted++;
+
+    mState = State.IDLE;
+    mRemaining = 0;
+    mTag = null;
+    mPendingShots = 0;
+    mPendingFocus = false;
+  }
+
+  public synchronized long getTotalShots()
+  {
+    return mTotalShots;
+  }
+
+  /// Number of requests merged because a capture was already running
+  public synchronized long getCoalescedCount()
+  {
+    return mCoalesced;
+  }
+
+  /// Number of tagged requests turned away because a capture was running
+  public synchronized long getRefusedCount()
+  {
+    return mRefused;
+  }
+
+  public synchronized long getAbortedCount()
+  {
+    return mAborted;
+  }
+
+  /// Sustained rate of the most recently completed request, including focus
+  public synchronized double getLastShotsPerSecond()
+  {
+    return mLastShotsPerSecond;
+  }
+
+  private void begin(int shots, boolean focus, Object tag, long shutterNanos)
+  {
+    mRemaining = shots;
+    mTaken = 0;
+    mTag = tag;
+    mShutterNanos = shutterNanos;
+    mStartNanos = System.nanoTime();
+
+    if (focus)
+    {
+      mState = State.FOCUSING;
+      mActions.autoFocus();
+    }
+    else
+    {
+      mState = State.CAPTURING;
+      mActions.capture();
+    }
+  }
+
+  private void finish()
+  {
+    final long elapsed = System.nanoTime() - mStartNanos;
+    mLastShotsPerSecond = elapsed > 0 ? mTaken * 1e9 / elapsed : 0;
+    mState = State.IDLE;
+    final Object tag = mTag;
+    mTag = null;
+
+    if (mListener != null)
+      mListener.onShotsComplete(mTaken, mLastShotsPerSecond, tag);
+
+    if (mPendingShots > 0)
+    {
+      final int shots = mPendingShots;
+      final boolean focus = mPendingFocus;
+      mPendingShots = 0;
+      mPendingFocus = false;
+      begin(shots, focus, null, mPendingShutterNanos);
+    }
+  }
+}
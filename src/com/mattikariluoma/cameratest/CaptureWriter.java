@@ -0,0 +1,394 @@
+package com.mattikariluoma.cameratest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/// Persists captured images on a background thread.
+///
+/// Captures are queued with submit(), which blocks once capacity jobs are
+/// waiting so a slow card pushes back on the camera instead of piling up
+/// memory. The writer thread copies each image through one reusable direct
+/// buffer into a FileChannel and then syncs either every file or every
+/// batch of files, depending on the SyncPolicy.
+public class CaptureWriter
+{
+  public enum SyncPolicy
+  {
+    /// fsync and close each file before reporting it written
+    PER_FILE,
+    /// keep files open until batchSize are written or the queue runs dry,
+    /// then fsync them together
+    BATCHED
+  }
+
+  /// Called on the writer thread once a job is durable, or has failed
+  public interface Listener
+  {
+    void onWritten(Job job);
+    void onWriteFailed(Job job, IOException e);
+  }
+
+  /// One image on its way to disk
+  public static class Job
+  {
+    private final byte[] mData;
+    private final File mFile;
+    private final Object mTag;
+    private final long mQueuedNanos;
+    private long mStartedNanos;
+    private long mDoneNanos;
+    private FileOutputStream mStream;
+
+    Job(byte[] data, File file, Object tag)
+    {
+      mData = data;
+      mFile = file;
+      mTag = tag;
+      mQueuedNanos = System.nanoTime();
+    }
+
+    public byte[] getData()
+    {
+      return mData;
+    }
+
+    public File getFile()
+    {
+      return mFile;
+    }
+
+    /// Whatever the submitter attached, e.g. capture metadata
+    public Object getTag()
+    {
+      return mTag;
+    }
+
+    public int getSize()
+    {
+      return mData.length;
+    }
+
+    /// Time spent waiting in the queue
+    public long getQueueNanos()
+    {
+      return mStartedNanos - mQueuedNanos;
+    }
+
+    /// Time from the writer picking the job up until it was durable
+    public long getWriteNanos()
+    {
+      return mDoneNanos - mStartedNanos;
+    }
+
+    /// Time from submit() until the file was durable
+    public long getLatencyNanos()
+    {
+      return mDoneNanos - mQueuedNanos;
+    }
+  }
+
+  private static final Job STOP = new Job(new byte[0], null, null);
+
+  private final ArrayBlockingQueue<Job> mQueue;
+  private final ByteBuffer mBuffer;
+  private final SyncPolicy mPolicy;
+  private final int mBatchSize;
+  private final List<Job> mUnsynced = new ArrayList<Job>();
+  private volatile Listener mListener;
+  private Thread mThread;
+  // submits between their running check and their enqueue, guarded by this
+  private int mSubmitting;
+
+  private final AtomicLong mWritten = new AtomicLong();
+  private final AtomicLong mFailed = new AtomicLong();
+  private final AtomicLong mBytes = new AtomicLong();
+  private final AtomicLong mLatencyTotal = new AtomicLong();
+  private final AtomicLong mLatencyMax = new AtomicLong();
+  private final AtomicLong mStalls = new AtomicLong();
+
+  public CaptureWriter(int capacity, int bufferSize, SyncPolicy policy, int batchSize)
+  {
+    if (capacity <= 0)
+      throw new IllegalArgumentException("capacity must be positive: " + capacity);
+    if (bufferSize <= 0)
+      throw new IllegalArgumentException("bufferSize must be positive: " + bufferSize);
+
+    mQueue = new ArrayBlockingQueue<Job>(capacity);
+    mBuffer = ByteBuffer.allocateDirect(bufferSize);
+    mPolicy = policy;
+    mBatchSize = Math.max(1, batchSize);
+  }
+
+  public void setListener(Listener l)
+  {
+    mListener = l;
+  }
+
+  public synchronized boolean isRunning()
+  {
+    return mThread != null;
+  }
+
+  public synchronized void start()
+  {
+    if (mThread != null)
+      return;
+
+    mThread = new Thread(mWriterLoop, "CaptureWriter");
+    mThread.setPriority(Thread.NORM_PRIORITY - 1);
+    mThread.start();
+  }
+
+  /// Writes out everything already queued, then stops the writer thread.
+  /// Submits racing the stop are either written or refused, never lost.
+  public void stop()
+  {
+    final Thread t;
+    synchronized (this)
+    {
+      t = mThread;
+      mThread = null;
+      // the writer is still draining, so these cannot block for long
+      while (mSubmitting > 0)
+      {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+      }
+    }
+    if (t == null)
+      return;
+
+    try {
+      mQueue.put(STOP);
+      t.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private synchronized boolean beginSubmit()
+  {
+    if (mThread == null)
+      return false;
+    mSubmitting++;
+    return true;
+  }
+
+  private synchronized void endSubmit()
+  {
+    mSubmitting--;
+    notifyAll();
+  }
+
+  /// Queues data to be written to file, blocking while the queue is full.
+  /// Returns null if the writer is stopped; the caller must then write
+  /// the data itself.
+  public Job submit(byte[] data, File file, Object tag) throws InterruptedException
+  {
+    if (!beginSubmit())
+      return null;
+    try {
+      final Job job = new Job(data, file, tag);
+      if (!mQueue.offer(job))
+      {
+        mStalls.incrementAndGet();
+        mQueue.put(job);
+      }
+      return job;
+    } finally {
+      endSubmit();
+    }
+  }
+
+  /// Queues data to be written to file, waiting at most timeoutMillis for
+  /// room. Returns null if the queue stayed full or the writer is stopped.
+  public Job trySubmit(byte[] data, File file, Object tag, long timeoutMillis)
+    throws InterruptedException
+  {
+    if (!beginSubmit())
+      return null;
+    try {
+      final Job job = new Job(data, file, tag);
+      if (mQueue.offer(job))
+        return job;
+
+      mStalls.incrementAndGet();
+      return mQueue.offer(job, timeoutMillis, TimeUnit.MILLISECONDS) ? job : null;
+    } finally {
+      endSubmit();
+    }
+  }
+
+  public int getQueuedCount()
+  {
+    return mQueue.size();
+  }
+
+  public long getWrittenCount()
+  {
+    return mWritten.get();
+  }
+
+  public long getFailedCount()
+  {
+    return mFailed.get();
+  }
+
+  public long getBytesWritten()
+  {
+    return mBytes.get();
+  }
+
+  /// Number of submits that found the queue full and had to wait
+  public long getStallCount()
+  {
+    return mStalls.get();
+  }
+
+  public long getMeanLatencyNanos()
+  {
+    final long n = mWritten.get();
+    return n == 0 ? 0 : mLatencyTotal.get() / n;
+  }
+
+  public long getMaxLatencyNanos()
+  {
+    return mLatencyMax.get();
+  }
+
+  @Override
+  public String toString()
+  {
+    return "CaptureWriter[" + mPolicy + " written=" + mWritten.get()
+      + " failed=" + mFailed.get() + " queued=" + mQueue.size()
+      + " stalls=" + mStalls.get()
+      + " meanMs=" + (getMeanLatencyNanos() / 1000000)
+      + " maxMs=" + (mLatencyMax.get() / 1000000) + "]";
+  }
+
+  private final Runnable mWriterLoop = new Runnable()
+  {
+    @Override
+    public void run()
+    {
+      while (true)
+      {
+        Job job;
+        try {
+          // only block once everything written so far is durable
+          job = mUnsynced.isEmpty() ? mQueue.take() : mQueue.poll();
+        } catch (InterruptedException e) {
+          break;
+        }
+
+        if (job == null)
+        {
+          syncPending();
+          continue;
+        }
+        if (job == STOP)
+          break;
+
+        write(job);
+        if (mPolicy == SyncPolicy.PER_FILE || mUnsynced.size() >= mBatchSize)
+          syncPending();
+      }
+      syncPending();
+    }
+  };
+
+  private void write(Job job)
+  {
+    job.mStartedNanos = System.nanoTime();
+    FileOutputStream out = null;
+    try {
+      out = new FileOutputStream(job.mFile);
+      final FileChannel channel = out.getChannel();
+      final byte[] data = job.mData;
+      final int chunk = mBuffer.capacity();
+      for (int offset = 0; offset < data.length; offset += chunk)
+      {
+        mBuffer.clear();
+        mBuffer.put(data, offset, Math.min(chunk, data.length - offset));
+        mBuffer.flip();
+        while (mBuffer.hasRemaining())
+          channel.write(mBuffer);
+      }
+      job.mStream = out;
+      mUnsynced.add(job);
+    } catch (IOException e) {
+      closeQuietly(out);
+      failed(job, e);
+    }
+  }
+
+  private void syncPending()
+  {
+    for (int i = 0; i < mUnsynced.size(); i++)
+    {
+      final Job job = mUnsynced.get(i);
+      try {
+        job.mStream.getChannel().force(false);
+        job.mStream.close();
+      } catch (IOException e) {
+        closeQuietly(job.mStream);
+        job.mStream = null;
+        failed(job, e);
+        continue;
+      }
+      job.mStream = null;
+      job.mDoneNanos = System.nanoTime();
+      written(job);
+    }
+    mUnsynced.clear();
+  }
+
+  private void written(Job job)
+  {
+    final long latency = job.getLatencyNanos();
+    mWritten.incrementAndGet();
+    mBytes.addAndGet(job.mData.length);
+    mLatencyTotal.addAndGet(latency);
+    long max;
+    while (latency > (max = mLatencyMax.get()) && !mLatencyMax.compareAndSet(max, latency))
+      ;
+
+    final Listener l = mListener;
+    if (l != null)
+      l.onWritten(job);
+  }
+
+  private void failed(Job job, IOException e)
+  {
+    job.mDoneNanos = System.nanoTime();
+    mFailed.incrementAndGet();
+
+    final Listener l = mListener;
+    if (l != null)
+      l.onWriteFailed(job, e);
+    else
+      e.printStackTrace();
+  }
+
+  private static void closeQuietly(FileOutputStream out)
+  {
+    if (out == null)
+      return;
+    try {
+      out.close();
+    } catch (IOException e) {
+    }
+  }
+}
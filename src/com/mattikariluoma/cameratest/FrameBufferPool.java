@@ -0,0 +1,170 @@
+package com.mattikariluoma.cameratest;
+
+/// A fixed ring of preallocated preview frame buffers.
+///
+/// Buffers are handed out with acquire() and must be handed back with
+/// release() once the frame they hold has been consumed. The pool never
+/// allocates after construction; when every buffer is outstanding acquire()
+/// returns null and the miss is counted. Plain Java so it can be exercised
+/// off-device.
+public class FrameBufferPool
+{
+  private final byte[][] mBuffers;
+  private final boolean[] mOutstanding;
+  private final int mBufferSize;
+  private int mFree;
+  private int mNext;
+
+  private long mAcquired;
+  private long mReleased;
+  private long mMisses;
+  private long mForeign;
+
+  public FrameBufferPool(int count, int bufferSize)
+  {
+    if (count <= 0)
+      throw new IllegalArgumentException("count must be positive: " + count);
+    if (bufferSize <= 0)
+      throw new IllegalArgumentException("bufferSize must be positive: " + bufferSize);
+
+    mBuffers = new byte[count][];
+    mOutstanding = new boolean[count];
+    for (int i = 0; i < count; i++)
+      mBuffers[i] = new byte[bufferSize];
+
+    mBufferSize = bufferSize;
+    mFree = count;
+  }
+
+  /// Bytes needed for one NV21 frame of the given size (12 bits per pixel)
+  public static int nv21Size(int width, int height)
+  {
+    return width * height * 3 / 2;
+  }
+
+  public int getBufferSize()
+  {
+    return mBufferSize;
+  }
+
+  public int getCapacity()
+  {
+    return mBuffers.length;
+  }
+
+  /// Takes the next free buffer in ring order, or null if all are outstanding
+  public synchronized byte[] acquire()
+  {
+    if (mFree == 0)
+    {
+      mMisses++;
+      return null;
+    }
+
+    final int count = mBuffers.length;
+    for (int n = 0; n < count; n++)
+    {
+      final int i = (mNext + n) % count;
+      if (!mOutstanding[i])
+      {
+        mOutstanding[i] = true;
+        mNext = (i + 1) % count;
+        mFree--;
+        mAcquired++;
+        return mBuffers[i];
+      }
+    }
+
+    // unreachable while mFree is consistent
+    mMisses++;
+    return null;
+  }
+
+  /// Returns a buffer to the pool. Buffers that did not come from this pool,
+  /// or that were already released, are counted and otherwise ignored.
+  public synchronized boolean release(byte[] buffer)
+  {
+    final int i = indexOf(buffer);
+    if (i < 0 || !mOutstanding[i])
+    {
+      mForeign++;
+      return false;
+    }
+
+    mOutstanding[i] = false;
+    mFree++;
+    mReleased++;
+    return true;
+  }
+
+  /// Marks every buffer free again. Only safe once nothing can hand any
+  /// back, e.g. after the camera they were queued with was released and
+  /// the frames in flight were dropped. Returns the number reclaimed.
+  public synchronized int reclaimAll()
+  {
+    final int reclaimed = mBuffers.length - mFree;
+    for (int i = 0; i < mOutstanding.length; i++)
+      mOutstanding[i] = false;
+    mFree = mBuffers.length;
+    return reclaimed;
+  }
+
+  /// True if the buffer is one of ours, whatever its state
+  public boolean owns(byte[] buffer)
+  {
+    return indexOf(buffer) >= 0;
+  }
+
+  public synchronized int getFreeCount()
+  {
+    return mFree;
+  }
+
+  public synchronized int getOutstandingCount()
+  {
+    return mBuffers.length - mFree;
+  }
+
+  public synchronized long getAcquireCount()
+  {
+    return mAcquired;
+  }
+
+  public synchronized long getReleaseCount()
+  {
+    return mReleased;
+  }
+
+  /// Number of acquire() calls that found the pool empty
+  public synchronized long getMissCount()
+  {
+    return mMisses;
+  }
+
+  /// Number of release() calls with an unknown or already free buffer
+  public synchronized long getForeignReleaseCount()
+  {
+    return mForeign;
+  }
+
+  @Override
+  public synchronized String toString()
+  {
+    return "FrameBufferPool[" + mBuffers.length + "x" + mBufferSize
+      + " free=" + mFree + " acquired=" + mAcquired + " released=" + mReleased
+      + " misses=" + mMisses + " foreign=" + mForeign + "]";
+  }
+
+  private int indexOf(byte[] buffer)
+  {
+    if (buffer == null)
+      return -1;
+
+    // identity match; the pool is small so a linear scan is cheapest
+    for (int i = 0; i < mBuffers.length; i++)
+      if (mBuffers[i] == buffer)
+        return i;
+
+    return -1;
+  }
+}
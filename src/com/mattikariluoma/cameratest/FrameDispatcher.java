@@ -0,0 +1,359 @@
+package com.mattikariluoma.cameratest;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/// Hands preview frames from the camera callback to worker threads.
+///
+/// The camera thread calls dispatch() and returns immediately (or blocks,
+/// under DropPolicy.BLOCK) while the registered consumers run on one of the
+/// worker threads. At most capacity frames wait between the two; when the
+/// queue is full the drop policy decides which frame is given up. Every
+/// frame, processed or dropped, is passed to the FrameReleaser exactly once
+/// so its buffer can go back to the camera.
+///
+/// With more than one worker consumers are called concurrently, for
+/// different frames, and must be thread safe.
+public class FrameDispatcher
+{
+  public enum DropPolicy
+  {
+    /// Discard the oldest waiting frame to make room, favouring latency
+    DROP_OLDEST,
+    /// Discard the incoming frame, favouring frames already queued
+    DROP_NEWEST,
+    /// Stall the camera thread until a worker catches up
+    BLOCK
+  }
+
+  /// Receives frames on a worker thread. The frame and its data are only
+  /// valid for the duration of the call.
+  public interface FrameConsumer
+  {
+    void onFrame(Frame frame);
+  }
+
+  /// Told when a frame buffer is no longer referenced by the dispatcher
+  public interface FrameReleaser
+  {
+    void onFrameReleased(byte[] data);
+  }
+
+  /// A preview frame in flight; holders are reused, never keep a reference
+  public static class Frame
+  {
+    private byte[] mData;
+    private int mWidth;
+    private int mHeight;
+    private long mTimestampNanos;
+    private long mSequence;
+
+    public byte[] getData()
+    {
+      return mData;
+    }
+
+    public int getWidth()
+    {
+      return mWidth;
+    }
+
+    public int getHeight()
+    {
+      return mHeight;
+    }
+
+    /// System.nanoTime() at the moment the camera delivered the frame
+    public long getTimestampNanos()
+    {
+      return mTimestampNanos;
+    }
+
+    public long getSequence()
+    {
+      return mSequence;
+    }
+  }
+
+  private final List<FrameConsumer> mConsumers = new CopyOnWriteArrayList<FrameConsumer>();
+  private final ArrayBlockingQueue<Frame> mQueue;
+  private final ArrayBlockingQueue<Frame> mFreeFrames;
+  private final int mWorkerCount;
+  private final String mName;
+  private volatile DropPolicy mPolicy;
+  private volatile FrameReleaser mReleaser;
+  private volatile boolean mRunning = false;
+  private Thread[] mWorkers;
+  /// Held while dispatch() checks mRunning and queues, so a frame is
+  /// never queued behind stop()
+  private final Object mDispatchLock = new Object();
+  /// Queued once per worker by stop(); a worker taking it exits
+  private static final Frame STOP = new Frame();
+
+  private final AtomicLong mSequence = new AtomicLong();
+  private final AtomicLong mEnqueued = new AtomicLong();
+  private final AtomicLong mProcessed = new AtomicLong();
+  private final AtomicLong mDropped = new AtomicLong();
+  private final AtomicLong mErrors = new AtomicLong();
+
+  public FrameDispatcher(String name, int capacity, int workers, DropPolicy policy)
+  {
+    if (capacity <= 0)
+      throw new IllegalArgumentException("capacity must be positive: " + capacity);
+    if (workers <= 0)
+      throw new IllegalArgumentException("workers must be positive: " + workers);
+
+    mName = name;
+    mQueue = new ArrayBlockingQueue<Frame>(capacity);
+    mWorkerCount = workers;
+    mPolicy = policy;
+
+    // enough holders for a full queue, one per busy worker and the frame
+    // being dispatched, so dispatch() never allocates
+    final int holders = capacity + workers + 1;
+    mFreeFrames = new ArrayBlockingQueue<Frame>(holders);
+    for (int i = 0; i < holders; i++)
+      mFreeFrames.add(new Frame());
+  }
+
+  public void addConsumer(FrameConsumer c)
+  {
+    mConsumers.add(c);
+  }
+
+  public void removeConsumer(FrameConsumer c)
+  {
+    mConsumers.remove(c);
+  }
+
+  public void setReleaser(FrameReleaser r)
+  {
+    mReleaser = r;
+  }
+
+  public void setDropPolicy(DropPolicy p)
+  {
+    mPolicy = p;
+  }
+
+  public DropPolicy getDropPolicy()
+  {
+    return mPolicy;
+  }
+
+  public boolean isRunning()
+  {
+    return mRunning;
+  }
+
+  public synchronized void start()
+  {
+    if (mRunning)
+      return;
+
+    mRunning = true;
+    mWorkers = new Thread[mWorkerCount];
+    for (int i = 0; i < mWorkerCount; i++)
+    {
+      mWorkers[i] = new Thread(mWorkerLoop, mName + "-" + i);
+      mWorkers[i].start();
+    }
+  }
+
+  /// Stops the workers and releases every frame still queued. Returns once
+  /// the workers are done with their frames; a dispatch() under way
+  /// finishes first, and later ones release their frame straight away.
+  public synchronized void stop()
+  {
+    synchronized (mDispatchLock)
+    {
+      if (!mRunning)
+        return;
+      mRunning = false;
+    }
+
+    // workers are not interrupted: an interrupt would land in whatever a
+    // consumer is doing, and close any channel it is writing to
+    Frame f;
+    while ((f = mQueue.poll()) != null)
+      drop(f);
+    // the waits are uninterruptible, so no STOP is left for the next
+    // start()'s workers to take
+    boolean interrupted = false;
+    int stops = 0;
+    while (stops < mWorkers.length)
+    {
+      try {
+        mQueue.put(STOP);
+        stops++;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    for (Thread t : mWorkers)
+    {
+      while (t.isAlive())
+      {
+        try {
+          t.join();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    }
+    mWorkers = null;
+    if (interrupted)
+      Thread.currentThread().interrupt();
+  }
+
+  /// Queues a frame for the workers. Returns false if this frame was dropped;
+  /// either way data is handed to the releaser once it is no longer needed.
+  public boolean dispatch(byte[] data, int width, int height, long timestampNanos)
+  {
+    synchronized (mDispatchLock)
+    {
+      return enqueue(data, width, height, timestampNanos);
+    }
+  }
+
+  private boolean enqueue(byte[] data, int width, int height, long timestampNanos)
+  {
+    Frame frame = mRunning ? mFreeFrames.poll() : null;
+    if (frame == null)
+    {
+      mDropped.incrementAndGet();
+      release(data);
+      return false;
+    }
+
+    frame.mData = data;
+    frame.mWidth = width;
+    frame.mHeight = height;
+    frame.mTimestampNanos = timestampNanos;
+    frame.mSequence = mSequence.getAndIncrement();
+
+    switch (mPolicy)
+    {
+      case DROP_NEWEST:
+        if (!mQueue.offer(frame))
+        {
+          drop(frame);
+          return false;
+        }
+        break;
+
+      case BLOCK:
+        try {
+          mQueue.put(frame);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          drop(frame);
+          return false;
+        }
+        break;
+
+      case DROP_OLDEST:
+      default:
+        while (!mQueue.offer(frame))
+        {
+          Frame oldest = mQueue.poll();
+          if (oldest != null)
+            drop(oldest);
+        }
+        break;
+    }
+
+    mEnqueued.incrementAndGet();
+    return true;
+  }
+
+  public long getEnqueuedCount()
+  {
+    return mEnqueued.get();
+  }
+
+  public long getProcessedCount()
+  {
+    return mProcessed.get();
+  }
+
+  public long getDroppedCount()
+  {
+    return mDropped.get();
+  }
+
+  /// Number of consumer calls that threw
+  public long getErrorCount()
+  {
+    return mErrors.get();
+  }
+
+  public int getQueuedCount()
+  {
+    return mQueue.size();
+  }
+
+  @Override
+  public String toString()
+  {
+    return mName + "[" + mPolicy + " enqueued=" + mEnqueued.get()
+      + " processed=" + mProcessed.get() + " dropped=" + mDropped.get()
+      + " queued=" + mQueue.size() + "]";
+  }
+
+  private final Runnable mWorkerLoop = new Runnable()
+  {
+    @Override
+    public void run()
+    {
+      while (true)
+      {
+        Frame frame;
+        try {
+          frame = mQueue.take();
+        } catch (InterruptedException e) {
+          // only stop() ends a worker, or its STOP would never be taken
+          continue;
+        }
+        if (frame == STOP)
+          break;
+
+        for (FrameConsumer c : mConsumers)
+        {
+          try {
+            c.onFrame(frame);
+          } catch (RuntimeException e) {
+            mErrors.incrementAndGet();
+            e.printStackTrace();
+          }
+        }
+
+        mProcessed.incrementAndGet();
+        recycle(frame);
+      }
+    }
+  };
+
+  private void drop(Frame frame)
+  {
+    mDropped.incrementAndGet();
+    recycle(frame);
+  }
+
+  private void recycle(Frame frame)
+  {
+    final byte[] data = frame.mData;
+    frame.mData = null;
+    mFreeFrames.offer(frame);
+    release(data);
+  }
+
+  private void release(byte[] data)
+  {
+    final FrameReleaser r = mReleaser;
+    if (r != null && data != null)
+      r.onFrameReleased(data);
+  }
+}
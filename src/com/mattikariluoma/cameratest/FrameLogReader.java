@@ -0,0 +1,176 @@
+package com.mattikariluoma.cameratest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/// Reads a log written by FrameRecorder.
+///
+/// The index and the segments are memory mapped read-only, so opening a
+/// log reads only the index header and a frame costs one copy out of the
+/// page cache; nothing is loaded that is not asked for. Frames are
+/// numbered in recording order, and seek() finds a frame by timestamp
+/// with a binary search over the index.
+public class FrameLogReader
+{
+  /// Receives replayed frames; data is reused after the call returns
+  public interface Listener
+  {
+    void onFrame(byte[] data, int width, int height, long timestampNanos, int index);
+  }
+
+  private final File mDirectory;
+  private final ByteBuffer mIndex;
+  private final int mCount;
+  private final ByteBuffer[] mSegments;
+
+  public FrameLogReader(File directory) throws IOException
+  {
+    mDirectory = directory;
+
+    final RandomAccessFile index = new RandomAccessFile(new File(directory, FrameRecorder.INDEX_NAME), "r");
+    try {
+      final FileChannel channel = index.getChannel();
+      mIndex = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } finally {
+      index.close();
+    }
+    mIndex.order(ByteOrder.BIG_ENDIAN);
+
+    if (mIndex.capacity() < FrameRecorder.HEADER_SIZE
+        || mIndex.getInt(0) != FrameRecorder.MAGIC
+        || mIndex.getInt(4) != FrameRecorder.VERSION
+        || mIndex.getInt(8) != FrameRecorder.RECORD_SIZE)
+      throw new IOException("not a frame log index: " + directory);
+
+    // a torn last record is ignored
+    mCount = (mIndex.capacity() - FrameRecorder.HEADER_SIZE) / FrameRecorder.RECORD_SIZE;
+    mSegments = new ByteBuffer[mCount == 0 ? 0 : getSegment(mCount - 1) + 1];
+  }
+
+  public File getDirectory()
+  {
+    return mDirectory;
+  }
+
+  public int getFrameCount()
+  {
+    return mCount;
+  }
+
+  private int record(int index)
+  {
+    if (index < 0 || index >= mCount)
+      throw new IndexOutOfBoundsException("frame " + index + " of " + mCount);
+    return FrameRecorder.HEADER_SIZE + index * FrameRecorder.RECORD_SIZE;
+  }
+
+  public long getTimestampNanos(int index)
+  {
+    return mIndex.getLong(record(index));
+  }
+
+  public int getSegment(int index)
+  {
+    return mIndex.getInt(record(index) + 8);
+  }
+
+  public int getOffset(int index)
+  {
+    return mIndex.getInt(record(index) + 12);
+  }
+
+  public int getLength(int index)
+  {
+    return mIndex.getInt(record(index) + 16);
+  }
+
+  public int getWidth(int index)
+  {
+    return mIndex.getInt(record(index) + 20);
+  }
+
+  public int getHeight(int index)
+  {
+    return mIndex.getInt(record(index) + 24);
+  }
+
+  /// Index of the first frame at or after timestampNanos, or
+  /// getFrameCount() if there is none
+  public int seek(long timestampNanos)
+  {
+    int low = 0;
+    int high = mCount;
+    while (low < high)
+    {
+      final int mid = (low + high) >>> 1;
+      if (getTimestampNanos(mid) < timestampNanos)
+        low = mid + 1;
+      else
+        high = mid;
+    }
+    return low;
+  }
+
+  /// Copies frame index into out, which must hold getLength(index) bytes
+  public synchronized void read(int index, byte[] out) throws IOException
+  {
+    final int length = getLength(index);
+    if (out.length < length)
+      throw new IllegalArgumentException("buffer too small for frame " + index + ": " + out.length);
+
+    final ByteBuffer segment = segment(getSegment(index)).duplicate();
+    final int offset = getOffset(index);
+    if (offset + length > segment.capacity())
+      throw new IOException("frame " + index + " runs past the end of its segment");
+    segment.position(offset);
+    segment.get(out, 0, length);
+  }
+
+  private ByteBuffer segment(int n) throws IOException
+  {
+    if (mSegments[n] == null)
+    {
+      final RandomAccessFile file = new RandomAccessFile(FrameRecorder.segmentFile(mDirectory, n), "r");
+      try {
+        final FileChannel channel = file.getChannel();
+        mSegments[n] = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      } finally {
+        file.close();
+      }
+    }
+    return mSegments[n];
+  }
+
+  /// Hands frames from..to (exclusive) to listener in order, through one
+  /// reused buffer. With realtime set, frames are paced by their recorded
+  /// timestamps. Returns the number of frames replayed.
+  public int replay(int from, int to, boolean realtime, Listener listener)
+    throws IOException, InterruptedException
+  {
+    byte[] buffer = new byte[0];
+    final long startNanos = System.nanoTime();
+    final long firstTimestamp = from < to ? getTimestampNanos(from) : 0;
+    int replayed = 0;
+
+    for (int i = from; i < to; i++)
+    {
+      if (getLength(i) > buffer.length)
+        buffer = new byte[getLength(i)];
+      read(i, buffer);
+
+      if (realtime)
+      {
+        final long wait = (getTimestampNanos(i) - firstTimestamp) - (System.nanoTime() - startNanos);
+        if (wait > 0)
+          Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+      }
+      listener.onFrame(buffer, getWidth(i), getHeight(i), getTimestampNanos(i), i);
+      replayed++;
+    }
+    return replayed;
+  }
+}
@@ -0,0 +1,213 @@
+package com.mattikariluoma.cameratest;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/// Process-wide counters and histograms for the preview and capture paths.
+///
+/// Recording is lock-free and allocation-free so it can sit on the
+/// per-frame hot path; formatting only happens when someone reads a
+/// summary for the overlay or dumps a snapshot.
+public class FrameMetrics
+{
+  private static final FrameMetrics sInstance = new FrameMetrics();
+
+  /// Time between consecutive preview callbacks, in microseconds
+  public final Histogram frameInterval = new Histogram("frame interval", "us",
+    Histogram.exponentialBounds(1000, 1024000));
+  /// Time spent inside the preview callback, in microseconds
+  public final Histogram callbackDuration = new Histogram("callback", "us",
+    Histogram.exponentialBounds(16, 65536));
+  /// Time from handing a capture to the writer until it is durable, in ms
+  public final Histogram captureLatency = new Histogram("capture to disk", "ms",
+    Histogram.exponentialBounds(1, 16384));
+  /// Time taken to open the camera, in ms
+  public final Histogram cameraOpen = new Histogram("camera open", "ms",
+    Histogram.exponentialBounds(1, 8192));
+  /// Time from asking for another camera to its first preview frame, in ms
+  public final Histogram cameraSwitch = new Histogram("camera switch", "ms",
+    Histogram.exponentialBounds(1, 8192));
+  /// Time from a shutter press to its capture being on disk, in ms
+  public final Histogram shutterToSaved = new Histogram("shutter to saved", "ms",
+    Histogram.exponentialBounds(1, 16384));
+  /// The same for zero shutter lag captures taken from the preview, in ms
+  public final Histogram zeroLagShutterToSaved = new Histogram("zsl shutter to saved", "ms",
+    Histogram.exponentialBounds(1, 16384));
+  /// Time to compress a preview frame with YuvImage, in ms
+  public final Histogram platformJpeg = new Histogram("jpeg yuvimage", "ms",
+    Histogram.exponentialBounds(1, 8192));
+  /// Time to compress a preview frame with JpegEncoder, in ms
+  public final Histogram javaJpeg = new Histogram("jpeg java", "ms",
+    Histogram.exponentialBounds(1, 8192));
+
+  private final AtomicLong mFrames = new AtomicLong();
+  private final AtomicLong mStartMark = new AtomicLong();
+  private volatile long mFirstFrameNanos = -1;
+  private final AtomicLong mSwitchMark = new AtomicLong();
+  private volatile long mLastSwitchNanos = -1;
+  private final AtomicLong mLastFrameNanos = new AtomicLong();
+  private final long mCreatedMillis = System.currentTimeMillis();
+  private volatile FrameDispatcher mDispatcher;
+
+  public static FrameMetrics get()
+  {
+    return sInstance;
+  }
+
+  /// Dropped frames are read from the dispatcher that counts them
+  public void watch(FrameDispatcher dispatcher)
+  {
+    mDispatcher = dispatcher;
+  }
+
+  /// Records one preview callback that started at startNanos and ended at
+  /// endNanos (both System.nanoTime())
+  public void onPreviewFrame(long startNanos, long endNanos)
+  {
+    mFrames.incrementAndGet();
+    final long mark = mStartMark.get();
+    if (mark != 0 && mStartMark.compareAndSet(mark, 0))
+      mFirstFrameNanos = startNanos - mark;
+    final long switchMark = mSwitchMark.get();
+    if (switchMark != 0 && mSwitchMark.compareAndSet(switchMark, 0))
+    {
+      mLastSwitchNanos = startNanos - switchMark;
+      cameraSwitch.record(mLastSwitchNanos / 1000000);
+    }
+    final long last = mLastFrameNanos.getAndSet(startNanos);
+    if (last != 0)
+      frameInterval.record((startNanos - last) / 1000);
+    callbackDuration.record((endNanos - startNanos) / 1000);
+  }
+
+  /// Forgets the previous frame time, so a pause is not read as a slow frame
+  public void onPreviewStopped()
+  {
+    mLastFrameNanos.set(0);
+  }
+
+  /// Starts timing until the next preview frame, unless a start is already
+  /// being timed
+  public void markStart(long nanos)
+  {
+    mStartMark.compareAndSet(0, nanos);
+  }
+
+  /// Time from the last markStart() to the frame that followed it, in
+  /// nanoseconds, or -1 if none has been measured
+  public long getTimeToFirstFrameNanos()
+  {
+    return mFirstFrameNanos;
+  }
+
+  /// Starts timing a camera switch, which ends with the next preview frame
+  public void markSwitch(long nanos)
+  {
+    mSwitchMark.set(nanos);
+  }
+
+  /// Duration of the last camera switch in nanoseconds, or -1 if none
+  public long getLastSwitchNanos()
+  {
+    return mLastSwitchNanos;
+  }
+
+  public void onCameraOpened(long nanos)
+  {
+    cameraOpen.record(nanos / 1000000);
+  }
+
+  public void onCaptureWritten(long latencyNanos)
+  {
+    captureLatency.record(latencyNanos / 1000000);
+  }
+
+  public void onCaptureSaved(long shutterToSavedNanos, boolean zeroLag)
+  {
+    (zeroLag ? zeroLagShutterToSaved : shutterToSaved).record(shutterToSavedNanos / 1000000);
+  }
+
+  public void onPlatformJpeg(long nanos)
+  {
+    platformJpeg.record(nanos / 1000000);
+  }
+
+  public void onJavaJpeg(long nanos)
+  {
+    javaJpeg.record(nanos / 1000000);
+  }
+
+  public long getFrameCount()
+  {
+    return mFrames.get();
+  }
+
+  public long getDroppedFrameCount()
+  {
+    final FrameDispatcher d = mDispatcher;
+    return d == null ? 0 : d.getDroppedCount();
+  }
+
+  /// A few short lines for the on-screen overlay
+  public String summary()
+  {
+    final long interval = frameInterval.getMean();
+    final StringBuilder out = new StringBuilder(224);
+    out.append("fps ").append(interval == 0 ? 0 : 1000000 / interval)
+      .append("  frames ").append(mFrames.get())
+      .append("  dropped ").append(getDroppedFrameCount()).append('\n');
+    out.append("interval p50/p99 ").append(frameInterval.getPercentile(50) / 1000)
+      .append('/').append(frameInterval.getPercentile(99) / 1000).append(" ms")
+      .append("  callback p99 ").append(callbackDuration.getPercentile(99)).append(" us\n");
+    out.append("first frame ").append(mFirstFrameNanos / 1000000).append(" ms")
+      .append("  open ").append(cameraOpen.getMax()).append(" ms")
+      .append("  switch ").append(mLastSwitchNanos / 1000000).append(" ms\n");
+    out.append("capture p50/max ").append(captureLatency.getPercentile(50))
+      .append('/').append(captureLatency.getMax()).append(" ms")
+      .append("  shutter p50 std/zsl ").append(shutterToSaved.getPercentile(50))
+      .append('/').append(zeroLagShutterToSaved.getPercentile(50)).append(" ms\n");
+    out.append("jpeg p50 yuv/java ").append(platformJpeg.getPercentile(50))
+      .append('/').append(javaJpeg.getPercentile(50)).append(" ms");
+    return out.toString();
+  }
+
+  /// Everything, with full bucket listings
+  public String snapshot()
+  {
+    final StringBuilder out = new StringBuilder(1024);
+    out.append("# metrics at ").append(System.currentTimeMillis())
+      .append(", since ").append(mCreatedMillis).append('\n');
+    out.append("frames ").append(mFrames.get()).append('\n');
+    out.append("dropped ").append(getDroppedFrameCount()).append('\n');
+    out.append("first frame ns ").append(mFirstFrameNanos).append('\n');
+    final StartupTracer.Trace startup = StartupTracer.get().getLastTrace();
+    if (startup != null)
+      out.append("startup ").append(startup.toLine()).append('\n');
+    final FrameDispatcher d = mDispatcher;
+    if (d != null)
+      out.append(d).append('\n');
+    frameInterval.appendBuckets(out);
+    callbackDuration.appendBuckets(out);
+    captureLatency.appendBuckets(out);
+    cameraOpen.appendBuckets(out);
+    cameraSwitch.appendBuckets(out);
+    shutterToSaved.appendBuckets(out);
+    zeroLagShutterToSaved.appendBuckets(out);
+    platformJpeg.appendBuckets(out);
+    javaJpeg.appendBuckets(out);
+    return out.toString();
+  }
+
+  /// Writes snapshot() to file
+  public void dump(File file) throws IOException
+  {
+    final FileWriter out = new FileWriter(file);
+    try {
+      out.write(snapshot());
+    } finally {
+      out.close();
+    }
+  }
+}
@@ -0,0 +1,223 @@
+package com.mattikariluoma.cameratest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/// Records raw preview frames into an append-only log of memory-mapped
+/// segment files, with an index for random access.
+///
+/// A log is a directory. Frames are copied back to back into the current
+/// segment, segment-NNNNN.nv21, which is mapped at its full size limit up
+/// front so appending is a memcpy with no system call; when the next frame
+/// does not fit, the segment is trimmed to what was used and a new one is
+/// started. Each frame also gets a fixed size record in frames.idx, so a
+/// FrameLogReader can find any frame without reading the segments.
+///
+/// frames.idx is a 16 byte header (magic "FLOG", version, record size,
+/// 0) followed by RECORD_SIZE byte big-endian records of (long timestamp
+/// ns, int segment, int offset, int length, int width, int height, int 0).
+/// Records are written in batches; at most INDEX_BATCH frames are lost
+/// from the index if recording stops without close().
+///
+/// The first write that fails ends the recording: later frames are not
+/// appended, getFailure() returns the error and close() throws it, so a
+/// log with a hole in it is never passed off as complete.
+public class FrameRecorder implements FrameDispatcher.FrameConsumer
+{
+  public static final int MAGIC = 0x464c4f47; // "FLOG"
+  public static final int VERSION = 1;
+  public static final int HEADER_SIZE = 16;
+  public static final int RECORD_SIZE = 32;
+  public static final String INDEX_NAME = "frames.idx";
+  private static final int INDEX_BATCH = 64;
+
+  /// Time to append one frame, in microseconds
+  public final Histogram appendTime = new Histogram("record append", "us",
+    Histogram.exponentialBounds(16, 65536));
+
+  private final File mDirectory;
+  private final int mSegmentSize;
+  // written through the file rather than its channel, which an interrupt
+  // of the recording thread would close for good
+  private final RandomAccessFile mIndex;
+  private final ByteBuffer mIndexBatch;
+
+  private int mSegmentNumber = -1;
+  private RandomAccessFile mSegmentFile;
+  private MappedByteBuffer mSegment;
+  private boolean mClosed = false;
+  private IOException mFailure;
+
+  private long mFrames;
+  private long mBytes;
+  private long mDropped;
+
+  /// Starts a new log in directory, which must not hold one already;
+  /// segments roll over at segmentSize bytes
+  public FrameRecorder(File directory, int segmentSize) throws IOException
+  {
+    if (segmentSize <= 0)
+      throw new IllegalArgumentException("segment size must be positive: " + segmentSize);
+    if (!directory.isDirectory() && !directory.mkdirs())
+      throw new IOException("cannot create " + directory);
+
+    final File index = new File(directory, INDEX_NAME);
+    if (index.exists())
+      throw new IOException(index + " already exists");
+
+    mDirectory = directory;
+    mSegmentSize = segmentSize;
+    mIndex = new RandomAccessFile(index, "rw");
+    mIndexBatch = ByteBuffer.allocate(RECORD_SIZE * INDEX_BATCH);
+    mIndexBatch.order(ByteOrder.BIG_ENDIAN);
+
+    final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    header.putInt(MAGIC).putInt(VERSION).putInt(RECORD_SIZE).putInt(0);
+    mIndex.write(header.array());
+  }
+
+  public static File segmentFile(File directory, int segment)
+  {
+    return new File(directory, String.format("segment-%05d.nv21", segment));
+  }
+
+  @Override
+  public void onFrame(FrameDispatcher.Frame frame)
+  {
+    try {
+      append(frame.getData(), frame.getWidth(), frame.getHeight(), frame.getTimestampNanos());
+    } catch (IOException e) {
+      // a failing card should not take the preview down with it; the
+      // failure is kept for getFailure() and close()
+    }
+  }
+
+  /// Appends one NV21 frame; only one thread may append
+  public synchronized void append(byte[] nv21, int width, int height, long timestampNanos) throws IOException
+  {
+    if (mClosed)
+      throw new IOException("recorder closed");
+    if (mFailure != null)
+      throw new IOException("recording failed", mFailure);
+
+    final long start = System.nanoTime();
+    final int length = FrameBufferPool.nv21Size(width, height);
+    if (length > mSegmentSize)
+    {
+      mDropped++;
+      return;
+    }
+    try {
+      if (mSegment == null || mSegment.remaining() < length)
+        nextSegment();
+
+      final int offset = mSegment.position();
+      mSegment.put(nv21, 0, length);
+
+      mIndexBatch.putLong(timestampNanos).putInt(mSegmentNumber).putInt(offset)
+        .putInt(length).putInt(width).putInt(height).putInt(0);
+      if (!mIndexBatch.hasRemaining())
+        flushIndex();
+    } catch (IOException e) {
+      mFailure = e;
+      throw e;
+    }
+
+    mFrames++;
+    mBytes += length;
+    appendTime.record((System.nanoTime() - start) / 1000);
+  }
+
+  private void nextSegment() throws IOException
+  {
+    closeSegment();
+    mSegmentNumber++;
+    mSegmentFile = new RandomAccessFile(segmentFile(mDirectory, mSegmentNumber), "rw");
+    try {
+      mSegment = mSegmentFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mSegmentSize);
+    } catch (IOException e) {
+      mSegmentFile.close();
+      mSegmentFile = null;
+      throw e;
+    }
+  }
+
+  private void closeSegment() throws IOException
+  {
+    if (mSegment == null)
+      return;
+
+    final int used = mSegment.position();
+    mSegment.force();
+    mSegment = null;
+    try {
+      // nothing touches the mapping past used again, so it can be trimmed
+      mSegmentFile.getChannel().truncate(used);
+    } finally {
+      mSegmentFile.close();
+      mSegmentFile = null;
+    }
+  }
+
+  private void flushIndex() throws IOException
+  {
+    mIndex.write(mIndexBatch.array(), 0, mIndexBatch.position());
+    mIndexBatch.clear();
+  }
+
+  /// Writes out the rest of the index and trims the last segment. Throws
+  /// the failure that ended the recording early, if any, once the frames
+  /// before it are saved.
+  public synchronized void close() throws IOException
+  {
+    if (mClosed)
+      return;
+    mClosed = true;
+
+    try {
+      flushIndex();
+      mIndex.getFD().sync();
+      closeSegment();
+    } finally {
+      mIndex.close();
+    }
+    if (mFailure != null)
+      throw new IOException("recording failed after " + mFrames + " frames", mFailure);
+  }
+
+  /// What ended the recording early, or null
+  public synchronized IOException getFailure()
+  {
+    return mFailure;
+  }
+
+  public synchronized long getFrameCount()
+  {
+    return mFrames;
+  }
+
+  public synchronized long getByteCount()
+  {
+    return mBytes;
+  }
+
+  public synchronized long getDroppedCount()
+  {
+    return mDropped;
+  }
+
+  public synchronized int getSegmentCount()
+  {
+    return mSegmentNumber + 1;
+  }
+
+  public File getDirectory()
+  {
+    return mDirectory;
+  }
+}
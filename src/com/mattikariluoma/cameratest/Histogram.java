@@ -0,0 +1,152 @@
+package com.mattikariluoma.cameratest;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/// A lock-free histogram over fixed bucket bounds.
+///
+/// record() is a binary search and two atomic adds, cheap enough for a
+/// per-frame hot path. Readers see a consistent-enough view without
+/// stopping writers; percentiles are resolved to a bucket upper bound.
+public class Histogram
+{
+  private final String mName;
+  private final String mUnit;
+  private final long[] mBounds;
+  private final AtomicLongArray mCounts;
+  private final AtomicLong mCount = new AtomicLong();
+  private final AtomicLong mSum = new AtomicLong();
+  private final AtomicLong mMax = new AtomicLong();
+
+  /// bounds are inclusive bucket upper bounds in ascending order; values
+  /// above the last bound fall into an overflow bucket
+  public Histogram(String name, String unit, long[] bounds)
+  {
+    for (int i = 1; i < bounds.length; i++)
+      if (bounds[i] <= bounds[i - 1])
+        throw new IllegalArgumentException("bounds must ascend");
+
+    mName = name;
+    mUnit = unit;
+    mBounds = bounds.clone();
+    mCounts = new AtomicLongArray(bounds.length + 1);
+  }
+
+  /// Bounds first, first * 2, ... up to and including last
+  public static long[] exponentialBounds(long first, long last)
+  {
+    int n = 0;
+    for (long b = first; b <= last; b *= 2)
+      n++;
+
+    final long[] bounds = new long[n];
+    long b = first;
+    for (int i = 0; i < n; i++, b *= 2)
+      bounds[i] = b;
+    return bounds;
+  }
+
+  public void record(long value)
+  {
+    mCounts.incrementAndGet(bucketOf(value));
+    mCount.incrementAndGet();
+    mSum.addAndGet(value);
+
+    long max;
+    while (value > (max = mMax.get()) && !mMax.compareAndSet(max, value))
+      ;
+  }
+
+  public String getName()
+  {
+    return mName;
+  }
+
+  public long getCount()
+  {
+    return mCount.get();
+  }
+
+  public long getMax()
+  {
+    return mMax.get();
+  }
+
+  public long getMean()
+  {
+    final long n = mCount.get();
+    return n == 0 ? 0 : mSum.get() / n;
+  }
+
+  /// Upper bound of the bucket holding the given percentile (0-100), or
+  /// the maximum seen if it lies in the overflow bucket
+  public long getPercentile(double percentile)
+  {
+    final int buckets = mCounts.length();
+    long total = 0;
+    for (int i = 0; i < buckets; i++)
+      total += mCounts.get(i);
+    if (total == 0)
+      return 0;
+
+    final long rank = (long) Math.ceil(total * percentile / 100.0);
+    long seen = 0;
+    for (int i = 0; i < buckets; i++)
+    {
+      seen += mCounts.get(i);
+      if (seen >= rank && seen > 0)
+        return i < mBounds.length ? mBounds[i] : mMax.get();
+    }
+    return mMax.get();
+  }
+
+  public void reset()
+  {
+    for (int i = 0; i < mCounts.length(); i++)
+      mCounts.set(i, 0);
+    mCount.set(0);
+    mSum.set(0);
+    mMax.set(0);
+  }
+
+  /// One line summary, e.g. "interval n=120 mean=33 p50=32 p99=64 max=70 ms"
+  public String summary()
+  {
+    return mName + " n=" + mCount.get() + " mean=" + getMean()
+      + " p50=" + getPercentile(50) + " p90=" + getPercentile(90)
+      + " p99=" + getPercentile(99) + " max=" + mMax.get() + " " + mUnit;
+  }
+
+  /// Full bucket listing, one "<=bound count" line per non-empty bucket
+  public void appendBuckets(StringBuilder out)
+  {
+    out.append(summary()).append('\n');
+    for (int i = 0; i < mCounts.length(); i++)
+    {
+      final long c = mCounts.get(i);
+      if (c == 0)
+        continue;
+      out.append("  ");
+      if (i < mBounds.length)
+        out.append("<=").append(mBounds[i]);
+      else
+        out.append(">").append(mBounds[mBounds.length - 1]);
+      out.append(' ').append(c).append('\n');
+    }
+  }
+
+  private int bucketOf(long value)
+  {
+    int lo = 0;
+    int hi = mBounds.length;
+    while (lo < hi)
+    {
+      final int mid = (lo + hi) >>> 1;
+      if (value <= mBounds[mid])
+        hi = mid;
+      else
+        lo = mid + 1;
+    }
+    return lo;
+  }
+}
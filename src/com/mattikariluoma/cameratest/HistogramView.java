@@ -0,0 +1,111 @@
+package com.mattikariluoma.cameratest;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+import android.view.View;
+
+/// Draws a LumaHistogram, with clipped bins in colour and zebra stripes
+/// over an end of the histogram when too much of the frame is clipped.
+///
+/// Only redraws when the histogram publishes a change, never per frame.
+public class HistogramView extends View
+{
+  private static final double ZEBRA_FRACTION = 0.02;
+  private static final int ZEBRA_SPACING = 6;
+
+  private final int[] mBins = new int[LumaHistogram.BINS];
+  private final Paint mBarPaint = new Paint();
+  private final Paint mShadowPaint = new Paint();
+  private final Paint mHighlightPaint = new Paint();
+  private final Paint mZebraPaint = new Paint();
+  private LumaHistogram mHistogram;
+
+  public HistogramView(Context context)
+  {
+    super(context);
+    init();
+  }
+
+  public HistogramView(Context context, AttributeSet attrs)
+  {
+    super(context, attrs);
+    init();
+  }
+
+  private void init()
+  {
+    mBarPaint.setColor(0xc0ffffff);
+    mShadowPaint.setColor(0xc04080ff);
+    mHighlightPaint.setColor(0xc0ff4040);
+    mZebraPaint.setColor(Color.YELLOW);
+    mZebraPaint.setStrokeWidth(2);
+  }
+
+  public void setHistogram(LumaHistogram histogram)
+  {
+    if (mHistogram != null)
+      mHistogram.setListener(null);
+    mHistogram = histogram;
+    if (histogram != null)
+      histogram.setListener(histogramChanged);
+    postInvalidate();
+  }
+
+  /// Called on the analysis thread
+  private LumaHistogram.Listener histogramChanged = new LumaHistogram.Listener()
+  {
+    @Override
+    public void onHistogramChanged(LumaHistogram histogram)
+    {
+      postInvalidate();
+    }
+  };
+
+  @Override
+  protected void onDraw(Canvas canvas)
+  {
+    final LumaHistogram histogram = mHistogram;
+    if (histogram == null)
+      return;
+
+    final int max = histogram.copyTo(mBins);
+    if (max == 0)
+      return;
+
+    final int w = getWidth();
+    final int h = getHeight();
+    final int shadow = histogram.getShadowLevel();
+    final int highlight = histogram.getHighlightLevel();
+    final float binWidth = (float) w / LumaHistogram.BINS;
+
+    for (int i = 0; i < LumaHistogram.BINS; i++)
+    {
+      if (mBins[i] == 0)
+        continue;
+      final Paint paint = i <= shadow ? mShadowPaint : i >= highlight ? mHighlightPaint : mBarPaint;
+      final float top = h - (float) mBins[i] * h / max;
+      canvas.drawRect(i * binWidth, top, (i + 1) * binWidth, h, paint);
+    }
+
+    if (histogram.getShadowClipping() > ZEBRA_FRACTION)
+      drawZebra(canvas, 0, (shadow + 1) * binWidth, h);
+    if (histogram.getHighlightClipping() > ZEBRA_FRACTION)
+      drawZebra(canvas, highlight * binWidth, w, h);
+  }
+
+  private void drawZebra(Canvas canvas, float left, float right, int h)
+  {
+    // diagonal stripes, clipped to the band
+    for (float x = left - h; x < right; x += ZEBRA_SPACING)
+    {
+      final float x0 = Math.max(left, x);
+      final float x1 = Math.min(right, x + h);
+      if (x1 <= x0)
+        continue;
+      canvas.drawLine(x0, h - (x0 - x), x1, h - (x1 - x), mZebraPaint);
+    }
+  }
+}
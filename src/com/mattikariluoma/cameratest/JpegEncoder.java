@@ -0,0 +1,682 @@
+package com.mattikariluoma.cameratest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Semaphore;
+
+/// Encodes NV21 frames to baseline JPEG in pure Java, across cores.
+///
+/// NV21 is already 4:2:0, so an MCU is 16x16 pixels: four luma blocks and
+/// one block each of Cb and Cr, taken straight from the frame. The restart
+/// interval is one row of MCUs, which resets the DC predictors at every
+/// row, so rows can be transformed and entropy coded independently. Rows
+/// are cut into stripes encoded on their own threads, the calling thread
+/// taking the first, and the stripes are joined with restart markers.
+///
+/// Quantization tables (folded into the DCT scaling) and the standard
+/// Huffman tables are computed once per quality level. Stripe buffers and
+/// the output buffer are reused, so a steady stream of frames of one size
+/// allocates nothing.
+public class JpegEncoder
+{
+  private static final int[] ZIGZAG = {
+     0,  1,  8, 16,  9,  2,  3, 10, 17, 24, 32, 25, 18, 11,  4,  5,
+    12, 19, 26, 33, 40, 48, 41, 34, 27, 20, 13,  6,  7, 14, 21, 28,
+    35, 42, 49, 56, 57, 50, 43, 36, 29, 22, 15, 23, 30, 37, 44, 51,
+    58, 59, 52, 45, 38, 31, 39, 46, 53, 60, 61, 54, 47, 55, 62, 63,
+  };
+
+  // ITU T.81 Annex K example tables, in natural order
+  private static final int[] LUMA_QUANT = {
+    16, 11, 10, 16,  24,  40,  51,  61,
+    12, 12, 14, 19,  26,  58,  60,  55,
+    14, 13, 16, 24,  40,  57,  69,  56,
+    14, 17, 22, 29,  51,  87,  80,  62,
+    18, 22, 37, 56,  68, 109, 103,  77,
+    24, 35, 55, 64,  81, 104, 113,  92,
+    49, 64, 78, 87, 103, 121, 120, 101,
+    72, 92, 95, 98, 112, 100, 103,  99,
+  };
+  private static final int[] CHROMA_QUANT = {
+    17, 18, 24, 47, 99, 99, 99, 99,
+    18, 21, 26, 66, 99, 99, 99, 99,
+    24, 26, 56, 99, 99, 99, 99, 99,
+    47, 66, 99, 99, 99, 99, 99, 99,
+    99, 99, 99, 99, 99, 99, 99, 99,
+    99, 99, 99, 99, 99, 99, 99, 99,
+    99, 99, 99, 99, 99, 99, 99, 99,
+    99, 99, 99, 99, 99, 99, 99, 99,
+  };
+
+  private static final int[] DC_LUMA_BITS = { 0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0 };
+  private static final int[] DC_CHROMA_BITS = { 0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0 };
+  private static final int[] DC_VALUES = { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11 };
+  private static final int[] AC_LUMA_BITS = { 0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d };
+  private static final int[] AC_LUMA_VALUES = {
+    0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12, 0x21, 0x31, 0x41, 0x06, 0x13, 0x51, 0x61, 0x07,
+    0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08, 0x23, 0x42, 0xb1, 0xc1, 0x15, 0x52, 0xd1, 0xf0,
+    0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0a, 0x16, 0x17, 0x18, 0x19, 0x1a, 0x25, 0x26, 0x27, 0x28,
+    0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49,
+    0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69,
+    0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+    0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7,
+    0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5,
+    0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe1, 0xe2,
+    0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf1, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+    0xf9, 0xfa,
+  };
+  private static final int[] AC_CHROMA_BITS = { 0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77 };
+  private static final int[] AC_CHROMA_VALUES = {
+    0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21, 0x31, 0x06, 0x12, 0x41, 0x51, 0x07, 0x61, 0x71,
+    0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91, 0xa1, 0xb1, 0xc1, 0x09, 0x23, 0x33, 0x52, 0xf0,
+    0x15, 0x62, 0x72, 0xd1, 0x0a, 0x16, 0x24, 0x34, 0xe1, 0x25, 0xf1, 0x17, 0x18, 0x19, 0x1a, 0x26,
+    0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48,
+    0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
+    0x69, 0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87,
+    0x88, 0x89, 0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5,
+    0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3,
+    0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda,
+    0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+    0xf9, 0xfa,
+  };
+
+  private static final Huffman DC_LUMA = new Huffman(DC_LUMA_BITS, DC_VALUES);
+  private static final Huffman DC_CHROMA = new Huffman(DC_CHROMA_BITS, DC_VALUES);
+  private static final Huffman AC_LUMA = new Huffman(AC_LUMA_BITS, AC_LUMA_VALUES);
+  private static final Huffman AC_CHROMA = new Huffman(AC_CHROMA_BITS, AC_CHROMA_VALUES);
+
+  private static final Tables[] sTables = new Tables[101];
+
+  /// Code and length of every symbol of one Huffman table
+  private static class Huffman
+  {
+    final int[] bits;
+    final int[] values;
+    final int[] code = new int[256];
+    final int[] size = new int[256];
+
+    Huffman(int[] bits, int[] values)
+    {
+      this.bits = bits;
+      this.values = values;
+      int c = 0;
+      int k = 0;
+      for (int length = 1; length <= 16; length++)
+      {
+        for (int i = 0; i < bits[length - 1]; i++)
+        {
+          code[values[k]] = c++;
+          size[values[k]] = length;
+          k++;
+        }
+        c <<= 1;
+      }
+    }
+  }
+
+  /// Quantization tables of one quality level, scaled for the DCT
+  private static class Tables
+  {
+    // zigzag order, as written to the file
+    final int[] lumaQuant = new int[64];
+    final int[] chromaQuant = new int[64];
+    // natural order, reciprocals including the AAN DCT output scaling
+    final float[] lumaDivisors = new float[64];
+    final float[] chromaDivisors = new float[64];
+
+    Tables(int quality)
+    {
+      final int scale = quality < 50 ? 5000 / quality : 200 - quality * 2;
+      final double[] aan = { 1.0, 1.387039845, 1.306562965, 1.175875602,
+        1.0, 0.785694958, 0.541196100, 0.275899379 };
+      for (int i = 0; i < 64; i++)
+      {
+        final int luma = Math.max(1, Math.min(255, (LUMA_QUANT[i] * scale + 50) / 100));
+        final int chroma = Math.max(1, Math.min(255, (CHROMA_QUANT[i] * scale + 50) / 100));
+        final double dct = aan[i >> 3] * aan[i & 7] * 8;
+        lumaDivisors[i] = (float) (1.0 / (luma * dct));
+        chromaDivisors[i] = (float) (1.0 / (chroma * dct));
+      }
+      for (int i = 0; i < 64; i++)
+      {
+        lumaQuant[i] = Math.max(1, Math.min(255, (LUMA_QUANT[ZIGZAG[i]] * scale + 50) / 100));
+        chromaQuant[i] = Math.max(1, Math.min(255, (CHROMA_QUANT[ZIGZAG[i]] * scale + 50) / 100));
+      }
+    }
+  }
+
+  private static Tables tables(int quality)
+  {
+    synchronized (sTables)
+    {
+      if (sTables[quality] == null)
+        sTables[quality] = new Tables(quality);
+      return sTables[quality];
+    }
+  }
+
+  private final Stripe[] mStripes;
+  private final Semaphore mDone = new Semaphore(0);
+  private volatile boolean mShutdown = false;
+  private byte[] mOutput = new byte[64 * 1024];
+  private int mLength;
+
+  /// threads is the total number of stripes, including the calling thread
+  public JpegEncoder(int threads)
+  {
+    if (threads <= 0)
+      throw new IllegalArgumentException("threads must be positive: " + threads);
+
+    mStripes = new Stripe[threads];
+    for (int i = 0; i < threads; i++)
+    {
+      mStripes[i] = new Stripe();
+      if (i > 0)
+      {
+        final Thread t = new Thread(mStripes[i], "JpegEncoder-" + i);
+        t.setDaemon(true);
+        t.start();
+      }
+    }
+  }
+
+  /// One stripe per available core
+  public JpegEncoder()
+  {
+    this(Runtime.getRuntime().availableProcessors());
+  }
+
+  public int getThreadCount()
+  {
+    return mStripes.length;
+  }
+
+  /// The buffer the last encode() wrote to; valid until the next call
+  public byte[] getOutput()
+  {
+    return mOutput;
+  }
+
+  /// Encodes a width x height NV21 frame at quality 1..100 into
+  /// getOutput(), returning the number of bytes written
+  public synchronized int encode(byte[] nv21, int width, int height, int quality)
+  {
+    if (mShutdown)
+      throw new IllegalStateException("encoder is shut down");
+    if (width <= 0 || height <= 0 || width > 65535 || height > 65535)
+      throw new IllegalArgumentException("bad size " + width + "x" + height);
+    if (quality < 1 || quality > 100)
+      throw new IllegalArgumentException("quality must be 1..100: " + quality);
+    if (nv21.length < FrameBufferPool.nv21Size(width, height))
+      throw new IllegalArgumentException("frame too small for " + width + "x" + height);
+
+    final Tables tables = tables(quality);
+    final int mcuColumns = (width + 15) / 16;
+    final int mcuRows = (height + 15) / 16;
+
+    mLength = 0;
+    writeHeaders(tables, width, height, mcuColumns);
+
+    final int count = Math.min(mStripes.length, mcuRows);
+    int start = 0;
+    for (int i = 0; i < count; i++)
+    {
+      final int end = start + (mcuRows - start + (count - i) - 1) / (count - i);
+      final Stripe s = mStripes[i];
+      s.mNv21 = nv21;
+      s.mWidth = width;
+      s.mHeight = height;
+      s.mTables = tables;
+      s.mRowStart = start;
+      s.mRowEnd = end;
+      s.mLastRow = mcuRows - 1;
+      start = end;
+    }
+
+    for (int i = 1; i < count; i++)
+      mStripes[i].mStart.release();
+    try {
+      mStripes[0].encode();
+    } finally {
+      // the helpers must be done with the frame even if this stripe failed
+      mDone.acquireUninterruptibly(count - 1);
+      for (int i = 0; i < count; i++)
+        mStripes[i].mNv21 = null;
+    }
+
+    for (int i = 1; i < count; i++)
+    {
+      final Throwable failure = mStripes[i].mFailure;
+      if (failure != null)
+      {
+        for (int j = i; j < count; j++)
+          mStripes[j].mFailure = null;
+        throw new RuntimeException("stripe " + i + " failed", failure);
+      }
+    }
+    for (int i = 0; i < count; i++)
+      put(mStripes[i].mOut, mStripes[i].mLength);
+    putMarker(0xd9);
+    return mLength;
+  }
+
+  /// encode(), then writes the result to out
+  public void encode(byte[] nv21, int width, int height, int quality, OutputStream out)
+    throws IOException
+  {
+    synchronized (this)
+    {
+      final int length = encode(nv21, width, height, quality);
+      out.write(mOutput, 0, length);
+    }
+  }
+
+  /// Stops the helper threads once any encode() in progress is done;
+  /// encode() throws IllegalStateException afterwards
+  public synchronized void shutdown()
+  {
+    mShutdown = true;
+    for (int i = 1; i < mStripes.length; i++)
+      mStripes[i].mStart.release();
+  }
+
+  private void writeHeaders(Tables tables, int width, int height, int restartInterval)
+  {
+    putMarker(0xd8);
+
+    // JFIF APP0, 1:1 pixels
+    putMarker(0xe0);
+    put16(16);
+    put('J'); put('F'); put('I'); put('F'); put(0);
+    put(1); put(1); put(0); put16(1); put16(1); put(0); put(0);
+
+    putMarker(0xdb);
+    put16(2 + 2 * 65);
+    put(0);
+    for (int i = 0; i < 64; i++)
+      put(tables.lumaQuant[i]);
+    put(1);
+    for (int i = 0; i < 64; i++)
+      put(tables.chromaQuant[i]);
+
+    // baseline, Y sampled 2x2 and chroma 1x1
+    putMarker(0xc0);
+    put16(17);
+    put(8);
+    put16(height);
+    put16(width);
+    put(3);
+    put(1); put(0x22); put(0);
+    put(2); put(0x11); put(1);
+    put(3); put(0x11); put(1);
+
+    putMarker(0xc4);
+    put16(2 + huffmanLength(DC_LUMA) + huffmanLength(AC_LUMA)
+      + huffmanLength(DC_CHROMA) + huffmanLength(AC_CHROMA));
+    putHuffman(0x00, DC_LUMA);
+    putHuffman(0x10, AC_LUMA);
+    putHuffman(0x01, DC_CHROMA);
+    putHuffman(0x11, AC_CHROMA);
+
+    putMarker(0xdd);
+    put16(4);
+    put16(restartInterval);
+
+    putMarker(0xda);
+    put16(12);
+    put(3);
+    put(1); put(0x00);
+    put(2); put(0x11);
+    put(3); put(0x11);
+    put(0); put(63); put(0);
+  }
+
+  private static int huffmanLength(Huffman h)
+  {
+    return 1 + 16 + h.values.length;
+  }
+
+  private void putHuffman(int classAndId, Huffman h)
+  {
+    put(classAndId);
+    for (int i = 0; i < 16; i++)
+      put(h.bits[i]);
+    for (int i = 0; i < h.values.length; i++)
+      put(h.values[i]);
+  }
+
+  private void putMarker(int marker)
+  {
+    put(0xff);
+    put(marker);
+  }
+
+  private void put16(int v)
+  {
+    put(v >> 8);
+    put(v);
+  }
+
+  private void put(int b)
+  {
+    if (mLength == mOutput.length)
+      grow(mLength + 1);
+    mOutput[mLength++] = (byte) b;
+  }
+
+  private void put(byte[] b, int length)
+  {
+    if (mLength + length > mOutput.length)
+      grow(mLength + length);
+    System.arraycopy(b, 0, mOutput, mLength, length);
+    mLength += length;
+  }
+
+  private void grow(int needed)
+  {
+    final byte[] bigger = new byte[Math.max(needed, mOutput.length * 2)];
+    System.arraycopy(mOutput, 0, bigger, 0, mLength);
+    mOutput = bigger;
+  }
+
+  /// Encodes a range of MCU rows, each followed by a restart marker but
+  /// the last of the image
+  private class Stripe implements Runnable
+  {
+    final Semaphore mStart = new Semaphore(0);
+    byte[] mNv21;
+    int mWidth;
+    int mHeight;
+    Tables mTables;
+    int mRowStart;
+    int mRowEnd;
+    int mLastRow;
+    // set by a helper thread whose encode() threw, for the caller to rethrow
+    Throwable mFailure;
+
+    byte[] mOut = new byte[16 * 1024];
+    int mLength;
+    private int mBits;
+    private int mBitCount;
+
+    private final float[] mBlock = new float[64];
+    private final int[] mCoefficients = new int[64];
+
+    @Override
+    public void run()
+    {
+      while (true)
+      {
+        mStart.acquireUninterruptibly();
+        if (mShutdown)
+          return;
+        try {
+          encode();
+        } catch (Throwable t) {
+          mFailure = t;
+        } finally {
+          mDone.release();
+        }
+      }
+    }
+
+    void encode()
+    {
+      mLength = 0;
+      final int w = mWidth;
+      final int h = mHeight;
+      final int chromaBase = w * h;
+      final int mcuColumns = (w + 15) / 16;
+      final float[] lumaDivisors = mTables.lumaDivisors;
+      final float[] chromaDivisors = mTables.chromaDivisors;
+
+      for (int row = mRowStart; row < mRowEnd; row++)
+      {
+        int predY = 0;
+        int predCb = 0;
+        int predCr = 0;
+        mBits = 0;
+        mBitCount = 0;
+
+        final int y0 = row * 16;
+        for (int column = 0; column < mcuColumns; column++)
+        {
+          final int x0 = column * 16;
+          loadLuma(x0, y0);
+          predY = encodeBlock(lumaDivisors, predY, DC_LUMA, AC_LUMA);
+          loadLuma(x0 + 8, y0);
+          predY = encodeBlock(lumaDivisors, predY, DC_LUMA, AC_LUMA);
+          loadLuma(x0, y0 + 8);
+          predY = encodeBlock(lumaDivisors, predY, DC_LUMA, AC_LUMA);
+          loadLuma(x0 + 8, y0 + 8);
+          predY = encodeBlock(lumaDivisors, predY, DC_LUMA, AC_LUMA);
+
+          // NV21 chroma is interleaved V, U at half resolution
+          loadChroma(chromaBase + 1, x0 / 2, y0 / 2);
+          predCb = encodeBlock(chromaDivisors, predCb, DC_CHROMA, AC_CHROMA);
+          loadChroma(chromaBase, x0 / 2, y0 / 2);
+          predCr = encodeBlock(chromaDivisors, predCr, DC_CHROMA, AC_CHROMA);
+        }
+
+        // pad the row out to a byte with ones, then restart
+        if (mBitCount > 0)
+          putBits(0x7f, 8 - mBitCount);
+        if (row < mLastRow)
+        {
+          putByte(0xff);
+          putByte(0xd0 + (row & 7));
+        }
+      }
+    }
+
+    private void loadLuma(int x0, int y0)
+    {
+      final byte[] src = mNv21;
+      final int w = mWidth;
+      final float[] block = mBlock;
+      if (x0 + 8 <= w && y0 + 8 <= mHeight)
+      {
+        for (int y = 0; y < 8; y++)
+        {
+          final int p = (y0 + y) * w + x0;
+          final int b = y * 8;
+          for (int x = 0; x < 8; x++)
+            block[b + x] = (src[p + x] & 0xff) - 128;
+        }
+        return;
+      }
+
+      // edge blocks repeat the last row and column
+      for (int y = 0; y < 8; y++)
+      {
+        final int p = Math.min(y0 + y, mHeight - 1) * w;
+        for (int x = 0; x < 8; x++)
+          block[y * 8 + x] = (src[p + Math.min(x0 + x, w - 1)] & 0xff) - 128;
+      }
+    }
+
+    private void loadChroma(int base, int x0, int y0)
+    {
+      final byte[] src = mNv21;
+      final int w = mWidth;
+      final int cw = (mWidth + 1) / 2;
+      final int ch = (mHeight + 1) / 2;
+      final float[] block = mBlock;
+      if (x0 + 8 <= cw && y0 + 8 <= ch)
+      {
+        for (int y = 0; y < 8; y++)
+        {
+          final int p = base + (y0 + y) * w + x0 * 2;
+          final int b = y * 8;
+          for (int x = 0; x < 8; x++)
+            block[b + x] = (src[p + x * 2] & 0xff) - 128;
+        }
+        return;
+      }
+
+      for (int y = 0; y < 8; y++)
+      {
+        final int p = base + Math.min(y0 + y, ch - 1) * w;
+        for (int x = 0; x < 8; x++)
+          block[y * 8 + x] = (src[p + Math.min(x0 + x, cw - 1) * 2] & 0xff) - 128;
+      }
+    }
+
+    /// Transforms, quantizes and codes mBlock; returns its DC for the
+    /// next block's prediction
+    private int encodeBlock(float[] divisors, int pred, Huffman dc, Huffman ac)
+    {
+      final float[] d = mBlock;
+      fdct(d);
+
+      final int[] q = mCoefficients;
+      for (int i = 0; i < 64; i++)
+        // floor(x + 0.5), rounding halves up, without a branch or
+        // Math.round: the offset keeps the sum positive, so the cast's
+        // truncation floors it; quantized values stay well within it
+        q[i] = (int) (d[i] * divisors[i] + 16384.5f) - 16384;
+
+      final int value = q[0];
+      int diff = value - pred;
+      int magnitude = diff < 0 ? -diff : diff;
+      int nbits = 32 - Integer.numberOfLeadingZeros(magnitude);
+      putBits(dc.code[nbits], dc.size[nbits]);
+      if (nbits > 0)
+        putBits(diff < 0 ? diff - 1 : diff, nbits);
+
+      int run = 0;
+      for (int k = 1; k < 64; k++)
+      {
+        final int c = q[ZIGZAG[k]];
+        if (c == 0)
+        {
+          run++;
+          continue;
+        }
+        while (run > 15)
+        {
+          putBits(ac.code[0xf0], ac.size[0xf0]);
+          run -= 16;
+        }
+        magnitude = c < 0 ? -c : c;
+        nbits = 32 - Integer.numberOfLeadingZeros(magnitude);
+        final int symbol = (run << 4) | nbits;
+        putBits(ac.code[symbol], ac.size[symbol]);
+        putBits(c < 0 ? c - 1 : c, nbits);
+        run = 0;
+      }
+      if (run > 0)
+        putBits(ac.code[0x00], ac.size[0x00]);
+      return value;
+    }
+
+    private void putBits(int value, int count)
+    {
+      int bits = (mBits << count) | (value & ((1 << count) - 1));
+      int n = mBitCount + count;
+      while (n >= 8)
+      {
+        n -= 8;
+        final int b = (bits >>> n) & 0xff;
+        putByte(b);
+        // a data 0xff is stuffed so it cannot be read as a marker
+        if (b == 0xff)
+          putByte(0);
+      }
+      mBits = bits & ((1 << n) - 1);
+      mBitCount = n;
+    }
+
+    private void putByte(int b)
+    {
+      if (mLength == mOut.length)
+      {
+        final byte[] bigger = new byte[mOut.length * 2];
+        System.arraycopy(mOut, 0, bigger, 0, mLength);
+        mOut = bigger;
+      }
+      mOut[mLength++] = (byte) b;
+    }
+  }
+
+  /// In-place forward DCT of an 8x8 block, the AAN float algorithm; the
+  /// outputs are scaled by the factors folded into the divisors
+  private static void fdct(float[] d)
+  {
+    for (int p = 0; p < 64; p += 8)
+    {
+      final float tmp0 = d[p] + d[p + 7];
+      final float tmp7 = d[p] - d[p + 7];
+      final float tmp1 = d[p + 1] + d[p + 6];
+      final float tmp6 = d[p + 1] - d[p + 6];
+      final float tmp2 = d[p + 2] + d[p + 5];
+      final float tmp5 = d[p + 2] - d[p + 5];
+      final float tmp3 = d[p + 3] + d[p + 4];
+      final float tmp4 = d[p + 3] - d[p + 4];
+
+      float tmp10 = tmp0 + tmp3;
+      final float tmp13 = tmp0 - tmp3;
+      float tmp11 = tmp1 + tmp2;
+      float tmp12 = tmp1 - tmp2;
+
+      d[p] = tmp10 + tmp11;
+      d[p + 4] = tmp10 - tmp11;
+      final float z1 = (tmp12 + tmp13) * 0.707106781f;
+      d[p + 2] = tmp13 + z1;
+      d[p + 6] = tmp13 - z1;
+
+      tmp10 = tmp4 + tmp5;
+      tmp11 = tmp5 + tmp6;
+      tmp12 = tmp6 + tmp7;
+      final float z5 = (tmp10 - tmp12) * 0.382683433f;
+      final float z2 = 0.541196100f * tmp10 + z5;
+      final float z4 = 1.306562965f * tmp12 + z5;
+      final float z3 = tmp11 * 0.707106781f;
+      final float z11 = tmp7 + z3;
+      final float z13 = tmp7 - z3;
+
+      d[p + 5] = z13 + z2;
+      d[p + 3] = z13 - z2;
+      d[p + 1] = z11 + z4;
+      d[p + 7] = z11 - z4;
+    }
+
+    for (int p = 0; p < 8; p++)
+    {
+      final float tmp0 = d[p] + d[p + 56];
+      final float tmp7 = d[p] - d[p + 56];
+      final float tmp1 = d[p + 8] + d[p + 48];
+      final float tmp6 = d[p + 8] - d[p + 48];
+      final float tmp2 = d[p + 16] + d[p + 40];
+      final float tmp5 = d[p + 16] - d[p + 40];
+      final float tmp3 = d[p + 24] + d[p + 32];
+      final float tmp4 = d[p + 24] - d[p + 32];
+
+      float tmp10 = tmp0 + tmp3;
+      final float tmp13 = tmp0 - tmp3;
+      float tmp11 = tmp1 + tmp2;
+      float tmp12 = tmp1 - tmp2;
+
+      d[p] = tmp10 + tmp11;
+      d[p + 32] = tmp10 - tmp11;
+      final float z1 = (tmp12 + tmp13) * 0.707106781f;
+      d[p + 16] = tmp13 + z1;
+      d[p + 48] = tmp13 - z1;
+
+      tmp10 = tmp4 + tmp5;
+      tmp11 = tmp5 + tmp6;
+      tmp12 = tmp6 + tmp7;
+      final float z5 = (tmp10 - tmp12) * 0.382683433f;
+      final float z2 = 0.541196100f * tmp10 + z5;
+      final float z4 = 1.306562965f * tmp12 + z5;
+      final float z3 = tmp11 * 0.707106781f;
+      final float z11 = tmp7 + z3;
+      final float z13 = tmp7 - z3;
+
+      d[p + 40] = z13 + z2;
+      d[p + 24] = z13 - z2;
+      d[p + 8] = z11 + z4;
+      d[p + 56] = z11 - z4;
+    }
+  }
+}
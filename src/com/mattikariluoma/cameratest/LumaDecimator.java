@@ -0,0 +1,127 @@
+package com.mattikariluoma.cameratest;
+
+/// Box-filters the Y plane of an NV21 frame down by 2, 4 or 8.
+///
+/// The luma plane is read straight out of the preview buffer and averaged
+/// over factor x factor blocks into an output buffer owned by the
+/// decimator, which is only reallocated when the frame size changes.
+/// Rows and columns that do not fill a whole block are cropped.
+///
+/// A decimator is not thread safe; give each consumer its own, e.g. with
+/// consumer(), so analysis cost follows the size each consumer asks for
+/// rather than the preview size.
+public class LumaDecimator
+{
+  /// Receives a decimated luma frame; luma is reused after the call returns
+  public interface LumaConsumer
+  {
+    void onLuma(byte[] luma, int width, int height, long timestampNanos, long sequence);
+  }
+
+  private final int mFactor;
+  private final int mShift;
+  private byte[] mOutput = new byte[0];
+  private int mWidth;
+  private int mHeight;
+
+  /// factor is 1 (a plain copy of the Y plane), 2, 4 or 8
+  public LumaDecimator(int factor)
+  {
+    if (factor != 1 && factor != 2 && factor != 4 && factor != 8)
+      throw new IllegalArgumentException("factor must be 1, 2, 4 or 8: " + factor);
+
+    mFactor = factor;
+    mShift = 2 * Integer.numberOfTrailingZeros(factor);
+  }
+
+  public int getFactor()
+  {
+    return mFactor;
+  }
+
+  /// Width of the last decimated frame
+  public int getOutputWidth()
+  {
+    return mWidth;
+  }
+
+  public int getOutputHeight()
+  {
+    return mHeight;
+  }
+
+  /// Decimates the Y plane of a width x height NV21 frame and returns the
+  /// decimator's own buffer holding getOutputWidth() x getOutputHeight()
+  /// luma samples
+  public byte[] decimate(byte[] nv21, int width, int height)
+  {
+    final int ow = width / mFactor;
+    final int oh = height / mFactor;
+    if (mOutput.length != ow * oh)
+      mOutput = new byte[ow * oh];
+    mWidth = ow;
+    mHeight = oh;
+
+    decimate(nv21, width, mFactor, mShift, mOutput, ow, oh);
+    return mOutput;
+  }
+
+  private static void decimate(byte[] y, int width, int factor, int shift,
+    byte[] out, int ow, int oh)
+  {
+    if (factor == 1)
+    {
+      for (int row = 0; row < oh; row++)
+        System.arraycopy(y, row * width, out, row * ow, ow);
+      return;
+    }
+
+    final int round = 1 << (shift - 1);
+    int o = 0;
+    if (factor == 2)
+    {
+      for (int row = 0; row < oh; row++)
+      {
+        int p = 2 * row * width;
+        int q = p + width;
+        for (int col = 0; col < ow; col++, p += 2, q += 2)
+          out[o++] = (byte) (((y[p] & 0xff) + (y[p + 1] & 0xff)
+            + (y[q] & 0xff) + (y[q + 1] & 0xff) + round) >> 2);
+      }
+      return;
+    }
+
+    for (int row = 0; row < oh; row++)
+    {
+      final int top = row * factor * width;
+      for (int col = 0; col < ow; col++)
+      {
+        int sum = 0;
+        int p = top + col * factor;
+        for (int dy = 0; dy < factor; dy++, p += width)
+          for (int dx = 0; dx < factor; dx += 4)
+            sum += (y[p + dx] & 0xff) + (y[p + dx + 1] & 0xff)
+              + (y[p + dx + 2] & 0xff) + (y[p + dx + 3] & 0xff);
+        out[o++] = (byte) ((sum + round) >> shift);
+      }
+    }
+  }
+
+  /// A frame consumer that decimates each frame by factor before handing
+  /// it to consumer. Calls are serialized, so consumer need not be thread
+  /// safe even with several dispatcher workers.
+  public static FrameDispatcher.FrameConsumer consumer(int factor, final LumaConsumer consumer)
+  {
+    final LumaDecimator decimator = new LumaDecimator(factor);
+    return new FrameDispatcher.FrameConsumer()
+    {
+      @Override
+      public synchronized void onFrame(FrameDispatcher.Frame frame)
+      {
+        final byte[] luma = decimator.decimate(frame.getData(), frame.getWidth(), frame.getHeight());
+        consumer.onLuma(luma, decimator.getOutputWidth(), decimator.getOutputHeight(),
+          frame.getTimestampNanos(), frame.getSequence());
+      }
+    };
+  }
+}
@@ -0,0 +1,211 @@
+package com.mattikariluoma.cameratest;
+
+import java.util.Arrays;
+
+/// A 256-bin luma histogram of the live preview, with clipping levels.
+///
+/// Each frame only samples every stride-th column of every stride-th row,
+/// starting at a row offset that advances by one per frame; the histogram
+/// is the sum of the last stride such samplings, so it covers every row
+/// while each frame costs 1 / (stride * stride) of a full pass. The counts
+/// of the phase being replaced are subtracted and the new ones added, and
+/// all arrays are allocated once.
+///
+/// Readers only see a published copy. It is replaced, and the listener
+/// told, when the normalized histogram has moved by more than the change
+/// threshold since the last publication, so a view showing it need not
+/// redraw for frames that look the same.
+public class LumaHistogram implements FrameDispatcher.FrameConsumer
+{
+  public static final int BINS = 256;
+
+  /// Told on the analysis thread when a new histogram is published
+  public interface Listener
+  {
+    void onHistogramChanged(LumaHistogram histogram);
+  }
+
+  private final int mStride;
+  private final int[][] mPhaseCounts;
+  private final int[] mPhaseTotals;
+  private final int[] mCounts = new int[BINS];
+  private int mTotal;
+  private int mPhase;
+
+  private volatile int mShadowLevel = 16;
+  private volatile int mHighlightLevel = 235;
+  private volatile double mChangeThreshold = 0.05;
+  private volatile Listener mListener;
+
+  // guarded by this
+  private final int[] mPublished = new int[BINS];
+  private int mPublishedTotal;
+  private int mPublishedMax;
+
+  private volatile long mUpdates;
+  private volatile long mPublications;
+
+  /// stride is the sampling step in both directions
+  public LumaHistogram(int stride)
+  {
+    if (stride <= 0)
+      throw new IllegalArgumentException("stride must be positive: " + stride);
+
+    mStride = stride;
+    mPhaseCounts = new int[stride][BINS];
+    mPhaseTotals = new int[stride];
+  }
+
+  public void setListener(Listener listener)
+  {
+    mListener = listener;
+  }
+
+  /// Levels at or below shadow and at or above highlight count as clipped
+  public void setClipLevels(int shadow, int highlight)
+  {
+    mShadowLevel = shadow;
+    mHighlightLevel = highlight;
+  }
+
+  /// Fraction of the samples, summed over all bins, that must move before
+  /// a new histogram is published
+  public void setChangeThreshold(double threshold)
+  {
+    mChangeThreshold = threshold;
+  }
+
+  public int getStride()
+  {
+    return mStride;
+  }
+
+  @Override
+  public void onFrame(FrameDispatcher.Frame frame)
+  {
+    update(frame.getData(), frame.getWidth(), frame.getHeight());
+  }
+
+  /// Samples the next phase of a width x height luma plane; an NV21 frame
+  /// can be passed as is
+  public synchronized void update(byte[] luma, int width, int height)
+  {
+    final int stride = mStride;
+    final int phase = mPhase;
+    final int[] counts = mPhaseCounts[phase];
+
+    for (int i = 0; i < BINS; i++)
+      mCounts[i] -= counts[i];
+    mTotal -= mPhaseTotals[phase];
+    Arrays.fill(counts, 0);
+
+    int total = 0;
+    for (int row = phase; row < height; row += stride)
+    {
+      final int end = row * width + width;
+      for (int p = row * width; p < end; p += stride)
+        counts[luma[p] & 0xff]++;
+      total += (width + stride - 1) / stride;
+    }
+
+    for (int i = 0; i < BINS; i++)
+      mCounts[i] += counts[i];
+    mPhaseTotals[phase] = total;
+    mTotal += total;
+    mPhase = (phase + 1) % stride;
+    mUpdates++;
+
+    if (mTotal > 0 && distance() > mChangeThreshold)
+    {
+      publish();
+      final Listener listener = mListener;
+      if (listener != null)
+        listener.onHistogramChanged(this);
+    }
+  }
+
+  /// Sum of absolute differences between the current and the published
+  /// histogram, both normalized to 1
+  private double distance()
+  {
+    if (mPublishedTotal == 0)
+      return Double.POSITIVE_INFINITY;
+
+    final double a = 1.0 / mTotal;
+    final double b = 1.0 / mPublishedTotal;
+    double d = 0;
+    for (int i = 0; i < BINS; i++)
+      d += Math.abs(mCounts[i] * a - mPublished[i] * b);
+    return d;
+  }
+
+  private void publish()
+  {
+    int max = 0;
+    for (int i = 0; i < BINS; i++)
+    {
+      mPublished[i] = mCounts[i];
+      if (mCounts[i] > max)
+        max = mCounts[i];
+    }
+    mPublishedTotal = mTotal;
+    mPublishedMax = max;
+    mPublications++;
+  }
+
+  /// Copies the published bins into out, which must hold BINS values, and
+  /// returns the largest bin
+  public synchronized int copyTo(int[] out)
+  {
+    System.arraycopy(mPublished, 0, out, 0, BINS);
+    return mPublishedMax;
+  }
+
+  public synchronized int getPublishedTotal()
+  {
+    return mPublishedTotal;
+  }
+
+  /// Fraction of published samples at or below the shadow level
+  public synchronized double getShadowClipping()
+  {
+    return fraction(0, mShadowLevel);
+  }
+
+  /// Fraction of published samples at or above the highlight level
+  public synchronized double getHighlightClipping()
+  {
+    return fraction(mHighlightLevel, BINS - 1);
+  }
+
+  public int getShadowLevel()
+  {
+    return mShadowLevel;
+  }
+
+  public int getHighlightLevel()
+  {
+    return mHighlightLevel;
+  }
+
+  private double fraction(int from, int to)
+  {
+    if (mPublishedTotal == 0)
+      return 0;
+
+    long sum = 0;
+    for (int i = Math.max(0, from); i <= Math.min(BINS - 1, to); i++)
+      sum += mPublished[i];
+    return (double) sum / mPublishedTotal;
+  }
+
+  public long getUpdateCount()
+  {
+    return mUpdates;
+  }
+
+  public long getPublicationCount()
+  {
+    return mPublications;
+  }
+}
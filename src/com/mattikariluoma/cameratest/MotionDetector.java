@@ -0,0 +1,296 @@
+package com.mattikariluoma.cameratest;
+
+/// Detects motion between consecutive luma frames, tile by tile.
+///
+/// Each frame is split into square tiles and compared with the previous
+/// frame. A tile that was quiet last time is first checked on a sparse
+/// grid of samples; only if the estimate comes near the threshold is it
+/// compared in full. The full sum of absolute differences stops as soon
+/// as it crosses the threshold, so a busy tile costs no more than needed
+/// to decide that it changed.
+///
+/// Motion starts once at least startTiles tiles have changed for
+/// startFrames frames in a row, and stops once at most stopTiles have
+/// changed for stopFrames in a row, so noise around the threshold does
+/// not toggle it. Feed it frames through LumaDecimator.consumer(); frames
+/// must arrive one at a time.
+public class MotionDetector implements LumaDecimator.LumaConsumer
+{
+  /// Told on the analysis thread when motion starts and stops
+  public interface Listener
+  {
+    void onMotionStarted(int changedTiles);
+    void onMotionStopped();
+  }
+
+  private static final int SAMPLE_STEP = 4;
+
+  private final int mTileSize;
+  private volatile int mThreshold = 12;
+  private volatile int mStartTiles = 2;
+  private volatile int mStopTiles = 0;
+  private volatile int mStartFrames = 2;
+  private volatile int mStopFrames = 8;
+  private volatile long mCooldownNanos = 2000000000L;
+  private volatile Listener mListener;
+
+  private byte[] mReference;
+  private int mWidth;
+  private int mHeight;
+  private int mColumns;
+  private int mRows;
+  private boolean[] mChanged = new boolean[0];
+  private boolean mMotion = false;
+  private int mStreak = 0;
+  private long mLastStartNanos;
+
+  // published for readers on other threads, guarded by this
+  private boolean[] mMask = new boolean[0];
+  private int mMaskColumns;
+  private int mMaskRows;
+  private int mChangedTiles;
+
+  private volatile long mFrames;
+  private volatile long mTilesScanned;
+  private volatile long mTilesSkipped;
+  private volatile long mTriggers;
+
+  public MotionDetector(int tileSize)
+  {
+    if (tileSize < SAMPLE_STEP)
+      throw new IllegalArgumentException("tile size must be at least " + SAMPLE_STEP + ": " + tileSize);
+
+    mTileSize = tileSize;
+  }
+
+  public void setListener(Listener listener)
+  {
+    mListener = listener;
+  }
+
+  /// Mean absolute luma difference, per pixel, above which a tile has changed
+  public void setSensitivity(int threshold)
+  {
+    mThreshold = Math.max(1, threshold);
+  }
+
+  /// Changed tiles needed, and for how many frames, to start and stop motion
+  public void setHysteresis(int startTiles, int startFrames, int stopTiles, int stopFrames)
+  {
+    if (stopTiles >= startTiles)
+      throw new IllegalArgumentException("stopTiles must be below startTiles");
+
+    mStartTiles = startTiles;
+    mStartFrames = Math.max(1, startFrames);
+    mStopTiles = stopTiles;
+    mStopFrames = Math.max(1, stopFrames);
+  }
+
+  /// Least time between two motion starts
+  public void setCooldownMillis(long millis)
+  {
+    mCooldownNanos = millis * 1000000L;
+  }
+
+  /// Forgets the reference frame, e.g. after the camera moved on purpose
+  public synchronized void reset()
+  {
+    mReference = null;
+    mMotion = false;
+    mStreak = 0;
+  }
+
+  @Override
+  public void onLuma(byte[] luma, int width, int height, long timestampNanos, long sequence)
+  {
+    byte[] reference;
+    synchronized (this)
+    {
+      reference = mReference;
+    }
+    if (reference == null || width != mWidth || height != mHeight)
+    {
+      resize(width, height);
+      synchronized (this)
+      {
+        mReference = new byte[width * height];
+        System.arraycopy(luma, 0, mReference, 0, width * height);
+      }
+      return;
+    }
+
+    final int tile = mTileSize;
+    final int limit = mThreshold * tile * tile;
+    // estimates well under the limit are trusted; anything closer is scanned
+    final int sampleLimit = limit / 2;
+    final int sampleScale = (tile / SAMPLE_STEP) * (tile / SAMPLE_STEP);
+    int changed = 0;
+    long scanned = 0;
+    long skipped = 0;
+
+    for (int row = 0, t = 0; row < mRows; row++)
+      for (int col = 0; col < mColumns; col++, t++)
+      {
+        final int origin = row * tile * width + col * tile;
+        if (!mChanged[t])
+        {
+          final int estimate = sampledSad(luma, reference, origin, width, tile)
+            * (tile * tile) / sampleScale;
+          if (estimate < sampleLimit)
+          {
+            skipped++;
+            continue;
+          }
+        }
+        scanned++;
+        mChanged[t] = sad(luma, reference, origin, width, tile, limit) >= limit;
+        if (mChanged[t])
+          changed++;
+      }
+
+    System.arraycopy(luma, 0, reference, 0, width * height);
+    publish(changed);
+    mFrames++;
+    mTilesScanned += scanned;
+    mTilesSkipped += skipped;
+
+    update(changed, timestampNanos);
+  }
+
+  private void resize(int width, int height)
+  {
+    mWidth = width;
+    mHeight = height;
+    mColumns = width / mTileSize;
+    mRows = height / mTileSize;
+    mChanged = new boolean[mColumns * mRows];
+    mMotion = false;
+    mStreak = 0;
+    synchronized (this)
+    {
+      mMask = new boolean[mChanged.length];
+      mMaskColumns = mColumns;
+      mMaskRows = mRows;
+      mChangedTiles = 0;
+    }
+  }
+
+  private synchronized void publish(int changed)
+  {
+    System.arraycopy(mChanged, 0, mMask, 0, mChanged.length);
+    mChangedTiles = changed;
+  }
+
+  private void update(int changed, long nowNanos)
+  {
+    final Listener listener = mListener;
+    if (!mMotion)
+    {
+      mStreak = changed >= mStartTiles ? mStreak + 1 : 0;
+      if (mStreak >= mStartFrames
+          && (mLastStartNanos == 0 || nowNanos - mLastStartNanos >= mCooldownNanos))
+      {
+        mMotion = true;
+        mStreak = 0;
+        mLastStartNanos = nowNanos;
+        mTriggers++;
+        if (listener != null)
+          listener.onMotionStarted(changed);
+      }
+    }
+    else
+    {
+      mStreak = changed <= mStopTiles ? mStreak + 1 : 0;
+      if (mStreak >= mStopFrames)
+      {
+        mMotion = false;
+        mStreak = 0;
+        if (listener != null)
+          listener.onMotionStopped();
+      }
+    }
+  }
+
+  private static int sampledSad(byte[] a, byte[] b, int origin, int stride, int tile)
+  {
+    int sum = 0;
+    for (int y = SAMPLE_STEP / 2; y < tile; y += SAMPLE_STEP)
+    {
+      final int p = origin + y * stride;
+      for (int x = SAMPLE_STEP / 2; x < tile; x += SAMPLE_STEP)
+      {
+        final int d = (a[p + x] & 0xff) - (b[p + x] & 0xff);
+        sum += d < 0 ? -d : d;
+      }
+    }
+    return sum;
+  }
+
+  /// Sum of absolute differences over one tile, abandoned once it reaches limit
+  private static int sad(byte[] a, byte[] b, int origin, int stride, int tile, int limit)
+  {
+    int sum = 0;
+    for (int y = 0; y < tile; y++)
+    {
+      final int p = origin + y * stride;
+      for (int x = 0; x < tile; x++)
+      {
+        final int d = (a[p + x] & 0xff) - (b[p + x] & 0xff);
+        sum += d < 0 ? -d : d;
+      }
+      if (sum >= limit)
+        return sum;
+    }
+    return sum;
+  }
+
+  public boolean isMotion()
+  {
+    return mMotion;
+  }
+
+  public synchronized int getMaskColumns()
+  {
+    return mMaskColumns;
+  }
+
+  public synchronized int getMaskRows()
+  {
+    return mMaskRows;
+  }
+
+  /// Copies the changed-tile mask of the last frame, row by row, into out
+  /// (reallocated if too small) and returns it
+  public synchronized boolean[] getMask(boolean[] out)
+  {
+    if (out == null || out.length < mMask.length)
+      out = new boolean[mMask.length];
+    System.arraycopy(mMask, 0, out, 0, mMask.length);
+    return out;
+  }
+
+  public synchronized int getChangedTileCount()
+  {
+    return mChangedTiles;
+  }
+
+  public long getFrameCount()
+  {
+    return mFrames;
+  }
+
+  public long getTilesScanned()
+  {
+    return mTilesScanned;
+  }
+
+  public long getTilesSkipped()
+  {
+    return mTilesSkipped;
+  }
+
+  public long getTriggerCount()
+  {
+    return mTriggers;
+  }
+}
@@ -0,0 +1,276 @@
+package com.mattikariluoma.cameratest;
+
+import java.util.concurrent.Semaphore;
+
+/// Converts NV21 preview frames to ARGB_8888 or RGB565.
+///
+/// Uses BT.601 video-range coefficients in 10 bit fixed point, looked up
+/// from tables built once, so the inner loop is adds, shifts and array
+/// reads. A frame is cut into horizontal stripes of even height and each
+/// stripe is converted on its own thread; the calling thread takes the
+/// first stripe. Output goes into caller-provided arrays and nothing is
+/// allocated per frame.
+public class Nv21Converter
+{
+  private static final int SHIFT = 10;
+  private static final int HALF = 1 << (SHIFT - 1);
+
+  // (y - 16) * 1.164, (v - 128) * 1.596, ... scaled by 1 << SHIFT
+  private static final int[] Y_TABLE = new int[256];
+  private static final int[] RV_TABLE = new int[256];
+  private static final int[] GU_TABLE = new int[256];
+  private static final int[] GV_TABLE = new int[256];
+  private static final int[] BU_TABLE = new int[256];
+
+  // saturates (value >> SHIFT) to 0..255; indices cover every reachable sum
+  private static final int CLAMP_OFFSET = 384;
+  private static final int[] CLAMP = new int[1024];
+
+  static
+  {
+    final double scale = 1 << SHIFT;
+    for (int i = 0; i < 256; i++)
+    {
+      Y_TABLE[i] = (int) Math.round(1.164 * (i - 16) * scale) + HALF;
+      RV_TABLE[i] = (int) Math.round(1.596 * (i - 128) * scale);
+      GU_TABLE[i] = (int) Math.round(-0.391 * (i - 128) * scale);
+      GV_TABLE[i] = (int) Math.round(-0.813 * (i - 128) * scale);
+      BU_TABLE[i] = (int) Math.round(2.018 * (i - 128) * scale);
+    }
+    for (int i = 0; i < CLAMP.length; i++)
+      CLAMP[i] = Math.max(0, Math.min(255, i - CLAMP_OFFSET));
+  }
+
+  private final Stripe[] mStripes;
+  private final Semaphore mDone = new Semaphore(0);
+  private volatile boolean mShutdown = false;
+
+  /// threads is the total number of stripes, including the calling thread
+  public Nv21Converter(int threads)
+  {
+    if (threads <= 0)
+      throw new IllegalArgumentException("threads must be positive: " + threads);
+
+    mStripes = new Stripe[threads];
+    for (int i = 0; i < threads; i++)
+    {
+      mStripes[i] = new Stripe();
+      if (i > 0)
+      {
+        final Thread t = new Thread(mStripes[i], "Nv21Converter-" + i);
+        t.setDaemon(true);
+        t.start();
+      }
+    }
+  }
+
+  /// One stripe per available core
+  public Nv21Converter()
+  {
+    this(Runtime.getRuntime().availableProcessors());
+  }
+
+  public int getThreadCount()
+  {
+    return mStripes.length;
+  }
+
+  public synchronized void toArgb8888(byte[] nv21, int width, int height, int[] out)
+  {
+    check(nv21, width, height, out == null ? -1 : out.length);
+    run(nv21, width, height, out, null);
+  }
+
+  public synchronized void toRgb565(byte[] nv21, int width, int height, short[] out)
+  {
+    check(nv21, width, height, out == null ? -1 : out.length);
+    run(nv21, width, height, null, out);
+  }
+
+  /// Stops the helper threads; the converter is unusable afterwards
+  public void shutdown()
+  {
+    mShutdown = true;
+    for (int i = 1; i < mStripes.length; i++)
+      mStripes[i].mStart.release();
+  }
+
+  /// Straightforward floating point conversion to check the fast path against
+  public static void toArgb8888Reference(byte[] nv21, int width, int height, int[] out)
+  {
+    final int frameSize = width * height;
+    for (int row = 0; row < height; row++)
+      for (int col = 0; col < width; col++)
+      {
+        final int uv = frameSize + (row >> 1) * width + (col & ~1);
+        final double y = (nv21[row * width + col] & 0xff) - 16;
+        final double v = (nv21[uv] & 0xff) - 128;
+        final double u = (nv21[uv + 1] & 0xff) - 128;
+        final int r = clampReference(1.164 * y + 1.596 * v);
+        final int g = clampReference(1.164 * y - 0.813 * v - 0.391 * u);
+        final int b = clampReference(1.164 * y + 2.018 * u);
+        out[row * width + col] = 0xff000000 | (r << 16) | (g << 8) | b;
+      }
+  }
+
+  /// Largest per-channel difference between two ARGB images
+  public static int maxChannelError(int[] a, int[] b, int pixels)
+  {
+    int max = 0;
+    for (int i = 0; i < pixels; i++)
+      for (int shift = 0; shift < 24; shift += 8)
+      {
+        final int d = Math.abs(((a[i] >> shift) & 0xff) - ((b[i] >> shift) & 0xff));
+        if (d > max)
+          max = d;
+      }
+    return max;
+  }
+
+  private static int clampReference(double c)
+  {
+    final long r = Math.round(c);
+    return (int) (r < 0 ? 0 : r > 255 ? 255 : r);
+  }
+
+  private static void check(byte[] nv21, int width, int height, int outLength)
+  {
+    if (width <= 0 || height <= 0 || (width & 1) != 0 || (height & 1) != 0)
+      throw new IllegalArgumentException("NV21 needs positive even dimensions: " + width + "x" + height);
+    if (nv21.length < width * height * 3 / 2)
+      throw new IllegalArgumentException("frame too small for " + width + "x" + height);
+    if (outLength < width * height)
+      throw new IllegalArgumentException("output too small for " + width + "x" + height);
+  }
+
+  private void run(byte[] nv21, int width, int height, int[] argb, short[] rgb565)
+  {
+    // stripes are whole row pairs so no two stripes share a chroma row
+    final int pairs = height / 2;
+    final int count = Math.min(mStripes.length, pairs);
+    int start = 0;
+    for (int i = 0; i < count; i++)
+    {
+      final int end = start + (pairs - start + (count - i) - 1) / (count - i);
+      final Stripe s = mStripes[i];
+      s.mNv21 = nv21;
+      s.mWidth = width;
+      s.mHeight = height;
+      s.mRowStart = start * 2;
+      s.mRowEnd = end * 2;
+      s.mArgb = argb;
+      s.mRgb565 = rgb565;
+      start = end;
+    }
+
+    for (int i = 1; i < count; i++)
+      mStripes[i].mStart.release();
+    mStripes[0].convert();
+    mDone.acquireUninterruptibly(count - 1);
+
+    for (int i = 0; i < count; i++)
+      mStripes[i].clear();
+  }
+
+  private class Stripe implements Runnable
+  {
+    final Semaphore mStart = new Semaphore(0);
+    byte[] mNv21;
+    int[] mArgb;
+    short[] mRgb565;
+    int mWidth;
+    int mHeight;
+    int mRowStart;
+    int mRowEnd;
+
+    @Override
+    public void run()
+    {
+      while (true)
+      {
+        mStart.acquireUninterruptibly();
+        if (mShutdown)
+          return;
+        try {
+          convert();
+        } finally {
+          mDone.release();
+        }
+      }
+    }
+
+    void clear()
+    {
+      mNv21 = null;
+      mArgb = null;
+      mRgb565 = null;
+    }
+
+    void convert()
+    {
+      if (mArgb != null)
+        convertArgb(mNv21, mWidth, mHeight, mRowStart, mRowEnd, mArgb);
+      else
+        convertRgb565(mNv21, mWidth, mHeight, mRowStart, mRowEnd, mRgb565);
+    }
+  }
+
+  private static void convertArgb(byte[] nv21, int width, int height,
+    int rowStart, int rowEnd, int[] out)
+  {
+    final int frameSize = width * height;
+    for (int row = rowStart; row < rowEnd; row++)
+    {
+      int yIndex = row * width;
+      int uvIndex = frameSize + (row >> 1) * width;
+      final int rowEndIndex = yIndex + width;
+      while (yIndex < rowEndIndex)
+      {
+        final int v = nv21[uvIndex++] & 0xff;
+        final int u = nv21[uvIndex++] & 0xff;
+        final int rv = RV_TABLE[v];
+        final int guv = GU_TABLE[u] + GV_TABLE[v];
+        final int bu = BU_TABLE[u];
+
+        // two pixels share each chroma sample
+        for (int k = 0; k < 2; k++, yIndex++)
+        {
+          final int y = Y_TABLE[nv21[yIndex] & 0xff];
+          out[yIndex] = 0xff000000
+            | (CLAMP[((y + rv) >> SHIFT) + CLAMP_OFFSET] << 16)
+            | (CLAMP[((y + guv) >> SHIFT) + CLAMP_OFFSET] << 8)
+            | CLAMP[((y + bu) >> SHIFT) + CLAMP_OFFSET];
+        }
+      }
+    }
+  }
+
+  private static void convertRgb565(byte[] nv21, int width, int height,
+    int rowStart, int rowEnd, short[] out)
+  {
+    final int frameSize = width * height;
+    for (int row = rowStart; row < rowEnd; row++)
+    {
+      int yIndex = row * width;
+      int uvIndex = frameSize + (row >> 1) * width;
+      final int rowEndIndex = yIndex + width;
+      while (yIndex < rowEndIndex)
+      {
+        final int v = nv21[uvIndex++] & 0xff;
+        final int u = nv21[uvIndex++] & 0xff;
+        final int rv = RV_TABLE[v];
+        final int guv = GU_TABLE[u] + GV_TABLE[v];
+        final int bu = BU_TABLE[u];
+
+        for (int k = 0; k < 2; k++, yIndex++)
+        {
+          final int y = Y_TABLE[nv21[yIndex] & 0xff];
+          out[yIndex] = (short) (
+            ((CLAMP[((y + rv) >> SHIFT) + CLAMP_OFFSET] >> 3) << 11)
+            | ((CLAMP[((y + guv) >> SHIFT) + CLAMP_OFFSET] >> 2) << 5)
+            | (CLAMP[((y + bu) >> SHIFT) + CLAMP_OFFSET] >> 3));
+        }
+      }
+    }
+  }
+}
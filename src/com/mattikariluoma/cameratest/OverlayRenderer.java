@@ -0,0 +1,378 @@
+package com.mattikariluoma.cameratest;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import android.util.AttributeSet;
+import android.util.Log;
+import android.content.Context;
+
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
+import android.graphics.PorterDuff;
+import android.graphics.Rect;
+
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
+
+/// A transparent layer over the preview with its own render thread.
+///
+/// Overlay elements are polled at most maxFps times a second, independent
+/// of the camera rate. Each reports the area it needs redrawn, and only
+/// the union of those areas is locked, cleared and redrawn; when nothing
+/// changed nothing is drawn at all. Nothing here touches the view tree,
+/// so the preview and the widgets above it are never invalidated by it.
+public class OverlayRenderer extends SurfaceView implements SurfaceHolder.Callback
+{
+  private static final String TAG = "CameraTest.OverlayRenderer";
+
+  /// Something drawn on the overlay. Both methods run on the render thread.
+  public interface Element
+  {
+    /// Adds to dirty the area that changed since the last draw, if any.
+    /// resized is true when the surface is new or changed size, in which
+    /// case everything is redrawn anyway.
+    void update(Rect dirty, int width, int height, boolean resized);
+    /// Draws the element; the canvas is clipped to the dirty area
+    void draw(Canvas canvas);
+  }
+
+  private final List<Element> mElements = new CopyOnWriteArrayList<Element>();
+  private volatile int mMaxFps = 15;
+  private RenderThread mThread;
+
+  private volatile long mRenders;
+  private volatile long mIdleTicks;
+
+  public OverlayRenderer(Context context)
+  {
+    super(context);
+    init();
+  }
+
+  public OverlayRenderer(Context context, AttributeSet attrs)
+  {
+    super(context, attrs);
+    init();
+  }
+
+  private void init()
+  {
+    setZOrderMediaOverlay(true);
+    getHolder().setFormat(PixelFormat.TRANSLUCENT);
+    getHolder().addCallback(this);
+  }
+
+  public void addElement(Element e)
+  {
+    mElements.add(e);
+  }
+
+  public void removeElement(Element e)
+  {
+    mElements.remove(e);
+  }
+
+  /// Most times per second the overlay is redrawn
+  public void setMaxFps(int fps)
+  {
+    mMaxFps = Math.max(1, fps);
+  }
+
+  public long getRenderCount()
+  {
+    return mRenders;
+  }
+
+  public long getIdleTickCount()
+  {
+    return mIdleTicks;
+  }
+
+  @Override
+  public void surfaceCreated(SurfaceHolder holder)
+  {
+  }
+
+  @Override
+  public synchronized void surfaceChanged(SurfaceHolder holder, int format, int w, int h)
+  {
+    stopThread();
+    mThread = new RenderThread(holder, w, h);
+    mThread.start();
+  }
+
+  @Override
+  public synchronized void surfaceDestroyed(SurfaceHolder holder)
+  {
+    // the surface goes away when this returns, so the thread must be gone
+    stopThread();
+  }
+
+  private void stopThread()
+  {
+    if (mThread == null)
+      return;
+
+    mThread.mRunning = false;
+    mThread.interrupt();
+    boolean interrupted = false;
+    while (mThread.isAlive())
+      try {
+        mThread.join();
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    if (interrupted)
+      Thread.currentThread().interrupt();
+    mThread = null;
+  }
+
+  private class RenderThread extends Thread
+  {
+    private final SurfaceHolder mHolder;
+    private final int mSurfaceWidth;
+    private final int mSurfaceHeight;
+    volatile boolean mRunning = true;
+
+    RenderThread(SurfaceHolder holder, int width, int height)
+    {
+      super("OverlayRenderer");
+      mHolder = holder;
+      mSurfaceWidth = width;
+      mSurfaceHeight = height;
+    }
+
+    @Override
+    public void run()
+    {
+      final Rect dirty = new Rect();
+      boolean resized = true;
+      long next = System.nanoTime();
+
+      while (mRunning)
+      {
+        final long wait = next - System.nanoTime();
+        if (wait > 0)
+          try {
+            Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+          } catch (InterruptedException e) {
+            return;
+          }
+        next = Math.max(next, System.nanoTime() - 1000000000L) + 1000000000L / mMaxFps;
+
+        dirty.setEmpty();
+        for (Element e : mElements)
+          e.update(dirty, mSurfaceWidth, mSurfaceHeight, resized);
+        if (resized)
+          dirty.set(0, 0, mSurfaceWidth, mSurfaceHeight);
+        if (dirty.isEmpty())
+        {
+          mIdleTicks++;
+          continue;
+        }
+
+        // may grow dirty to what the surface actually needs redrawn
+        final Canvas canvas = mHolder.lockCanvas(dirty);
+        if (canvas == null)
+          continue;
+        try {
+          canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+          for (Element e : mElements)
+            e.draw(canvas);
+        } catch (RuntimeException ex) {
+          Log.e(TAG, "overlay draw failed", ex);
+        } finally {
+          mHolder.unlockCanvasAndPost(canvas);
+        }
+        resized = false;
+        mRenders++;
+      }
+    }
+  }
+
+  /// Rule of thirds lines; only drawn when the surface changes
+  public static class Guides implements Element
+  {
+    private final Paint mPaint = new Paint();
+    private int mWidth;
+    private int mHeight;
+
+    public Guides()
+    {
+      mPaint.setColor(0x60ffffff);
+      mPaint.setStrokeWidth(1);
+    }
+
+    @Override
+    public void update(Rect dirty, int width, int height, boolean resized)
+    {
+      mWidth = width;
+      mHeight = height;
+    }
+
+    @Override
+    public void draw(Canvas canvas)
+    {
+      for (int i = 1; i < 3; i++)
+      {
+        canvas.drawLine(mWidth * i / 3f, 0, mWidth * i / 3f, mHeight, mPaint);
+        canvas.drawLine(0, mHeight * i / 3f, mWidth, mHeight * i / 3f, mPaint);
+      }
+    }
+  }
+
+  /// Marks the tiles a MotionDetector last saw change. Only tiles whose
+  /// state flipped are redrawn.
+  public static class MotionMask implements Element
+  {
+    private final MotionDetector mDetector;
+    private final Paint mPaint = new Paint();
+    private boolean[] mMask = new boolean[0];
+    private boolean[] mDrawn = new boolean[0];
+    private int mColumns;
+    private int mRows;
+    private float mTileWidth;
+    private float mTileHeight;
+
+    public MotionMask(MotionDetector detector)
+    {
+      mDetector = detector;
+      mPaint.setColor(0x40ff0000);
+    }
+
+    @Override
+    public void update(Rect dirty, int width, int height, boolean resized)
+    {
+      final int columns = mDetector.getMaskColumns();
+      final int rows = mDetector.getMaskRows();
+      mMask = mDetector.getMask(mMask);
+      // the grid may have been resized between the reads; catch it next time
+      if (columns == 0 || rows == 0 || mMask.length < columns * rows)
+        return;
+
+      if (columns != mColumns || rows != mRows || mDrawn.length < columns * rows)
+      {
+        mColumns = columns;
+        mRows = rows;
+        mDrawn = new boolean[columns * rows];
+        resized = true;
+      }
+      mTileWidth = (float) width / columns;
+      mTileHeight = (float) height / rows;
+
+      // bounding box of the tiles that changed state
+      int left = columns;
+      int top = rows;
+      int right = -1;
+      int bottom = -1;
+      for (int row = 0, t = 0; row < rows; row++)
+        for (int col = 0; col < columns; col++, t++)
+          if (mMask[t] != mDrawn[t])
+          {
+            mDrawn[t] = mMask[t];
+            left = Math.min(left, col);
+            right = Math.max(right, col);
+            top = Math.min(top, row);
+            bottom = Math.max(bottom, row);
+          }
+
+      if (resized)
+        dirty.union(0, 0, width, height);
+      else if (right >= 0)
+        dirty.union((int) (left * mTileWidth), (int) (top * mTileHeight),
+          (int) Math.ceil((right + 1) * mTileWidth), (int) Math.ceil((bottom + 1) * mTileHeight));
+    }
+
+    @Override
+    public void draw(Canvas canvas)
+    {
+      for (int row = 0, t = 0; row < mRows; row++)
+        for (int col = 0; col < mColumns; col++, t++)
+          if (mDrawn[t])
+            canvas.drawRect(col * mTileWidth, row * mTileHeight,
+              (col + 1) * mTileWidth, (row + 1) * mTileHeight, mPaint);
+    }
+  }
+
+  /// FrameMetrics.summary() in the bottom left corner, refreshed at most
+  /// every refreshMillis and only redrawn when the text changed
+  public static class Stats implements Element
+  {
+    private static final int LINE_HEIGHT = 14;
+    private static final int MARGIN = 4;
+
+    private final Paint mPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final long mRefreshNanos;
+    private long mLastRefresh;
+    private String mText = "";
+    private int mLines = 1;
+    private int mBoxWidth;
+    private int mTop;
+
+    public Stats(long refreshMillis)
+    {
+      mRefreshNanos = refreshMillis * 1000000L;
+      mPaint.setColor(Color.WHITE);
+      mPaint.setTextSize(12);
+    }
+
+    @Override
+    public void update(Rect dirty, int width, int height, boolean resized)
+    {
+      final long now = System.nanoTime();
+      if (!resized && now - mLastRefresh < mRefreshNanos)
+        return;
+      mLastRefresh = now;
+
+      final String text = FrameMetrics.get().summary();
+      if (!resized && text.equals(mText))
+        return;
+
+      // the box follows the text, and what it covered before is redrawn too
+      final int oldTop = mTop;
+      final int oldWidth = mBoxWidth;
+      mText = text;
+      measure();
+      mTop = Math.max(0, height - mLines * LINE_HEIGHT - MARGIN);
+      dirty.union(0, Math.min(oldTop, mTop), Math.min(width, Math.max(oldWidth, mBoxWidth)), height);
+    }
+
+    /// Sizes the box to the line count and longest line of mText
+    private void measure()
+    {
+      int lines = 0;
+      float widest = 0;
+      int start = 0;
+      while (start <= mText.length())
+      {
+        int end = mText.indexOf('\n', start);
+        if (end < 0)
+          end = mText.length();
+        widest = Math.max(widest, mPaint.measureText(mText.substring(start, end)));
+        lines++;
+        start = end + 1;
+      }
+      mLines = lines;
+      mBoxWidth = (int) Math.ceil(widest) + 2 * MARGIN;
+    }
+
+    @Override
+    public void draw(Canvas canvas)
+    {
+      int y = mTop + LINE_HEIGHT;
+      int start = 0;
+      while (start <= mText.length())
+      {
+        int end = mText.indexOf('\n', start);
+        if (end < 0)
+          end = mText.length();
+        canvas.drawText(mText.substring(start, end), MARGIN, y, mPaint);
+        y += LINE_HEIGHT;
+        start = end + 1;
+      }
+    }
+  }
+}
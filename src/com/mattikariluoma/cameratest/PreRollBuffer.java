@@ -0,0 +1,339 @@
+package com.mattikariluoma.cameratest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/// Keeps the most recent preview frames in a preallocated, off-heap ring.
+///
+/// The ring is one direct ByteBuffer cut into frame-sized slots, enough
+/// for the requested window of frames but no more than the memory budget
+/// allows, so holding a few seconds of frames puts no pressure on the Java
+/// heap. It is allocated for the first frame of each size; nothing is
+/// allocated per frame.
+///
+/// There is a single writer (a FrameDispatcher worker) that never waits
+/// for readers. Each slot carries a stamp that is odd while the slot is
+/// being written, seqlock style; a reader copies a slot out and keeps the
+/// copy only if the stamp was even and unchanged across the copy, so a
+/// reader racing the writer drops that frame instead of blocking it.
+///
+/// Saved files are a sequence of frames, each a 24 byte big-endian header
+/// (int width, int height, long timestamp in ns, int length, int 0)
+/// followed by length bytes of NV21.
+public class PreRollBuffer implements FrameDispatcher.FrameConsumer
+{
+  public static final int HEADER_SIZE = 24;
+
+  private final int mBudgetBytes;
+  private final int mMaxSlots;
+  private final int mFps;
+
+  /// Slot geometry for one frame size; replaced when the size changes
+  private static class Layout
+  {
+    final int width;
+    final int height;
+    final int frameSize;
+    final int slots;
+    final AtomicLongArray stamps;
+    final long[] timestamps;
+    final ByteBuffer storage;
+    /// Only touched by the writer
+    final ByteBuffer writeView;
+    /// Frames ever written with this layout; frame n is in slot n % slots
+    volatile long written;
+    volatile boolean retired;
+
+    Layout(int width, int height, int capacity, int maxSlots)
+    {
+      this.width = width;
+      this.height = height;
+      frameSize = FrameBufferPool.nv21Size(width, height);
+      slots = Math.min(capacity / frameSize, maxSlots);
+      stamps = new AtomicLongArray(slots);
+      timestamps = new long[slots];
+      storage = ByteBuffer.allocateDirect(slots * frameSize);
+      writeView = storage.duplicate();
+    }
+  }
+
+  /// A frame copied out by copyNearest(); its buffer is reused by the
+  /// next copy into the same snapshot
+  public static class Snapshot
+  {
+    private byte[] mData = new byte[0];
+    private int mWidth;
+    private int mHeight;
+    private long mTimestampNanos;
+
+    /// NV21, getLength() bytes of it valid
+    public byte[] getData()
+    {
+      return mData;
+    }
+
+    public int getLength()
+    {
+      return FrameBufferPool.nv21Size(mWidth, mHeight);
+    }
+
+    public int getWidth()
+    {
+      return mWidth;
+    }
+
+    public int getHeight()
+    {
+      return mHeight;
+    }
+
+    public long getTimestampNanos()
+    {
+      return mTimestampNanos;
+    }
+  }
+
+  private volatile Layout mLayout;
+
+  private volatile long mDropped;
+  private volatile long mTorn;
+
+  /// Holds as many frames as fit in budgetBytes of off-heap memory
+  public PreRollBuffer(int budgetBytes)
+  {
+    this(budgetBytes, Integer.MAX_VALUE, 0);
+  }
+
+  /// Holds windowMillis of frames arriving at fps, or as many as fit in
+  /// budgetBytes of off-heap memory if that is fewer
+  public PreRollBuffer(long windowMillis, int fps, int budgetBytes)
+  {
+    // save() and copyNearest() skip the slot the writer may be filling
+    this(budgetBytes, (int) Math.min(Integer.MAX_VALUE, (windowMillis * fps + 999) / 1000 + 1), fps);
+    if (windowMillis <= 0 || fps <= 0)
+      throw new IllegalArgumentException("window and fps must be positive: " + windowMillis + "ms " + fps);
+  }
+
+  private PreRollBuffer(int budgetBytes, int maxSlots, int fps)
+  {
+    if (budgetBytes <= 0)
+      throw new IllegalArgumentException("budget must be positive: " + budgetBytes);
+
+    mBudgetBytes = budgetBytes;
+    mMaxSlots = maxSlots;
+    mFps = fps;
+  }
+
+  /// The most off-heap memory frames may take
+  public int getCapacityBytes()
+  {
+    return mBudgetBytes;
+  }
+
+  /// Milliseconds of frames the ring holds at the fps it was sized for,
+  /// 0 before the first frame or without a window
+  public long getWindowMillis()
+  {
+    final Layout l = mLayout;
+    return l == null || mFps == 0 ? 0 : Math.max(0, l.slots - 1) * 1000L / mFps;
+  }
+
+  /// Number of frames of the current size the ring holds, 0 before the first
+  public int getSlotCount()
+  {
+    final Layout l = mLayout;
+    return l == null ? 0 : l.slots;
+  }
+
+  /// Frames buffered right now
+  public int getFrameCount()
+  {
+    final Layout l = mLayout;
+    return l == null ? 0 : (int) Math.min(l.written, l.slots);
+  }
+
+  /// Frames too large to fit the budget at all
+  public long getDroppedCount()
+  {
+    return mDropped;
+  }
+
+  /// Frames a reader gave up because the writer overwrote them mid-copy
+  public long getTornCount()
+  {
+    return mTorn;
+  }
+
+  @Override
+  public void onFrame(FrameDispatcher.Frame frame)
+  {
+    write(frame.getData(), frame.getWidth(), frame.getHeight(), frame.getTimestampNanos());
+  }
+
+  /// Stores a frame, overwriting the oldest. Only one thread may write.
+  public void write(byte[] nv21, int width, int height, long timestampNanos)
+  {
+    Layout l = mLayout;
+    if (l == null || l.width != width || l.height != height)
+    {
+      if (l != null)
+        l.retired = true;
+      l = new Layout(width, height, mBudgetBytes, mMaxSlots);
+      mLayout = l;
+    }
+    if (l.slots == 0)
+    {
+      mDropped++;
+      return;
+    }
+
+    final long n = l.written;
+    final int slot = (int) (n % l.slots);
+    final long stamp = l.stamps.get(slot);
+    l.stamps.set(slot, stamp + 1);
+    l.writeView.clear();
+    l.writeView.position(slot * l.frameSize);
+    l.writeView.put(nv21, 0, l.frameSize);
+    l.timestamps[slot] = timestampNanos;
+    l.stamps.set(slot, stamp + 2);
+    l.written = n + 1;
+  }
+
+  /// Writes the buffered frames no older than maxAgeNanos (relative to the
+  /// newest), oldest first, to file while the writer keeps running.
+  /// Returns the number of frames saved.
+  public int save(File file, long maxAgeNanos) throws IOException
+  {
+    final Layout l = mLayout;
+    if (l == null || l.slots == 0)
+      return 0;
+
+    final ByteBuffer view = l.storage.duplicate();
+    final ByteBuffer copy = ByteBuffer.allocateDirect(HEADER_SIZE + l.frameSize);
+    copy.order(ByteOrder.BIG_ENDIAN);
+
+    final FileOutputStream out = new FileOutputStream(file);
+    int saved = 0;
+    try {
+      final FileChannel channel = out.getChannel();
+      final long newest = l.written - 1;
+      final long newestTime = newest >= 0 ? l.timestamps[(int) (newest % l.slots)] : 0;
+
+      // the writer keeps going, so start a slot past the oldest it could be filling
+      for (long n = Math.max(0, newest - l.slots + 2); n <= newest; n++)
+      {
+        final int slot = (int) (n % l.slots);
+        final long before = l.stamps.get(slot);
+        if ((before & 1) != 0)
+        {
+          mTorn++;
+          continue;
+        }
+        final long timestamp = l.timestamps[slot];
+
+        copy.clear();
+        copy.putInt(l.width).putInt(l.height).putLong(timestamp)
+          .putInt(l.frameSize).putInt(0);
+        view.clear();
+        view.position(slot * l.frameSize);
+        view.limit(slot * l.frameSize + l.frameSize);
+        copy.put(view);
+
+        if (l.stamps.get(slot) != before || l.retired)
+        {
+          mTorn++;
+          continue;
+        }
+        if (newestTime - timestamp > maxAgeNanos)
+          continue;
+
+        copy.flip();
+        while (copy.hasRemaining())
+          channel.write(copy);
+        saved++;
+      }
+    } finally {
+      out.close();
+    }
+    return saved;
+  }
+
+  /// Timestamp of the newest buffered frame, or -1 if there is none
+  public long getNewestTimestampNanos()
+  {
+    final Layout l = mLayout;
+    if (l == null || l.slots == 0)
+      return -1;
+    final long newest = l.written - 1;
+    return newest < 0 ? -1 : l.timestamps[(int) (newest % l.slots)];
+  }
+
+  /// Copies the buffered frame whose timestamp is nearest timestampNanos
+  /// into snapshot while the writer keeps running. Returns false if there
+  /// is no frame, or every candidate was overwritten while being copied.
+  public boolean copyNearest(long timestampNanos, Snapshot snapshot)
+  {
+    final Layout l = mLayout;
+    if (l == null || l.slots == 0)
+      return false;
+    if (snapshot.mData.length < l.frameSize)
+      snapshot.mData = new byte[l.frameSize];
+
+    final ByteBuffer view = l.storage.duplicate();
+    // a frame lost to the writer mid-copy is retried with the next nearest
+    for (int attempt = 0; attempt < 3; attempt++)
+    {
+      final long newest = l.written - 1;
+      int best = -1;
+      long bestDistance = Long.MAX_VALUE;
+      for (long n = Math.max(0, newest - l.slots + 2); n <= newest; n++)
+      {
+        final int slot = (int) (n % l.slots);
+        final long d = Math.abs(l.timestamps[slot] - timestampNanos);
+        if (d < bestDistance)
+        {
+          bestDistance = d;
+          best = slot;
+        }
+      }
+      if (best < 0)
+        return false;
+
+      final long before = l.stamps.get(best);
+      if ((before & 1) != 0)
+      {
+        mTorn++;
+        continue;
+      }
+      final long timestamp = l.timestamps[best];
+      view.clear();
+      view.position(best * l.frameSize);
+      view.get(snapshot.mData, 0, l.frameSize);
+      if (l.stamps.get(best) != before || l.retired)
+      {
+        mTorn++;
+        continue;
+      }
+
+      snapshot.mWidth = l.width;
+      snapshot.mHeight = l.height;
+      snapshot.mTimestampNanos = timestamp;
+      return true;
+    }
+    return false;
+  }
+
+  /// Forgets all buffered frames
+  public void clear()
+  {
+    final Layout l = mLayout;
+    if (l != null)
+      l.retired = true;
+    mLayout = null;
+  }
+}
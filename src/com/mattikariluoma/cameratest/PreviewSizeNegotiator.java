@@ -0,0 +1,312 @@
+package com.mattikariluoma.cameratest;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+
+/// Chooses a preview size and frame rate range for a camera and view.
+///
+/// Every supported size is scored on how far its aspect ratio is from the
+/// view's, how its pixel count compares to the view's (too few pixels
+/// costs more than too many), and the best frame rate it can sustain: the
+/// fastest supported fps range whose frame interval still leaves room for
+/// the per-frame processing cost of that many pixels. Sizes whose cost
+/// does not fit the budget at any rate are only chosen if nothing fits.
+///
+/// Results are memoized per (camera id, view size), and the supported
+/// sizes and choices can be saved to a properties file so a later launch
+/// neither searches again nor has to ask the camera for its parameters.
+public class PreviewSizeNegotiator
+{
+  public static class Choice
+  {
+    public final int width;
+    public final int height;
+    /// Frame rate range to request, in fps * 1000; 0 if unknown
+    public final int minFps;
+    public final int maxFps;
+    public final double score;
+
+    Choice(int width, int height, int minFps, int maxFps, double score)
+    {
+      this.width = width;
+      this.height = height;
+      this.minFps = minFps;
+      this.maxFps = maxFps;
+      this.score = score;
+    }
+
+    @Override
+    public String toString()
+    {
+      return width + "x" + height + "@" + minFps + "-" + maxFps;
+    }
+  }
+
+  // penalty weights, in units of "one doubling of pixels too many"
+  private static final double ASPECT_WEIGHT = 8.0;
+  private static final double UNDERSIZE_WEIGHT = 2.0;
+  private static final double OVERSIZE_WEIGHT = 1.0;
+  private static final double FPS_WEIGHT = 3.0;
+  private static final double OVER_BUDGET_PENALTY = 1000.0;
+
+  private static final String KEY_DEVICE = "device";
+
+  private final String mDevice;
+  private final Map<Integer, int[][]> mSizes = new HashMap<Integer, int[][]>();
+  private final Map<Integer, int[][]> mFpsRanges = new HashMap<Integer, int[][]>();
+  private final Map<Long, Choice> mChoices = new HashMap<Long, Choice>();
+  private boolean mDirty = false;
+
+  private int mTargetFps = 30000;
+  private double mNanosPerPixel = 4.0;
+  private long mBudgetNanos = 1000000000L / 30;
+
+  private long mSearches;
+  private long mHits;
+
+  /// device identifies the hardware and firmware; saved state from any
+  /// other device string is ignored on load
+  public PreviewSizeNegotiator(String device)
+  {
+    mDevice = device;
+  }
+
+  /// Frame rate wanted, in fps * 1000
+  public synchronized void setTargetFps(int fps)
+  {
+    mTargetFps = fps;
+    mChoices.clear();
+  }
+
+  /// Processing cost per preview pixel and the most a frame may take
+  public synchronized void setCostModel(double nanosPerPixel, long budgetNanos)
+  {
+    mNanosPerPixel = nanosPerPixel;
+    mBudgetNanos = budgetNanos;
+    mChoices.clear();
+  }
+
+  public synchronized boolean hasCapabilities(int cameraId)
+  {
+    return mSizes.containsKey(cameraId);
+  }
+
+  /// sizes are {width, height} pairs; fpsRanges are {min, max} pairs in
+  /// fps * 1000 and may be null if the camera cannot report them
+  public synchronized void setCapabilities(int cameraId, int[][] sizes, int[][] fpsRanges)
+  {
+    mSizes.put(cameraId, sizes);
+    mFpsRanges.put(cameraId, fpsRanges == null ? new int[0][] : fpsRanges);
+    forget(cameraId);
+    mDirty = true;
+  }
+
+  public synchronized int[][] getSupportedSizes(int cameraId)
+  {
+    return mSizes.get(cameraId);
+  }
+
+  /// The best size for a viewWidth x viewHeight view, or null if the
+  /// camera's capabilities are not known
+  public synchronized Choice negotiate(int cameraId, int viewWidth, int viewHeight)
+  {
+    final Long key = key(cameraId, viewWidth, viewHeight);
+    Choice choice = mChoices.get(key);
+    if (choice != null)
+    {
+      mHits++;
+      return choice;
+    }
+
+    final int[][] sizes = mSizes.get(cameraId);
+    if (sizes == null || sizes.length == 0 || viewWidth <= 0 || viewHeight <= 0)
+      return null;
+
+    mSearches++;
+    choice = search(sizes, mFpsRanges.get(cameraId), viewWidth, viewHeight);
+    mChoices.put(key, choice);
+    mDirty = true;
+    return choice;
+  }
+
+  public synchronized long getSearchCount()
+  {
+    return mSearches;
+  }
+
+  public synchronized long getHitCount()
+  {
+    return mHits;
+  }
+
+  /// Forgets memoized choices for a camera, e.g. after its capabilities change
+  public synchronized void forget(int cameraId)
+  {
+    final Iterator<Long> keys = mChoices.keySet().iterator();
+    while (keys.hasNext())
+      if ((keys.next().longValue() >>> 40) == cameraId)
+        keys.remove();
+  }
+
+  private Choice search(int[][] sizes, int[][] fpsRanges, int viewWidth, int viewHeight)
+  {
+    final double targetRatio = (double) viewWidth / viewHeight;
+    final double viewPixels = (double) viewWidth * viewHeight;
+
+    Choice best = null;
+    for (int[] size : sizes)
+    {
+      final double ratio = (double) size[0] / size[1];
+      final double pixels = (double) size[0] * size[1];
+
+      double score = ASPECT_WEIGHT * Math.abs(ratio - targetRatio) / targetRatio;
+
+      final double doublings = Math.log(pixels / viewPixels) / Math.log(2);
+      score += doublings < 0 ? -doublings * UNDERSIZE_WEIGHT : doublings * OVERSIZE_WEIGHT;
+
+      // fastest range whose interval leaves room for processing this size
+      final double cost = pixels * mNanosPerPixel;
+      int minFps = 0;
+      int maxFps = 0;
+      if (fpsRanges != null)
+        for (int[] range : fpsRanges)
+        {
+          final double interval = 1e12 / range[1];
+          if (cost > interval)
+            continue;
+          if (range[1] > maxFps || (range[1] == maxFps && range[0] < minFps))
+          {
+            minFps = range[0];
+            maxFps = range[1];
+          }
+        }
+
+      if (cost > mBudgetNanos)
+        score += OVER_BUDGET_PENALTY * cost / mBudgetNanos;
+      if (maxFps > 0 && maxFps < mTargetFps)
+        score += FPS_WEIGHT * (mTargetFps - maxFps) / mTargetFps;
+      else if (maxFps == 0 && fpsRanges != null && fpsRanges.length > 0)
+        score += FPS_WEIGHT;
+
+      if (best == null || score < best.score)
+        best = new Choice(size[0], size[1], minFps, maxFps, score);
+    }
+    return best;
+  }
+
+  private static Long key(int cameraId, int viewWidth, int viewHeight)
+  {
+    return Long.valueOf(((long) cameraId << 40) | ((long) (viewWidth & 0xfffff) << 20)
+      | (viewHeight & 0xfffff));
+  }
+
+  /// Restores state saved by save(); missing, unreadable or foreign files
+  /// leave the negotiator empty
+  public synchronized void load(File file)
+  {
+    final Properties p = new Properties();
+    try {
+      final FileInputStream in = new FileInputStream(file);
+      try {
+        p.load(in);
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      return;
+    }
+
+    if (!mDevice.equals(p.getProperty(KEY_DEVICE)))
+      return;
+
+    try {
+      final Enumeration<?> names = p.propertyNames();
+      while (names.hasMoreElements())
+      {
+        final String name = (String) names.nextElement();
+        final String value = p.getProperty(name);
+        final String[] parts = name.split("\\.");
+        if (parts.length == 3 && parts[0].equals("camera") && parts[2].equals("sizes"))
+          mSizes.put(Integer.parseInt(parts[1]), parsePairs(value, "x"));
+        else if (parts.length == 3 && parts[0].equals("camera") && parts[2].equals("fps"))
+          mFpsRanges.put(Integer.parseInt(parts[1]), parsePairs(value, "-"));
+        else if (parts.length == 3 && parts[0].equals("choice"))
+        {
+          final int[] view = parsePairs(parts[2], "x")[0];
+          final String[] c = value.split("[x@-]");
+          mChoices.put(key(Integer.parseInt(parts[1]), view[0], view[1]),
+            new Choice(Integer.parseInt(c[0]), Integer.parseInt(c[1]),
+              Integer.parseInt(c[2]), Integer.parseInt(c[3]), 0));
+        }
+      }
+    } catch (RuntimeException e) {
+      // a damaged file only costs us a fresh search
+      mSizes.clear();
+      mFpsRanges.clear();
+      mChoices.clear();
+    }
+    mDirty = false;
+  }
+
+  /// Writes capabilities and choices to file if anything changed
+  public synchronized void save(File file) throws IOException
+  {
+    if (!mDirty)
+      return;
+
+    final Properties p = new Properties();
+    p.setProperty(KEY_DEVICE, mDevice);
+    for (Map.Entry<Integer, int[][]> e : mSizes.entrySet())
+      p.setProperty("camera." + e.getKey() + ".sizes", formatPairs(e.getValue(), "x"));
+    for (Map.Entry<Integer, int[][]> e : mFpsRanges.entrySet())
+      p.setProperty("camera." + e.getKey() + ".fps", formatPairs(e.getValue(), "-"));
+    for (Map.Entry<Long, Choice> e : mChoices.entrySet())
+    {
+      final long k = e.getKey();
+      p.setProperty("choice." + (k >>> 40) + "." + ((k >>> 20) & 0xfffff) + "x" + (k & 0xfffff),
+        e.getValue().toString());
+    }
+
+    final FileOutputStream out = new FileOutputStream(file);
+    try {
+      p.store(out, "preview size negotiation");
+    } finally {
+      out.close();
+    }
+    mDirty = false;
+  }
+
+  private static int[][] parsePairs(String value, String separator)
+  {
+    if (value.length() == 0)
+      return new int[0][];
+
+    final String[] items = value.split(",");
+    final int[][] pairs = new int[items.length][];
+    for (int i = 0; i < items.length; i++)
+    {
+      final String[] pair = items[i].split(separator);
+      pairs[i] = new int[] { Integer.parseInt(pair[0].trim()), Integer.parseInt(pair[1].trim()) };
+    }
+    return pairs;
+  }
+
+  private static String formatPairs(int[][] pairs, String separator)
+  {
+    final StringBuilder out = new StringBuilder();
+    for (int i = 0; i < pairs.length; i++)
+    {
+      if (i > 0)
+        out.append(',');
+      out.append(pairs[i][0]).append(separator).append(pairs[i][1]);
+    }
+    return out.toString();
+  }
+}
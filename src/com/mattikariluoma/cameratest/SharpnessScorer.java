@@ -0,0 +1,157 @@
+package com.mattikariluoma.cameratest;
+
+import java.util.concurrent.Semaphore;
+
+/// Scores how sharp a luma image is, as the variance of its Laplacian.
+///
+/// Blur removes the high frequencies the 4-neighbour Laplacian responds
+/// to, so a sharper shot of the same scene scores higher; scores are only
+/// comparable between shots of the same scene at the same size. The image
+/// is cut into horizontal stripes that are scored on their own threads,
+/// the calling thread taking the first, and the partial sums are combined.
+/// Nothing is allocated per image.
+public class SharpnessScorer
+{
+  private final Stripe[] mStripes;
+  private final Semaphore mDone = new Semaphore(0);
+  private final LumaDecimator mDecimator;
+  private volatile boolean mShutdown = false;
+
+  /// threads is the total number of stripes, including the calling thread;
+  /// NV21 frames are decimated by factor before scoring
+  public SharpnessScorer(int threads, int factor)
+  {
+    if (threads <= 0)
+      throw new IllegalArgumentException("threads must be positive: " + threads);
+
+    mDecimator = new LumaDecimator(factor);
+    mStripes = new Stripe[threads];
+    for (int i = 0; i < threads; i++)
+    {
+      mStripes[i] = new Stripe();
+      if (i > 0)
+      {
+        final Thread t = new Thread(mStripes[i], "SharpnessScorer-" + i);
+        t.setDaemon(true);
+        t.start();
+      }
+    }
+  }
+
+  /// One stripe per available core, scoring at half resolution
+  public SharpnessScorer()
+  {
+    this(Runtime.getRuntime().availableProcessors(), 2);
+  }
+
+  public int getThreadCount()
+  {
+    return mStripes.length;
+  }
+
+  /// Scores the Y plane of a width x height NV21 frame after decimation
+  public synchronized double scoreNv21(byte[] nv21, int width, int height)
+  {
+    final byte[] luma = mDecimator.decimate(nv21, width, height);
+    return score(luma, mDecimator.getOutputWidth(), mDecimator.getOutputHeight());
+  }
+
+  /// Scores a width x height luma image; images under 3x3 score 0
+  public synchronized double score(byte[] luma, int width, int height)
+  {
+    if (width < 3 || height < 3)
+      return 0;
+    if (luma.length < width * height)
+      throw new IllegalArgumentException("image too small for " + width + "x" + height);
+
+    // the Laplacian is defined on interior rows 1 .. height - 2
+    final int rows = height - 2;
+    final int count = Math.min(mStripes.length, rows);
+    int start = 1;
+    for (int i = 0; i < count; i++)
+    {
+      final int end = start + (rows - (start - 1) + (count - i) - 1) / (count - i);
+      final Stripe s = mStripes[i];
+      s.mLuma = luma;
+      s.mWidth = width;
+      s.mRowStart = start;
+      s.mRowEnd = end;
+      start = end;
+    }
+
+    for (int i = 1; i < count; i++)
+      mStripes[i].mStart.release();
+    mStripes[0].score();
+    mDone.acquireUninterruptibly(count - 1);
+
+    long sum = 0;
+    long sumSquares = 0;
+    for (int i = 0; i < count; i++)
+    {
+      sum += mStripes[i].mSum;
+      sumSquares += mStripes[i].mSumSquares;
+      mStripes[i].mLuma = null;
+    }
+
+    final double n = (double) rows * (width - 2);
+    final double mean = sum / n;
+    return sumSquares / n - mean * mean;
+  }
+
+  /// Stops the helper threads; the scorer is unusable afterwards
+  public void shutdown()
+  {
+    mShutdown = true;
+    for (int i = 1; i < mStripes.length; i++)
+      mStripes[i].mStart.release();
+  }
+
+  private class Stripe implements Runnable
+  {
+    final Semaphore mStart = new Semaphore(0);
+    byte[] mLuma;
+    int mWidth;
+    int mRowStart;
+    int mRowEnd;
+    long mSum;
+    long mSumSquares;
+
+    @Override
+    public void run()
+    {
+      while (true)
+      {
+        mStart.acquireUninterruptibly();
+        if (mShutdown)
+          return;
+        try {
+          score();
+        } finally {
+          mDone.release();
+        }
+      }
+    }
+
+    void score()
+    {
+      final byte[] y = mLuma;
+      final int w = mWidth;
+      long sum = 0;
+      long sumSquares = 0;
+      for (int row = mRowStart; row < mRowEnd; row++)
+      {
+        int p = row * w + 1;
+        final int end = row * w + w - 1;
+        for (; p < end; p++)
+        {
+          final int l = (y[p - 1] & 0xff) + (y[p + 1] & 0xff)
+            + (y[p - w] & 0xff) + (y[p + w] & 0xff) - 4 * (y[p] & 0xff);
+          sum += l;
+          sumSquares += l * l;
+        }
+      }
+      mSum = sum;
+      mSumSquares = sumSquares;
+    }
+  }
+}
@@ -0,0 +1,152 @@
+package com.mattikariluoma.cameratest;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/// A least-recently-used cache bounded by the total size of its values
+/// rather than their number.
+///
+/// android.util.LruCache only exists from Honeycomb, so this is the same
+/// idea on a LinkedHashMap in access order: get() moves an entry to the
+/// young end and put() evicts from the old end until the cache fits.
+/// Plain Java so it can be benchmarked off-device.
+public abstract class SizedLruCache<K, V>
+{
+  private final LinkedHashMap<K, V> mMap = new LinkedHashMap<K, V>(16, 0.75f, true);
+  private final long mMaxSize;
+  private long mSize;
+
+  private long mHits;
+  private long mMisses;
+  private long mEvictions;
+
+  public SizedLruCache(long maxSize)
+  {
+    if (maxSize <= 0)
+      throw new IllegalArgumentException("max size must be positive: " + maxSize);
+    mMaxSize = maxSize;
+  }
+
+  /// Size of value in whatever unit maxSize is in; must not change while
+  /// the value is cached
+  protected abstract long sizeOf(K key, V value);
+
+  /// Called without the cache locked for each value evicted or replaced
+  protected void entryRemoved(K key, V value)
+  {
+  }
+
+  public synchronized V get(K key)
+  {
+    final V value = mMap.get(key);
+    if (value == null)
+      mMisses++;
+    else
+      mHits++;
+    return value;
+  }
+
+  /// Caches value under key, evicting the least recently used entries as
+  /// needed. A value larger than the whole cache is not kept.
+  public V put(K key, V value)
+  {
+    final long size = sizeOf(key, value);
+    V previous;
+    synchronized (this)
+    {
+      previous = mMap.remove(key);
+      if (previous != null)
+        mSize -= sizeOf(key, previous);
+      if (size <= mMaxSize)
+      {
+        mMap.put(key, value);
+        mSize += size;
+      }
+    }
+    if (previous != null)
+      entryRemoved(key, previous);
+    trimTo(mMaxSize);
+    return previous;
+  }
+
+  public V remove(K key)
+  {
+    final V previous;
+    synchronized (this)
+    {
+      previous = mMap.remove(key);
+      if (previous != null)
+        mSize -= sizeOf(key, previous);
+    }
+    if (previous != null)
+      entryRemoved(key, previous);
+    return previous;
+  }
+
+  /// Evicts least recently used entries until the cache holds at most size
+  public void trimTo(long size)
+  {
+    while (true)
+    {
+      final K key;
+      final V value;
+      synchronized (this)
+      {
+        if (mSize <= size || mMap.isEmpty())
+          return;
+
+        final Iterator<Map.Entry<K, V>> eldest = mMap.entrySet().iterator();
+        final Map.Entry<K, V> e = eldest.next();
+        key = e.getKey();
+        value = e.getValue();
+        eldest.remove();
+        mSize -= sizeOf(key, value);
+        mEvictions++;
+      }
+      entryRemoved(key, value);
+    }
+  }
+
+  public void evictAll()
+  {
+    trimTo(-1);
+  }
+
+  public synchronized long size()
+  {
+    return mSize;
+  }
+
+  public long maxSize()
+  {
+    return mMaxSize;
+  }
+
+  public synchronized int count()
+  {
+    return mMap.size();
+  }
+
+  public synchronized long getHitCount()
+  {
+    return mHits;
+  }
+
+  public synchronized long getMissCount()
+  {
+    return mMisses;
+  }
+
+  public synchronized long getEvictionCount()
+  {
+    return mEvictions;
+  }
+
+  @Override
+  public synchronized String toString()
+  {
+    return "SizedLruCache[" + mMap.size() + " entries, " + mSize + "/" + mMaxSize
+      + " hits=" + mHits + " misses=" + mMisses + " evictions=" + mEvictions + "]";
+  }
+}
@@ -0,0 +1,441 @@
+package com.mattikariluoma.cameratest;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/// Times the phases of a launch, from onCreate to the first preview frame,
+/// and keeps a history of launches.
+///
+/// A trace starts in onCreate; every phase is marked with System.nanoTime()
+/// relative to that start, the first occurrence only, from whichever
+/// thread it happens on. The first preview frame ends the trace. A launch
+/// is cold if it is the first in its process, warm otherwise; for cold
+/// launches the age of the process at onCreate is read from /proc, which
+/// covers the process start and application setup no callback can see.
+///
+/// Finished traces are appended to a history file, one line each, keeping
+/// the newest MAX_HISTORY: wall clock ms, "cold" or "warm", process age in
+/// ms (-1 if unknown), then key=begin,end in microseconds per phase seen.
+public class StartupTracer
+{
+  public static final int MAX_HISTORY = 500;
+  // Linux USER_HZ, which /proc start times are counted in
+  private static final int CLOCK_TICKS_PER_SECOND = 100;
+
+  public enum Phase
+  {
+    CREATE("onCreate"),
+    INFLATE("inflate"),
+    PREVIEW_INSTANCE("newInstance"),
+    CAMERA_OPEN("cameraOpen"),
+    SURFACE_CHANGED("surfaceChanged"),
+    START_PREVIEW("startPreview"),
+    FIRST_FRAME("firstFrame");
+
+    final String key;
+
+    Phase(String key)
+    {
+      this.key = key;
+    }
+
+    public String getKey()
+    {
+      return key;
+    }
+  }
+
+  /// Told on a background thread once a trace is finished and, if there
+  /// is a history file, written to it
+  public interface Listener
+  {
+    void onTraceFinished(Trace trace);
+  }
+
+  /// One launch
+  public static class Trace
+  {
+    public final long wallMillis;
+    public final boolean cold;
+    /// Age of the process when the trace started, or -1
+    public final long processAgeMillis;
+    private final long[] mBegin = new long[Phase.values().length];
+    private final long[] mEnd = new long[Phase.values().length];
+
+    Trace(long wallMillis, boolean cold, long processAgeMillis)
+    {
+      this.wallMillis = wallMillis;
+      this.cold = cold;
+      this.processAgeMillis = processAgeMillis;
+      Arrays.fill(mBegin, -1);
+      Arrays.fill(mEnd, -1);
+    }
+
+    /// Nanoseconds from the start of the trace, or -1 if not seen
+    public long getBeginNanos(Phase p)
+    {
+      return mBegin[p.ordinal()];
+    }
+
+    public long getEndNanos(Phase p)
+    {
+      return mEnd[p.ordinal()];
+    }
+
+    /// Duration of phase p, or -1 if it was not seen through
+    public long getDurationNanos(Phase p)
+    {
+      final int i = p.ordinal();
+      return mBegin[i] < 0 || mEnd[i] < 0 ? -1 : mEnd[i] - mBegin[i];
+    }
+
+    /// Time from onCreate to the first preview frame, or -1
+    public long getTotalNanos()
+    {
+      return getEndNanos(Phase.FIRST_FRAME);
+    }
+
+    public String toLine()
+    {
+      final StringBuilder out = new StringBuilder(160);
+      out.append(wallMillis).append(' ').append(cold ? "cold" : "warm")
+        .append(' ').append(processAgeMillis);
+      for (Phase p : Phase.values())
+        if (mBegin[p.ordinal()] >= 0)
+          out.append(' ').append(p.key).append('=').append(mBegin[p.ordinal()] / 1000)
+            .append(',').append(mEnd[p.ordinal()] < 0 ? -1 : mEnd[p.ordinal()] / 1000);
+      return out.toString();
+    }
+
+    /// The trace written by toLine(), or null if line is not one
+    public static Trace parse(String line)
+    {
+      final String[] fields = line.trim().split(" ");
+      if (fields.length < 3)
+        return null;
+      try {
+        final Trace t = new Trace(Long.parseLong(fields[0]), "cold".equals(fields[1]),
+          Long.parseLong(fields[2]));
+        for (int i = 3; i < fields.length; i++)
+        {
+          final int eq = fields[i].indexOf('=');
+          final int comma = fields[i].indexOf(',');
+          if (eq < 0 || comma < eq)
+            return null;
+          final Phase p = phaseOf(fields[i].substring(0, eq));
+          if (p == null)
+            continue;
+          t.mBegin[p.ordinal()] = Long.parseLong(fields[i].substring(eq + 1, comma)) * 1000;
+          final long end = Long.parseLong(fields[i].substring(comma + 1));
+          t.mEnd[p.ordinal()] = end < 0 ? -1 : end * 1000;
+        }
+        return t;
+      } catch (NumberFormatException e) {
+        return null;
+      }
+    }
+
+    @Override
+    public String toString()
+    {
+      return toLine();
+    }
+  }
+
+  private static Phase phaseOf(String key)
+  {
+    for (Phase p : Phase.values())
+      if (p.key.equals(key))
+        return p;
+    return null;
+  }
+
+  private static final StartupTracer sInstance = new StartupTracer();
+
+  private int mLaunches;
+  private long mOrigin;
+  private Trace mTrace;
+  private volatile boolean mTracing = false;
+  private volatile File mHistoryFile;
+  private volatile Listener mListener;
+  private volatile Trace mLastTrace;
+
+  public static StartupTracer get()
+  {
+    return sInstance;
+  }
+
+  /// Finished traces are appended to file
+  public void setHistoryFile(File file)
+  {
+    mHistoryFile = file;
+  }
+
+  public synchronized void setListener(Listener l)
+  {
+    mListener = l;
+  }
+
+  /// Clears the listener if it is still l, so an activity going away
+  /// does not clear the one its successor set
+  public synchronized void removeListener(Listener l)
+  {
+    if (mListener == l)
+      mListener = null;
+  }
+
+  /// Starts tracing a launch, dropping any trace left unfinished
+  public synchronized void start()
+  {
+    mOrigin = System.nanoTime();
+    final boolean cold = mLaunches++ == 0;
+    mTrace = new Trace(System.currentTimeMillis(), cold, cold ? readProcessAgeMillis() : -1);
+    mTracing = true;
+  }
+
+  /// Drops the trace in progress, e.g. when the launch is left before any
+  /// frame arrived
+  public synchronized void abandon()
+  {
+    mTracing = false;
+    mTrace = null;
+  }
+
+  public boolean isTracing()
+  {
+    return mTracing;
+  }
+
+  public void begin(Phase p)
+  {
+    if (!mTracing)
+      return;
+    final long now = System.nanoTime();
+    synchronized (this)
+    {
+      if (mTrace != null && mTrace.mBegin[p.ordinal()] < 0)
+        mTrace.mBegin[p.ordinal()] = now - mOrigin;
+    }
+  }
+
+  /// Ends phase p, if it has begun and not ended yet
+  public void end(Phase p)
+  {
+    if (!mTracing)
+      return;
+    final long now = System.nanoTime();
+    synchronized (this)
+    {
+      final int i = p.ordinal();
+      if (mTrace != null && mTrace.mBegin[i] >= 0 && mTrace.mEnd[i] < 0)
+        mTrace.mEnd[i] = now - mOrigin;
+    }
+  }
+
+  /// Marks a preview frame that arrived at frameNanos (System.nanoTime());
+  /// the first one finishes the trace. Cheap when not tracing.
+  public void onPreviewFrame(long frameNanos)
+  {
+    if (!mTracing)
+      return;
+
+    final Trace trace;
+    synchronized (this)
+    {
+      trace = mTrace;
+      if (trace == null)
+        return;
+      trace.mBegin[Phase.FIRST_FRAME.ordinal()] = frameNanos - mOrigin;
+      trace.mEnd[Phase.FIRST_FRAME.ordinal()] = frameNanos - mOrigin;
+      mTrace = null;
+      mTracing = false;
+    }
+    mLastTrace = trace;
+
+    // off the camera thread, which has frames to deliver
+    final Thread t = new Thread("StartupHistory")
+    {
+      @Override
+      public void run()
+      {
+        final File file = mHistoryFile;
+        if (file != null)
+          try {
+            appendHistory(file, trace);
+          } catch (IOException e) {
+            // the trace is still reported
+          }
+        final Listener l = mListener;
+        if (l != null)
+          l.onTraceFinished(trace);
+      }
+    };
+    t.start();
+  }
+
+  /// The last finished trace, or null
+  public Trace getLastTrace()
+  {
+    return mLastTrace;
+  }
+
+  /// Milliseconds since this process started, from /proc, or -1 where
+  /// that cannot be read
+  public static long readProcessAgeMillis()
+  {
+    try {
+      final String stat = readFirstLine(new File("/proc/self/stat"));
+      final String uptime = readFirstLine(new File("/proc/uptime"));
+      if (stat == null || uptime == null)
+        return -1;
+
+      // the command name may hold spaces, but is the only field in parens
+      final String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+      // starttime is field 22; fields[0] here is field 3
+      final long startTicks = Long.parseLong(fields[19]);
+      final double uptimeSeconds = Double.parseDouble(uptime.split(" ")[0]);
+      return (long) (uptimeSeconds * 1000) - startTicks * 1000 / CLOCK_TICKS_PER_SECOND;
+    } catch (IOException e) {
+      return -1;
+    } catch (RuntimeException e) {
+      return -1;
+    }
+  }
+
+  private static String readFirstLine(File file) throws IOException
+  {
+    final BufferedReader in = new BufferedReader(new FileReader(file), 1024);
+    try {
+      return in.readLine();
+    } finally {
+      in.close();
+    }
+  }
+
+  /// Traces in file, oldest first; lines that do not parse are skipped
+  public static List<Trace> loadHistory(File file) throws IOException
+  {
+    final List<Trace> traces = new ArrayList<Trace>();
+    if (!file.exists())
+      return traces;
+
+    final BufferedReader in = new BufferedReader(new FileReader(file));
+    try {
+      String line;
+      while ((line = in.readLine()) != null)
+      {
+        final Trace t = Trace.parse(line);
+        if (t != null)
+          traces.add(t);
+      }
+    } finally {
+      in.close();
+    }
+    return traces;
+  }
+
+  /// Appends trace to file, dropping the oldest beyond MAX_HISTORY
+  public static synchronized void appendHistory(File file, Trace trace) throws IOException
+  {
+    final List<Trace> traces = loadHistory(file);
+    traces.add(trace);
+    final int from = Math.max(0, traces.size() - MAX_HISTORY);
+
+    // written aside and renamed, so a crash leaves the old history or the new
+    final File tmp = new File(file.getPath() + ".tmp");
+    final FileWriter out = new FileWriter(tmp);
+    try {
+      for (int i = from; i < traces.size(); i++)
+        out.write(traces.get(i).toLine() + "\n");
+    } finally {
+      out.close();
+    }
+    if (!tmp.renameTo(file))
+      throw new IOException("cannot rename " + tmp + " to " + file);
+  }
+
+  /// Nearest-rank percentile of the values, which are sorted in place;
+  /// -1 if there are none
+  public static long percentile(long[] values, int count, double percentile)
+  {
+    if (count == 0)
+      return -1;
+    Arrays.sort(values, 0, count);
+    final int rank = (int) Math.ceil(percentile / 100 * count);
+    return values[Math.max(0, Math.min(count - 1, rank - 1))];
+  }
+
+  /// p50/p90/p99/max in ms of every phase's duration and of the time to
+  /// the first frame, over the cold or warm traces among traces
+  public static String report(List<Trace> traces, boolean cold)
+  {
+    final long[] values = new long[traces.size()];
+    final StringBuilder out = new StringBuilder(512);
+    int launches = 0;
+    for (Trace t : traces)
+      if (t.cold == cold)
+        launches++;
+    out.append(cold ? "cold" : "warm").append(" starts: ").append(launches)
+      .append(", ms p50/p90/p99/max\n");
+    if (launches == 0)
+      return out.toString();
+
+    int n = 0;
+    if (cold)
+    {
+      for (Trace t : traces)
+        if (t.cold && t.processAgeMillis >= 0)
+          values[n++] = t.processAgeMillis * 1000000;
+      appendPercentiles(out, "process", values, n);
+    }
+    for (Phase p : Phase.values())
+    {
+      // an instant; its time from the start is the total below
+      if (p == Phase.FIRST_FRAME)
+        continue;
+      n = 0;
+      for (Trace t : traces)
+        if (t.cold == cold && t.getDurationNanos(p) >= 0)
+          values[n++] = t.getDurationNanos(p);
+      appendPercentiles(out, p.key, values, n);
+    }
+    n = totals(traces, cold, values);
+    appendPercentiles(out, "total", values, n);
+    return out.toString();
+  }
+
+  /// Percentile of the time to the first frame, in ns, over the cold or
+  /// warm traces among traces; -1 if there are none
+  public static long totalPercentile(List<Trace> traces, boolean cold, double percentile)
+  {
+    final long[] values = new long[traces.size()];
+    return percentile(values, totals(traces, cold, values), percentile);
+  }
+
+  private static int totals(List<Trace> traces, boolean cold, long[] values)
+  {
+    int n = 0;
+    for (Trace t : traces)
+      if (t.cold == cold && t.getTotalNanos() >= 0)
+        values[n++] = t.getTotalNanos();
+    return n;
+  }
+
+  private static void appendPercentiles(StringBuilder out, String name, long[] values, int n)
+  {
+    if (n == 0)
+      return;
+    out.append("  ").append(name).append(' ')
+      .append(percentile(values, n, 50) / 1000000).append('/')
+      .append(percentile(values, n, 90) / 1000000).append('/')
+      .append(percentile(values, n, 99) / 1000000).append('/')
+      .append(percentile(values, n, 100) / 1000000)
+      .append(" (n=").append(n).append(")\n");
+  }
+}
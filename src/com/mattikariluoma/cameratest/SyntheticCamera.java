@@ -0,0 +1,410 @@
+package com.mattikariluoma.cameratest;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/// A camera that needs no hardware: previews generated or recorded NV21
+/// frames and takes pictures after a configurable delay.
+///
+/// It follows the contracts of android.hardware.Camera that the rest of
+/// the app relies on, so pipelines can be run and benchmarked on a plain
+/// JVM. Every callback arrives on one camera thread. Preview frames are
+/// delivered at a fixed rate on an absolute schedule; in buffer mode each
+/// frame needs a buffer from addCallbackBuffer() and is dropped if there
+/// is none. takePicture() stops the preview, calls onShutter() after the
+/// shutter latency and onPictureTaken() after the jpeg latency on top of
+/// that, and the preview stays stopped until startPreview().
+///
+/// With a frame rate of 0 nothing is delivered on its own, and step()
+/// delivers frames on the calling thread instead, for tests that want
+/// to go as fast as the consumers allow.
+public class SyntheticCamera
+{
+  /// Produces the preview frames; all frames have the same size
+  public interface Source
+  {
+    int getWidth();
+    int getHeight();
+    /// Fills out, which holds at least one NV21 frame, with frame index
+    void fill(byte[] out, long index) throws IOException;
+  }
+
+  public interface PreviewListener
+  {
+    void onPreviewFrame(byte[] data, long timestampNanos);
+  }
+
+  public interface PictureListener
+  {
+    void onShutter();
+    void onPictureTaken(byte[] data);
+  }
+
+  public interface FocusListener
+  {
+    void onFocus(boolean success);
+  }
+
+  /// Turns a captured frame into picture data, e.g. a jpeg
+  public interface Encoder
+  {
+    byte[] encode(byte[] nv21, int width, int height);
+  }
+
+  public static final String PREVIEW_SIZE = "preview-size";
+  public static final String PREVIEW_FRAME_RATE = "preview-frame-rate";
+
+  private final Source mSource;
+  private final int mFrameSize;
+  private final Map<String, String> mParameters = new LinkedHashMap<String, String>();
+  private final LinkedList<byte[]> mBuffers = new LinkedList<byte[]>();
+
+  private ScheduledExecutorService mThread;
+  private ScheduledFuture<?> mFrames;
+  private int mFps;
+  private boolean mPreviewing;
+  private PreviewListener mPreviewListener;
+  private boolean mWithBuffer;
+  private Encoder mEncoder;
+  private long mFrameIndex;
+
+  private long mShutterLatencyMillis;
+  private long mJpegLatencyMillis;
+  private long mFocusLatencyMillis;
+
+  private volatile long mDelivered;
+  private volatile long mDropped;
+  private volatile long mPictures;
+
+  /// Previews frames of source at fps frames per second, 0 for step()
+  public SyntheticCamera(Source source, int fps)
+  {
+    if (fps < 0)
+      throw new IllegalArgumentException("frame rate must not be negative: " + fps);
+
+    mSource = source;
+    mFrameSize = FrameBufferPool.nv21Size(source.getWidth(), source.getHeight());
+    mFps = fps;
+
+    final String size = source.getWidth() + "x" + source.getHeight();
+    mParameters.put(PREVIEW_SIZE, size);
+    mParameters.put("preview-size-values", size);
+    mParameters.put(PREVIEW_FRAME_RATE, Integer.toString(fps));
+    mParameters.put("preview-frame-rate-values", Integer.toString(fps));
+    mParameters.put("preview-format", "yuv420sp");
+    mParameters.put("picture-size", size);
+    mParameters.put("picture-size-values", size);
+    mParameters.put("focus-mode", "auto");
+    mParameters.put("focus-mode-values", "auto");
+  }
+
+  /// A stand-in previewing the deterministic frames of SyntheticFrames
+  public static SyntheticCamera generated(int width, int height, int fps)
+  {
+    return new SyntheticCamera(new SyntheticFrames(width, height, 1), fps);
+  }
+
+  /// A stand-in previewing a recorded frame log over and over. Frames of
+  /// another size than the first are replaced by the one before them.
+  public static SyntheticCamera replay(final FrameLogReader log, int fps)
+  {
+    if (log.getFrameCount() == 0)
+      throw new IllegalArgumentException("frame log is empty: " + log.getDirectory());
+
+    final int width = log.getWidth(0);
+    final int height = log.getHeight(0);
+    return new SyntheticCamera(new Source()
+    {
+      @Override
+      public int getWidth()
+      {
+        return width;
+      }
+
+      @Override
+      public int getHeight()
+      {
+        return height;
+      }
+
+      @Override
+      public void fill(byte[] out, long index) throws IOException
+      {
+        final int i = (int) (index % log.getFrameCount());
+        if (log.getWidth(i) == width && log.getHeight(i) == height)
+          log.read(i, out);
+      }
+    }, fps);
+  }
+
+  public int getWidth()
+  {
+    return mSource.getWidth();
+  }
+
+  public int getHeight()
+  {
+    return mSource.getHeight();
+  }
+
+  public synchronized void setShutterLatencyMillis(long ms)
+  {
+    mShutterLatencyMillis = ms;
+  }
+
+  public synchronized void setJpegLatencyMillis(long ms)
+  {
+    mJpegLatencyMillis = ms;
+  }
+
+  public synchronized void setFocusLatencyMillis(long ms)
+  {
+    mFocusLatencyMillis = ms;
+  }
+
+  /// Encodes pictures; without one a picture is the raw NV21 frame
+  public synchronized void setEncoder(Encoder encoder)
+  {
+    mEncoder = encoder;
+  }
+
+  /// The parameters in the flattened "key=value;..." form of the platform
+  public synchronized String getParameters()
+  {
+    final StringBuilder sb = new StringBuilder();
+    for (Map.Entry<String, String> e : mParameters.entrySet())
+    {
+      if (sb.length() > 0)
+        sb.append(';');
+      sb.append(e.getKey()).append('=').append(e.getValue());
+    }
+    return sb.toString();
+  }
+
+  /// Applies changed parameters. Like a real camera, throws and applies
+  /// nothing if the preview size is not the one the source produces.
+  public synchronized void setParameters(Map<String, String> changes)
+  {
+    final String size = changes.get(PREVIEW_SIZE);
+    if (size != null && !size.equals(mParameters.get(PREVIEW_SIZE)))
+      throw new RuntimeException("setParameters failed: unsupported preview size " + size);
+
+    int fps = mFps;
+    final String rate = changes.get(PREVIEW_FRAME_RATE);
+    if (rate != null)
+    {
+      try {
+        fps = Integer.parseInt(rate);
+      } catch (NumberFormatException e) {
+        throw new RuntimeException("setParameters failed: bad frame rate " + rate);
+      }
+      if (fps < 0)
+        throw new RuntimeException("setParameters failed: bad frame rate " + rate);
+    }
+
+    mParameters.putAll(changes);
+    if (fps != mFps)
+    {
+      mFps = fps;
+      if (mPreviewing)
+        scheduleFrames();
+    }
+  }
+
+  /// Frames go to listener, or nowhere if it is null. With withBuffer set,
+  /// each frame is written into a buffer from addCallbackBuffer(),
+  /// otherwise into a newly allocated one.
+  public synchronized void setPreviewListener(PreviewListener listener, boolean withBuffer)
+  {
+    mPreviewListener = listener;
+    mWithBuffer = withBuffer && listener != null;
+    if (!mWithBuffer)
+      mBuffers.clear();
+  }
+
+  public synchronized void addCallbackBuffer(byte[] b)
+  {
+    // the platform ignores buffers too small for a frame, so do we
+    if (b != null && b.length >= mFrameSize)
+      mBuffers.addLast(b);
+  }
+
+  public synchronized void startPreview()
+  {
+    if (mPreviewing)
+      return;
+    mPreviewing = true;
+    scheduleFrames();
+  }
+
+  public synchronized void stopPreview()
+  {
+    mPreviewing = false;
+    if (mFrames != null)
+      mFrames.cancel(false);
+    mFrames = null;
+  }
+
+  public synchronized boolean isPreviewing()
+  {
+    return mPreviewing;
+  }
+
+  private void scheduleFrames()
+  {
+    if (mFrames != null)
+      mFrames.cancel(false);
+    mFrames = null;
+    if (mFps == 0)
+      return;
+
+    mFrames = thread().scheduleAtFixedRate(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        step();
+      }
+    }, 0, 1000000000L / mFps, TimeUnit.NANOSECONDS);
+  }
+
+  private ScheduledExecutorService thread()
+  {
+    if (mThread == null)
+      mThread = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+      {
+        @Override
+        public Thread newThread(Runnable r)
+        {
+          return new Thread(r, "SyntheticCamera");
+        }
+      });
+    return mThread;
+  }
+
+  /// Delivers the next frame now, on the calling thread, if the preview is
+  /// running. Returns false if it was not delivered.
+  public boolean step()
+  {
+    final PreviewListener listener;
+    final byte[] data;
+    final long index;
+    synchronized (this)
+    {
+      if (!mPreviewing || mPreviewListener == null)
+        return false;
+
+      listener = mPreviewListener;
+      index = mFrameIndex++;
+      if (!mWithBuffer)
+        data = new byte[mFrameSize];
+      else if (mBuffers.isEmpty())
+      {
+        mDropped++;
+        return false;
+      }
+      else
+        data = mBuffers.removeFirst();
+    }
+
+    final long timestamp = System.nanoTime();
+    try {
+      mSource.fill(data, index);
+    } catch (IOException e) {
+      mDropped++;
+      return false;
+    }
+    listener.onPreviewFrame(data, timestamp);
+    mDelivered++;
+    return true;
+  }
+
+  public synchronized void autoFocus(final FocusListener listener)
+  {
+    thread().schedule(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        listener.onFocus(true);
+      }
+    }, mFocusLatencyMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /// Captures the current frame, stopping the preview like the platform
+  /// does; throws if the preview is not running
+  public synchronized void takePicture(final PictureListener listener)
+  {
+    if (!mPreviewing)
+      throw new RuntimeException("takePicture failed: preview is not running");
+    stopPreview();
+
+    final long index = mFrameIndex;
+    final Encoder encoder = mEncoder;
+    final ScheduledExecutorService thread = thread();
+    final long jpegLatency = mJpegLatencyMillis;
+    thread.schedule(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        listener.onShutter();
+        thread.schedule(new Runnable()
+        {
+          @Override
+          public void run()
+          {
+            listener.onPictureTaken(capture(index, encoder));
+          }
+        }, jpegLatency, TimeUnit.MILLISECONDS);
+      }
+    }, mShutterLatencyMillis, TimeUnit.MILLISECONDS);
+  }
+
+  private byte[] capture(long index, Encoder encoder)
+  {
+    final byte[] frame = new byte[mFrameSize];
+    try {
+      mSource.fill(frame, index);
+    } catch (IOException e) {
+      // a picture of nothing, rather than no picture at all
+    }
+    mPictures++;
+    return encoder == null ? frame : encoder.encode(frame, getWidth(), getHeight());
+  }
+
+  /// Stops the preview and the camera thread; callbacks already running
+  /// complete, later ones are dropped
+  public synchronized void release()
+  {
+    stopPreview();
+    mPreviewListener = null;
+    mBuffers.clear();
+    if (mThread != null)
+      mThread.shutdownNow();
+    mThread = null;
+  }
+
+  public long getDeliveredCount()
+  {
+    return mDelivered;
+  }
+
+  /// Frames skipped because no callback buffer was free, or the source failed
+  public long getDroppedCount()
+  {
+    return mDropped;
+  }
+
+  public long getPictureCount()
+  {
+    return mPictures;
+  }
+}
@@ -0,0 +1,88 @@
+package com.mattikariluoma.cameratest;
+
+/// Generates deterministic NV21 frames for benchmarks and camera stand-ins.
+///
+/// A frame is a diagonal luma gradient that drifts with the frame index,
+/// a moving bright square, and a little pseudo-random noise from a seeded
+/// LCG, over a slowly varying chroma plane. The same (seed, index) always
+/// produces the same bytes.
+public class SyntheticFrames implements SyntheticCamera.Source
+{
+  private final int mWidth;
+  private final int mHeight;
+  private final long mSeed;
+
+  public SyntheticFrames(int width, int height, long seed)
+  {
+    if (width <= 0 || height <= 0 || (width & 1) != 0 || (height & 1) != 0)
+      throw new IllegalArgumentException("NV21 needs positive even dimensions: " + width + "x" + height);
+
+    mWidth = width;
+    mHeight = height;
+    mSeed = seed;
+  }
+
+  @Override
+  public int getWidth()
+  {
+    return mWidth;
+  }
+
+  @Override
+  public int getHeight()
+  {
+    return mHeight;
+  }
+
+  public int getFrameSize()
+  {
+    return FrameBufferPool.nv21Size(mWidth, mHeight);
+  }
+
+  /// Allocates and fills frame index
+  public byte[] frame(long index)
+  {
+    final byte[] out = new byte[getFrameSize()];
+    fill(out, index);
+    return out;
+  }
+
+  /// Fills out, which must hold at least getFrameSize() bytes, with frame index
+  @Override
+  public void fill(byte[] out, long index)
+  {
+    final int w = mWidth;
+    final int h = mHeight;
+    long state = mSeed * 6364136223846793005L + index * 1442695040888963407L + 1;
+
+    final int shift = (int) (index * 3);
+    final int squareSize = Math.max(2, Math.min(w, h) / 6);
+    final int squareX = (int) ((index * 7) % Math.max(1, w - squareSize));
+    final int squareY = (int) ((index * 5) % Math.max(1, h - squareSize));
+
+    for (int row = 0; row < h; row++)
+    {
+      final int base = row * w;
+      final boolean inSquareRow = row >= squareY && row < squareY + squareSize;
+      for (int col = 0; col < w; col++)
+      {
+        state = state * 6364136223846793005L + 1442695040888963407L;
+        int y = ((col + row + shift) & 0xff) * 3 / 4 + 16 + (int) ((state >>> 60) & 0x7);
+        if (inSquareRow && col >= squareX && col < squareX + squareSize)
+          y = 235;
+        out[base + col] = (byte) y;
+      }
+    }
+
+    final int frameSize = w * h;
+    for (int row = 0; row < h / 2; row++)
+    {
+      final int base = frameSize + row * w;
+      for (int col = 0; col < w; col += 2)
+      {
+        out[base + col] = (byte) (128 + ((row + shift) & 0x3f) - 32);     // V
+        out[base + col + 1] = (byte) (128 + ((col / 2) & 0x3f) - 32);     // U
+      }
+    }
+  }
+}
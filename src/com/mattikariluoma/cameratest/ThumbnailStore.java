@@ -0,0 +1,322 @@
+package com.mattikariluoma.cameratest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+/// Makes and keeps small thumbnails of captures for reviewing them.
+///
+/// A capture is thumbnailed on a background thread as soon as it is on
+/// disk, from a subsampled decode so the full image never reaches memory.
+/// Thumbnails are kept in a memory LRU bounded in bytes, backed by a
+/// directory of small jpegs that outlives the process, so showing a
+/// recent capture is a memory hit or a small decode and never touches the
+/// original. Thumbnails are named after their capture file.
+public class ThumbnailStore
+{
+  private static final String TAG = "CameraTest.ThumbnailStore";
+  private static final int THUMBNAIL_QUALITY = 80;
+  private static final int RECENT_LIMIT = 32;
+
+  /// Told on the thumbnail thread when a thumbnail can be had from memory;
+  /// name is null when the recent list was filled in by addRecent()
+  public interface Listener
+  {
+    void onThumbnailReady(String name);
+  }
+
+  private final File mDirectory;
+  private final int mSize;
+  private final SizedLruCache<String, Bitmap> mMemory;
+  private HandlerThread mThread;
+  private Handler mWorker;
+  private volatile Listener mListener;
+
+  // guarded by this
+  private final LinkedList<String> mRecent = new LinkedList<String>();
+  private final Map<String, File> mSources = new HashMap<String, File>();
+  private final Set<String> mPending = new HashSet<String>();
+
+  private volatile long mCreated;
+  private volatile long mDiskHits;
+
+  /// Thumbnails are at most size pixels on their long edge, cached in
+  /// directory and in up to memoryBytes of bitmaps
+  public ThumbnailStore(File directory, int size, int memoryBytes)
+  {
+    mDirectory = directory;
+    mSize = size;
+    mMemory = new SizedLruCache<String, Bitmap>(memoryBytes)
+    {
+      @Override
+      protected long sizeOf(String name, Bitmap b)
+      {
+        return (long) b.getRowBytes() * b.getHeight();
+      }
+    };
+  }
+
+  public void setListener(Listener l)
+  {
+    mListener = l;
+  }
+
+  public synchronized void start()
+  {
+    if (mThread != null)
+      return;
+
+    mThread = new HandlerThread("Thumbnails", Process.THREAD_PRIORITY_BACKGROUND);
+    mThread.start();
+    mWorker = new Handler(mThread.getLooper());
+  }
+
+  /// Stops the thumbnail thread; work not yet started is dropped
+  public synchronized void stop()
+  {
+    if (mThread == null)
+      return;
+
+    mThread.quit();
+    mThread = null;
+    mWorker = null;
+  }
+
+  private synchronized boolean post(Runnable r)
+  {
+    return mWorker != null && mWorker.post(r);
+  }
+
+  /// Queues a thumbnail of a capture that has just been written
+  public void onCaptureWritten(final File capture)
+  {
+    final String name = capture.getName();
+    synchronized (this)
+    {
+      mSources.put(name, capture);
+    }
+    post(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        final Bitmap b = create(name, capture);
+        if (b != null)
+          publish(name, b);
+      }
+    });
+  }
+
+  /// The thumbnail of capture name from memory, or null while it is being
+  /// loaded; the listener is told once it is there
+  public Bitmap getThumbnail(final String name)
+  {
+    final Bitmap cached = mMemory.get(name);
+    if (cached != null)
+      return cached;
+
+    synchronized (this)
+    {
+      if (!mPending.add(name))
+        return null;
+    }
+    if (!post(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          final Bitmap b = load(name);
+          synchronized (ThumbnailStore.this)
+          {
+            mPending.remove(name);
+          }
+          if (b != null)
+            publish(name, b);
+        }
+      }))
+    {
+      synchronized (this)
+      {
+        mPending.remove(name);
+      }
+    }
+    return null;
+  }
+
+  /// Appends earlier captures, newest first, to the recent list, e.g.
+  /// from a CaptureIndex; thumbnails are made of them on demand
+  public void addRecent(List<File> captures)
+  {
+    synchronized (this)
+    {
+      for (File capture : captures)
+      {
+        if (mRecent.size() >= RECENT_LIMIT)
+          break;
+        final String name = capture.getName();
+        if (mRecent.contains(name))
+          continue;
+        mRecent.addLast(name);
+        if (!getThumbnailFile(name).exists())
+          mSources.put(name, capture);
+      }
+    }
+    final Listener l = mListener;
+    if (l != null)
+      l.onThumbnailReady(null);
+  }
+
+  /// Names of the newest captures, newest first, at most max of them
+  public synchronized List<String> getRecent(int max)
+  {
+    final List<String> out = new ArrayList<String>(Math.min(max, mRecent.size()));
+    for (String name : mRecent)
+    {
+      if (out.size() >= max)
+        break;
+      out.add(name);
+    }
+    return out;
+  }
+
+  public File getThumbnailFile(String name)
+  {
+    return new File(mDirectory, name);
+  }
+
+  /// Largest power of two subsampling that still leaves the long edge of
+  /// a width x height image at least size pixels
+  public static int sampleSizeFor(int width, int height, int size)
+  {
+    final int longEdge = Math.max(width, height);
+    int sample = 1;
+    while (longEdge / (sample * 2) >= size)
+      sample *= 2;
+    return sample;
+  }
+
+  private void publish(String name, Bitmap b)
+  {
+    mMemory.put(name, b);
+    synchronized (this)
+    {
+      mRecent.remove(name);
+      mRecent.addFirst(name);
+      while (mRecent.size() > RECENT_LIMIT)
+        mRecent.removeLast();
+    }
+    final Listener l = mListener;
+    if (l != null)
+      l.onThumbnailReady(name);
+  }
+
+  /// From the disk cache, or made again from the capture if that is known
+  private Bitmap load(String name)
+  {
+    final File file = getThumbnailFile(name);
+    if (file.exists())
+    {
+      final Bitmap b = BitmapFactory.decodeFile(file.getPath());
+      if (b != null)
+      {
+        mDiskHits++;
+        return b;
+      }
+    }
+
+    final File source;
+    synchronized (this)
+    {
+      source = mSources.get(name);
+    }
+    return source == null ? null : create(name, source);
+  }
+
+  private Bitmap create(String name, File capture)
+  {
+    final BitmapFactory.Options options = new BitmapFactory.Options();
+    options.inJustDecodeBounds = true;
+    BitmapFactory.decodeFile(capture.getPath(), options);
+    if (options.outWidth <= 0 || options.outHeight <= 0)
+    {
+      Log.w(TAG, "not an image: " + capture);
+      return null;
+    }
+
+    options.inJustDecodeBounds = false;
+    options.inSampleSize = sampleSizeFor(options.outWidth, options.outHeight, mSize);
+    Bitmap b = BitmapFactory.decodeFile(capture.getPath(), options);
+    if (b == null)
+      return null;
+
+    final int longEdge = Math.max(b.getWidth(), b.getHeight());
+    if (longEdge > mSize)
+    {
+      final Bitmap scaled = Bitmap.createScaledBitmap(b, b.getWidth() * mSize / longEdge,
+        b.getHeight() * mSize / longEdge, true);
+      b.recycle();
+      b = scaled;
+    }
+
+    try {
+      save(name, b);
+      // the disk cache has it now
+      synchronized (this)
+      {
+        mSources.remove(name);
+      }
+    } catch (IOException e) {
+      // still good for this run
+      Log.w(TAG, "could not cache thumbnail of " + capture, e);
+    }
+    mCreated++;
+    return b;
+  }
+
+  private void save(String name, Bitmap b) throws IOException
+  {
+    if (!mDirectory.isDirectory() && !mDirectory.mkdirs())
+      throw new IOException("cannot create " + mDirectory);
+
+    // written aside and renamed, so a crash never leaves half a thumbnail
+    final File tmp = new File(mDirectory, name + ".tmp");
+    final FileOutputStream out = new FileOutputStream(tmp);
+    try {
+      b.compress(Bitmap.CompressFormat.JPEG, THUMBNAIL_QUALITY, out);
+    } finally {
+      out.close();
+    }
+    if (!tmp.renameTo(getThumbnailFile(name)))
+      throw new IOException("cannot rename " + tmp);
+  }
+
+  public long getCreatedCount()
+  {
+    return mCreated;
+  }
+
+  public long getDiskHitCount()
+  {
+    return mDiskHits;
+  }
+
+  @Override
+  public String toString()
+  {
+    return "ThumbnailStore[created=" + mCreated + " diskHits=" + mDiskHits + " " + mMemory + "]";
+  }
+}
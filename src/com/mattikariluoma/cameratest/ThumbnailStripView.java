@@ -0,0 +1,93 @@
+package com.mattikariluoma.cameratest;
+
+import java.util.List;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.util.AttributeSet;
+import android.view.View;
+
+/// A row of thumbnails of the newest captures, newest on the left.
+///
+/// Draws only what the ThumbnailStore has in memory; a thumbnail that is
+/// not is asked for and drawn as a placeholder until the store says it is
+/// ready, so drawing never waits on a decode.
+public class ThumbnailStripView extends View
+{
+  private static final int SPACING = 4;
+
+  private final Paint mPlaceholderPaint = new Paint();
+  private final Rect mSource = new Rect();
+  private final Rect mTarget = new Rect();
+  private ThumbnailStore mStore;
+
+  public ThumbnailStripView(Context context)
+  {
+    super(context);
+    init();
+  }
+
+  public ThumbnailStripView(Context context, AttributeSet attrs)
+  {
+    super(context, attrs);
+    init();
+  }
+
+  private void init()
+  {
+    mPlaceholderPaint.setColor(0x60ffffff);
+  }
+
+  public void setStore(ThumbnailStore store)
+  {
+    if (mStore != null)
+      mStore.setListener(null);
+    mStore = store;
+    if (store != null)
+      store.setListener(thumbnailReady);
+    postInvalidate();
+  }
+
+  /// Called on the thumbnail thread
+  private ThumbnailStore.Listener thumbnailReady = new ThumbnailStore.Listener()
+  {
+    @Override
+    public void onThumbnailReady(String name)
+    {
+      postInvalidate();
+    }
+  };
+
+  @Override
+  protected void onDraw(Canvas canvas)
+  {
+    final ThumbnailStore store = mStore;
+    final int h = getHeight();
+    if (store == null || h == 0)
+      return;
+
+    // square slots as tall as the view, as many as fit
+    final List<String> names = store.getRecent(getWidth() / (h + SPACING) + 1);
+    int x = 0;
+    for (String name : names)
+    {
+      mTarget.set(x, 0, x + h, h);
+      final Bitmap b = store.getThumbnail(name);
+      if (b == null)
+        canvas.drawRect(mTarget, mPlaceholderPaint);
+      else
+      {
+        // centre crop to the square slot
+        final int side = Math.min(b.getWidth(), b.getHeight());
+        final int left = (b.getWidth() - side) / 2;
+        final int top = (b.getHeight() - side) / 2;
+        mSource.set(left, top, left + side, top + side);
+        canvas.drawBitmap(b, mSource, mTarget, null);
+      }
+      x += h + SPACING;
+    }
+  }
+}
@@ -0,0 +1,237 @@
+package com.mattikariluoma.cameratest;
+
+/// Takes a picture every interval for as long as it runs.
+///
+/// Shot n is due at start + n * interval, measured on System.nanoTime(),
+/// so a late shot does not push the ones after it back and the schedule
+/// never drifts. How late each shot was started (slip) and how long it
+/// took to complete (latency) are recorded.
+///
+/// Each shot is a full capture unless the full captures measured so far
+/// take longer than the interval, or the target cannot start one, in
+/// which case a preview frame is saved instead. While full captures are
+/// too slow, every REPROBE_SHOTS-th shot tries one anyway, so the
+/// scheduler returns to them once they are fast enough again. A shot
+/// still in flight when the next falls due, about an interval later, has
+/// timed out: it is abandoned, and a full one counts as too slow. A shot
+/// that cannot be started either way is counted as skipped. The scheduler
+/// never releases the camera, so the preview and its negotiated
+/// parameters stay warm between shots.
+public class TimeLapseScheduler
+{
+  /// Carries out shots; either call may be made from the scheduler thread
+  public interface Target
+  {
+    /// Starts a full capture and eventually calls onShotComplete(true);
+    /// returns false if no capture could be started
+    boolean captureFull();
+    /// Saves an upcoming preview frame and eventually calls
+    /// onShotComplete(false); returns false if that is not possible
+    boolean capturePreview();
+  }
+
+  // latency estimates follow new measurements by this fraction
+  private static final double LATENCY_SMOOTHING = 0.25;
+  // while full captures are too slow, one shot in this many tries one
+  private static final int REPROBE_SHOTS = 10;
+
+  public final Histogram slip = new Histogram("time-lapse slip", "ms",
+    Histogram.exponentialBounds(1, 16384));
+  public final Histogram fullLatency = new Histogram("time-lapse full shot", "ms",
+    Histogram.exponentialBounds(1, 16384));
+  public final Histogram previewLatency = new Histogram("time-lapse preview shot", "ms",
+    Histogram.exponentialBounds(1, 16384));
+
+  private final Target mTarget;
+  private final long mIntervalNanos;
+  private Thread mThread;
+
+  // guarded by this
+  private long mInFlightSince;
+  private boolean mInFlightFull;
+  private boolean mInFlightProbe;
+  private double mFullLatencyEstimate;
+  private int mShotsSinceFull;
+
+  private volatile long mShots;
+  private volatile long mPreviewShots;
+  private volatile long mSkipped;
+  private volatile long mTimedOut;
+
+  public TimeLapseScheduler(Target target, long intervalMillis)
+  {
+    if (intervalMillis <= 0)
+      throw new IllegalArgumentException("interval must be positive: " + intervalMillis);
+
+    mTarget = target;
+    mIntervalNanos = intervalMillis * 1000000L;
+  }
+
+  public synchronized boolean isRunning()
+  {
+    return mThread != null;
+  }
+
+  /// Takes the first shot now and one every interval after it
+  public synchronized void start()
+  {
+    if (mThread != null)
+      return;
+
+    mThread = new Thread("TimeLapse")
+    {
+      @Override
+      public void run()
+      {
+        schedule();
+      }
+    };
+    mThread.start();
+  }
+
+  /// Stops scheduling shots; one already started still completes
+  public void stop()
+  {
+    final Thread t;
+    synchronized (this)
+    {
+      t = mThread;
+      mThread = null;
+    }
+    if (t == null)
+      return;
+
+    t.interrupt();
+    try {
+      t.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void schedule()
+  {
+    final long start = System.nanoTime();
+    for (long n = 0; !Thread.currentThread().isInterrupted(); n++)
+    {
+      final long due = start + n * mIntervalNanos;
+      long wait = due - System.nanoTime();
+      try {
+        while (wait > 0)
+        {
+          Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+          wait = due - System.nanoTime();
+        }
+      } catch (InterruptedException e) {
+        return;
+      }
+
+      final long now = System.nanoTime();
+      // shots long overdue are dropped rather than fired back to back
+      if (now - due >= mIntervalNanos)
+      {
+        mSkipped++;
+        continue;
+      }
+      slip.record((now - due) / 1000000);
+      shoot(now);
+    }
+  }
+
+  private void shoot(long now)
+  {
+    final boolean full;
+    synchronized (this)
+    {
+      if (mInFlightSince != 0)
+      {
+        // the last shot has not completed within an interval
+        mTimedOut++;
+        if (mInFlightFull)
+          mFullLatencyEstimate = Math.max(mFullLatencyEstimate, mIntervalNanos);
+      }
+      final boolean probe = mFullLatencyEstimate >= mIntervalNanos
+        && mShotsSinceFull + 1 >= REPROBE_SHOTS;
+      full = mFullLatencyEstimate < mIntervalNanos || probe;
+      mShotsSinceFull = full ? 0 : mShotsSinceFull + 1;
+      mInFlightSince = now;
+      mInFlightFull = full;
+      mInFlightProbe = probe;
+    }
+
+    boolean started = full && mTarget.captureFull();
+    if (!started)
+    {
+      synchronized (this)
+      {
+        mInFlightFull = false;
+      }
+      started = mTarget.capturePreview();
+    }
+    if (!started)
+    {
+      synchronized (this)
+      {
+        mInFlightSince = 0;
+      }
+      mSkipped++;
+    }
+  }
+
+  /// Called by the target when a shot has been taken; full tells which
+  /// kind, so a late completion of an abandoned shot is not credited to
+  /// a shot of the other kind
+  public void onShotComplete(boolean full)
+  {
+    final long now = System.nanoTime();
+    synchronized (this)
+    {
+      if (mInFlightSince == 0 || mInFlightFull != full)
+        return;
+
+      final long latency = now - mInFlightSince;
+      if (mInFlightFull)
+      {
+        fullLatency.record(latency / 1000000);
+        // a probe measures conditions as they are now, not a trend
+        mFullLatencyEstimate = mFullLatencyEstimate == 0 || mInFlightProbe ? latency
+          : mFullLatencyEstimate + LATENCY_SMOOTHING * (latency - mFullLatencyEstimate);
+      }
+      else
+      {
+        previewLatency.record(latency / 1000000);
+        mPreviewShots++;
+      }
+      mInFlightSince = 0;
+    }
+    mShots++;
+  }
+
+  public long getShotCount()
+  {
+    return mShots;
+  }
+
+  public long getPreviewShotCount()
+  {
+    return mPreviewShots;
+  }
+
+  public long getSkippedCount()
+  {
+    return mSkipped;
+  }
+
+  /// Shots abandoned because they were still in flight an interval later
+  public long getTimedOutCount()
+  {
+    return mTimedOut;
+  }
+
+  public String summary()
+  {
+    return "time-lapse every " + (mIntervalNanos / 1000000) + " ms: " + mShots + " shots ("
+      + mPreviewShots + " from preview), " + mSkipped + " skipped, " + mTimedOut + " timed out\n"
+      + slip.summary() + "\n" + fullLatency.summary() + "\n" + previewLatency.summary();
+  }
+}
@@ -1,14 +1,34 @@
 package com.mattikariluoma.cameratest;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import android.util.Log;
 import android.content.Context;
 import android.os.Build;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 
 import android.hardware.Camera;
+import android.hardware.Camera.AutoFocusCallback;
 import android.hardware.Camera.PictureCallback;
 import android.hardware.Camera.ShutterCallback;
 import android.hardware.Camera.PreviewCallback;
@@ -21,11 +41,23 @@ public abstract class VersionedCamera
 {
   private static final String TAG = "CameraTest.VersionedCamera";
   
+  /// Camera id meaning whichever camera the device opens by default
+  public static final int DEFAULT_CAMERA = -1;
+  
   public static VersionedCamera newInstance() 
+  {
+    return newInstance(DEFAULT_CAMERA);
+  }
+  
+  /// Opens camera cameraId, or the default camera where only that exists
+  public static VersionedCamera newInstance(int cameraId) 
   {
     final int sdkVersion = Integer.parseInt(Build.VERSION.SDK);
+    final SyntheticCamera standIn = sStandIn;
     VersionedCamera detector = null;
-    if (sdkVersion < Build.VERSION_CODES.DONUT)
+    if (standIn != null)
+      detector = new SyntheticDetected(standIn);
+    else if (sdkVersion < Build.VERSION_CODES.DONUT)
       detector = new CupcakeDetected();
     else if (sdkVersion < Build.VERSION_CODES.ECLAIR)
       detector = new DonutDetected();
@@ -34,26 +66,770 @@ public abstract class VersionedCamera
     else if (sdkVersion < Build.VERSION_CODES.GINGERBREAD)
       detector = new FroyoDetected();
     else 
-      detector = new GingerbreadDetected();
+      detector = new GingerbreadDetected(cameraId);
     
     Log.d(TAG, "Created new " + detector.getClass());
 
     return detector;
   }
 
+  private static volatile SyntheticCamera sStandIn;
+  
+  /// Makes newInstance() hand out camera instead of the hardware, or the
+  /// hardware again if camera is null
+  public static void setStandIn(SyntheticCamera camera)
+  {
+    sStandIn = camera;
+  }
+  
+  /// Told on the main thread how an openAsync() went
+  public interface OpenCallback
+  {
+    void onCameraOpened(VersionedCamera camera);
+    void onCameraOpenFailed(RuntimeException e);
+  }
+  
+  private static HandlerThread sCameraThread;
+  private static Handler sCameraHandler;
+  
+  /// The thread cameras are opened on. Camera callbacks are delivered to
+  /// the looper of the opening thread, so they arrive here too rather than
+  /// on the UI thread.
+  public static synchronized Handler getCameraHandler()
+  {
+    if (sCameraHandler == null)
+    {
+      sCameraThread = new HandlerThread("CameraThread");
+      sCameraThread.start();
+      sCameraHandler = new Handler(sCameraThread.getLooper());
+    }
+    return sCameraHandler;
+  }
+  
+  /// Opens the camera on the camera thread and reports the result to
+  /// callback on the main thread. Cancelling the future before the open
+  /// completes releases the camera instead of reporting it.
+  public static Future<VersionedCamera> openAsync(OpenCallback callback)
+  {
+    return openAsync(DEFAULT_CAMERA, callback);
+  }
+  
+  /// openAsync() for camera cameraId. Settings applied to cameraId before
+  /// are restored as it opens, so the preview that follows has nothing
+  /// left to negotiate.
+  public static Future<VersionedCamera> openAsync(final int cameraId, OpenCallback callback)
+  {
+    final OpenTask task = new OpenTask(new Callable<VersionedCamera>()
+    {
+      @Override
+      public VersionedCamera call()
+      {
+        StartupTracer.get().begin(StartupTracer.Phase.CAMERA_OPEN);
+        final VersionedCamera camera = newInstance(cameraId);
+        camera.restoreSettings();
+        StartupTracer.get().end(StartupTracer.Phase.CAMERA_OPEN);
+        return camera;
+      }
+    }, callback);
+    getCameraHandler().post(task);
+    return task;
+  }
+  
+  /// Releases previous and opens camera cameraId in its place, back to back
+  /// on the camera thread, reporting like openAsync(). previous is released
+  /// even if the open is cancelled.
+  public static Future<VersionedCamera> switchAsync(final VersionedCamera previous,
+    int cameraId, OpenCallback callback)
+  {
+    // only one camera may be open at a time on most devices
+    releaseAsync(previous);
+    return openAsync(cameraId, callback);
+  }
+  
+  /// Releases camera on the camera thread, after anything already queued
+  /// there
+  public static void releaseAsync(VersionedCamera camera)
+  {
+    getCameraHandler().post(releaseTask(camera));
+  }
+  
+  /// Releases camera on the camera thread, after anything already queued
+  /// there, and waits up to timeoutMillis for it. Returns false if the
+  /// release was still pending when the wait ended.
+  public static boolean releaseAndWait(VersionedCamera camera, long timeoutMillis)
+  {
+    return runAndWait(releaseTask(camera), "camera release", timeoutMillis);
+  }
+  
+  /// Runs task on the camera thread, after anything already queued there,
+  /// and waits up to timeoutMillis for it. Once it has run no camera
+  /// callback queued before it is still running. Returns false if it was
+  /// still pending when the wait ended, or threw.
+  public static boolean runAndWait(Runnable task, long timeoutMillis)
+  {
+    return runAndWait(new FutureTask<Void>(task, null), "camera task", timeoutMillis);
+  }
+  
+  private static boolean runAndWait(FutureTask<Void> task, String what, long timeoutMillis)
+  {
+    final Handler handler = getCameraHandler();
+    if (Looper.myLooper() == handler.getLooper())
+    {
+      task.run();
+      return true;
+    }
+    
+    handler.post(task);
+    try {
+      task.get(timeoutMillis, TimeUnit.MILLISECONDS);
+      return true;
+    } catch (TimeoutException e) {
+      Log.w(TAG, what + " still pending after " + timeoutMillis + "ms");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      Log.e(TAG, what + " failed", e.getCause());
+    }
+    return false;
+  }
+  
+  private static FutureTask<Void> releaseTask(final VersionedCamera camera)
+  {
+    return new FutureTask<Void>(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        camera.release();
+      }
+    }, null);
+  }
+  
+  private static class OpenTask extends FutureTask<VersionedCamera>
+  {
+    private final OpenCallback mCallback;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final long mStartNanos = System.nanoTime();
+    
+    OpenTask(Callable<VersionedCamera> open, OpenCallback callback)
+    {
+      super(open);
+      mCallback = callback;
+    }
+    
+    @Override
+    protected void set(VersionedCamera camera)
+    {
+      super.set(camera);
+      FrameMetrics.get().onCameraOpened(System.nanoTime() - mStartNanos);
+      
+      // nobody will ever see this camera
+      if (isCancelled() && camera != null)
+        camera.release();
+    }
+    
+    @Override
+    protected void done()
+    {
+      if (isCancelled())
+        return;
+      
+      mMainHandler.post(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          try {
+            mCallback.onCameraOpened(get());
+          } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            mCallback.onCameraOpenFailed(cause instanceof RuntimeException
+              ? (RuntimeException) cause : new RuntimeException(cause));
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      });
+    }
+  }
+  
   public abstract void open();
+  
+  /// Identifies the open camera; 0 where only the default camera exists
+  public int getCameraId()
+  {
+    return 0;
+  }
+  
+  /// Cameras on the device, as far as the platform lets us see them
+  public int getNumberOfCameras()
+  {
+    return 1;
+  }
   public abstract void startPreview();
   public abstract void stopPreview();
   public abstract void release();
-  public abstract void takePicture();
   public abstract Object getParameters();
   public abstract void setParameters(Object p);
   public abstract void setPreviewDisplay(Object s) throws IOException;
   public abstract void setPreviewCallback(Object p) throws IOException;
   
+  private CameraSettings mSettings;
+  
+  /// Every setting applied to each camera id, so reopening a camera can
+  /// restore its state in one call
+  private static final Map<Integer, Map<String, String>> sAppliedSettings =
+    new HashMap<Integer, Map<String, String>>();
+  
+  /// The camera's parameters, read once and cached until the camera is
+  /// released or its parameters are set behind our back. Null if the
+  /// camera is not open.
+  public synchronized CameraSettings getSettings()
+  {
+    if (mSettings == null)
+    {
+      final String flattened = readParameters();
+      if (flattened != null)
+        mSettings = new CameraSettings(flattened);
+    }
+    return mSettings;
+  }
+  
+  /// Sends the pending changes in getSettings() to the camera in a single
+  /// setParameters call, and skips the call if nothing changed. Returns
+  /// the number of keys sent.
+  public synchronized int applySettings()
+  {
+    if (mSettings == null)
+      return 0;
+    
+    final Map<String, String> changes = mSettings.takeChanges();
+    if (changes.isEmpty())
+      return 0;
+    
+    try {
+      writeParameters(changes);
+    } catch (RuntimeException e) {
+      // the camera refused some of it; we no longer know what it holds
+      mSettings = null;
+      throw e;
+    }
+    
+    synchronized (sAppliedSettings)
+    {
+      Map<String, String> applied = sAppliedSettings.get(getCameraId());
+      if (applied == null)
+      {
+        applied = new HashMap<String, String>();
+        sAppliedSettings.put(getCameraId(), applied);
+      }
+      applied.putAll(changes);
+    }
+    return changes.size();
+  }
+  
+  /// Applies everything applySettings() ever sent to this camera id, in
+  /// a single setParameters call. Returns the number of keys sent.
+  ///
+  /// The parameters are only read when there is something to restore.
+  /// Otherwise the single read an open needs happens at its first
+  /// applySettings(), since the platform can only write parameters on top
+  /// of ones it handed out.
+  public synchronized int restoreSettings()
+  {
+    final Map<String, String> applied;
+    synchronized (sAppliedSettings)
+    {
+      final Map<String, String> saved = sAppliedSettings.get(getCameraId());
+      if (saved == null || saved.isEmpty())
+        return 0;
+      applied = new HashMap<String, String>(saved);
+    }
+    
+    final CameraSettings settings = getSettings();
+    if (settings == null)
+      return 0;
+    for (Map.Entry<String, String> e : applied.entrySet())
+      settings.set(e.getKey(), e.getValue());
+    
+    try {
+      return applySettings();
+    } catch (RuntimeException e) {
+      // whatever the camera refused would only be refused again
+      Log.w(TAG, "could not restore settings of camera " + getCameraId(), e);
+      synchronized (sAppliedSettings)
+      {
+        sAppliedSettings.remove(getCameraId());
+      }
+      return 0;
+    }
+  }
+  
+  protected synchronized void invalidateSettings()
+  {
+    mSettings = null;
+  }
+  
+  /// The camera's parameters in flattened form, or null if not open
+  protected abstract String readParameters();
+  /// Applies changed keys on top of the parameters last read
+  protected abstract void writeParameters(Map<String, String> changes);
+  
+  /// Registers a preview callback fed from the buffers of pool where the
+  /// platform supports it, otherwise falls back to setPreviewCallback().
+  /// Returns true if the pooled path is in use.
+  public abstract boolean setPreviewCallbackWithBuffer(Object p, FrameBufferPool pool) throws IOException;
+  public abstract void addCallbackBuffer(byte[] b);
+  
+  /// Starts a single capture. Presses while a capture is in flight are
+  /// coalesced into one follow-up shot.
+  public void takePicture()
+  {
+    mCaptureState.requestShots(1, false);
+  }
+  
+  /// Starts a single capture whose request carries tag, for telling it
+  /// apart once complete. Returns false, taking nothing, if a capture is
+  /// already in flight.
+  public boolean takePicture(Object tag)
+  {
+    return mCaptureState.requestShots(1, false, tag);
+  }
+  
+  /// Focuses once, then takes shots pictures back to back
+  public void takeBurst(int shots)
+  {
+    mCaptureState.requestShots(shots, true);
+  }
+  
+  /// Focuses once, takes shots pictures back to back and saves only the
+  /// sharpest of them. Returns false, taking nothing, if a capture is
+  /// already in flight.
+  public boolean takeBestOf(int shots)
+  {
+    return mCaptureState.requestShots(shots, true, new BestShotSelector(shots));
+  }
+  
+  private static final long ZERO_LAG_WAIT_NANOS = 100 * 1000000L;
+  private static HandlerThread sPreviewEncodeThread;
+  private static Handler sPreviewEncodeHandler;
+  
+  /// The thread preview frames are picked and encoded on, away from the
+  /// camera callbacks and the frame dispatcher
+  private static synchronized Handler getPreviewEncodeHandler()
+  {
+    if (sPreviewEncodeHandler == null)
+    {
+      sPreviewEncodeThread = new HandlerThread("PreviewEncoder");
+      sPreviewEncodeThread.start();
+      sPreviewEncodeHandler = new Handler(sPreviewEncodeThread.getLooper());
+    }
+    return sPreviewEncodeHandler;
+  }
+  
+  /// Saves the preview frame nearest the moment of this call as a capture,
+  /// without stopping the preview. The frame comes from preRoll, which
+  /// must be fed by the preview; it is picked, encoded and handed to the
+  /// writer on a background thread. Returns false if preRoll holds no frames.
+  public boolean takeZeroLagPicture(final PreRollBuffer preRoll)
+  {
+    final long shutterNanos = System.nanoTime();
+    if (preRoll.getFrameCount() == 0)
+      return false;
+    
+    getPreviewEncodeHandler().post(new Runnable()
+    {
+      private final PreRollBuffer.Snapshot mSnapshot = new PreRollBuffer.Snapshot();
+      
+      @Override
+      public void run()
+      {
+        // a frame just after the press may be nearer than the one before it
+        while (preRoll.getNewestTimestampNanos() < shutterNanos
+          && System.nanoTime() - shutterNanos < ZERO_LAG_WAIT_NANOS)
+        {
+          try {
+            Thread.sleep(5);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            break;
+          }
+        }
+        
+        if (!preRoll.copyNearest(shutterNanos, mSnapshot))
+        {
+          Log.w(TAG, "no preview frame for a zero shutter lag capture");
+          return;
+        }
+        Log.d(TAG, "zero shutter lag frame "
+          + (mSnapshot.getTimestampNanos() - shutterNanos) / 1000000 + " ms from the press");
+        
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(mSnapshot.getLength() / 4);
+        if (encodePreviewFrame(mSnapshot.getData(), mSnapshot.getWidth(), mSnapshot.getHeight(),
+          PREVIEW_JPEG_QUALITY, out))
+          writeJpeg(out.toByteArray(), shutterNanos, true);
+      }
+    });
+    return true;
+  }
+  
+  public CaptureStateMachine getCaptureState()
+  {
+    return mCaptureState;
+  }
+  
+  /// Issues the platform capture for the current shot
+  protected abstract void capture();
+  protected abstract void autoFocus();
+  
+  protected final CaptureStateMachine mCaptureState = new CaptureStateMachine(
+    new CaptureStateMachine.Actions()
+    {
+      @Override
+      public void autoFocus()
+      {
+        try {
+          VersionedCamera.this.autoFocus();
+        } catch (RuntimeException e) {
+          Log.e(TAG, "autoFocus failed", e);
+          mCaptureState.onFocusComplete(false);
+        }
+      }
+      
+      @Override
+      public void capture()
+      {
+        try {
+          VersionedCamera.this.capture();
+        } catch (RuntimeException e) {
+          Log.e(TAG, "takePicture failed", e);
+          mCaptureState.abort();
+        }
+      }
+      
+      @Override
+      public void restartPreview()
+      {
+        startPreview();
+      }
+    });
+  
+  /// Where captures are written
+  public static final File CAPTURE_DIRECTORY = new File("/sdcard");
+  
+  protected FrameBufferPool mFramePool;
+  protected CaptureWriter mCaptureWriter;
+  protected CaptureIndex mCaptureIndex;
+  protected ThumbnailStore mThumbnails;
+  
+  /// Captures are persisted through writer when it is running, otherwise
+  /// written synchronously on the callback thread
+  public void setCaptureWriter(CaptureWriter writer)
+  {
+    mCaptureWriter = writer;
+  }
+  
+  /// Captures are recorded in index once on disk. Those persisted through
+  /// the writer carry a CaptureTag as the job tag, for the writer's
+  /// listener to append its entry.
+  public void setCaptureIndex(CaptureIndex index)
+  {
+    mCaptureIndex = index;
+  }
+  
+  /// Captures written synchronously are handed to store once on disk;
+  /// the writer's listener does the same for the rest
+  public void setThumbnailStore(ThumbnailStore store)
+  {
+    mThumbnails = store;
+  }
+  
+  private static long sLastCaptureMillis;
+  private static int sCaptureSequence;
+  
+  /// A capture file named "<millis>-<n>.jpg", where n tells apart the
+  /// captures named in the same millisecond
+  private static synchronized File nextCaptureFile(long timestamp)
+  {
+    if (timestamp != sLastCaptureMillis)
+    {
+      sLastCaptureMillis = timestamp;
+      sCaptureSequence = 0;
+    }
+    return new File(CAPTURE_DIRECTORY, timestamp + "-" + sCaptureSequence++ + ".jpg");
+  }
+  
+  private static final int BEST_SHOT_SAMPLE_SIZE = 8;
+  private static SharpnessScorer sScorer;
+  private static HandlerThread sScoringThread;
+  private static Handler sScoringHandler;
+  
+  private static synchronized SharpnessScorer getScorer()
+  {
+    if (sScorer == null)
+      sScorer = new SharpnessScorer(Runtime.getRuntime().availableProcessors(), 1);
+    return sScorer;
+  }
+  
+  /// Where best-of candidates are decoded and scored, off the camera
+  /// callback thread; one thread, so candidates are offered in order
+  private static synchronized Handler getScoringHandler()
+  {
+    if (sScoringHandler == null)
+    {
+      sScoringThread = new HandlerThread("BestShotScoring");
+      sScoringThread.start();
+      sScoringHandler = new Handler(sScoringThread.getLooper());
+    }
+    return sScoringHandler;
+  }
+  
+  /// Sharpness of a jpeg, scored on a subsampled decode of its luma
+  protected static double scoreJpeg(byte[] jpeg)
+  {
+    final BitmapFactory.Options options = new BitmapFactory.Options();
+    options.inSampleSize = BEST_SHOT_SAMPLE_SIZE;
+    final Bitmap bitmap = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+    if (bitmap == null)
+      return Double.NEGATIVE_INFINITY;
+    
+    final int w = bitmap.getWidth();
+    final int h = bitmap.getHeight();
+    final int[] argb = new int[w * h];
+    bitmap.getPixels(argb, 0, w, 0, 0, w, h);
+    bitmap.recycle();
+    
+    final byte[] luma = new byte[w * h];
+    for (int i = 0; i < argb.length; i++)
+    {
+      final int c = argb[i];
+      luma[i] = (byte) ((77 * ((c >> 16) & 0xff) + 150 * ((c >> 8) & 0xff) + 29 * (c & 0xff)) >> 8);
+    }
+    return getScorer().score(luma, w, h);
+  }
+  
+  /// Moves the capture on to its next shot and saves the one just
+  /// delivered, timed from the press that requested it
+  protected void pictureTaken(byte[] data)
+  {
+    // read first, as the shot may start the coalesced follow-up request
+    final long shutterNanos = mCaptureState.getShutterNanos();
+    final Object request = mCaptureState.onPictureTaken();
+    saveJpeg(data, request, shutterNanos);
+  }
+  
+  /// Writes a jpeg capture to the SD card. The shots of a best-of
+  /// request, tagged with its BestShotSelector, are only scored, and the
+  /// sharpest is written once the last one has been. An aborted best-of
+  /// request takes its selector and candidates with it.
+  protected void saveJpeg(final byte[] data, Object request, final long shutterNanos)
+  {
+    if (!(request instanceof BestShotSelector))
+    {
+      writeJpeg(data, shutterNanos, false);
+      return;
+    }
+    
+    final BestShotSelector bestShot = (BestShotSelector) request;
+    getScoringHandler().post(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        if (!bestShot.offer(data, scoreJpeg(data)))
+          return;
+        Log.d(TAG, "kept the sharpest of " + bestShot.getCandidateCount()
+          + ", score " + bestShot.getBestScore());
+        writeJpeg(bestShot.getBest(), shutterNanos, false);
+      }
+    });
+  }
+  
+  protected static final int PREVIEW_JPEG_QUALITY = 90;
+  private static JpegEncoder sJpegEncoder;
+  private static volatile boolean sJavaPreviewEncoder = false;
+  
+  private static synchronized JpegEncoder getJpegEncoder()
+  {
+    if (sJpegEncoder == null)
+      sJpegEncoder = new JpegEncoder(Runtime.getRuntime().availableProcessors());
+    return sJpegEncoder;
+  }
+  
+  /// Preview frames are compressed by JpegEncoder rather than YuvImage
+  /// when set, and always where there is no YuvImage
+  public static void setJavaPreviewEncoder(boolean java)
+  {
+    sJavaPreviewEncoder = java;
+  }
+  
+  public static boolean isJavaPreviewEncoder()
+  {
+    return sJavaPreviewEncoder;
+  }
+  
+  /// savePreviewFrame() of a copy of nv21 on the preview encoding thread,
+  /// so the caller can hand nv21 back at once. done is run there after.
+  public void savePreviewFrameAsync(byte[] nv21, final int width, final int height,
+    final Runnable done)
+  {
+    final byte[] copy = new byte[FrameBufferPool.nv21Size(width, height)];
+    System.arraycopy(nv21, 0, copy, 0, copy.length);
+    getPreviewEncodeHandler().post(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        try {
+          savePreviewFrame(copy, width, height);
+        } finally {
+          done.run();
+        }
+      }
+    });
+  }
+  
+  /// Saves a preview frame as a jpeg, without a full capture
+  public boolean savePreviewFrame(byte[] nv21, int width, int height)
+  {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream(nv21.length / 4);
+    if (!encodePreviewFrame(nv21, width, height, PREVIEW_JPEG_QUALITY, out))
+      return false;
+    
+    writeJpeg(out.toByteArray(), 0, false);
+    return true;
+  }
+  
+  /// Compresses an NV21 frame to jpeg with the chosen encoder, timing it
+  protected boolean encodePreviewFrame(byte[] nv21, int width, int height, int quality,
+    ByteArrayOutputStream out)
+  {
+    final long start = System.nanoTime();
+    if (!sJavaPreviewEncoder && compressPreviewFrame(nv21, width, height, quality, out))
+    {
+      FrameMetrics.get().onPlatformJpeg(System.nanoTime() - start);
+      return true;
+    }
+    
+    out.reset();
+    try {
+      getJpegEncoder().encode(nv21, width, height, quality, out);
+    } catch (IOException e) {
+      // not from a ByteArrayOutputStream
+      throw new AssertionError(e);
+    } catch (RuntimeException e) {
+      Log.e(TAG, "could not encode a " + width + "x" + height + " preview frame", e);
+      return false;
+    }
+    FrameMetrics.get().onJavaJpeg(System.nanoTime() - start);
+    return true;
+  }
+  
+  /// True where the platform can compress preview frames itself;
+  /// savePreviewFrame() works everywhere
+  public boolean canSavePreviewFrames()
+  {
+    return false;
+  }
+  
+  /// Compresses an NV21 frame to jpeg; YuvImage only exists from Froyo
+  protected boolean compressPreviewFrame(byte[] nv21, int width, int height, int quality, OutputStream out)
+  {
+    return false;
+  }
+  
+  /// What a capture handed to the CaptureWriter carries as its job tag
+  public static class CaptureTag
+  {
+    public final CaptureIndex.Entry entry;
+    /// System.nanoTime() of the shutter press, or 0 if not from one
+    public final long shutterNanos;
+    /// True if taken from the preview stream by takeZeroLagPicture()
+    public final boolean zeroLag;
+    
+    CaptureTag(CaptureIndex.Entry entry, long shutterNanos, boolean zeroLag)
+    {
+      this.entry = entry;
+      this.shutterNanos = shutterNanos;
+      this.zeroLag = zeroLag;
+    }
+    
+    /// Records the shutter-to-saved latency, once the capture is on disk
+    public void onSaved()
+    {
+      if (shutterNanos != 0)
+        FrameMetrics.get().onCaptureSaved(System.nanoTime() - shutterNanos, zeroLag);
+    }
+  }
+  
+  private void writeJpeg(byte[] data, long shutterNanos, boolean zeroLag)
+  {
+    final long timestamp = System.currentTimeMillis();
+    final File file = nextCaptureFile(timestamp);
+    final int[] size = CaptureIndex.readJpegSize(data);
+    final CaptureIndex.Entry entry = new CaptureIndex.Entry(timestamp, file.getPath(),
+      data.length, getCameraId(), size == null ? 0 : size[0], size == null ? 0 : size[1]);
+    final CaptureTag tag = new CaptureTag(entry, shutterNanos, zeroLag);
+    final CaptureWriter writer = mCaptureWriter;
+    
+    // a stopped writer refuses the job, and it is written here instead
+    if (writer != null)
+    {
+      try {
+        if (writer.submit(data, file, tag) != null)
+          return;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    
+    FileOutputStream outStream = null;
+    try {
+      outStream = new FileOutputStream(file);
+      outStream.write(data);
+      outStream.close();
+      outStream = null;
+      Log.d(TAG, "onPictureTaken - wrote bytes: " + data.length);
+      tag.onSaved();
+      final ThumbnailStore thumbnails = mThumbnails;
+      if (thumbnails != null)
+        thumbnails.onCaptureWritten(file);
+      final CaptureIndex index = mCaptureIndex;
+      if (index != null)
+        index.append(entry);
+    } catch (FileNotFoundException e) {
+      e.printStackTrace();
+    } catch (IOException e) {
+      e.printStackTrace();
+    } finally {
+      if (outStream != null)
+        try {
+          outStream.close();
+        } catch (IOException e) {
+        }
+    }
+  }
+  
+  /// Hands a preview buffer back once its frame has been consumed, and
+  /// requeues the next free buffer with the camera
+  public void recycleFrameBuffer(byte[] data)
+  {
+    final FrameBufferPool pool = mFramePool;
+    if (pool == null || data == null)
+      return;
+    
+    // buffers from a pool we no longer use are simply dropped
+    if (!pool.release(data))
+      return;
+    byte[] b = pool.acquire();
+    if (b != null)
+      addCallbackBuffer(b);
+  }
+  
   private static class CupcakeDetected extends VersionedCamera 
   {
     private Camera mCamera;
+    private Camera.Parameters mParameters;
     
     public CupcakeDetected()
     {
@@ -90,13 +866,28 @@ public abstract class VersionedCamera
       if (mCamera != null)
         mCamera.release();
       mCamera = null;
+      mParameters = null;
+      mFramePool = null;
+      invalidateSettings();
+      mCaptureState.abort();
     }
     
     @Override
-    public void takePicture()
+    protected void capture()
     {
       if (mCamera != null)
         mCamera.takePicture(shutterCallback, rawCallback, jpegCallback);
+      else
+        mCaptureState.abort();
+    }
+    
+    @Override
+    protected void autoFocus()
+    {
+      if (mCamera != null)
+        mCamera.autoFocus(focusCallback);
+      else
+        mCaptureState.abort();
     }
     
     @Override
@@ -113,10 +904,32 @@ public abstract class VersionedCamera
     @Override
     public void setParameters(Object p)
     {
+      invalidateSettings();
       if (mCamera != null)
         mCamera.setParameters((Camera.Parameters) p);
     }
     
+    @Override
+    protected String readParameters()
+    {
+      if (mCamera == null)
+        return null;
+      
+      mParameters = mCamera.getParameters();
+      return mParameters.flatten();
+    }
+    
+    @Override
+    protected void writeParameters(Map<String, String> changes)
+    {
+      if (mCamera == null || mParameters == null)
+        return;
+      
+      for (Map.Entry<String, String> e : changes.entrySet())
+        mParameters.set(e.getKey(), e.getValue());
+      mCamera.setParameters(mParameters);
+    }
+    
     @Override
     public void setPreviewDisplay(Object s) throws IOException
     {
@@ -130,7 +943,32 @@ public abstract class VersionedCamera
       if (mCamera != null)
         mCamera.setPreviewCallback((PreviewCallback) p);
     }
+    
+    @Override
+    public boolean setPreviewCallbackWithBuffer(Object p, FrameBufferPool pool) throws IOException
+    {
+      // callback buffers are not public before Froyo, the camera allocates
+      mFramePool = null;
+      setPreviewCallback(p);
+      return false;
+    }
+    
+    @Override
+    public void addCallbackBuffer(byte[] b)
+    {
+    }
          
+    /// Called when focusing before a capture has finished
+    private AutoFocusCallback focusCallback = new AutoFocusCallback()
+    {
+      @Override
+      public void onAutoFocus(boolean success, Camera camera)
+      {
+        Log.d(TAG, "onAutoFocus " + success);
+        mCaptureState.onFocusComplete(success);
+      }
+    };
+    
     /// Called when shutter is opened
     private ShutterCallback shutterCallback = new ShutterCallback() 
     {
@@ -157,25 +995,10 @@ public abstract class VersionedCamera
       @Override
       public void onPictureTaken(byte[] data, Camera camera) 
       {
-        //immediately start the preview again
+        //immediately start the preview again, and fire the next shot of a
+        //burst, before this one is persisted
         ///@see http://developer.android.com/reference/android/hardware/Camera.html#takePicture%28android.hardware.Camera.ShutterCallback,%20android.hardware.Camera.PictureCallback,%20android.hardware.Camera.PictureCallback,%20android.hardware.Camera.PictureCallback%29
-        if (mCamera != null)
-          mCamera.startPreview();
-          
-        FileOutputStream outStream = null;
-        try {
-          // Write to SD Card
-          outStream = new FileOutputStream(String.format("/sdcard/%d.jpg",
-            System.currentTimeMillis()) );
-          outStream.write(data);
-          outStream.close();
-          Log.d(TAG, "onPictureTaken - wrote bytes: " + data.length);
-        } catch (FileNotFoundException e) {
-          e.printStackTrace();
-        } catch (IOException e) {
-          e.printStackTrace();
-        } finally {
-        }
+        pictureTaken(data);
         Log.d(TAG, "onPictureTaken - jpeg");
       }
     };
@@ -184,6 +1007,7 @@ public abstract class VersionedCamera
   private static class DonutDetected extends VersionedCamera
   {
     private Camera mCamera;
+    private Camera.Parameters mParameters;
     
     public DonutDetected()
     {
@@ -220,13 +1044,28 @@ public abstract class VersionedCamera
       if (mCamera != null)
         mCamera.release();
       mCamera = null;
+      mParameters = null;
+      mFramePool = null;
+      invalidateSettings();
+      mCaptureState.abort();
     }
     
     @Override
-    public void takePicture()
+    protected void capture()
     {
       if (mCamera != null)
         mCamera.takePicture(shutterCallback, rawCallback, jpegCallback);
+      else
+        mCaptureState.abort();
+    }
+    
+    @Override
+    protected void autoFocus()
+    {
+      if (mCamera != null)
+        mCamera.autoFocus(focusCallback);
+      else
+        mCaptureState.abort();
     }
     
     @Override
@@ -243,10 +1082,32 @@ public abstract class VersionedCamera
     @Override
     public void setParameters(Object p)
     {
+      invalidateSettings();
       if (mCamera != null)
         mCamera.setParameters((Camera.Parameters) p);
     }
     
+    @Override
+    protected String readParameters()
+    {
+      if (mCamera == null)
+        return null;
+      
+      mParameters = mCamera.getParameters();
+      return mParameters.flatten();
+    }
+    
+    @Override
+    protected void writeParameters(Map<String, String> changes)
+    {
+      if (mCamera == null || mParameters == null)
+        return;
+      
+      for (Map.Entry<String, String> e : changes.entrySet())
+        mParameters.set(e.getKey(), e.getValue());
+      mCamera.setParameters(mParameters);
+    }
+    
     @Override
     public void setPreviewDisplay(Object s) throws IOException
     {
@@ -261,6 +1122,31 @@ public abstract class VersionedCamera
         mCamera.setPreviewCallback((PreviewCallback) p);
     }
     
+    @Override
+    public boolean setPreviewCallbackWithBuffer(Object p, FrameBufferPool pool) throws IOException
+    {
+      // callback buffers are not public before Froyo, the camera allocates
+      mFramePool = null;
+      setPreviewCallback(p);
+      return false;
+    }
+    
+    @Override
+    public void addCallbackBuffer(byte[] b)
+    {
+    }
+    
+    /// Called when focusing before a capture has finished
+    private AutoFocusCallback focusCallback = new AutoFocusCallback()
+    {
+      @Override
+      public void onAutoFocus(boolean success, Camera camera)
+      {
+        Log.d(TAG, "onAutoFocus " + success);
+        mCaptureState.onFocusComplete(success);
+      }
+    };
+    
     /// Called when shutter is opened
     private ShutterCallback shutterCallback = new ShutterCallback() 
     {
@@ -287,25 +1173,10 @@ public abstract class VersionedCamera
       @Override
       public void onPictureTaken(byte[] data, Camera camera) 
       {
-        //immediately start the preview again
+        //immediately start the preview again, and fire the next shot of a
+        //burst, before this one is persisted
         ///@see http://developer.android.com/reference/android/hardware/Camera.html#takePicture%28android.hardware.Camera.ShutterCallback,%20android.hardware.Camera.PictureCallback,%20android.hardware.Camera.PictureCallback,%20android.hardware.Camera.PictureCallback%29
-        if (mCamera != null)
-          mCamera.startPreview();
-          
-        FileOutputStream outStream = null;
-        try {
-          // Write to SD Card
-          outStream = new FileOutputStream(String.format("/sdcard/%d.jpg",
-            System.currentTimeMillis()) );
-          outStream.write(data);
-          outStream.close();
-          Log.d(TAG, "onPictureTaken - wrote bytes: " + data.length);
-        } catch (FileNotFoundException e) {
-          e.printStackTrace();
-        } catch (IOException e) {
-          e.printStackTrace();
-        } finally {
-        }
+        pictureTaken(data);
         Log.d(TAG, "onPictureTaken - jpeg");
       }
     };
@@ -314,6 +1185,7 @@ public abstract class VersionedCamera
   private static class EclairDetected extends VersionedCamera 
   {
     private Camera mCamera;
+    private Camera.Parameters mParameters;
     
     public EclairDetected()
     {
@@ -350,31 +1222,68 @@ public abstract class VersionedCamera
       if (mCamera != null)
         mCamera.release();
       mCamera = null;
+      mParameters = null;
+      mFramePool = null;
+      invalidateSettings();
+      mCaptureState.abort();
     }
     
     @Override
-    public void takePicture()
+    protected void capture()
     {
       if (mCamera != null)
         mCamera.takePicture(shutterCallback, rawCallback, jpegCallback);
+      else
+        mCaptureState.abort();
+    }
+    
+    @Override
+    protected void autoFocus()
+    {
+      if (mCamera != null)
+        mCamera.autoFocus(focusCallback);
+      else
+        mCaptureState.abort();
     }
     
     @Override
     public Object getParameters()
     {
-      Object p = null;
-      
-      if (mCamera != null)
-        p = mCamera.getParameters();
+      Object p = null;
+      
+      if (mCamera != null)
+        p = mCamera.getParameters();
+      
+      return p;
+    }
+    
+    @Override
+    public void setParameters(Object p)
+    {
+      invalidateSettings();
+      if (mCamera != null)
+        mCamera.setParameters((Camera.Parameters) p);
+    }
+    
+    @Override
+    protected String readParameters()
+    {
+      if (mCamera == null)
+        return null;
       
-      return p;
+      mParameters = mCamera.getParameters();
+      return mParameters.flatten();
     }
     
     @Override
-    public void setParameters(Object p)
+    protected void writeParameters(Map<String, String> changes)
     {
-      if (mCamera != null)
-        mCamera.setParameters((Camera.Parameters) p);
+      if (mCamera == null || mParameters == null)
+        return;
+      
+      for (Map.Entry<String, String> e : changes.entrySet())
+        mParameters.set(e.getKey(), e.getValue());
+      mCamera.setParameters(mParameters);
     }
     
     @Override
@@ -391,6 +1300,31 @@ public abstract class VersionedCamera
         mCamera.setPreviewCallback((PreviewCallback) p);
     }
     
+    @Override
+    public boolean setPreviewCallbackWithBuffer(Object p, FrameBufferPool pool) throws IOException
+    {
+      // callback buffers are not public before Froyo, the camera allocates
+      mFramePool = null;
+      setPreviewCallback(p);
+      return false;
+    }
+    
+    @Override
+    public void addCallbackBuffer(byte[] b)
+    {
+    }
+    
+    /// Called when focusing before a capture has finished
+    private AutoFocusCallback focusCallback = new AutoFocusCallback()
+    {
+      @Override
+      public void onAutoFocus(boolean success, Camera camera)
+      {
+        Log.d(TAG, "onAutoFocus " + success);
+        mCaptureState.onFocusComplete(success);
+      }
+    };
+    
     /// Called when shutter is opened
     private ShutterCallback shutterCallback = new ShutterCallback() 
     {
@@ -417,25 +1351,10 @@ public abstract class VersionedCamera
       @Override
       public void onPictureTaken(byte[] data, Camera camera) 
       {
-        //immediately start the preview again
+        //immediately start the preview again, and fire the next shot of a
+        //burst, before this one is persisted
         ///@see http://developer.android.com/reference/android/hardware/Camera.html#takePicture%28android.hardware.Camera.ShutterCallback,%20android.hardware.Camera.PictureCallback,%20android.hardware.Camera.PictureCallback,%20android.hardware.Camera.PictureCallback%29
-        if (mCamera != null)
-          mCamera.startPreview();
-          
-        FileOutputStream outStream = null;
-        try {
-          // Write to SD Card
-          outStream = new FileOutputStream(String.format("/sdcard/%d.jpg",
-            System.currentTimeMillis()) );
-          outStream.write(data);
-          outStream.close();
-          Log.d(TAG, "onPictureTaken - wrote bytes: " + data.length);
-        } catch (FileNotFoundException e) {
-          e.printStackTrace();
-        } catch (IOException e) {
-          e.printStackTrace();
-        } finally {
-        }
+        pictureTaken(data);
         Log.d(TAG, "onPictureTaken - jpeg");
       }
     };
@@ -444,6 +1363,7 @@ public abstract class VersionedCamera
   private static class FroyoDetected extends VersionedCamera 
   {
     private Camera mCamera;
+    private Camera.Parameters mParameters;
     
     public FroyoDetected()
     {
@@ -480,13 +1400,28 @@ public abstract class VersionedCamera
       if (mCamera != null)
         mCamera.release();
       mCamera = null;
+      mParameters = null;
+      mFramePool = null;
+      invalidateSettings();
+      mCaptureState.abort();
     }
     
     @Override
-    public void takePicture()
+    protected void capture()
     {
       if (mCamera != null)
         mCamera.takePicture(shutterCallback, rawCallback, jpegCallback);
+      else
+        mCaptureState.abort();
+    }
+    
+    @Override
+    protected void autoFocus()
+    {
+      if (mCamera != null)
+        mCamera.autoFocus(focusCallback);
+      else
+        mCaptureState.abort();
     }
     
     @Override
@@ -503,10 +1438,32 @@ public abstract class VersionedCamera
     @Override
     public void setParameters(Object p)
     {
+      invalidateSettings();
       if (mCamera != null)
         mCamera.setParameters((Camera.Parameters) p);
     }
     
+    @Override
+    protected String readParameters()
+    {
+      if (mCamera == null)
+        return null;
+      
+      mParameters = mCamera.getParameters();
+      return mParameters.flatten();
+    }
+    
+    @Override
+    protected void writeParameters(Map<String, String> changes)
+    {
+      if (mCamera == null || mParameters == null)
+        return;
+      
+      for (Map.Entry<String, String> e : changes.entrySet())
+        mParameters.set(e.getKey(), e.getValue());
+      mCamera.setParameters(mParameters);
+    }
+    
     @Override
     public void setPreviewDisplay(Object s) throws IOException
     {
@@ -521,6 +1478,59 @@ public abstract class VersionedCamera
         mCamera.setPreviewCallback((PreviewCallback) p);
     }
     
+    @Override
+    public boolean setPreviewCallbackWithBuffer(Object p, FrameBufferPool pool) throws IOException
+    {
+      if (mCamera == null)
+        return false;
+      
+      mFramePool = pool;
+      if (p == null || pool == null)
+      {
+        mFramePool = null;
+        mCamera.setPreviewCallbackWithBuffer(null);
+        return false;
+      }
+      
+      // hand every free buffer to the camera before frames start arriving
+      byte[] b;
+      while ((b = pool.acquire()) != null)
+        mCamera.addCallbackBuffer(b);
+      mCamera.setPreviewCallbackWithBuffer((PreviewCallback) p);
+      return true;
+    }
+    
+    @Override
+    public void addCallbackBuffer(byte[] b)
+    {
+      if (mCamera != null)
+        mCamera.addCallbackBuffer(b);
+    }
+    
+    @Override
+    public boolean canSavePreviewFrames()
+    {
+      return true;
+    }
+    
+    @Override
+    protected boolean compressPreviewFrame(byte[] nv21, int width, int height, int quality, OutputStream out)
+    {
+      final YuvImage image = new YuvImage(nv21, ImageFormat.NV21, width, height, null);
+      return image.compressToJpeg(new Rect(0, 0, width, height), quality, out);
+    }
+    
+    /// Called when focusing before a capture has finished
+    private AutoFocusCallback focusCallback = new AutoFocusCallback()
+    {
+      @Override
+      public void onAutoFocus(boolean success, Camera camera)
+      {
+        Log.d(TAG, "onAutoFocus " + success);
+        mCaptureState.onFocusComplete(success);
+      }
+    };
+    
     /// Called when shutter is opened
     private ShutterCallback shutterCallback = new ShutterCallback() 
     {
@@ -547,25 +1557,10 @@ public abstract class VersionedCamera
       @Override
       public void onPictureTaken(byte[] data, Camera camera) 
       {
-        //immediately start the preview again
+        //immediately start the preview again, and fire the next shot of a
+        //burst, before this one is persisted
         ///@see http://developer.android.com/reference/android/hardware/Camera.html#takePicture%28android.hardware.Camera.ShutterCallback,%20android.hardware.Camera.PictureCallback,%20android.hardware.Camera.PictureCallback,%20android.hardware.Camera.PictureCallback%29
-        if (mCamera != null)
-          mCamera.startPreview();
-          
-        FileOutputStream outStream = null;
-        try {
-          // Write to SD Card
-          outStream = new FileOutputStream(String.format("/sdcard/%d.jpg",
-            System.currentTimeMillis()) );
-          outStream.write(data);
-          outStream.close();
-          Log.d(TAG, "onPictureTaken - wrote bytes: " + data.length);
-        } catch (FileNotFoundException e) {
-          e.printStackTrace();
-        } catch (IOException e) {
-          e.printStackTrace();
-        } finally {
-        }
+        pictureTaken(data);
         Log.d(TAG, "onPictureTaken - jpeg");
       }
     };
@@ -574,20 +1569,26 @@ public abstract class VersionedCamera
   private static class GingerbreadDetected extends VersionedCamera
   {
     private Camera mCamera;
-    private int numberOfCameras;
+    private Camera.Parameters mParameters;
+    // the cameras on a device do not change, so they are enumerated once
+    private static int numberOfCameras;
+    private static int defaultCameraId;
+    private static boolean firstRun = true;
     private int currentCamera;
-    private int defaultCameraId;
-    private boolean firstRun = true;
     
-    public GingerbreadDetected()
+    public GingerbreadDetected(int cameraId)
     {
-      if (firstRun)
-        init();
+      synchronized (GingerbreadDetected.class)
+      {
+        if (firstRun)
+          init();
+      }
       
+      currentCamera = cameraId >= 0 && cameraId < numberOfCameras ? cameraId : defaultCameraId;
       this.open(currentCamera);
     }
     
-    private void init()
+    private static void init()
     {
       numberOfCameras = Camera.getNumberOfCameras();
       
@@ -602,7 +1603,6 @@ public abstract class VersionedCamera
         }
       }
       
-      currentCamera = defaultCameraId;
       firstRun = false;
     }
     
@@ -611,10 +1611,22 @@ public abstract class VersionedCamera
       mCamera = Camera.open(i);
     }
     
+    @Override
+    public int getCameraId()
+    {
+      return currentCamera;
+    }
+    
+    @Override
+    public int getNumberOfCameras()
+    {
+      return numberOfCameras;
+    }
+    
     @Override
     public void open()
     {
-      mCamera = Camera.open();
+      mCamera = Camera.open(currentCamera);
     }
     
     @Override
@@ -641,13 +1653,28 @@ public abstract class VersionedCamera
       if (mCamera != null)
         mCamera.release();
       mCamera = null;
+      mParameters = null;
+      mFramePool = null;
+      invalidateSettings();
+      mCaptureState.abort();
     }
     
     @Override
-    public void takePicture()
+    protected void capture()
     {
       if (mCamera != null)
         mCamera.takePicture(shutterCallback, rawCallback, jpegCallback);
+      else
+        mCaptureState.abort();
+    }
+    
+    @Override
+    protected void autoFocus()
+    {
+      if (mCamera != null)
+        mCamera.autoFocus(focusCallback);
+      else
+        mCaptureState.abort();
     }
     
     @Override
@@ -664,10 +1691,32 @@ public abstract class VersionedCamera
     @Override
     public void setParameters(Object p)
     {
+      invalidateSettings();
       if (mCamera != null)
         mCamera.setParameters((Camera.Parameters) p);
     }
     
+    @Override
+    protected String readParameters()
+    {
+      if (mCamera == null)
+        return null;
+      
+      mParameters = mCamera.getParameters();
+      return mParameters.flatten();
+    }
+    
+    @Override
+    protected void writeParameters(Map<String, String> changes)
+    {
+      if (mCamera == null || mParameters == null)
+        return;
+      
+      for (Map.Entry<String, String> e : changes.entrySet())
+        mParameters.set(e.getKey(), e.getValue());
+      mCamera.setParameters(mParameters);
+    }
+    
     @Override
     public void setPreviewDisplay(Object s) throws IOException
     {
@@ -682,6 +1731,59 @@ public abstract class VersionedCamera
         mCamera.setPreviewCallback((PreviewCallback) p);
     }
     
+    @Override
+    public boolean setPreviewCallbackWithBuffer(Object p, FrameBufferPool pool) throws IOException
+    {
+      if (mCamera == null)
+        return false;
+      
+      mFramePool = pool;
+      if (p == null || pool == null)
+      {
+        mFramePool = null;
+        mCamera.setPreviewCallbackWithBuffer(null);
+        return false;
+      }
+      
+      // hand every free buffer to the camera before frames start arriving
+      byte[] b;
+      while ((b = pool.acquire()) != null)
+        mCamera.addCallbackBuffer(b);
+      mCamera.setPreviewCallbackWithBuffer((PreviewCallback) p);
+      return true;
+    }
+    
+    @Override
+    public void addCallbackBuffer(byte[] b)
+    {
+      if (mCamera != null)
+        mCamera.addCallbackBuffer(b);
+    }
+    
+    @Override
+    public boolean canSavePreviewFrames()
+    {
+      return true;
+    }
+    
+    @Override
+    protected boolean compressPreviewFrame(byte[] nv21, int width, int height, int quality, OutputStream out)
+    {
+      final YuvImage image = new YuvImage(nv21, ImageFormat.NV21, width, height, null);
+      return image.compressToJpeg(new Rect(0, 0, width, height), quality, out);
+    }
+    
+    /// Called when focusing before a capture has finished
+    private AutoFocusCallback focusCallback = new AutoFocusCallback()
+    {
+      @Override
+      public void onAutoFocus(boolean success, Camera camera)
+      {
+        Log.d(TAG, "onAutoFocus " + success);
+        mCaptureState.onFocusComplete(success);
+      }
+    };
+    
     /// Called when shutter is opened
     private ShutterCallback shutterCallback = new ShutterCallback() 
     {
@@ -708,28 +1810,227 @@ public abstract class VersionedCamera
       @Override
       public void onPictureTaken(byte[] data, Camera camera) 
       {
-        //immediately start the preview again
+        //immediately start the preview again, and fire the next shot of a
+        //burst, before this one is persisted
         ///@see http://developer.android.com/reference/android/hardware/Camera.html#takePicture%28android.hardware.Camera.ShutterCallback,%20android.hardware.Camera.PictureCallback,%20android.hardware.Camera.PictureCallback,%20android.hardware.Camera.PictureCallback%29
-        if (mCamera != null)
-          mCamera.startPreview();
-          
-        FileOutputStream outStream = null;
-        try {
-          // Write to SD Card
-          outStream = new FileOutputStream(String.format("/sdcard/%d.jpg",
-            System.currentTimeMillis()) );
-          outStream.write(data);
-          outStream.close();
-          Log.d(TAG, "onPictureTaken - wrote bytes: " + data.length);
-        } catch (FileNotFoundException e) {
-          e.printStackTrace();
-        } catch (IOException e) {
-          e.printStackTrace();
-        } finally {
-        }
+        pictureTaken(data);
         Log.d(TAG, "onPictureTaken - jpeg");
       }
     };
   }
   
+  /// Runs on a SyntheticCamera, so the preview and capture paths work
+  /// without camera hardware
+  private static class SyntheticDetected extends VersionedCamera
+  {
+    private final SyntheticCamera mCamera;
+    private boolean mReleased = false;
+    
+    public SyntheticDetected(SyntheticCamera camera)
+    {
+      mCamera = camera;
+      mCamera.setEncoder(encoder);
+    }
+    
+    @Override
+    public void open()
+    {
+      mReleased = false;
+    }
+    
+    @Override
+    public void startPreview()
+    {
+      if (!mReleased)
+        mCamera.startPreview();
+    }
+    
+    @Override
+    public void stopPreview()
+    {
+      mCamera.stopPreview();
+    }
+    
+    @Override
+    public void release()
+    {
+      mCamera.release();
+      mReleased = true;
+      mFramePool = null;
+      invalidateSettings();
+      mCaptureState.abort();
+    }
+    
+    @Override
+    protected void capture()
+    {
+      if (!mReleased)
+        mCamera.takePicture(pictureCallback);
+      else
+        mCaptureState.abort();
+    }
+    
+    @Override
+    protected void autoFocus()
+    {
+      if (!mReleased)
+        mCamera.autoFocus(focusCallback);
+      else
+        mCaptureState.abort();
+    }
+    
+    /// The flattened parameters; there is no Camera.Parameters to return
+    @Override
+    public Object getParameters()
+    {
+      return mReleased ? null : mCamera.getParameters();
+    }
+    
+    /// Takes flattened parameters, as returned by getParameters()
+    @Override
+    public void setParameters(Object p)
+    {
+      invalidateSettings();
+      if (mReleased || !(p instanceof String))
+        return;
+      
+      final Map<String, String> all = new HashMap<String, String>();
+      for (String pair : ((String) p).split(";"))
+      {
+        final int eq = pair.indexOf('=');
+        if (eq > 0)
+          all.put(pair.substring(0, eq), pair.substring(eq + 1));
+      }
+      mCamera.setParameters(all);
+    }
+    
+    @Override
+    protected String readParameters()
+    {
+      return mReleased ? null : mCamera.getParameters();
+    }
+    
+    @Override
+    protected void writeParameters(Map<String, String> changes)
+    {
+      if (!mReleased)
+        mCamera.setParameters(changes);
+    }
+    
+    @Override
+    public void setPreviewDisplay(Object s) throws IOException
+    {
+      // nothing is drawn; frames only reach the preview callbacks
+    }
+    
+    @Override
+    public void setPreviewCallback(Object p) throws IOException
+    {
+      mFramePool = null;
+      mCamera.setPreviewListener(p == null ? null : new PreviewForwarder((PreviewCallback) p), false);
+    }
+    
+    @Override
+    public boolean setPreviewCallbackWithBuffer(Object p, FrameBufferPool pool) throws IOException
+    {
+      if (p == null || pool == null)
+      {
+        mFramePool = null;
+        mCamera.setPreviewListener(null, false);
+        return false;
+      }
+      
+      mFramePool = pool;
+      mCamera.setPreviewListener(new PreviewForwarder((PreviewCallback) p), true);
+      byte[] b;
+      while ((b = pool.acquire()) != null)
+        mCamera.addCallbackBuffer(b);
+      return true;
+    }
+    
+    @Override
+    public void addCallbackBuffer(byte[] b)
+    {
+      mCamera.addCallbackBuffer(b);
+    }
+    
+    @Override
+    public boolean canSavePreviewFrames()
+    {
+      return Integer.parseInt(Build.VERSION.SDK) >= Build.VERSION_CODES.FROYO;
+    }
+    
+    @Override
+    protected boolean compressPreviewFrame(byte[] nv21, int width, int height, int quality, OutputStream out)
+    {
+      return canSavePreviewFrames() && YuvCompressor.compress(nv21, width, height, quality, out);
+    }
+    
+    /// Kept apart so YuvImage is only resolved where it exists
+    private static class YuvCompressor
+    {
+      static boolean compress(byte[] nv21, int width, int height, int quality, OutputStream out)
+      {
+        final YuvImage image = new YuvImage(nv21, ImageFormat.NV21, width, height, null);
+        return image.compressToJpeg(new Rect(0, 0, width, height), quality, out);
+      }
+    }
+    
+    /// Pictures are encoded as preview frames are saved
+    private SyntheticCamera.Encoder encoder = new SyntheticCamera.Encoder()
+    {
+      @Override
+      public byte[] encode(byte[] nv21, int width, int height)
+      {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(nv21.length / 4);
+        encodePreviewFrame(nv21, width, height, PREVIEW_JPEG_QUALITY, out);
+        return out.toByteArray();
+      }
+    };
+    
+    /// Hands frames to a platform callback as the hardware would, without
+    /// a Camera to go with them
+    private static class PreviewForwarder implements SyntheticCamera.PreviewListener
+    {
+      private final PreviewCallback mCallback;
+      
+      PreviewForwarder(PreviewCallback callback)
+      {
+        mCallback = callback;
+      }
+      
+      @Override
+      public void onPreviewFrame(byte[] data, long timestampNanos)
+      {
+        mCallback.onPreviewFrame(data, null);
+      }
+    }
+    
+    private SyntheticCamera.FocusListener focusCallback = new SyntheticCamera.FocusListener()
+    {
+      @Override
+      public void onFocus(boolean success)
+      {
+        Log.d(TAG, "onAutoFocus " + success);
+        mCaptureState.onFocusComplete(success);
+      }
+    };
+    
+    private SyntheticCamera.PictureListener pictureCallback = new SyntheticCamera.PictureListener()
+    {
+      @Override
+      public void onShutter()
+      {
+        Log.d(TAG, "onShutter");
+      }
+      
+      @Override
+      public void onPictureTaken(byte[] data)
+      {
+        pictureTaken(data);
+        Log.d(TAG, "onPictureTaken - synthetic");
+      }
+    };
+  }
+  
 }
@@ -1,7 +1,9 @@
 package com.mattikariluoma.cameratest;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.List;
+import java.util.HashMap;
+import java.util.Map;
 
 import android.util.Log;
 import android.content.Context;
@@ -10,7 +12,6 @@ import android.os.Build;
 
 import android.hardware.Camera;
 import android.hardware.Camera.PreviewCallback;
-import android.hardware.Camera.Size;
 
 import android.view.View;
 import android.view.KeyEvent;
@@ -25,13 +26,49 @@ public abstract class VersionedPreview extends ViewGroup
   private static final String TAG = "CameraTest.VersionedPreview";
   private static SurfaceHolder mHolder;
   private static SurfaceView mSurfaceView;
-  private static VersionedCamera mCamera;
-  private static Size mPreviewSize = null;
-  private static List<Size> mSupportedPreviewSizes = null;
+  private static volatile VersionedCamera mCamera;
+  private static PreviewSizeNegotiator mNegotiator = null;
+  private static PreviewSizeNegotiator.Choice mPreviewChoice = null;
+  private static File mNegotiationFile;
+  private static int mCameraId;
+  private static boolean mSurfaceReady = false;
+  private static int mSurfaceFormat;
+  private static int mSurfaceWidth;
+  private static int mSurfaceHeight;
+  private static FrameBufferPool mFramePool = null;
+  private static final Map<Integer, FrameBufferPool> mFramePools = new HashMap<Integer, FrameBufferPool>();
+  private static int mFrameWidth;
+  private static int mFrameHeight;
+  private static FrameDispatcher mDispatcher = null;
+  
+  // one buffer per queue slot and busy worker, one with the camera and one
+  // being dispatched
+  private static final int DISPATCH_CAPACITY = 2;
+  private static final int DISPATCH_WORKERS = 1;
+  private static final int FRAME_BUFFER_COUNT = DISPATCH_CAPACITY + DISPATCH_WORKERS + 2;
+  // longest the UI thread waits on the camera thread
+  private static final long CAMERA_WAIT_MS = 2000;
+  
+  private static final String NEGOTIATION_FILE = "preview-negotiation.properties";
   
   public VersionedPreview(Context context)
   {
     super(context);
+    
+    if (mDispatcher == null)
+    {
+      mDispatcher = new FrameDispatcher("FrameDispatcher", DISPATCH_CAPACITY,
+        DISPATCH_WORKERS, FrameDispatcher.DropPolicy.DROP_OLDEST);
+      mDispatcher.setReleaser(frameReleased);
+      FrameMetrics.get().watch(mDispatcher);
+    }
+    
+    if (mNegotiator == null)
+    {
+      mNegotiator = new PreviewSizeNegotiator(Build.FINGERPRINT);
+      mNegotiationFile = new File(context.getFilesDir(), NEGOTIATION_FILE);
+      mNegotiator.load(mNegotiationFile);
+    }
   }
   
   public static VersionedPreview newInstance(Context context) 
@@ -56,6 +93,100 @@ public abstract class VersionedPreview extends ViewGroup
 
   public abstract void setCamera(VersionedCamera c);
   
+  /// The stage that carries preview frames off the camera thread; add
+  /// consumers here to process frames
+  public static FrameDispatcher getFrameDispatcher()
+  {
+    return mDispatcher;
+  }
+  
+  /// Chooses preview sizes; its camera capabilities and choices persist
+  /// across launches
+  public static PreviewSizeNegotiator getNegotiator()
+  {
+    return mNegotiator;
+  }
+  
+  /// Starts or stops frame dispatch to follow the attached camera, and
+  /// saves any new negotiation results once the camera is gone
+  protected void cameraChanged()
+  {
+    if (mCamera != null)
+    {
+      // with dispatch stopped, buffers still out were lost with the last
+      // camera and can be given to this one
+      if (!mDispatcher.isRunning())
+        for (FrameBufferPool pool : mFramePools.values())
+          pool.reclaimAll();
+      mDispatcher.start();
+    }
+    else
+    {
+      mDispatcher.stop();
+      FrameMetrics.get().onPreviewStopped();
+      try {
+        mNegotiator.save(mNegotiationFile);
+      } catch (IOException e) {
+        Log.w(TAG, "could not save preview negotiation", e);
+      }
+    }
+  }
+  
+  /// Lets go of the camera ahead of switching to another. The preview
+  /// stops, but unlike setCamera(null) nothing is saved, and the surface
+  /// stays up for the next camera to attach to.
+  public void detachCamera()
+  {
+    final VersionedCamera camera = mCamera;
+    mCamera = null;
+    if (camera != null)
+      camera.stopPreview();
+    mDispatcher.stop();
+    FrameMetrics.get().onPreviewStopped();
+  }
+  
+  /// Starts the preview on a surface that came up before the camera did,
+  /// as happens when the camera is opened asynchronously
+  protected void attachToReadySurface(SurfaceHolder.Callback callback)
+  {
+    if (!mSurfaceReady)
+      return;
+    
+    if (getWidth() > 0 && getHeight() > 0)
+      mPreviewChoice = mNegotiator.negotiate(mCameraId, getWidth(), getHeight());
+    callback.surfaceCreated(mHolder);
+    callback.surfaceChanged(mHolder, mSurfaceFormat, mSurfaceWidth, mSurfaceHeight);
+  }
+  
+  /// Starts the preview of the attached camera, timed for the startup trace
+  protected void startCameraPreview()
+  {
+    StartupTracer.get().begin(StartupTracer.Phase.START_PREVIEW);
+    mCamera.startPreview();
+    StartupTracer.get().end(StartupTracer.Phase.START_PREVIEW);
+  }
+  
+  /// Hands a preview frame that arrived at start (System.nanoTime()) to the
+  /// dispatcher workers
+  protected void dispatchFrame(byte[] data, long start)
+  {
+    mDispatcher.dispatch(data, mFrameWidth, mFrameHeight, start);
+    FrameMetrics.get().onPreviewFrame(start, System.nanoTime());
+    StartupTracer.get().onPreviewFrame(start);
+  }
+  
+  /// Returns frame buffers to whichever camera is attached once consumed
+  private static FrameDispatcher.FrameReleaser frameReleased = new FrameDispatcher.FrameReleaser()
+  {
+    @Override
+    public void onFrameReleased(byte[] data)
+    {
+      final VersionedCamera camera = mCamera;
+      if (camera != null)
+        camera.recycleFrameBuffer(data);
+    }
+  };
+  
   @Override
   protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) 
   {
@@ -63,8 +194,9 @@ public abstract class VersionedPreview extends ViewGroup
     final int height = resolveSize(getSuggestedMinimumHeight(), heightMeasureSpec);
     setMeasuredDimension(width, height);
 
-    if (mSupportedPreviewSizes != null)
-      mPreviewSize = getOptimalPreviewSize(mSupportedPreviewSizes, width, height);
+    // memoized per camera and view size, so repeated passes are a lookup
+    if (mCamera != null)
+      mPreviewChoice = mNegotiator.negotiate(mCameraId, width, height);
   }
   
   @Override
@@ -79,10 +211,10 @@ public abstract class VersionedPreview extends ViewGroup
       int previewWidth = width;
       int previewHeight = height;
       
-      if (mPreviewSize != null)
+      if (mPreviewChoice != null)
       {
-        previewWidth = mPreviewSize.width;
-        previewHeight = mPreviewSize.height;
+        previewWidth = mPreviewChoice.width;
+        previewHeight = mPreviewChoice.height;
       }
 
       // Center the child SurfaceView within the parent.
@@ -99,43 +231,73 @@ public abstract class VersionedPreview extends ViewGroup
     }
   }
   
-  private Size getOptimalPreviewSize(List<Size> sizes, int w, int h) 
+  /// Registers cb for preview frames of w x h, through a pool of reusable
+  /// buffers where the camera supports it
+  protected void attachPreviewCallback(PreviewCallback cb, int w, int h)
   {
-    final double ASPECT_TOLERANCE = 0.1;
-    double targetRatio = (double) w / h;
-    if (sizes == null) return null;
-
-    Size optimalSize = null;
-    double minDiff = Double.MAX_VALUE;
-
-    int targetHeight = h;
-
-    // Try to find an size match aspect ratio and size
-    for (Size size : sizes)
+    final int bufferSize = FrameBufferPool.nv21Size(w, h);
+    mFrameWidth = w;
+    mFrameHeight = h;
+    
+    // each camera keeps its pool, so switching back or reconfiguring
+    // allocates nothing unless the frame size changed
+    mFramePool = mFramePools.get(mCameraId);
+    if (mFramePool == null || mFramePool.getBufferSize() != bufferSize)
     {
-      double ratio = (double) size.width / size.height;
-      if (Math.abs(ratio - targetRatio) > ASPECT_TOLERANCE)
-        continue;
-      if (Math.abs(size.height - targetHeight) < minDiff) 
-      {
-        optimalSize = size;
-        minDiff = Math.abs(size.height - targetHeight);
-      }
+      mFramePool = new FrameBufferPool(FRAME_BUFFER_COUNT, bufferSize);
+      mFramePools.put(mCameraId, mFramePool);
     }
-
-    // Cannot find the one match the aspect ratio, ignore the requirement
-    if (optimalSize == null) 
+    else if (mFramePool.getOutstandingCount() > 0)
+      reclaimFramePool();
+    
+    try {
+      if (!mCamera.setPreviewCallbackWithBuffer(cb, mFramePool))
+        Log.d(TAG, "Callback buffers unavailable, using allocating preview callback");
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+  
+  /// Takes back every buffer of mFramePool from the camera and the
+  /// dispatcher. The callback is cleared on the camera thread first, so
+  /// no frame is being dispatched and the camera drops the buffers it has
+  /// queued; then frames in flight are finished.
+  private void reclaimFramePool()
+  {
+    final VersionedCamera camera = mCamera;
+    final boolean cleared = VersionedCamera.runAndWait(new Runnable()
     {
-      minDiff = Double.MAX_VALUE;
-      for (Size size : sizes) 
-        if (Math.abs(size.height - targetHeight) < minDiff) 
-        {
-          optimalSize = size;
-          minDiff = Math.abs(size.height - targetHeight);
+      @Override
+      public void run()
+      {
+        try {
+          camera.setPreviewCallbackWithBuffer(null, null);
+        } catch (IOException e) {
+          e.printStackTrace();
         }
+      }
+    }, CAMERA_WAIT_MS);
+    if (!cleared)
+    {
+      // frames may still arrive in buffers we would hand out again
+      Log.w(TAG, "preview callback not cleared, frame buffers not reclaimed");
+      return;
     }
     
-    return optimalSize;
+    final boolean dispatching = mDispatcher.isRunning();
+    mDispatcher.stop();
+    Log.d(TAG, "reclaimed " + mFramePool.reclaimAll() + " frame buffers");
+    if (dispatching)
+      mDispatcher.start();
+  }
+  
+  /// Single frame rates as fixed ranges, in fps * 1000
+  protected static int[][] frameRatesToRanges(int[] rates)
+  {
+    final int[][] ranges = new int[rates.length][];
+    for (int i = 0; i < ranges.length; i++)
+      ranges[i] = new int[] { rates[i] * 1000, rates[i] * 1000 };
+    return ranges;
   }
 
   private static class CupcakeDetected extends VersionedPreview
@@ -161,9 +323,21 @@ public abstract class VersionedPreview extends ViewGroup
       mCamera = c;
       if (mCamera != null) 
       {
-        mSupportedPreviewSizes = ((Camera.Parameters) mCamera.getParameters()).getSupportedPreviewSizes();
+        // capabilities are remembered from earlier launches when possible,
+        // saving a parameters round trip
+        mCameraId = mCamera.getCameraId();
+        if (!mNegotiator.hasCapabilities(mCameraId))
+        {
+          final CameraSettings settings = mCamera.getSettings();
+          mNegotiator.setCapabilities(mCameraId,
+            settings.getSupportedPreviewSizes(),
+            null);
+        }
         requestLayout();
       }
+      cameraChanged();
+      if (mCamera != null)
+        attachToReadySurface(surfaceChange);
     }
 
     /// Called when the holder is created/destroyed/changed
@@ -172,12 +346,12 @@ public abstract class VersionedPreview extends ViewGroup
       @Override
       public void surfaceCreated(SurfaceHolder holder) 
       {
+        mSurfaceReady = true;
         // The Surface has been created, acquire the camera and tell it where
         // to draw.
         if (mCamera != null)
           try {
             mCamera.setPreviewDisplay(holder);
-            mCamera.setPreviewCallback(previewFrame);
           } catch (IOException e) {
             e.printStackTrace();
           }
@@ -186,6 +360,7 @@ public abstract class VersionedPreview extends ViewGroup
       @Override
       public void surfaceDestroyed(SurfaceHolder holder) 
       {
+        mSurfaceReady = false;
         if (mCamera != null)
           mCamera.stopPreview();
       }
@@ -193,16 +368,25 @@ public abstract class VersionedPreview extends ViewGroup
       @Override
       public void surfaceChanged(SurfaceHolder holder, int format, int w, int h) 
       {
+        mSurfaceFormat = format;
+        mSurfaceWidth = w;
+        mSurfaceHeight = h;
         if (mCamera != null)
         {
-          Camera.Parameters parameters = (Camera.Parameters) mCamera.getParameters();
-          if (mPreviewSize != null)
-            parameters.setPreviewSize(mPreviewSize.width, mPreviewSize.height);
-          else
-            parameters.setPreviewSize(w, h);
+          StartupTracer.get().begin(StartupTracer.Phase.SURFACE_CHANGED);
+          // only what differs from the cached settings reaches the camera
+          final CameraSettings settings = mCamera.getSettings();
+          if (mPreviewChoice != null)
+          {
+            w = mPreviewChoice.width;
+            h = mPreviewChoice.height;
+          }
+          settings.setPreviewSize(w, h);
           
-          mCamera.setParameters(parameters);
-          mCamera.startPreview();
+          mCamera.applySettings();
+          attachPreviewCallback(previewFrame, w, h);
+          startCameraPreview();
+          StartupTracer.get().end(StartupTracer.Phase.SURFACE_CHANGED);
         }
       }
     };
@@ -213,8 +397,8 @@ public abstract class VersionedPreview extends ViewGroup
       @Override
       public void onPreviewFrame(byte[] data, Camera camera) 
       {
-        Log.d(TAG, "onPreviewFrame called at: " + System.currentTimeMillis());
-        CupcakeDetected.this.invalidate();
+        final long start = System.nanoTime();
+        dispatchFrame(data, start);
       }
     };
   }
@@ -242,9 +426,21 @@ public abstract class VersionedPreview extends ViewGroup
       mCamera = c;
       if (mCamera != null) 
       {
-        mSupportedPreviewSizes = ((Camera.Parameters) mCamera.getParameters()).getSupportedPreviewSizes();
+        // capabilities are remembered from earlier launches when possible,
+        // saving a parameters round trip
+        mCameraId = mCamera.getCameraId();
+        if (!mNegotiator.hasCapabilities(mCameraId))
+        {
+          final CameraSettings settings = mCamera.getSettings();
+          mNegotiator.setCapabilities(mCameraId,
+            settings.getSupportedPreviewSizes(),
+            null);
+        }
         requestLayout();
       }
+      cameraChanged();
+      if (mCamera != null)
+        attachToReadySurface(surfaceChange);
     }
 
     /// Called when the holder is created/destroyed/changed
@@ -253,12 +449,12 @@ public abstract class VersionedPreview extends ViewGroup
       @Override
       public void surfaceCreated(SurfaceHolder holder) 
       {
+        mSurfaceReady = true;
         // The Surface has been created, acquire the camera and tell it where
         // to draw.
         if (mCamera != null)
           try {
             mCamera.setPreviewDisplay(holder);
-            mCamera.setPreviewCallback(previewFrame);
           } catch (IOException e) {
             e.printStackTrace();
           }
@@ -267,6 +463,7 @@ public abstract class VersionedPreview extends ViewGroup
       @Override
       public void surfaceDestroyed(SurfaceHolder holder) 
       {
+        mSurfaceReady = false;
         if (mCamera != null)
           mCamera.stopPreview();
       }
@@ -274,16 +471,25 @@ public abstract class VersionedPreview extends ViewGroup
       @Override
       public void surfaceChanged(SurfaceHolder holder, int format, int w, int h) 
       {
+        mSurfaceFormat = format;
+        mSurfaceWidth = w;
+        mSurfaceHeight = h;
         if (mCamera != null)
         {
-          Camera.Parameters parameters = (Camera.Parameters) mCamera.getParameters();
-          if (mPreviewSize != null)
-            parameters.setPreviewSize(mPreviewSize.width, mPreviewSize.height);
-          else
-            parameters.setPreviewSize(w, h);
+          StartupTracer.get().begin(StartupTracer.Phase.SURFACE_CHANGED);
+          // only what differs from the cached settings reaches the camera
+          final CameraSettings settings = mCamera.getSettings();
+          if (mPreviewChoice != null)
+          {
+            w = mPreviewChoice.width;
+            h = mPreviewChoice.height;
+          }
+          settings.setPreviewSize(w, h);
           
-          mCamera.setParameters(parameters);
-          mCamera.startPreview();
+          mCamera.applySettings();
+          attachPreviewCallback(previewFrame, w, h);
+          startCameraPreview();
+          StartupTracer.get().end(StartupTracer.Phase.SURFACE_CHANGED);
         }
       }
     };
@@ -294,8 +500,8 @@ public abstract class VersionedPreview extends ViewGroup
       @Override
       public void onPreviewFrame(byte[] data, Camera camera) 
       {
-        Log.d(TAG, "onPreviewFrame called at: " + System.currentTimeMillis());
-        DonutDetected.this.invalidate();
+        final long start = System.nanoTime();
+        dispatchFrame(data, start);
       }
     };
   }
@@ -323,9 +529,21 @@ public abstract class VersionedPreview extends ViewGroup
       mCamera = c;
       if (mCamera != null) 
       {
-        mSupportedPreviewSizes = ((Camera.Parameters) mCamera.getParameters()).getSupportedPreviewSizes();
+        // capabilities are remembered from earlier launches when possible,
+        // saving a parameters round trip
+        mCameraId = mCamera.getCameraId();
+        if (!mNegotiator.hasCapabilities(mCameraId))
+        {
+          final CameraSettings settings = mCamera.getSettings();
+          mNegotiator.setCapabilities(mCameraId,
+            settings.getSupportedPreviewSizes(),
+            frameRatesToRanges(settings.getSupportedPreviewFrameRates()));
+        }
         requestLayout();
       }
+      cameraChanged();
+      if (mCamera != null)
+        attachToReadySurface(surfaceChange);
     }
 
     /// Called when the holder is created/destroyed/changed
@@ -334,12 +552,12 @@ public abstract class VersionedPreview extends ViewGroup
       @Override
       public void surfaceCreated(SurfaceHolder holder) 
       {
+        mSurfaceReady = true;
         // The Surface has been created, acquire the camera and tell it where
         // to draw.
         if (mCamera != null)
           try {
             mCamera.setPreviewDisplay(holder);
-            mCamera.setPreviewCallback(previewFrame);
           } catch (IOException e) {
             e.printStackTrace();
           }
@@ -348,6 +566,7 @@ public abstract class VersionedPreview extends ViewGroup
       @Override
       public void surfaceDestroyed(SurfaceHolder holder) 
       {
+        mSurfaceReady = false;
         if (mCamera != null)
           mCamera.stopPreview();
       }
@@ -355,16 +574,27 @@ public abstract class VersionedPreview extends ViewGroup
       @Override
       public void surfaceChanged(SurfaceHolder holder, int format, int w, int h) 
       {
+        mSurfaceFormat = format;
+        mSurfaceWidth = w;
+        mSurfaceHeight = h;
         if (mCamera != null)
         {
-          Camera.Parameters parameters = (Camera.Parameters) mCamera.getParameters();
-          if (mPreviewSize != null)
-            parameters.setPreviewSize(mPreviewSize.width, mPreviewSize.height);
-          else
-            parameters.setPreviewSize(w, h);
+          StartupTracer.get().begin(StartupTracer.Phase.SURFACE_CHANGED);
+          // only what differs from the cached settings reaches the camera
+          final CameraSettings settings = mCamera.getSettings();
+          if (mPreviewChoice != null)
+          {
+            w = mPreviewChoice.width;
+            h = mPreviewChoice.height;
+          }
+          settings.setPreviewSize(w, h);
+          if (mPreviewChoice != null && mPreviewChoice.maxFps > 0)
+            settings.setPreviewFrameRate(mPreviewChoice.maxFps / 1000);
           
-          mCamera.setParameters(parameters);
-          mCamera.startPreview();
+          mCamera.applySettings();
+          attachPreviewCallback(previewFrame, w, h);
+          startCameraPreview();
+          StartupTracer.get().end(StartupTracer.Phase.SURFACE_CHANGED);
         }
       }
     };
@@ -375,8 +605,8 @@ public abstract class VersionedPreview extends ViewGroup
       @Override
       public void onPreviewFrame(byte[] data, Camera camera) 
       {
-        Log.d(TAG, "onPreviewFrame called at: " + System.currentTimeMillis());
-        EclairDetected.this.invalidate();
+        final long start = System.nanoTime();
+        dispatchFrame(data, start);
       }
     };
   }
@@ -404,9 +634,21 @@ public abstract class VersionedPreview extends ViewGroup
       mCamera = c;
       if (mCamera != null) 
       {
-        mSupportedPreviewSizes = ((Camera.Parameters) mCamera.getParameters()).getSupportedPreviewSizes();
+        // capabilities are remembered from earlier launches when possible,
+        // saving a parameters round trip
+        mCameraId = mCamera.getCameraId();
+        if (!mNegotiator.hasCapabilities(mCameraId))
+        {
+          final CameraSettings settings = mCamera.getSettings();
+          mNegotiator.setCapabilities(mCameraId,
+            settings.getSupportedPreviewSizes(),
+            frameRatesToRanges(settings.getSupportedPreviewFrameRates()));
+        }
         requestLayout();
       }
+      cameraChanged();
+      if (mCamera != null)
+        attachToReadySurface(surfaceChange);
     }
 
     /// Called when the holder is created/destroyed/changed
@@ -415,12 +657,12 @@ public abstract class VersionedPreview extends ViewGroup
       @Override
       public void surfaceCreated(SurfaceHolder holder) 
       {
+        mSurfaceReady = true;
         // The Surface has been created, acquire the camera and tell it where
         // to draw.
         if (mCamera != null)
           try {
             mCamera.setPreviewDisplay(holder);
-            mCamera.setPreviewCallback(previewFrame);
           } catch (IOException e) {
             e.printStackTrace();
           }
@@ -429,6 +671,7 @@ public abstract class VersionedPreview extends ViewGroup
       @Override
       public void surfaceDestroyed(SurfaceHolder holder) 
       {
+        mSurfaceReady = false;
         if (mCamera != null)
           mCamera.stopPreview();
       }
@@ -436,16 +679,27 @@ public abstract class VersionedPreview extends ViewGroup
       @Override
       public void surfaceChanged(SurfaceHolder holder, int format, int w, int h) 
       {
+        mSurfaceFormat = format;
+        mSurfaceWidth = w;
+        mSurfaceHeight = h;
         if (mCamera != null)
         {
-          Camera.Parameters parameters = (Camera.Parameters) mCamera.getParameters();
-          if (mPreviewSize != null)
-            parameters.setPreviewSize(mPreviewSize.width, mPreviewSize.height);
-          else
-            parameters.setPreviewSize(w, h);
+          StartupTracer.get().begin(StartupTracer.Phase.SURFACE_CHANGED);
+          // only what differs from the cached settings reaches the camera
+          final CameraSettings settings = mCamera.getSettings();
+          if (mPreviewChoice != null)
+          {
+            w = mPreviewChoice.width;
+            h = mPreviewChoice.height;
+          }
+          settings.setPreviewSize(w, h);
+          if (mPreviewChoice != null && mPreviewChoice.maxFps > 0)
+            settings.setPreviewFrameRate(mPreviewChoice.maxFps / 1000);
           
-          mCamera.setParameters(parameters);
-          mCamera.startPreview();
+          mCamera.applySettings();
+          attachPreviewCallback(previewFrame, w, h);
+          startCameraPreview();
+          StartupTracer.get().end(StartupTracer.Phase.SURFACE_CHANGED);
         }
       }
     };
@@ -456,8 +710,8 @@ public abstract class VersionedPreview extends ViewGroup
       @Override
       public void onPreviewFrame(byte[] data, Camera camera) 
       {
-        Log.d(TAG, "onPreviewFrame called at: " + System.currentTimeMillis());
-        FroyoDetected.this.invalidate();
+        final long start = System.nanoTime();
+        dispatchFrame(data, start);
       }
     };
   }
@@ -485,9 +739,21 @@ public abstract class VersionedPreview extends ViewGroup
       mCamera = c;
       if (mCamera != null) 
       {
-        mSupportedPreviewSizes = ((Camera.Parameters) mCamera.getParameters()).getSupportedPreviewSizes();
+        // capabilities are remembered from earlier launches when possible,
+        // saving a parameters round trip
+        mCameraId = mCamera.getCameraId();
+        if (!mNegotiator.hasCapabilities(mCameraId))
+        {
+          final CameraSettings settings = mCamera.getSettings();
+          mNegotiator.setCapabilities(mCameraId,
+            settings.getSupportedPreviewSizes(),
+            settings.getSupportedPreviewFpsRanges());
+        }
         requestLayout();
       }
+      cameraChanged();
+      if (mCamera != null)
+        attachToReadySurface(surfaceChange);
     }
 
     /// Called when the holder is created/destroyed/changed
@@ -496,12 +762,12 @@ public abstract class VersionedPreview extends ViewGroup
       @Override
       public void surfaceCreated(SurfaceHolder holder) 
       {
+        mSurfaceReady = true;
         // The Surface has been created, acquire the camera and tell it where
         // to draw.
         if (mCamera != null)
           try {
             mCamera.setPreviewDisplay(holder);
-            mCamera.setPreviewCallback(previewFrame);
           } catch (IOException e) {
             e.printStackTrace();
           }
@@ -510,6 +776,7 @@ public abstract class VersionedPreview extends ViewGroup
       @Override
       public void surfaceDestroyed(SurfaceHolder holder) 
       {
+        mSurfaceReady = false;
         if (mCamera != null)
           mCamera.stopPreview();
       }
@@ -517,16 +784,27 @@ public abstract class VersionedPreview extends ViewGroup
       @Override
       public void surfaceChanged(SurfaceHolder holder, int format, int w, int h) 
       {
+        mSurfaceFormat = format;
+        mSurfaceWidth = w;
+        mSurfaceHeight = h;
         if (mCamera != null)
         {
-          Camera.Parameters parameters = (Camera.Parameters) mCamera.getParameters();
-          if (mPreviewSize != null)
-            parameters.setPreviewSize(mPreviewSize.width, mPreviewSize.height);
-          else
-            parameters.setPreviewSize(w, h);
+          StartupTracer.get().begin(StartupTracer.Phase.SURFACE_CHANGED);
+          // only what differs from the cached settings reaches the camera
+          final CameraSettings settings = mCamera.getSettings();
+          if (mPreviewChoice != null)
+          {
+            w = mPreviewChoice.width;
+            h = mPreviewChoice.height;
+          }
+          settings.setPreviewSize(w, h);
+          if (mPreviewChoice != null && mPreviewChoice.maxFps > 0)
+            settings.setPreviewFpsRange(mPreviewChoice.minFps, mPreviewChoice.maxFps);
           
-          mCamera.setParameters(parameters);
-          mCamera.startPreview();
+          mCamera.applySettings();
+          attachPreviewCallback(previewFrame, w, h);
+          startCameraPreview();
+          StartupTracer.get().end(StartupTracer.Phase.SURFACE_CHANGED);
         }
       }
     };
@@ -537,8 +815,8 @@ public abstract class VersionedPreview extends ViewGroup
       @Override
       public void onPreviewFrame(byte[] data, Camera camera) 
       {
-        Log.d(TAG, "onPreviewFrame called at: " + System.currentTimeMillis());
-        GingerbreadDetected.this.invalidate();
+        final long start = System.nanoTime();
+        dispatchFrame(data, start);
       }
     };
   }